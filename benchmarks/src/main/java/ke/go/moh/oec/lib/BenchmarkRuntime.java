@@ -0,0 +1,135 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Sets up a private runtime directory and properties file for a benchmark
+ * fork, before the library's static initialization runs.
+ * <p>
+ * {@link Mediator} locks its runtime directory and loads
+ * openemrconnect.properties the first time the class is touched, so each
+ * benchmark must call {@link #init(Map)} from its setup method before
+ * using any library class.
+ */
+final class BenchmarkRuntime {
+
+    /** Address this benchmark instance uses as its own. */
+    static final String INSTANCE_ADDRESS = "ke.go.moh.benchmark";
+    /** Address used as the destination of benchmark messages. */
+    static final String DESTINATION_ADDRESS = "ke.go.moh.benchmark.destination";
+    private static File runtimeDirectory = null;
+
+    private BenchmarkRuntime() {
+    }
+
+    /**
+     * Creates the runtime directory and properties file for this JVM.
+     * Only the first call in a JVM has any effect.
+     *
+     * @param overrides properties to add to (or replace in) the defaults.
+     * @return the runtime directory.
+     * @throws IOException if the directory or properties file can't be written.
+     */
+    static synchronized File init(Map<String, String> overrides) throws IOException {
+        if (runtimeDirectory == null) {
+            runtimeDirectory = Files.createTempDirectory("oecbench").toFile();
+            Properties p = new Properties();
+            p.setProperty("Instance.Name", "OEC Benchmark");
+            p.setProperty("Instance.Address", INSTANCE_ADDRESS);
+            p.setProperty("HTTPHandler.ListenPort", Integer.toString(freePort()));
+            p.setProperty("QueueManager.PollingIntervalSeconds", "3600");
+            p.setProperty("Logger.Level", "WARNING");
+            p.setProperty("IPAddressPort.*", "127.0.0.1:1");
+            if (overrides != null) {
+                p.putAll(overrides);
+            }
+            OutputStream out = new FileOutputStream(new File(runtimeDirectory, "openemrconnect.properties"));
+            try {
+                p.store(out, "Generated for benchmarking");
+            } finally {
+                out.close();
+            }
+            String path = runtimeDirectory.getAbsolutePath() + File.separator;
+            System.setProperty("runtimeDirectory", path);
+            System.setProperty("configDirectory", path);
+        }
+        return runtimeDirectory;
+    }
+
+    /**
+     * Finds a TCP port that is free for listening on this machine.
+     *
+     * @return the port number.
+     * @throws IOException if no port could be allocated.
+     */
+    static int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Makes a compressed payload of roughly the given size for queueing.
+     *
+     * @param destination destination address of the message.
+     * @param size approximate size of the (uncompressed) XML payload.
+     * @return the message.
+     */
+    static Message payloadMessage(String destination, int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<LogEntry>\n");
+        Random random = new Random(size); // Same content on every run.
+        int i = 0;
+        while (sb.length() < size) {
+            sb.append("<message>benchmark payload line ").append(i++).append("</message>\n");
+            sb.append("<template>"); // Fingerprint-like hex data that does not compress well.
+            for (int j = 0; j < 32; j++) {
+                sb.append(Integer.toHexString(random.nextInt(256) | 0x100).substring(1));
+            }
+            sb.append("</template>\n");
+        }
+        sb.append("</LogEntry>\n");
+        Message m = new Message();
+        m.setDestinationAddress(destination);
+        m.setHopCount(1);
+        m.setToBeQueued(true);
+        m.setXml(sb.toString());
+        m.getCompressedXml(); // Compress once up front so it isn't measured.
+        return m;
+    }
+}
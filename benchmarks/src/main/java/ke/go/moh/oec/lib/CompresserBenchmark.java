@@ -0,0 +1,106 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast {@link Compresser} compresses and decompresses the XML
+ * of real messages, from a few kilobytes to several hundred.
+ * <p>
+ * The <code>message</code> parameter names one of the messages made by
+ * {@link XmlPackerBenchmark#makeMessage(String)}. Setup checks that each
+ * message's XML comes back unchanged, so a size limit in decompression
+ * fails the benchmark rather than just making it look fast.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompresserBenchmark {
+
+    /**
+     * A message's XML, and the same XML compressed.
+     */
+    @State(Scope.Thread)
+    public static class XmlState {
+
+        @Param({"findPerson", "findPersonFingerprints", "findPersonResponse10",
+            "createPersonBatch", "findPersonResponse100"})
+        String message;
+        String xml;
+        byte[] compressedXml;
+        int compressedXmlLength;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkRuntime.init(null);
+            xml = new XmlPacker().pack(XmlPackerBenchmark.makeMessage(message));
+            Message m = new Message();
+            m.setXml(xml);
+            Compresser.compress(m);
+            compressedXml = m.getCompressedXml();
+            compressedXmlLength = m.getCompressedXmlLength();
+            Message check = new Message();
+            check.setCompressedXml(compressedXml);
+            check.setCompressedXmlLength(compressedXmlLength);
+            Compresser.decompress(check);
+            if (!xml.equals(check.getXml())) {
+                throw new IllegalStateException("Benchmark message " + message + " (" + xml.length()
+                        + " characters) does not decompress to its original XML");
+            }
+        }
+    }
+
+    @Benchmark
+    public int compress(XmlState s) {
+        Message m = new Message();
+        m.setXml(s.xml);
+        Compresser.compress(m);
+        return m.getCompressedXmlLength();
+    }
+
+    @Benchmark
+    public String decompress(XmlState s) {
+        Message m = new Message();
+        m.setCompressedXml(s.compressedXml);
+        m.setCompressedXmlLength(s.compressedXmlLength);
+        Compresser.decompress(m);
+        return m.getXml();
+    }
+}
@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import ke.go.moh.oec.IService;
+import ke.go.moh.oec.LogEntry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sending a message over HTTP on the loopback interface and
+ * receiving it, through {@link HttpService} at both ends.
+ * <p>
+ * The benchmark's own {@link Mediator} listens for the messages, and each
+ * message is addressed to it, so one send covers the whole wire path:
+ * compression (if any), MD5, segmentation (if any), the HTTP exchange,
+ * reassembly, decompression and unpacking. Each message is a batch of log
+ * entries, delivered to a callback that does nothing.
+ * <p>
+ * The <code>hop</code> parameter holds the next hop options, as they would
+ * follow the IP address and port in an IPAddressPort property, or "plain"
+ * for none. The <code>entries</code> parameter sets the message size, at
+ * about 480 bytes of XML per entry.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HttpServiceBenchmark {
+
+    /**
+     * A listening mediator, and a message to send to it.
+     */
+    @State(Scope.Thread)
+    public static class LoopbackState {
+
+        @Param({"plain", "zip", "md5", "maxSize=4096", "zip/md5/maxSize=4096"})
+        String hop;
+        @Param({"1", "10", "100", "1000"})
+        int entries;
+        Mediator mediator;
+        HttpService httpService;
+        NextHop nextHop;
+        String xml;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkRuntime.init(null);
+            Mediator.suppressLoggingService();
+            Mediator.registerCallback(new IService() {
+
+                public Object getData(int requestTypeId, Object requestData) {
+                    return null;
+                }
+            });
+            mediator = new Mediator();
+            httpService = mediator.getHttpService();
+            String hopString = "127.0.0.1:" + Mediator.getProperty("HTTPHandler.ListenPort");
+            if (!hop.equals("plain")) {
+                hopString += "/" + hop;
+            }
+            nextHop = NextHop.parseHopString(hopString);
+            List<LogEntry> logEntries = new ArrayList<LogEntry>(entries);
+            for (int i = 0; i < entries; i++) {
+                logEntries.add(XmlPackerBenchmark.logEntry(i));
+            }
+            Message m = new Message();
+            m.setMessageType(MessageTypeRegistry.logEntryBatch);
+            m.setMessageData(logEntries);
+            m.setMessageId("0w4mjid0854wty7w");
+            m.setSourceAddress(BenchmarkRuntime.INSTANCE_ADDRESS);
+            m.setDestinationAddress(BenchmarkRuntime.INSTANCE_ADDRESS);
+            xml = new XmlPacker().pack(m);
+            if (!httpService.send(message())) {
+                throw new IllegalStateException("Can't send to " + hopString);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mediator.stop();
+        }
+
+        /**
+         * Makes a new message for each send, so any compression is measured.
+         *
+         * @return the message.
+         */
+        Message message() {
+            Message m = new Message();
+            m.setDestinationAddress(BenchmarkRuntime.INSTANCE_ADDRESS);
+            m.setHopCount(1);
+            m.setNextHop(nextHop);
+            m.setXml(xml);
+            return m;
+        }
+    }
+
+    @Benchmark
+    public boolean send(LoopbackState s) throws Exception {
+        return s.httpService.send(s.message());
+    }
+}
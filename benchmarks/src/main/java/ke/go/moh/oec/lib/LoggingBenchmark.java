@@ -0,0 +1,93 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of a log call on a busy message path when the
+ * message level is not being logged (the usual case in production,
+ * where the logger level is INFO or WARNING and the busy paths log at FINE.)
+ * <p>
+ * <code>uncached</code> is the way the busy paths used to log: look up the
+ * logger and set its level on every call, and build the parameter array
+ * and message summary whether or not anything is logged.
+ * <code>cached</code> logs through a {@link CachedLogger}, which checks
+ * the level first without locking and builds nothing unless the message
+ * will be logged.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class LoggingBenchmark {
+
+    /**
+     * A message to log about, with the logger level set to WARNING.
+     */
+    @State(Scope.Benchmark)
+    public static class LogState {
+
+        CachedLogger cachedLogger;
+        Message message;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkRuntime.init(Collections.singletonMap("Logger.Level", "WARNING"));
+            cachedLogger = CachedLogger.get(LoggingBenchmark.class);
+            message = BenchmarkRuntime.payloadMessage(BenchmarkRuntime.DESTINATION_ADDRESS, 2000);
+        }
+    }
+
+    @Benchmark
+    public void uncached(LogState s) {
+        Logger logger = Logger.getLogger(LoggingBenchmark.class.getName());
+        logger.setLevel(Mediator.getLoggerLevel());
+        logger.log(java.util.logging.Level.FINE, "Queued message to {0}: {1}",
+                new Object[]{s.message.getDestinationAddress(), s.message.summarize()});
+    }
+
+    @Benchmark
+    public void cached(LogState s) {
+        s.cachedLogger.logSummary(java.util.logging.Level.FINE, "Queued message to {0}: {1}",
+                s.message.getDestinationAddress(), s.message);
+    }
+}
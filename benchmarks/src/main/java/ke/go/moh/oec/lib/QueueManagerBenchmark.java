@@ -0,0 +1,144 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures store-and-forward queue throughput against each queue store.
+ * <p>
+ * <code>enqueue</code> measures how fast callers can queue messages while
+ * the destination is unreachable (the usual reason for a backlog).
+ * <code>drain</code> measures how long it takes to send and remove a
+ * backlog of queued messages once the destination is reachable again.
+ * No network traffic is generated: sends go to a stub {@link HttpService}.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QueueManagerBenchmark {
+
+    /** Number of messages in the backlog for each drain measurement. */
+    private static final int BACKLOG = 2000;
+
+    /**
+     * HTTP service stand-in that either accepts or refuses every send.
+     */
+    static class StubHttpService extends HttpService {
+
+        private final NextHop nextHop = new NextHop();
+        volatile boolean reachable = false;
+
+        StubHttpService() {
+            super(null);
+            nextHop.setIpAddressPort("127.0.0.1:1");
+        }
+
+        @Override
+        boolean send(Message m) {
+            m.setNextHop(nextHop);
+            return reachable;
+        }
+    }
+
+    /**
+     * A queue manager whose destination is unreachable.
+     */
+    @State(Scope.Benchmark)
+    public static class QueueState {
+
+        @Param({"derby", "journal"})
+        String store;
+        @Param({"2000"})
+        int payloadSize;
+        StubHttpService httpService;
+        QueueManager queueManager;
+        Message message;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkRuntime.init(Collections.singletonMap("QueueManager.Store", store));
+            httpService = new StubHttpService();
+            queueManager = new QueueManager(httpService);
+            message = BenchmarkRuntime.payloadMessage(BenchmarkRuntime.DESTINATION_ADDRESS, payloadSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            queueManager.stop();
+        }
+    }
+
+    /**
+     * A queue manager holding a backlog, refilled before every drain.
+     */
+    @State(Scope.Benchmark)
+    public static class BacklogState extends QueueState {
+
+        /**
+         * Fills the queue while the destination is unreachable,
+         * then lets any polling pass started by the fill finish.
+         */
+        @Setup(Level.Invocation)
+        public void fillBacklog() throws InterruptedException {
+            httpService.reachable = false;
+            for (int i = 0; i < BACKLOG; i++) {
+                queueManager.enqueue(message);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(4)
+    public boolean enqueue(QueueState s) {
+        return s.queueManager.enqueue(s.message);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void drain(BacklogState s) {
+        s.httpService.reachable = true;
+        s.queueManager.drain();
+    }
+}
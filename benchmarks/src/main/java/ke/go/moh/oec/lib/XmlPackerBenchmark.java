@@ -0,0 +1,333 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import ke.go.moh.oec.Fingerprint;
+import ke.go.moh.oec.LogEntry;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonBatchRequest;
+import ke.go.moh.oec.PersonBatchResponse;
+import ke.go.moh.oec.PersonIdentifier;
+import ke.go.moh.oec.PersonRequest;
+import ke.go.moh.oec.PersonResponse;
+import ke.go.moh.oec.Visit;
+import ke.go.moh.oec.Work;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how fast {@link XmlPacker} packs messages into XML and unpacks
+ * them again, for every message template type.
+ * <p>
+ * The <code>message</code> parameter chooses the message: each template
+ * type, plus find person with and without fingerprints and find person
+ * responses with 1, 10 and 100 candidates. Batch messages hold
+ * {@link #BATCH_SIZE} items.
+ * <p>
+ * To see the allocation rate as well as the throughput, run with the
+ * GC profiler, either from the benchmarks jar:
+ * <pre>
+ *     java -jar target/benchmarks.jar XmlPackerBenchmark -prof gc
+ * </pre>
+ * or with this class's main method, which adds the profiler itself:
+ * <pre>
+ *     java -cp target/benchmarks.jar ke.go.moh.oec.lib.XmlPackerBenchmark
+ * </pre>
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class XmlPackerBenchmark {
+
+    /** Number of items in each batch message. */
+    static final int BATCH_SIZE = 10;
+
+    /**
+     * A message to pack, and its XML to unpack.
+     */
+    @State(Scope.Thread)
+    public static class MessageState {
+
+        @Param({"findPerson", "findPersonFingerprints",
+            "findPersonResponse1", "findPersonResponse10", "findPersonResponse100",
+            "createPerson", "createPersonAccepted", "modifyPerson", "modifyPersonAccepted",
+            "notifyPersonChanged", "logEntry", "getWork", "workDone", "reassignWork",
+            "findPersonBatch", "findPersonBatchResponse", "createPersonBatch", "createPersonBatchAccepted",
+            "modifyPersonBatch", "modifyPersonBatchAccepted", "logEntryBatch"})
+        String message;
+        XmlPacker xmlPacker;
+        Message m;
+        String xml;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            BenchmarkRuntime.init(null);
+            xmlPacker = new XmlPacker();
+            m = makeMessage(message);
+            xml = xmlPacker.pack(m);
+            Message check = new Message();
+            check.setXml(xml);
+            xmlPacker.unpack(check);
+            if (check.getMessageData() == null) {
+                throw new IllegalStateException("Benchmark message " + message + " does not unpack");
+            }
+        }
+    }
+
+    @Benchmark
+    public String pack(MessageState s) {
+        return s.xmlPacker.pack(s.m);
+    }
+
+    @Benchmark
+    public Object unpack(MessageState s) {
+        Message m = new Message();
+        m.setXml(s.xml);
+        s.xmlPacker.unpack(m);
+        return m.getMessageData();
+    }
+
+    /**
+     * Makes a benchmark message.
+     *
+     * @param name value of the <code>message</code> parameter.
+     * @return the message.
+     */
+    static Message makeMessage(String name) {
+        Random random = new Random(name.hashCode()); // Same content on every run.
+        MessageType messageType;
+        Object data;
+        if (name.equals("findPerson")) {
+            messageType = MessageTypeRegistry.findPersonMpi;
+            data = personRequest(random, false);
+        } else if (name.equals("findPersonFingerprints")) {
+            messageType = MessageTypeRegistry.findPersonMpi;
+            data = personRequest(random, true);
+        } else if (name.startsWith("findPersonResponse")) {
+            messageType = MessageTypeRegistry.findPersonResponse;
+            data = personResponse(random, Integer.parseInt(name.substring("findPersonResponse".length())));
+        } else if (name.equals("createPerson")) {
+            messageType = MessageTypeRegistry.createPersonMpi;
+            data = personRequest(random, true);
+        } else if (name.equals("createPersonAccepted")) {
+            messageType = MessageTypeRegistry.createPersonAccepted;
+            data = personResponse(random, 1);
+        } else if (name.equals("modifyPerson")) {
+            messageType = MessageTypeRegistry.modifyPersonMpi;
+            data = personRequest(random, true);
+        } else if (name.equals("modifyPersonAccepted")) {
+            messageType = MessageTypeRegistry.modifyPersonAccepted;
+            data = personResponse(random, 1);
+        } else if (name.equals("notifyPersonChanged")) {
+            messageType = MessageTypeRegistry.notifyPersonChanged;
+            data = personRequest(random, false);
+        } else if (name.equals("logEntry")) {
+            messageType = MessageTypeRegistry.logEntry;
+            data = logEntry(0);
+        } else if (name.equals("getWork")) {
+            messageType = MessageTypeRegistry.getWork;
+            data = work(false);
+        } else if (name.equals("workDone")) {
+            messageType = MessageTypeRegistry.WorkDone;
+            data = work(false);
+        } else if (name.equals("reassignWork")) {
+            messageType = MessageTypeRegistry.ReassignWork;
+            data = work(true);
+        } else if (name.equals("findPersonBatch")) {
+            messageType = MessageTypeRegistry.findPersonBatchMpi;
+            data = batchRequest(random, false);
+        } else if (name.equals("findPersonBatchResponse")) {
+            messageType = MessageTypeRegistry.findPersonBatchResponse;
+            data = batchResponse(random, 3);
+        } else if (name.equals("createPersonBatch")) {
+            messageType = MessageTypeRegistry.createPersonBatchMpi;
+            data = batchRequest(random, true);
+        } else if (name.equals("createPersonBatchAccepted")) {
+            messageType = MessageTypeRegistry.createPersonBatchAccepted;
+            data = batchResponse(random, 1);
+        } else if (name.equals("modifyPersonBatch")) {
+            messageType = MessageTypeRegistry.modifyPersonBatchMpi;
+            data = batchRequest(random, true);
+        } else if (name.equals("modifyPersonBatchAccepted")) {
+            messageType = MessageTypeRegistry.modifyPersonBatchAccepted;
+            data = batchResponse(random, 1);
+        } else if (name.equals("logEntryBatch")) {
+            messageType = MessageTypeRegistry.logEntryBatch;
+            List<LogEntry> entries = new ArrayList<LogEntry>();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                entries.add(logEntry(i));
+            }
+            data = entries;
+        } else {
+            throw new IllegalArgumentException("Unknown benchmark message " + name);
+        }
+        Message m = new Message();
+        m.setMessageType(messageType);
+        m.setMessageData(data);
+        m.setMessageId("0w4mjid0854wty7w");
+        m.setSourceAddress(BenchmarkRuntime.INSTANCE_ADDRESS);
+        m.setSourceName("OEC Benchmark");
+        m.setDestinationAddress(BenchmarkRuntime.DESTINATION_ADDRESS);
+        m.setDestinationName("OEC Benchmark Destination");
+        return m;
+    }
+
+    private static Person person(Random random, boolean fingerprints) {
+        Person p = new Person();
+        p.setPersonGuid(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+        p.setFirstName("Wanjiku" + random.nextInt(1000));
+        p.setMiddleName("Akinyi");
+        p.setLastName("Otieno" + random.nextInt(1000));
+        p.setOtherName("Mama Juma");
+        p.setSex(random.nextBoolean() ? Person.Sex.F : Person.Sex.M);
+        p.setBirthdate(new Date(random.nextInt(1000000000) * 1000L));
+        p.setMothersFirstName("Atieno");
+        p.setMothersLastName("Ochieng");
+        p.setVillageName("Kisumu Ndogo");
+        p.setSiteName("Lwak Mission Hospital");
+        p.setAliveStatus(Person.AliveStatus.yes);
+        p.setMaritalStatus(Person.MaritalStatus.marriedMonogamous);
+        p.setMatchScore(random.nextInt(100));
+        PersonIdentifier cccId = new PersonIdentifier();
+        cccId.setIdentifierType(PersonIdentifier.Type.cccUniqueId);
+        cccId.setIdentifier("13939-" + random.nextInt(100000));
+        PersonIdentifier nationalId = new PersonIdentifier();
+        nationalId.setIdentifierType(PersonIdentifier.Type.NATIONAL_ID);
+        nationalId.setIdentifier(Integer.toString(20000000 + random.nextInt(10000000)));
+        p.setPersonIdentifierList(Arrays.asList(cccId, nationalId));
+        Visit visit = new Visit();
+        visit.setAddress("ke.go.moh.facility.14080.ccc");
+        visit.setFacilityName("Lwak Mission Hospital CCC");
+        visit.setVisitDate(new Date(1300000000000L + random.nextInt(1000000000)));
+        p.setLastRegularVisit(visit);
+        if (fingerprints) {
+            List<Fingerprint> fingerprintList = new ArrayList<Fingerprint>();
+            for (Fingerprint.Type type : new Fingerprint.Type[]{Fingerprint.Type.leftIndexFinger, Fingerprint.Type.rightIndexFinger}) {
+                Fingerprint f = new Fingerprint();
+                f.setFingerprintType(type);
+                f.setTechnologyType(Fingerprint.TechnologyType.griauleTemplate);
+                byte[] template = new byte[600]; // About the size of a Griaule template.
+                random.nextBytes(template);
+                f.setTemplate(template);
+                fingerprintList.add(f);
+            }
+            p.setFingerprintList(fingerprintList);
+        }
+        return p;
+    }
+
+    private static PersonRequest personRequest(Random random, boolean fingerprints) {
+        PersonRequest r = new PersonRequest();
+        r.setPerson(person(random, fingerprints));
+        r.setResponseRequested(true);
+        return r;
+    }
+
+    private static PersonResponse personResponse(Random random, int candidates) {
+        PersonResponse r = new PersonResponse();
+        List<Person> personList = new ArrayList<Person>(candidates);
+        for (int i = 0; i < candidates; i++) {
+            personList.add(person(random, false));
+        }
+        r.setPersonList(personList);
+        r.setSuccessful(true);
+        return r;
+    }
+
+    private static PersonBatchRequest batchRequest(Random random, boolean fingerprints) {
+        List<PersonRequest> requests = new ArrayList<PersonRequest>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            requests.add(personRequest(random, fingerprints));
+        }
+        PersonBatchRequest b = new PersonBatchRequest();
+        b.setRequestList(requests);
+        return b;
+    }
+
+    private static PersonBatchResponse batchResponse(Random random, int candidates) {
+        List<PersonResponse> responses = new ArrayList<PersonResponse>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            responses.add(personResponse(random, candidates));
+        }
+        PersonBatchResponse b = new PersonBatchResponse();
+        b.setResponseList(responses);
+        b.setSuccessful(true);
+        return b;
+    }
+
+    static LogEntry logEntry(int i) {
+        LogEntry le = new LogEntry();
+        le.setDateTime(new Date(1300000000000L + i));
+        le.setSeverity("WARNING");
+        le.setClassName("ke.go.moh.oec.lib.HttpService");
+        le.setMessage("Timed out waiting for 10.0.0." + i + ":8080 to respond to message to ke.go.moh.facility.14080.ccc");
+        return le;
+    }
+
+    private static Work work(boolean reassign) {
+        Work w = new Work();
+        w.setSourceAddress("ke.go.moh.facility.14080.ccc");
+        w.setNotificationId("1234567");
+        if (reassign) {
+            w.setReassignAddress("ke.go.moh.facility.14080.tb");
+        }
+        return w;
+    }
+
+    /**
+     * Runs the benchmarks with the GC profiler, to report allocation rates.
+     *
+     * @param args not used.
+     * @throws RunnerException if the benchmarks can't be run.
+     */
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(XmlPackerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,45 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec;
+
+/**
+ * Receives the outcome for each person loaded through
+ * {@link ke.go.moh.oec.lib.Mediator#ingest}.
+ */
+public interface IngestListener {
+
+    /**
+     * Reports the outcome of loading one person.
+     * <p>
+     * This is called from the library's sending threads, but only for one
+     * person at a time, so the listener need not be thread-safe.
+     *
+     * @param index position of the person in the stream, starting from 0
+     * @param person the person that was loaded
+     * @param response the response from the server. If the response is
+     * not successful, the person may not have been loaded.
+     */
+    public void personDone(long index, Person person, PersonResponse response);
+}
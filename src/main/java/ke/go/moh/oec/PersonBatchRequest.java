@@ -0,0 +1,79 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec;
+
+import java.util.List;
+
+/**
+ * Data that is supplied as part of a batch request for person information.
+ * Each <code>PersonRequest</code> in the batch is a separate search, and
+ * gets its own <code>PersonResponse</code> in the
+ * {@link PersonBatchResponse}, in the same order.
+ * <p>
+ * The destination of the batch may be given here, in the same way as
+ * for a single <code>PersonRequest</code>. The destinations of the
+ * requests within the batch are not used.
+ */
+public class PersonBatchRequest {
+
+    /** The requests in the batch. */
+    private List<PersonRequest> requestList;
+    /**
+     * Address of the destination to send this batch to. In most cases
+     * this is null because the OEC library will determine the request
+     * destination address based on the request type.
+     */
+    private String destinationAddress;
+    /**
+     * Name of the destination to send this batch to. In most cases
+     * this is null because the OEC library will determine the request
+     * destination address based on the request type.
+     */
+    private String destinationName;
+
+    public List<PersonRequest> getRequestList() {
+        return requestList;
+    }
+
+    public void setRequestList(List<PersonRequest> requestList) {
+        this.requestList = requestList;
+    }
+
+    public String getDestinationAddress() {
+        return destinationAddress;
+    }
+
+    public void setDestinationAddress(String destinationAddress) {
+        this.destinationAddress = destinationAddress;
+    }
+
+    public String getDestinationName() {
+        return destinationName;
+    }
+
+    public void setDestinationName(String destinationName) {
+        this.destinationName = destinationName;
+    }
+}
@@ -0,0 +1,61 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec;
+
+import java.util.List;
+
+/**
+ * Data that is returned in response to a batch request for person
+ * information. There is one <code>PersonResponse</code> for each
+ * <code>PersonRequest</code> in the {@link PersonBatchRequest}, in the
+ * same order. A <code>PersonResponse</code> that is not successful
+ * means that no answer was received for that request.
+ */
+public class PersonBatchResponse {
+
+    /** The responses to the requests in the batch. */
+    private List<PersonResponse> responseList;
+    /**
+     * Is the batch successful? This is true only if every request in the
+     * batch was answered (whether or not any matching entries were found.)
+     */
+    private boolean successful;
+
+    public List<PersonResponse> getResponseList() {
+        return responseList;
+    }
+
+    public void setResponseList(List<PersonResponse> responseList) {
+        this.responseList = responseList;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public void setSuccessful(boolean successful) {
+        this.successful = successful;
+    }
+}
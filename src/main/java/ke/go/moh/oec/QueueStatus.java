@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec;
+
+import java.util.Map;
+
+/**
+ * Contains the state of the store-and-forward queue, so that clients
+ * can slow down before the queue overflows. Returned by
+ * <code>Mediator.getQueueStatus()</code>.
+ * <p>
+ * The queue status as a whole has the status of each destination in
+ * <code>destinationStatus</code>. (The status of a destination does not
+ * itself have destination statuses or overflow counts.)
+ */
+public class QueueStatus {
+
+    /** Number of messages queued */
+    private int messageCount;
+    /** Total size in bytes of the (compressed) messages queued */
+    private long byteCount;
+    /** Maximum number of messages that may be queued, or 0 if no limit */
+    private int maxMessages;
+    /** Maximum size in bytes of the messages that may be queued, or 0 if no limit */
+    private long maxBytes;
+    /** True if the queue is at (or over) one of its limits */
+    private boolean full;
+    /** What happens when a message is queued and the queue is full: reject, dropOldest or archive */
+    private String overflowPolicy;
+    /** Number of messages rejected because the queue was full */
+    private long rejectedCount;
+    /** Number of queued messages dropped to make room for new messages */
+    private long droppedCount;
+    /** Number of queued messages moved to an archive file to make room for new messages */
+    private long archivedCount;
+    /** Status of the queue for each destination address that has queued messages */
+    private Map<String, QueueStatus> destinationStatus;
+
+    public long getArchivedCount() {
+        return archivedCount;
+    }
+
+    public void setArchivedCount(long archivedCount) {
+        this.archivedCount = archivedCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public void setByteCount(long byteCount) {
+        this.byteCount = byteCount;
+    }
+
+    public Map<String, QueueStatus> getDestinationStatus() {
+        return destinationStatus;
+    }
+
+    public void setDestinationStatus(Map<String, QueueStatus> destinationStatus) {
+        this.destinationStatus = destinationStatus;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public void setDroppedCount(long droppedCount) {
+        this.droppedCount = droppedCount;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public void setMaxMessages(int maxMessages) {
+        this.maxMessages = maxMessages;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public void setMessageCount(int messageCount) {
+        this.messageCount = messageCount;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public void setRejectedCount(long rejectedCount) {
+        this.rejectedCount = rejectedCount;
+    }
+}
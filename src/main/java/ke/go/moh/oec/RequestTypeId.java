@@ -159,6 +159,72 @@ public class RequestTypeId {
      * clinical information for the person.
      */
     public final static int FIND_PERSON_HDSS = 8;
+    /**
+     * Searches the Master Patient Index to find each person in a batch.
+     * <p>
+     * When calling {@link IService#getData(int, java.lang.Object)}
+     * with FIND_PERSON_BATCH_MPI, the <code>requestData</code> parameter object
+     * and the returned object are follows:
+     * <p>
+     * <code>requestData</code>: {@link PersonBatchRequest} object, with
+     * a <code>PersonRequest</code> for each person to search for.
+     * <p>
+     * returns: {@link PersonBatchResponse} - A <code>PersonResponse</code>
+     * for each <code>PersonRequest</code>, in the same order.
+     * <p>
+     * The batch is sent in messages of up to PersonBatch.ChunkSize
+     * requests each. The server receives each request in the batch as
+     * a separate FIND_PERSON_MPI request.
+     */
+    public final static int FIND_PERSON_BATCH_MPI = 9;
+    /**
+     * Searches the Local Patient Index to find each person in a batch.
+     * <p>
+     * When calling {@link IService#getData(int, java.lang.Object)}
+     * with FIND_PERSON_BATCH_LPI, the <code>requestData</code> parameter object
+     * and the returned object are as for {@link #FIND_PERSON_BATCH_MPI}.
+     */
+    public final static int FIND_PERSON_BATCH_LPI = 10;
+    /**
+     * Requests the Master Patient Index to create a new person entry for
+     * each person in a batch.
+     * <p>
+     * When calling {@link IService#getData(int, java.lang.Object)}
+     * with CREATE_PERSON_BATCH_MPI, the <code>requestData</code> parameter object
+     * and the returned object are follows:
+     * <p>
+     * <code>requestData</code>: {@link PersonBatchRequest} object, with
+     * a <code>PersonRequest</code> for each person to create.
+     * <p>
+     * returns: {@link PersonBatchResponse} - A <code>PersonResponse</code>
+     * for each <code>PersonRequest</code>, in the same order.
+     * <p>
+     * The server receives each request in the batch as a separate
+     * CREATE_PERSON_MPI request, with a response requested.
+     * To load a large number of people, see
+     * <code>Mediator.ingest()</code>.
+     */
+    public final static int CREATE_PERSON_BATCH_MPI = 11;
+    /**
+     * Requests the Local Patient Index to create a new person entry for
+     * each person in a batch. The <code>requestData</code> parameter object
+     * and the returned object are as for {@link #CREATE_PERSON_BATCH_MPI}.
+     */
+    public final static int CREATE_PERSON_BATCH_LPI = 12;
+    /**
+     * Requests the Master Patient Index to modify an existing person entry
+     * for each person in a batch. The <code>requestData</code> parameter object
+     * and the returned object are as for {@link #CREATE_PERSON_BATCH_MPI}.
+     * The server receives each request in the batch as a separate
+     * MODIFY_PERSON_MPI request, with a response requested.
+     */
+    public final static int MODIFY_PERSON_BATCH_MPI = 13;
+    /**
+     * Requests the Local Patient Index to modify an existing person entry
+     * for each person in a batch. The <code>requestData</code> parameter object
+     * and the returned object are as for {@link #CREATE_PERSON_BATCH_MPI}.
+     */
+    public final static int MODIFY_PERSON_BATCH_LPI = 14;
     /**
      * Transmits a log entry to the logging server.
      * <p>
@@ -182,4 +248,20 @@ public class RequestTypeId {
     /**Request for forwarding the work or alerts which have been
      * processed.Therefore it redirects information into the CDS **/
     public final static int REASSIGN_WORK = 1003;
+    /**
+     * Transmits several log entries to the logging server in one message.
+     * <p>
+     * When calling {@link IService#getData(int, java.lang.Object)}
+     * with LOG_ENTRY_BATCH, the <code>requestData</code>
+     * parameter object and the returned object are follows:
+     * <p>
+     * <code>requestData</code>: <code>List&lt;</code>{@link LogEntry}<code>&gt;</code>
+     * - The information to be logged.
+     * <p>
+     * returns: <code>null</code>
+     * <p>
+     * The logging server receives each entry in the batch as a separate
+     * LOG_ENTRY request.
+     */
+    public final static int LOG_ENTRY_BATCH = 1004;
 }
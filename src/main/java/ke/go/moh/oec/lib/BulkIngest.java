@@ -0,0 +1,178 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ke.go.moh.oec.IngestListener;
+import ke.go.moh.oec.IngestResult;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonRequest;
+import ke.go.moh.oec.PersonResponse;
+
+/**
+ * Loads a stream of people into a person index (see
+ * {@link Mediator#ingest}.)
+ * <p>
+ * People are read from the stream into batches. Each batch is sent
+ * as one batch message on a sending thread. Up to Ingest.MaxInFlight
+ * batches may be waiting for their responses at once. When that many
+ * are waiting, reading from the stream waits for one of them to finish,
+ * so only a bounded number of people are held in memory.
+ */
+class BulkIngest {
+
+    private final Mediator mediator;
+    /** Message with the type, source and destination of the batches. */
+    private final Message batchMessage;
+    private final IngestListener listener;
+    private final int batchSize;
+    private final int maxInFlight;
+    /** One permit for each batch that may be in flight. */
+    private final Semaphore window;
+    private final AtomicLong successCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    BulkIngest(Mediator mediator, Message batchMessage, IngestListener listener) {
+        this.mediator = mediator;
+        this.batchMessage = batchMessage;
+        this.listener = listener;
+        batchSize = Math.max(1, getIntProperty("Ingest.BatchSize", 100));
+        maxInFlight = Math.max(1, getIntProperty("Ingest.MaxInFlight", 4));
+        window = new Semaphore(maxInFlight);
+    }
+
+    private static int getIntProperty(String propertyName, int defaultValue) {
+        String value = Mediator.getProperty(propertyName);
+        return (value != null ? Integer.parseInt(value.trim()) : defaultValue);
+    }
+
+    /**
+     * Loads the people, and waits until every batch has finished.
+     *
+     * @param people the people to load
+     * @return counts of people loaded and not loaded
+     */
+    IngestResult run(Iterator<Person> people) {
+        long startTime = System.currentTimeMillis();
+        long personCount = 0;
+        long batchCount = 0;
+        ExecutorService senders = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Ingest-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            while (people.hasNext()) {
+                final long firstIndex = personCount;
+                final List<Person> batchPeople = new ArrayList<Person>(batchSize);
+                final List<PersonRequest> batchRequests = new ArrayList<PersonRequest>(batchSize);
+                while (batchRequests.size() < batchSize && people.hasNext()) {
+                    Person p = people.next();
+                    PersonRequest pr = new PersonRequest();
+                    pr.setPerson(p);
+                    pr.setResponseRequested(true);
+                    batchPeople.add(p);
+                    batchRequests.add(pr);
+                    personCount++;
+                }
+                window.acquireUninterruptibly();
+                batchCount++;
+                senders.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            sendBatch(firstIndex, batchPeople, batchRequests);
+                        } finally {
+                            window.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            window.acquireUninterruptibly(maxInFlight); // Wait for the batches in flight to finish.
+            window.release(maxInFlight);
+            senders.shutdown();
+        }
+        IngestResult result = new IngestResult();
+        result.setPersonCount(personCount);
+        result.setSuccessCount(successCount.get());
+        result.setFailureCount(failureCount.get());
+        result.setBatchCount(batchCount);
+        result.setElapsedMillis(System.currentTimeMillis() - startTime);
+        return result;
+    }
+
+    /**
+     * Sends one batch, and reports the outcome for each person in it.
+     *
+     * @param firstIndex index in the stream of the first person in the batch
+     * @param batchPeople the people in the batch
+     * @param batchRequests a request for each person in the batch
+     */
+    private void sendBatch(long firstIndex, List<Person> batchPeople, List<PersonRequest> batchRequests) {
+        List<PersonResponse> responses = null;
+        try {
+            responses = mediator.sendBatchChunk(batchMessage, batchRequests, Mediator.generateMessageId());
+        } catch (RuntimeException ex) {
+            Logger.getLogger(BulkIngest.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        for (int i = 0; i < batchPeople.size(); i++) {
+            PersonResponse response = (responses != null ? responses.get(i) : null);
+            if (response == null) {
+                response = new PersonResponse();
+                response.setSuccessful(false);
+            }
+            if (response.isSuccessful()) {
+                successCount.incrementAndGet();
+            } else {
+                failureCount.incrementAndGet();
+            }
+            if (listener != null) {
+                synchronized (listener) {
+                    try {
+                        listener.personDone(firstIndex + i, batchPeople.get(i), response);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(BulkIngest.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs messages from the library's busy code paths cheaply.
+ * <p>
+ * Each library class that logs on a busy path keeps one of these in a
+ * static field. The level check is a single read of the library's
+ * logger level, without locking, so a disabled log call costs almost
+ * nothing. Parameter arrays are only built if the message will be
+ * logged. Messages that are expensive to build can be given as a
+ * {@link MessageSupplier} that is only called if the message will be
+ * logged, and the logSummary methods take the message to be summarized
+ * as their last parameter and only summarize it if it will be logged.
+ * <p>
+ * The underlying java.util.logging.Logger is looked up once, and its
+ * level is only set again when the library's logger level changes
+ * (for example when the configuration is reloaded.)
+ */
+final class CachedLogger {
+
+    /**
+     * Builds a log message only when it is needed.
+     */
+    interface MessageSupplier {
+
+        /**
+         * Gets the message to log.
+         *
+         * @return the message
+         */
+        String get();
+    }
+    /** Loggers already made, by name. */
+    private static final ConcurrentMap<String, CachedLogger> loggers = new ConcurrentHashMap<String, CachedLogger>();
+    /** The underlying logger. */
+    private final Logger logger;
+    /** The level last set in the underlying logger. */
+    private volatile Level appliedLevel = null;
+
+    private CachedLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Gets the logger for a class.
+     *
+     * @param c class doing the logging
+     * @return the logger
+     */
+    static CachedLogger get(Class<?> c) {
+        return get(c.getName());
+    }
+
+    /**
+     * Gets the logger with a given name.
+     *
+     * @param name logger name
+     * @return the logger
+     */
+    static CachedLogger get(String name) {
+        CachedLogger cl = loggers.get(name);
+        if (cl == null) {
+            cl = new CachedLogger(Logger.getLogger(name));
+            CachedLogger existing = loggers.putIfAbsent(name, cl);
+            if (existing != null) {
+                cl = existing;
+            }
+        }
+        return cl;
+    }
+
+    /**
+     * Gets the underlying logger, set to the library's logger level.
+     *
+     * @return the underlying logger
+     */
+    Logger getLogger() {
+        Level level = Mediator.getLoggerLevel();
+        if (level != appliedLevel) {
+            logger.setLevel(level);
+            appliedLevel = level;
+        }
+        return logger;
+    }
+
+    /**
+     * Tests to see if a message at a given level would be logged.
+     *
+     * @param level level to test
+     * @return true if a message at this level would be logged
+     */
+    boolean isLoggable(Level level) {
+        return Mediator.testLoggerLevel(level);
+    }
+
+    /**
+     * Logs a message.
+     *
+     * @param level message level
+     * @param msg message (or message format)
+     */
+    void log(Level level, String msg) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg);
+        }
+    }
+
+    /**
+     * Logs a message with one parameter.
+     *
+     * @param level message level
+     * @param msg message format
+     * @param param1 parameter {0} of the message format
+     */
+    void log(Level level, String msg, Object param1) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg, param1);
+        }
+    }
+
+    /**
+     * Logs a message with two parameters.
+     *
+     * @param level message level
+     * @param msg message format
+     * @param param1 parameter {0} of the message format
+     * @param param2 parameter {1} of the message format
+     */
+    void log(Level level, String msg, Object param1, Object param2) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg, new Object[]{param1, param2});
+        }
+    }
+
+    /**
+     * Logs a message with three parameters.
+     *
+     * @param level message level
+     * @param msg message format
+     * @param param1 parameter {0} of the message format
+     * @param param2 parameter {1} of the message format
+     * @param param3 parameter {2} of the message format
+     */
+    void log(Level level, String msg, Object param1, Object param2, Object param3) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg, new Object[]{param1, param2, param3});
+        }
+    }
+
+    /**
+     * Logs a message with an exception.
+     *
+     * @param level message level
+     * @param msg message (may be null)
+     * @param thrown exception to log
+     */
+    void log(Level level, String msg, Throwable thrown) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg, thrown);
+        }
+    }
+
+    /**
+     * Logs a message that is only built if it will be logged.
+     *
+     * @param level message level
+     * @param supplier builds the message
+     */
+    void log(Level level, MessageSupplier supplier) {
+        if (isLoggable(level)) {
+            getLogger().log(level, supplier.get());
+        }
+    }
+
+    /**
+     * Logs a message that is only built if it will be logged,
+     * with an exception.
+     *
+     * @param level message level
+     * @param supplier builds the message
+     * @param thrown exception to log
+     */
+    void log(Level level, MessageSupplier supplier, Throwable thrown) {
+        if (isLoggable(level)) {
+            getLogger().log(level, supplier.get(), thrown);
+        }
+    }
+
+    /**
+     * Logs a message whose only parameter is the summary of a message.
+     * The summary is only built if it will be logged.
+     *
+     * @param level message level
+     * @param msg message format
+     * @param m message to summarize as parameter {0}
+     */
+    void logSummary(Level level, String msg, Message m) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg, m.summarize());
+        }
+    }
+
+    /**
+     * Logs a message with one parameter and the summary of a message.
+     * The summary is only built if it will be logged.
+     *
+     * @param level message level
+     * @param msg message format
+     * @param param1 parameter {0} of the message format
+     * @param m message to summarize as parameter {1}
+     */
+    void logSummary(Level level, String msg, Object param1, Message m) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg, new Object[]{param1, m.summarize()});
+        }
+    }
+
+    /**
+     * Logs a message with three parameters and the summary of a message.
+     * The summary is only built if it will be logged.
+     *
+     * @param level message level
+     * @param msg message format
+     * @param param1 parameter {0} of the message format
+     * @param param2 parameter {1} of the message format
+     * @param param3 parameter {2} of the message format
+     * @param m message to summarize as parameter {3}
+     */
+    void logSummary(Level level, String msg, Object param1, Object param2, Object param3, Message m) {
+        if (isLoggable(level)) {
+            getLogger().log(level, msg, new Object[]{param1, param2, param3, m.summarize()});
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the user's callback routine for unsolicited messages (see
+ * {@link CallbackThread}) on a bounded pool of threads, instead of
+ * starting a new thread for each message.
+ * <p>
+ * The pool is configured with these properties:
+ * <p>
+ * Callback.MaxThreads - most callbacks running at once (default 50) <br>
+ * Callback.QueueSize - most callbacks waiting for a thread (default 1000) <br>
+ * Callback.VirtualThreads - true to run each callback on a virtual thread,
+ * if the JVM has them (Java 21 and later), still with at most
+ * Callback.MaxThreads running at once and Callback.QueueSize waiting <br>
+ * Callback.MaxConcurrent.&lt;template type&gt; - most callbacks of one message
+ * template type running at once, for example Callback.MaxConcurrent.findPerson=10 <br>
+ * Callback.Overflow - what to do when the queue is full: reject (the default)
+ * or callerRuns
+ * <p>
+ * When the queue is full, the message is normally rejected. The receiver then
+ * answers the HTTP post with 503 (Service Unavailable), which the sender treats
+ * like an unreachable next hop: a queued message stays queued and is sent
+ * again later, and the sender's circuit breaker for us may open for a while.
+ * <p>
+ * With Callback.Overflow=callerRuns the callback instead runs on the thread
+ * that received the message, before the HTTP post is answered. This slows down
+ * the sender instead of rejecting the message, but a callback that takes longer
+ * than the sender's NextHop.ReadTimeoutMillis makes the send fail after we have
+ * accepted the message, and the sender may send it to us again.
+ * <p>
+ * Callbacks waiting because of a template type limit don't hold a thread.
+ * <p>
+ * Counters (submitted, completed, run by the receiving thread, rejected) and
+ * the current and peak queue depths are kept for monitoring.
+ */
+class CallbackExecutor {
+
+    /** Logger for the busy code paths. */
+    private static final CachedLogger logger = CachedLogger.get(CallbackExecutor.class);
+    /** Thread pool (if not using virtual threads.) */
+    private ThreadPoolExecutor pool = null;
+    /** Virtual thread executor (if using virtual threads.) */
+    private ExecutorService virtualExecutor = null;
+    /** Limits running virtual thread callbacks to Callback.MaxThreads. */
+    private Semaphore virtualPermits = null;
+    private int virtualMaxThreads;
+    private volatile int queueSize;
+    /** Run callbacks on the receiving thread when the queue is full, instead of rejecting them. */
+    private volatile boolean callerRuns;
+    /** Limits for message template types that have them (replaced as a whole on reload.) */
+    private volatile Map<MessageType.TemplateType, TypeLimit> typeLimits;
+    /** Callbacks waiting because their template type is at its limit. */
+    private final AtomicInteger typeWaiting = new AtomicInteger();
+    /** Virtual thread callbacks waiting for a permit. */
+    private final AtomicInteger virtualWaiting = new AtomicInteger();
+    /**
+     * Template type limits with callbacks waiting but none running, because the
+     * callback that had the last slot was rejected. The next thread to finish
+     * a callback starts them.
+     */
+    private final Queue<TypeLimit> stalled = new ConcurrentLinkedQueue<TypeLimit>();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong callerRunsCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    /**
+     * Limit on the number of callbacks of one message template type running at once.
+     */
+    private static class TypeLimit {
+
+        private final int limit;
+        private int running = 0;
+        private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+
+        TypeLimit(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Creates the callback executor, configured from the properties.
+     */
+    CallbackExecutor() {
+        int maxThreads = getIntProperty("Callback.MaxThreads", 50);
+        queueSize = getIntProperty("Callback.QueueSize", 1000);
+        String virtual = Mediator.getProperty("Callback.VirtualThreads");
+        if (virtual != null && Boolean.parseBoolean(virtual.trim())) {
+            virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor != null) {
+                virtualPermits = new Semaphore(maxThreads);
+                virtualMaxThreads = maxThreads;
+            }
+        }
+        if (virtualExecutor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Callback-" + threadNumber.incrementAndGet());
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+        }
+        typeLimits = loadTypeLimits();
+        callerRuns = loadCallerRuns();
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each task, if this JVM
+     * has virtual threads. (Found by reflection, so we still build and run on
+     * older JVMs.)
+     *
+     * @return the executor, or null if virtual threads are not available.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception ex) {
+            Logger.getLogger(CallbackExecutor.class.getName()).log(Level.INFO,
+                    "Virtual threads are not available in Java {0}, using a thread pool for callbacks",
+                    System.getProperty("java.version"));
+            return null;
+        }
+    }
+
+    private static int getIntProperty(String propertyName, int defaultValue) {
+        String value = Mediator.getProperty(propertyName);
+        return (value != null ? Integer.parseInt(value.trim()) : defaultValue);
+    }
+
+    /**
+     * Finds out from the properties what to do when the queue is full.
+     *
+     * @return true to run the callback on the receiving thread, false to reject it.
+     */
+    private static boolean loadCallerRuns() {
+        String overflow = Mediator.getProperty("Callback.Overflow");
+        if (overflow == null || overflow.trim().equalsIgnoreCase("reject")) {
+            return false;
+        }
+        if (overflow.trim().equalsIgnoreCase("callerRuns")) {
+            return true;
+        }
+        Logger.getLogger(CallbackExecutor.class.getName()).log(Level.WARNING,
+                "Unknown Callback.Overflow ''{0}'', rejecting callbacks when the queue is full", overflow);
+        return false;
+    }
+
+    /**
+     * Loads the limits for each message template type from the properties.
+     *
+     * @return map of limits for template types that have them.
+     */
+    private static Map<MessageType.TemplateType, TypeLimit> loadTypeLimits() {
+        Map<MessageType.TemplateType, TypeLimit> limits =
+                new EnumMap<MessageType.TemplateType, TypeLimit>(MessageType.TemplateType.class);
+        for (MessageType.TemplateType t : MessageType.TemplateType.values()) {
+            String limit = Mediator.getProperty("Callback.MaxConcurrent." + t.name());
+            if (limit != null && Integer.parseInt(limit.trim()) > 0) {
+                limits.put(t, new TypeLimit(Integer.parseInt(limit.trim())));
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * Applies reloaded properties: the number of threads, the limits for
+     * each template type and what to do when the queue is full. (The queue size of a thread pool, and whether to use
+     * virtual threads or how many of them may run at once, can't be changed
+     * without a restart.) Callbacks already
+     * waiting on an old template type limit still run under the old limit.
+     */
+    void reloadProperties() {
+        int maxThreads = getIntProperty("Callback.MaxThreads", 50);
+        if (pool != null) {
+            if (maxThreads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(maxThreads);
+                pool.setCorePoolSize(maxThreads);
+            } else {
+                pool.setCorePoolSize(maxThreads);
+                pool.setMaximumPoolSize(maxThreads);
+            }
+        }
+        typeLimits = loadTypeLimits();
+        callerRuns = loadCallerRuns();
+    }
+
+    /**
+     * Runs a callback for an unsolicited message.
+     *
+     * @param templateType template type of the message.
+     * @param callback the callback to run.
+     * @return true if the callback was run or will be run, false if it was
+     * rejected because the queue is full.
+     */
+    boolean execute(MessageType.TemplateType templateType, Runnable callback) {
+        submittedCount.incrementAndGet();
+        TypeLimit typeLimit = typeLimits.get(templateType);
+        if (typeLimit == null) {
+            return submit(callback, null);
+        } else {
+            synchronized (typeLimit) {
+                if (typeLimit.running < typeLimit.limit) {
+                    typeLimit.running++;
+                } else if (typeLimit.waiting.size() < queueSize) {
+                    typeLimit.waiting.add(callback);
+                    typeWaiting.incrementAndGet();
+                    notePeakQueueDepth();
+                    return true;
+                } else {
+                    typeLimit = null; // Too many waiting: run it on this thread or reject it (below.)
+                }
+            }
+            if (typeLimit != null) {
+                return submit(callback, typeLimit);
+            } else if (callerRuns) {
+                logger.log(Level.FINE,
+                        "Too many {0} callbacks waiting, running on the receiving thread", templateType);
+                callerRunsCount.incrementAndGet();
+                runCallback(callback, null, false);
+                return true;
+            } else {
+                logger.log(Level.FINE,
+                        "Too many {0} callbacks waiting, rejecting the message", templateType);
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Hands a callback to a thread.
+     *
+     * @param callback the callback.
+     * @param typeLimit limit the callback is running under, or null if none.
+     * @return true if the callback was run or will be run, false if it was rejected.
+     */
+    private boolean submit(final Runnable callback, final TypeLimit typeLimit) {
+        try {
+            if (virtualExecutor != null) {
+                executeVirtual(callback, typeLimit);
+            } else {
+                pool.execute(new Runnable() {
+
+                    public void run() {
+                        runCallback(callback, typeLimit, false);
+                    }
+                });
+            }
+            notePeakQueueDepth();
+        } catch (RejectedExecutionException ex) { // Queue is full (or we are shutting down.)
+            if (callerRuns) {
+                callerRunsCount.incrementAndGet();
+                runCallback(callback, typeLimit, false);
+            } else {
+                rejectedCount.incrementAndGet();
+                if (typeLimit != null) {
+                    synchronized (typeLimit) {
+                        typeLimit.running--;
+                        if (typeLimit.running == 0 && !typeLimit.waiting.isEmpty()) {
+                            stalled.add(typeLimit); // Nothing left running to start them.
+                        }
+                    }
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts a virtual thread for a callback. The thread waits for one of the
+     * Callback.MaxThreads permits before running the callback, and no more than
+     * Callback.QueueSize callbacks may be waiting for a permit.
+     *
+     * @param callback the callback.
+     * @param typeLimit limit the callback is running under, or null if none.
+     * @throws RejectedExecutionException if too many callbacks are waiting.
+     */
+    private void executeVirtual(final Runnable callback, final TypeLimit typeLimit) {
+        if (virtualWaiting.incrementAndGet() > queueSize && virtualPermits.availablePermits() == 0) {
+            virtualWaiting.decrementAndGet();
+            throw new RejectedExecutionException("Too many callbacks waiting for a thread");
+        }
+        try {
+            virtualExecutor.execute(new Runnable() {
+
+                public void run() {
+                    virtualPermits.acquireUninterruptibly();
+                    virtualWaiting.decrementAndGet();
+                    runCallback(callback, typeLimit, true);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            virtualWaiting.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs a callback on a pool (or virtual) thread, then starts the next callback
+     * waiting on the same template type limit, if any, or else the next callback
+     * of a stalled template type.
+     *
+     * @param callback the callback.
+     * @param typeLimit limit the callback is running under, or null if none.
+     * @param permitHeld true if this virtual thread already has its permit for the first callback.
+     */
+    private void runCallback(Runnable callback, TypeLimit typeLimit, boolean permitHeld) {
+        Runnable next = callback;
+        while (next != null) {
+            if (virtualPermits != null && !permitHeld) {
+                virtualPermits.acquireUninterruptibly();
+            }
+            permitHeld = false;
+            try {
+                next.run();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(CallbackExecutor.class.getName()).log(Level.SEVERE, "Callback failed", ex);
+            } finally {
+                if (virtualPermits != null) {
+                    virtualPermits.release();
+                }
+                completedCount.incrementAndGet();
+            }
+            next = null;
+            if (typeLimit != null) {
+                synchronized (typeLimit) {
+                    next = typeLimit.waiting.poll();
+                    if (next != null) {
+                        typeWaiting.decrementAndGet();
+                    } else {
+                        typeLimit.running--;
+                    }
+                }
+            }
+            while (next == null && (typeLimit = stalled.poll()) != null) {
+                synchronized (typeLimit) {
+                    if (typeLimit.running < typeLimit.limit) {
+                        next = typeLimit.waiting.poll();
+                        if (next != null) {
+                            typeLimit.running++;
+                            typeWaiting.decrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void notePeakQueueDepth() {
+        int depth = getQueueDepth();
+        int peak;
+        while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth)) {
+        }
+    }
+
+    /**
+     * Stops the executor. Callbacks already running or queued are finished.
+     */
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Gets the number of callbacks waiting to run, either for a thread
+     * (or virtual thread permit) or because of a template type limit.
+     *
+     * @return the queue depth.
+     */
+    int getQueueDepth() {
+        return (pool != null ? pool.getQueue().size() : virtualWaiting.get()) + typeWaiting.get();
+    }
+
+    int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    /**
+     * Gets the number of callbacks running now.
+     *
+     * @return the number of callbacks running.
+     */
+    int getActiveCount() {
+        if (pool != null) {
+            return pool.getActiveCount();
+        }
+        return virtualMaxThreads - virtualPermits.availablePermits();
+    }
+
+    long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    long getCallerRunsCount() {
+        return callerRunsCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -24,13 +24,19 @@
  * ***** END LICENSE BLOCK ***** */
 package ke.go.moh.oec.lib;
 
+import java.util.ArrayList;
+import java.util.List;
 import ke.go.moh.oec.IService;
+import ke.go.moh.oec.PersonBatchRequest;
+import ke.go.moh.oec.PersonBatchResponse;
+import ke.go.moh.oec.PersonRequest;
+import ke.go.moh.oec.PersonResponse;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Calls the user's registered callback routine for an unsolicited message.
- * This is done in a separate thread, so the HTTP response to a request
+ * This is done in a separate thread (from the {@link CallbackExecutor}), so the HTTP response to a request
  * can be returned as soon as the server starts processing the request.
  * This prevents HTTP response timeouts from the application that made the request.
  * <p>
@@ -41,6 +47,11 @@ import java.util.logging.Logger;
  * <p>
  * When the callback routine finishes the application-level request,
  * the application-level response will be sent back on a new HTTP request message.
+ * <p>
+ * A batch of requests (find, create or modify person) is given to the callback
+ * routine one request at a time, as if each had come in its own message.
+ * The responses are sent back together as a batch response. A batch of
+ * log entries is also given to the callback routine one entry at a time.
  *
  * @author Jim Grace
  */
@@ -64,7 +75,18 @@ class CallbackThread implements Runnable {
     public void run() {
         MessageType messageType = message.getMessageType();
         int requestTypeId = messageType.getRequestTypeId();
-        Object responseData = callbackObject.getData(requestTypeId, message.getMessageData());
+        Object responseData;
+        if (message.getMessageData() instanceof PersonBatchRequest) {
+            responseData = runBatch(messageType, (PersonBatchRequest) message.getMessageData());
+        } else if (messageType.getTemplateType() == MessageType.TemplateType.logEntryBatch) {
+            int itemRequestTypeId = MessageTypeRegistry.findBatchItem(messageType).getRequestTypeId();
+            for (Object logEntry : (List<?>) message.getMessageData()) {
+                callbackObject.getData(itemRequestTypeId, logEntry);
+            }
+            responseData = null;
+        } else {
+            responseData = callbackObject.getData(requestTypeId, message.getMessageData());
+        }
         if (responseData != null) {
             MessageType responseMessageType = messageType.getResponseMessageType();
             if (responseMessageType != null) {
@@ -97,4 +119,40 @@ class CallbackThread implements Runnable {
             }
         }
     }
+
+    /**
+     * Calls the user callback routine with each request in a batch.
+     * Each request is given with the request type of the same
+     * message received on its own (see {@link MessageTypeRegistry#findBatchItem}.)
+     * Every request in a batch is marked as wanting a response, because
+     * the batch response returns the outcome of each request.
+     *
+     * @param messageType message type of the batch.
+     * @param batch the batch of requests.
+     * @return the batch of responses, in the same order.
+     */
+    private PersonBatchResponse runBatch(MessageType messageType, PersonBatchRequest batch) {
+        int itemRequestTypeId = MessageTypeRegistry.findBatchItem(messageType).getRequestTypeId();
+        List<PersonRequest> requestList = batch.getRequestList();
+        List<PersonResponse> responseList = new ArrayList<PersonResponse>();
+        boolean successful = true;
+        if (requestList != null) {
+            for (PersonRequest request : requestList) {
+                request.setResponseRequested(true);
+                Object itemData = callbackObject.getData(itemRequestTypeId, request);
+                if (itemData instanceof PersonResponse) {
+                    PersonResponse response = (PersonResponse) itemData;
+                    response.setSuccessful(true);
+                    responseList.add(response);
+                } else {
+                    responseList.add(null);
+                    successful = false;
+                }
+            }
+        }
+        PersonBatchResponse batchResponse = new PersonBatchResponse();
+        batchResponse.setResponseList(responseList);
+        batchResponse.setSuccessful(successful);
+        return batchResponse;
+    }
 }
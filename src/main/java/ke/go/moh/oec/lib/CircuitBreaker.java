@@ -0,0 +1,153 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker for sending to one next hop.
+ * <p>
+ * While the breaker is closed, messages are sent normally. After a number of
+ * failures in a row (NextHop.FailureThreshold, default 5) the breaker opens,
+ * and sends to the hop fail at once instead of waiting for a connection that
+ * will probably time out. After NextHop.OpenSeconds (default 30) the breaker
+ * is half-open: one message is let through as a trial. If it gets through,
+ * the breaker closes again; if not, it opens for another period.
+ * <p>
+ * Only failures to reach the hop at all (can't connect, unknown host,
+ * timed out connecting) count as failures. A send that reached the hop but
+ * then failed (for example, timed out waiting for the response) shows that
+ * the hop is up, so it counts as a success.
+ * <p>
+ * If health probes are configured (see {@link RoutingTable#probeHops(int)}),
+ * their results are recorded the same way as sends.
+ */
+final class CircuitBreaker {
+
+    /**
+     * States of a circuit breaker.
+     */
+    enum State {
+
+        /** Sending normally. */
+        CLOSED,
+        /** Failing sends without trying them. */
+        OPEN,
+        /** A trial send is in progress. */
+        HALF_OPEN
+    }
+    /** Number of failures in a row that open the breaker. */
+    private final int failureThreshold;
+    /** How long the breaker stays open before allowing a trial. */
+    private final long openMillis;
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    /** Number of failures since the last success. */
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    /** When the breaker last opened (or a failure kept it open.) */
+    private volatile long openedAt = 0;
+
+    /**
+     * Creates a circuit breaker.
+     *
+     * @param failureThreshold number of failures in a row that open the breaker.
+     * @param openMillis how long the breaker stays open before allowing a trial.
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Asks whether a message may be sent now. If the breaker has been open
+     * long enough, this makes it half-open and lets this one message through.
+     *
+     * @return true if the message may be sent, false if it should fail at once.
+     */
+    boolean allowRequest() {
+        State s = state.get();
+        if (s == State.CLOSED) {
+            return true;
+        }
+        if (s == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a message could be sent now, without changing the state.
+     * (Used to choose among the hops of a route.)
+     *
+     * @param now current time in milliseconds.
+     * @return true if the breaker is closed, or is open and due for a trial.
+     */
+    boolean isAvailable(long now) {
+        State s = state.get();
+        return s == State.CLOSED || (s == State.OPEN && now - openedAt >= openMillis);
+    }
+
+    /**
+     * Records a successful send (or probe), closing the breaker.
+     */
+    void recordSuccess() {
+        consecutiveFailures.set(0);
+        if (state.get() != State.CLOSED) {
+            state.set(State.CLOSED);
+        }
+    }
+
+    /**
+     * Records a failed send (or probe), opening the breaker if the
+     * trial failed or there have been enough failures in a row.
+     */
+    void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        State s = state.get();
+        if (s == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        } else if (s == State.HALF_OPEN || failures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            state.compareAndSet(s, State.OPEN);
+        }
+    }
+
+    /**
+     * Records a send that neither reached the hop nor showed that it is
+     * unreachable. If this was the trial send of a half-open breaker, the
+     * breaker goes back to open, so that the next message is the trial.
+     */
+    void recordInconclusive() {
+        state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+
+    State getState() {
+        return state.get();
+    }
+
+    int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+}
@@ -0,0 +1,45 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+/**
+ * Reads the compressed XML of a queued message a part at a time, so that a
+ * large message can be sent without holding all of it in memory.
+ */
+interface CompressedXmlSource {
+
+    /** Messages larger than this are read a part at a time, in parts of this size. */
+    int PART_BYTES = 65536;
+
+    /**
+     * Reads part of the compressed XML.
+     *
+     * @param offset offset of the first byte to read.
+     * @param length number of bytes to read.
+     * @return the bytes, or null if they could not be read
+     * (or the message is no longer queued.)
+     */
+    byte[] read(int offset, int length);
+}
@@ -25,6 +25,7 @@
 package ke.go.moh.oec.lib;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -56,15 +57,45 @@ public class Compresser {
         compresser.end();
     }
     
+    /**
+     * Decompresses a message. If it decompresses to more than
+     * HTTPHandler.MaxMessageBytes, it is logged and its XML is left null.
+     *
+     * @param m the message.
+     */
     static void decompress(Message m) {
         byte[] compressedXml = m.getCompressedXml();
         int compressedXmlLength = m.getCompressedXmlLength();
         Inflater decompresser = new Inflater();
         decompresser.setInput(compressedXml, 0, compressedXmlLength);
-        byte[] inflatedBytes = new byte[60000];
+        /*
+         * XML usually compresses to less than a quarter of its size. If it
+         * turns out to be bigger, grow the buffer until it all fits -- but
+         * not past HTTPHandler.MaxMessageBytes, so a small message can't
+         * inflate to use up all our memory.
+         */
+        int maxBytes = HttpService.getMaxMessageBytes();
+        byte[] inflatedBytes = new byte[Math.min(Math.max(compressedXmlLength * 4, 1024), maxBytes)];
         int resultLength = 0;
         try {
-            resultLength = decompresser.inflate(inflatedBytes);
+            while (!decompresser.finished()) {
+                if (resultLength == inflatedBytes.length) {
+                    if (inflatedBytes.length >= maxBytes) {
+                        decompresser.end();
+                        Logger.getLogger(Compresser.class.getName()).log(Level.SEVERE,
+                                "Message decompresses to more than HTTPHandler.MaxMessageBytes ({0}), dropping it: {1}",
+                                new Object[]{Integer.toString(maxBytes), m.summarize(false)});
+                        m.setXml(null);
+                        return;
+                    }
+                    inflatedBytes = Arrays.copyOf(inflatedBytes, (int) Math.min(inflatedBytes.length * 2L, maxBytes));
+                }
+                int inflated = decompresser.inflate(inflatedBytes, resultLength, inflatedBytes.length - resultLength);
+                if (inflated == 0 && (decompresser.needsInput() || decompresser.needsDictionary())) {
+                    break; // Truncated input: keep what we have.
+                }
+                resultLength += inflated;
+            }
         } catch (DataFormatException ex) {
             Logger.getLogger(HttpService.class.getName()).log(Level.SEVERE, "Error decompressing message: " + m.summarize(false), ex);
         }
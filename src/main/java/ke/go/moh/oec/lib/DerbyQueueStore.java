@@ -0,0 +1,816 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the store-and-forward queue in an embedded JavaDB (Derby) table.
+ * <p>
+ * Database access is tuned for large backlogs: statements are prepared
+ * once and reused, each group of added messages is inserted as one batch
+ * and one commit, queued messages are read a page at a time for each
+ * priority and destination using an index on (PRIORITY, DESTINATION,
+ * MESSAGE_ID), sent
+ * messages are deleted in batches, and the number of queued messages is
+ * kept in a counter so we don't have to query the table to see if it is empty.
+ * <p>
+ * The XML_CODE column holds messages of any size (up to 2 GB).
+ * Pages of queued messages are read without their contents, and the
+ * contents of each message are read from its BLOB only when it is
+ * being sent; a large message is read a part at a time as the parts are
+ * sent. (Derby keeps large BLOB values out of the row.)
+ *
+ * @author Scott Davis
+ * @author Jim Grace
+ */
+class DerbyQueueStore implements QueueStore {
+
+    /** Logger for the busy code paths. */
+    private static final CachedLogger logger = CachedLogger.get(DerbyQueueStore.class);
+    //----------------------------------------------------------
+    //       DATABASE CONNECTION VARIABLES
+    //  Includes Log-on information to connect to the database. 
+    //----------------------------------------------------------
+    /* The Connection to the database used to perform database operations. */
+    private Connection dataBaseConnection;
+    /*
+     * Lock held while using the database connection. The connection is
+     * not in autocommit mode, so each thread must finish its transaction
+     * before another thread may use the connection.
+     */
+    private final Object dataBaseLock = new Object();
+    /*
+     * The connection protocol String to establish a database connection.
+     *
+     * In embedded mode(local connection), the protocol derby default is 
+     * "jdbc:derby:" plus the name of the data base.
+     * 
+     * In client/server mode, the derby default is: 
+     * "jdbc:derby://localhost:" + PORT_NUMBER + "/".
+     */
+    private static final String PROTOCOL = "jdbc:derby:";
+    /*
+     * The name of the java database that will be created.  It can be found 
+     * in a folder with the database name in the "derby.system.home" directory.
+     */
+    private static final String DATABASE_NAME = "QUEUEMANAGER_DATABASE";
+    /* The name of the JavaDB table. */
+    private static final String TABLE_NAME = "MESSAGE_SENDING_QUEUE";
+    /* The name of the index on (PRIORITY, DESTINATION, MESSAGE_ID). */
+    private static final String INDEX_NAME = "MESSAGE_SENDING_QUEUE_LANE";
+    /* The name of the index on (DESTINATION, COALESCE_KEY). */
+    private static final String COALESCE_INDEX_NAME = "MESSAGE_SENDING_QUEUE_COALESCE";
+    /* The name of the index on (DESTINATION, MESSAGE_ID) used before there were priorities. */
+    private static final String OLD_INDEX_NAME = "MESSAGE_SENDING_QUEUE_DESTINATION";
+    /* Prepared statements, reused for the life of the connection. */
+    private PreparedStatement insertStatement;
+    private PreparedStatement deleteStatement;
+    private PreparedStatement selectSupersededStatement;
+    private PreparedStatement selectPrioritiesStatement;
+    private PreparedStatement selectDestinationsStatement;
+    private PreparedStatement selectPageStatement;
+    private PreparedStatement selectXmlCodeStatement;
+    /* Page size (FETCH FIRST n ROWS) for which selectPageStatement was prepared. */
+    private int selectPageSize = 0;
+    /* Declared maximum length of the XML_CODE BLOB column. */
+    private static final String XML_CODE_LENGTH = "2G";
+    /* Number of messages in the queue (so we can test for empty without a query.) */
+    private final AtomicInteger queuedMessageCount = new AtomicInteger();
+    /* Total size of the messages in the queue. */
+    private final AtomicLong queuedByteCount = new AtomicLong();
+    /* Number and size of the messages in the queue for each destination. (Use while holding the database lock.) */
+    private final Map<String, QueueDepth> depths = new HashMap<String, QueueDepth>();
+
+    /**
+     * Tests whether the queue database has been created in the runtime directory.
+     *
+     * @return true if the database exists, otherwise false.
+     */
+    static boolean exists() {
+        return new File(Mediator.getRuntimeDirectory() + DATABASE_NAME).isDirectory();
+    }
+
+    /**
+     * Establishes a Connection to the JavaDB Data Base. If the Connection
+     * is created successfully, it creates the table and index (if they don't
+     * already exist), prepares the statements we will use, and counts the
+     * messages already in the queue.
+     *
+     * @return true if the database is ready for use, otherwise false.
+     */
+    public boolean open() {
+        dataBaseConnection = establishDataBaseConnection();
+        boolean ready = false;
+        if (dataBaseConnection != null //create the MESSAGE_SENDING_QUEUE table
+                && createTable() && widenXmlCodeColumn() && addMissingColumns()
+                && createIndex() && createCoalesceIndex() && dropOldIndex() && prepareStatements()) {
+            countQueuedMessages();
+            ready = true;
+        }
+        return ready;
+    }
+
+    /**
+     * Closes the database connection.
+     */
+    public void close() {
+        synchronized (dataBaseLock) {
+            try {
+                if (dataBaseConnection != null) {
+                    dataBaseConnection.close();
+                    dataBaseConnection = null;
+                }
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Connects to the Java DataBase specified by the data base connection 
+     * variables.  This connection is needed to work with the database table 
+     * MESSAGE_SENDING_QUEUE.  The connection can be either embedded or client.
+     * Be sure that the database connection variables are correct for the
+     * program you are working with.
+     * <p>
+     * Autocommit is turned off, so that batches of inserts and deletes
+     * can be committed together.
+     */
+    private Connection establishDataBaseConnection() {
+        Connection con = null;
+
+        //load the driver
+        try {
+            //this driver is for embedded mode and loads "derby.jar"
+            Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+        } catch (ClassNotFoundException ex) {
+            Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InstantiationException ie) {
+            Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ie);
+        } catch (IllegalAccessException iae) {
+            Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, iae);
+        }
+
+        try {
+            //creates a new embedded Connection
+            String strURL = PROTOCOL + Mediator.getRuntimeDirectory() + DATABASE_NAME
+                    + ";create=true;"; // Creates the database if it doesn't already exist.
+
+            //swap these lines if you do not want to use a user name and password
+            con = DriverManager.getConnection(strURL);
+//            con = DriverManager.getConnection(strURL, USER_NAME, PASSWORD); 
+            con.setAutoCommit(false);
+        } catch (SQLException ex) {
+            Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return con;
+    }
+
+    /**
+     * Creates the MESSAGE_SENDING_QUEUE JavaDataBase table using SQL.
+     * This table keeps track of which Messages still need to be sent out.
+     * The table only stores a few of the fields of the Message's: 
+     * DESTINATION, XML_CODE, and HOP_COUNT, plus the queue PRIORITY,
+     * the time the message EXPIRES (0 if never), and the COALESCE_KEY
+     * identifying older messages that it supersedes (if any).
+     */
+    private boolean createTable() {
+        String createTableQuery = "CREATE TABLE \"" + TABLE_NAME + "\""
+                + "("
+                + "MESSAGE_ID INTEGER NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+                + "DESTINATION VARCHAR(100), "
+                + "XML_CODE BLOB(" + XML_CODE_LENGTH + "), "
+                + "HOP_COUNT INTEGER, "
+                + "PRIORITY INTEGER NOT NULL DEFAULT " + QueueManager.DEFAULT_PRIORITY + ", "
+                + "EXPIRES BIGINT NOT NULL DEFAULT 0, "
+                + "COALESCE_KEY VARCHAR(64)"
+                + ")";
+        return executeDdl(createTableQuery);
+    }
+
+    /**
+     * Widens the XML_CODE column of a table created by an earlier version,
+     * which limited queued messages to 30000 bytes.
+     *
+     * @return true if the column is (now) wide enough, otherwise false.
+     */
+    private boolean widenXmlCodeColumn() {
+        int columnSize = getColumnSize("XML_CODE");
+        if (columnSize < 0) {
+            return false;
+        }
+        if (columnSize == Integer.MAX_VALUE) {
+            return true;
+        }
+        Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.INFO,
+                "Widening {0}.XML_CODE from BLOB({1}) to BLOB({2})",
+                new Object[]{TABLE_NAME, Integer.toString(columnSize), XML_CODE_LENGTH});
+        return executeDdl("ALTER TABLE " + TABLE_NAME
+                + " ALTER COLUMN XML_CODE SET DATA TYPE BLOB(" + XML_CODE_LENGTH + ")");
+    }
+
+    /**
+     * Adds the columns that a table created by an earlier version may be
+     * missing. Messages already queued get the default priority, don't
+     * expire, and are not coalesced.
+     *
+     * @return true if the table has all the columns, otherwise false.
+     */
+    private boolean addMissingColumns() {
+        return addColumnIfMissing("PRIORITY", "INTEGER NOT NULL DEFAULT " + QueueManager.DEFAULT_PRIORITY)
+                && addColumnIfMissing("EXPIRES", "BIGINT NOT NULL DEFAULT 0")
+                && addColumnIfMissing("COALESCE_KEY", "VARCHAR(64)");
+    }
+
+    /**
+     * Adds a column to the MESSAGE_SENDING_QUEUE table if it isn't there.
+     *
+     * @param columnName name of the column.
+     * @param definition data type and default of the column.
+     * @return true if the table has the column, otherwise false.
+     */
+    private boolean addColumnIfMissing(String columnName, String definition) {
+        int columnSize = getColumnSize(columnName);
+        if (columnSize == 0) {
+            return executeDdl("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + columnName + " " + definition);
+        }
+        return columnSize > 0;
+    }
+
+    /**
+     * Gets the declared size of a column in the MESSAGE_SENDING_QUEUE table.
+     *
+     * @param columnName name of the column.
+     * @return the column size, 0 if the column does not exist, or -1 on error.
+     */
+    private int getColumnSize(String columnName) {
+        int columnSize = 0;
+        synchronized (dataBaseLock) {
+            try {
+                DatabaseMetaData metaData = dataBaseConnection.getMetaData();
+                ResultSet resultSet = metaData.getColumns(null, null, TABLE_NAME, columnName);
+                if (resultSet.next()) {
+                    columnSize = resultSet.getInt("COLUMN_SIZE");
+                }
+                resultSet.close();
+                dataBaseConnection.commit();
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+                columnSize = -1;
+            }
+        }
+        return columnSize;
+    }
+
+    /**
+     * Creates the index on (PRIORITY, DESTINATION, MESSAGE_ID), used to find
+     * the priorities and destinations with queued messages and to read the
+     * queued messages for each priority and destination in order.
+     */
+    private boolean createIndex() {
+        String createIndexQuery = "CREATE INDEX " + INDEX_NAME
+                + " ON " + TABLE_NAME + " (PRIORITY, DESTINATION, MESSAGE_ID)";
+        return executeDdl(createIndexQuery);
+    }
+
+    /**
+     * Creates the index on (DESTINATION, COALESCE_KEY), used to find
+     * queued messages superseded by a new message.
+     */
+    private boolean createCoalesceIndex() {
+        String createIndexQuery = "CREATE INDEX " + COALESCE_INDEX_NAME
+                + " ON " + TABLE_NAME + " (DESTINATION, COALESCE_KEY)";
+        return executeDdl(createIndexQuery);
+    }
+
+    /**
+     * Drops the index on (DESTINATION, MESSAGE_ID) created by an earlier
+     * version, if it exists. (It is no longer used, and would only slow down
+     * inserts and deletes.)
+     *
+     * @return true if the index is gone, otherwise false.
+     */
+    private boolean dropOldIndex() {
+        boolean dropped = false;
+        synchronized (dataBaseLock) {
+            try {
+                Statement stmt = dataBaseConnection.createStatement();
+                stmt.execute("DROP INDEX " + OLD_INDEX_NAME);
+                stmt.close();
+                dataBaseConnection.commit();
+                dropped = true;
+            } catch (SQLException ex) {
+                rollback();
+                if ("42X65".equals(ex.getSQLState())) {  //this is the "does not exist" error
+                    dropped = true;
+                } else {
+                    Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Executes a data definition statement that creates a database object.
+     *
+     * @param ddl the statement to execute.
+     * @return true if the object was created or already exists, otherwise false.
+     */
+    private boolean executeDdl(String ddl) {
+        boolean objectOKforUse = false;
+        synchronized (dataBaseLock) {
+            try {
+                Statement stmt = dataBaseConnection.createStatement();
+                stmt.execute(ddl);
+                stmt.close();
+                dataBaseConnection.commit();
+                objectOKforUse = true;
+            } catch (SQLException ex) {
+                rollback();
+                /* If the Exception is just saying that the object already exists,
+                 * that is ok and the object is still safe to use.  Otherwise,
+                 * we want to report any other errors. */
+                if ("X0Y32".equals(ex.getSQLState())) {  //this is the "already exists" error
+                    objectOKforUse = true;
+                } else {
+                    Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, ddl, ex);
+                }
+            }
+        }
+        return objectOKforUse;
+    }
+
+    /**
+     * Prepares the SQL statements we use repeatedly.
+     * (The paged select statement is prepared when we know the page size.)
+     *
+     * @return true if the statements were prepared, otherwise false.
+     */
+    private boolean prepareStatements() {
+        boolean prepared = false;
+        synchronized (dataBaseLock) {
+            try {
+                insertStatement = dataBaseConnection.prepareStatement("INSERT INTO " + TABLE_NAME
+                        + " (DESTINATION, XML_CODE, HOP_COUNT, PRIORITY, EXPIRES, COALESCE_KEY) VALUES (?, ?, ?, ?, ?, ?)");
+                selectSupersededStatement = dataBaseConnection.prepareStatement("SELECT MESSAGE_ID, LENGTH(XML_CODE) FROM "
+                        + TABLE_NAME + " WHERE DESTINATION = ? AND COALESCE_KEY = ?");
+                deleteStatement = dataBaseConnection.prepareStatement("DELETE FROM " + TABLE_NAME
+                        + " WHERE MESSAGE_ID = ?");
+                selectPrioritiesStatement = dataBaseConnection.prepareStatement("SELECT DISTINCT PRIORITY FROM "
+                        + TABLE_NAME + " ORDER BY PRIORITY DESC");
+                selectDestinationsStatement = dataBaseConnection.prepareStatement("SELECT DISTINCT DESTINATION FROM "
+                        + TABLE_NAME + " WHERE PRIORITY = ?");
+                selectXmlCodeStatement = dataBaseConnection.prepareStatement("SELECT XML_CODE FROM "
+                        + TABLE_NAME + " WHERE MESSAGE_ID = ?");
+                prepared = true;
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return prepared;
+    }
+
+    /**
+     * Counts the messages already in the queue (left from a previous run),
+     * and their sizes, for each destination.
+     */
+    private void countQueuedMessages() {
+        synchronized (dataBaseLock) {
+            try {
+                Statement stmt = dataBaseConnection.createStatement();
+                ResultSet resultSet = stmt.executeQuery("SELECT DESTINATION, COUNT(*), SUM(CAST(LENGTH(XML_CODE) AS BIGINT)) FROM "
+                        + TABLE_NAME + " GROUP BY DESTINATION");
+                while (resultSet.next()) {
+                    addDepth(resultSet.getString(1), resultSet.getInt(2), resultSet.getLong(3));
+                }
+                resultSet.close();
+                stmt.close();
+                dataBaseConnection.commit();
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+            }
+        }
+    }
+
+    /**
+     * Inserts a group of messages into the queue table, and commits them.
+     * Queued messages superseded by the new messages (those with the same
+     * destination and coalescing key) are deleted in the same transaction.
+     *
+     * @param messages messages to insert.
+     * @return true if the messages were inserted and committed, otherwise false.
+     */
+    public boolean add(List<QueuedMessage> messages) {
+        boolean inserted = false;
+        //
+        // Only the last message in the group for each destination and coalescing key is inserted.
+        //
+        List<QueuedMessage> latest = new ArrayList<QueuedMessage>(messages.size());
+        Set<String> coalesceKeys = new HashSet<String>();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            QueuedMessage q = messages.get(i);
+            if (q.getCoalesceKey() == null || coalesceKeys.add(q.getDestination() + " " + q.getCoalesceKey())) {
+                latest.add(q);
+            }
+        }
+        Collections.reverse(latest);
+        synchronized (dataBaseLock) {
+            try {
+                List<QueuedMessage> superseded = new ArrayList<QueuedMessage>();
+                for (QueuedMessage q : latest) {
+                    if (q.getCoalesceKey() != null) {
+                        selectSupersededStatement.setString(1, q.getDestination());
+                        selectSupersededStatement.setString(2, q.getCoalesceKey());
+                        ResultSet resultSet = selectSupersededStatement.executeQuery();
+                        while (resultSet.next()) {
+                            QueuedMessage old = new QueuedMessage();
+                            old.setMessageId(resultSet.getInt(1));
+                            old.setDestination(q.getDestination());
+                            old.setCompressedXmlLength(resultSet.getInt(2));
+                            superseded.add(old);
+                            deleteStatement.setLong(1, old.getMessageId());
+                            deleteStatement.addBatch();
+                        }
+                        resultSet.close();
+                    }
+                }
+                if (!superseded.isEmpty()) {
+                    deleteStatement.executeBatch();
+                }
+                for (QueuedMessage q : latest) {
+                    insertStatement.setString(1, q.getDestination());
+                    insertStatement.setBinaryStream(2,
+                            new ByteArrayInputStream(q.getCompressedXml(), 0, q.getCompressedXmlLength()),
+                            q.getCompressedXmlLength());
+                    insertStatement.setInt(3, q.getHopCount());
+                    insertStatement.setInt(4, q.getPriority());
+                    insertStatement.setLong(5, q.getExpires());
+                    insertStatement.setString(6, q.getCoalesceKey());
+                    insertStatement.addBatch();
+                }
+                insertStatement.executeBatch();
+                setInsertedMessageIds(latest);
+                dataBaseConnection.commit();
+                for (QueuedMessage q : superseded) {
+                    addDepth(q.getDestination(), -1, -q.getCompressedXmlLength());
+                }
+                for (QueuedMessage q : latest) {
+                    addDepth(q.getDestination(), 1, q.getCompressedXmlLength());
+                }
+                inserted = true;
+                logger.log(Level.FINER,
+                        "Inserted {0} queued messages in one commit, replacing {1} superseded messages",
+                        latest.size(), superseded.size() + messages.size() - latest.size());
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Sets the message IDs of messages just inserted. As we insert while
+     * holding the database lock, and message IDs only increase, ours are
+     * the highest IDs in the table. The caller must hold the database lock.
+     *
+     * @param inserted messages just inserted, in order.
+     * @throws SQLException if the IDs can't be read.
+     */
+    private void setInsertedMessageIds(List<QueuedMessage> inserted) throws SQLException {
+        Statement statement = dataBaseConnection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("SELECT MESSAGE_ID FROM " + TABLE_NAME
+                    + " ORDER BY MESSAGE_ID DESC FETCH FIRST " + inserted.size() + " ROWS ONLY");
+            for (int i = inserted.size() - 1; i >= 0 && resultSet.next(); i--) {
+                inserted.get(i).setMessageId(resultSet.getInt(1));
+            }
+            resultSet.close();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Finds the priorities of the messages in the queue.
+     *
+     * @return list of priorities, highest first.
+     */
+    public List<Integer> getPriorities() {
+        List<Integer> priorities = new ArrayList<Integer>();
+        synchronized (dataBaseLock) {
+            try {
+                ResultSet resultSet = selectPrioritiesStatement.executeQuery();
+                while (resultSet.next()) {
+                    priorities.add(resultSet.getInt(1));
+                }
+                resultSet.close();
+                dataBaseConnection.commit();
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+            }
+        }
+        return priorities;
+    }
+
+    /**
+     * Finds the destinations that have messages of a given priority in the queue.
+     *
+     * @param priority priority of the messages.
+     * @return list of destinations.
+     */
+    public List<String> getDestinations(int priority) {
+        List<String> destinations = new ArrayList<String>();
+        synchronized (dataBaseLock) {
+            try {
+                selectDestinationsStatement.setInt(1, priority);
+                ResultSet resultSet = selectDestinationsStatement.executeQuery();
+                while (resultSet.next()) {
+                    destinations.add(resultSet.getString(1));
+                }
+                resultSet.close();
+                dataBaseConnection.commit();
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+            }
+        }
+        return destinations;
+    }
+
+    /**
+     * Reads the next page of queued messages for a destination and priority.
+     * The message contents are not read.
+     *
+     * @param destination destination address of the messages to read.
+     * @param priority priority of the messages to read.
+     * @param afterMessageId read messages with IDs greater than this.
+     * @param maxCount maximum number of messages to read.
+     * @return list of up to <code>maxCount</code> messages, in MESSAGE_ID order.
+     */
+    public List<QueuedMessage> read(String destination, int priority, long afterMessageId, int maxCount) {
+        List<QueuedMessage> page = new ArrayList<QueuedMessage>(maxCount);
+        synchronized (dataBaseLock) {
+            try {
+                if (selectPageSize != maxCount) { // The page size is part of the statement text.
+                    if (selectPageStatement != null) {
+                        selectPageStatement.close();
+                    }
+                    selectPageStatement = dataBaseConnection.prepareStatement("SELECT MESSAGE_ID, LENGTH(XML_CODE), HOP_COUNT, EXPIRES, COALESCE_KEY FROM "
+                            + TABLE_NAME + " WHERE PRIORITY = ? AND DESTINATION = ? AND MESSAGE_ID > ?"
+                            + " ORDER BY MESSAGE_ID FETCH FIRST " + maxCount + " ROWS ONLY");
+                    selectPageSize = maxCount;
+                }
+                selectPageStatement.setInt(1, priority);
+                selectPageStatement.setString(2, destination);
+                selectPageStatement.setLong(3, afterMessageId);
+                ResultSet resultSet = selectPageStatement.executeQuery();
+                while (resultSet.next()) {
+                    QueuedMessage q = new QueuedMessage();
+                    q.setMessageId(resultSet.getInt(1));
+                    q.setDestination(destination);
+                    q.setCompressedXmlLength(resultSet.getInt(2));
+                    q.setHopCount(resultSet.getInt(3));
+                    q.setPriority(priority);
+                    q.setExpires(resultSet.getLong(4));
+                    q.setCoalesceKey(resultSet.getString(5));
+                    page.add(q);
+                }
+                resultSet.close();
+                dataBaseConnection.commit();
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Reads the contents of a queued message, streaming it from the BLOB
+     * into an array of exactly the right size. (A message being sent is
+     * read a part at a time instead, by the method below.)
+     *
+     * @param message message whose contents to read.
+     * @return the compressed XML, or null if it could not be read.
+     */
+    public byte[] readCompressedXml(QueuedMessage message) {
+        byte[] bytes = null;
+        synchronized (dataBaseLock) {
+            try {
+                selectXmlCodeStatement.setLong(1, message.getMessageId());
+                ResultSet resultSet = selectXmlCodeStatement.executeQuery();
+                if (resultSet.next()) {
+                    Blob blob = resultSet.getBlob(1);
+                    bytes = new byte[(int) blob.length()];
+                    InputStream input = blob.getBinaryStream();
+                    try {
+                        int length = 0;
+                        int n;
+                        while (length < bytes.length && (n = input.read(bytes, length, bytes.length - length)) > 0) {
+                            length += n;
+                        }
+                    } finally {
+                        input.close();
+                    }
+                    blob.free();
+                }
+                resultSet.close();
+                dataBaseConnection.commit();
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+                bytes = null;
+            } catch (IOException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+                bytes = null;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads part of the contents of a queued message from its BLOB.
+     * Each part is read in its own short transaction, so the database
+     * is not held while the message is being sent.
+     *
+     * @param message message whose contents to read.
+     * @param offset offset of the first byte to read.
+     * @param length number of bytes to read.
+     * @return the bytes, or null if they could not be read.
+     */
+    public byte[] readCompressedXml(QueuedMessage message, int offset, int length) {
+        byte[] bytes = null;
+        synchronized (dataBaseLock) {
+            try {
+                selectXmlCodeStatement.setLong(1, message.getMessageId());
+                ResultSet resultSet = selectXmlCodeStatement.executeQuery();
+                if (resultSet.next()) {
+                    Blob blob = resultSet.getBlob(1);
+                    if (offset >= 0 && length >= 0 && offset + length <= blob.length()) {
+                        bytes = blob.getBytes(offset + 1, length); // (BLOB positions start at 1.)
+                    }
+                    blob.free();
+                }
+                resultSet.close();
+                dataBaseConnection.commit();
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+                bytes = null;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Deletes Messages from the MESSAGE_SENDING_QUEUE, in one batch.
+     * 
+     * @param messages messages to delete
+     */
+    public void remove(List<QueuedMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        synchronized (dataBaseLock) {
+            try {
+                for (QueuedMessage q : messages) {
+                    deleteStatement.setLong(1, q.getMessageId());
+                    deleteStatement.addBatch();
+                }
+                int[] counts = deleteStatement.executeBatch();
+                dataBaseConnection.commit();
+                int deleted = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        QueuedMessage q = messages.get(i);
+                        addDepth(q.getDestination(), -1, -q.getCompressedXmlLength());
+                        deleted++;
+                    }
+                }
+                logger.log(Level.FINER,
+                        "Deleted {0} sent messages in one commit", deleted);
+            } catch (SQLException ex) {
+                Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+                rollback();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of messages in the queue.
+     *
+     * @return the number of messages.
+     */
+    public int size() {
+        return queuedMessageCount.get();
+    }
+
+    /**
+     * Gets the total size of the messages in the queue.
+     *
+     * @return total size in bytes.
+     */
+    public long byteSize() {
+        return queuedByteCount.get();
+    }
+
+    /**
+     * Gets the number and size of the messages in the queue for each destination.
+     *
+     * @return map from destination address to a copy of its depth.
+     */
+    public Map<String, QueueDepth> getDepths() {
+        Map<String, QueueDepth> copy = new HashMap<String, QueueDepth>();
+        synchronized (dataBaseLock) {
+            for (Map.Entry<String, QueueDepth> e : depths.entrySet()) {
+                copy.put(e.getKey(), new QueueDepth(e.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Accounts for messages added to (or removed from) the queue.
+     * (Call while holding the database lock.)
+     *
+     * @param destination destination of the messages.
+     * @param count number of messages added (negative if removed.)
+     * @param bytes size of the messages added (negative if removed.)
+     */
+    private void addDepth(String destination, int count, long bytes) {
+        QueueDepth depth = depths.get(destination);
+        if (depth == null) {
+            depth = new QueueDepth();
+            depths.put(destination, depth);
+        }
+        depth.add(count, bytes);
+        if (depth.getCount() <= 0) {
+            depths.remove(destination);
+        }
+        queuedMessageCount.addAndGet(count);
+        queuedByteCount.addAndGet(bytes);
+    }
+
+    /**
+     * Rolls back the current transaction after an error.
+     * (Call while holding the database lock.)
+     */
+    private void rollback() {
+        try {
+            dataBaseConnection.rollback();
+        } catch (SQLException ex) {
+            Logger.getLogger(DerbyQueueStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
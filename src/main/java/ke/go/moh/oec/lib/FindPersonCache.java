@@ -0,0 +1,361 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import ke.go.moh.oec.Fingerprint;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonIdentifier;
+import ke.go.moh.oec.PersonRequest;
+import ke.go.moh.oec.PersonResponse;
+import ke.go.moh.oec.RelatedPerson;
+import ke.go.moh.oec.Visit;
+
+/**
+ * Remembers recent responses to find person requests, so that looking up
+ * the same person again does not need a round trip to the server.
+ * <p>
+ * Responses are kept by the canonical key of their search criteria
+ * (see {@link FindPersonKey}.) The cache is configured with these properties:
+ * <p>
+ * FindPersonCache.MaxEntries - most responses to keep, least recently
+ * used first out (default 0, meaning no cache) <br>
+ * FindPersonCache.TtlSeconds - how long to keep a response (default 60)
+ * <p>
+ * When we learn that a person has changed (from a notifyPersonChanged
+ * message, or because we sent a createPerson or modifyPerson request)
+ * we forget the responses that could be affected: any response containing
+ * the person (by GUID or identifier), any search using one of the person's
+ * identifiers, any search without identifiers, and any search that
+ * found no one. A search by other identifiers that found other people
+ * is kept, as the change should not affect it.
+ * <p>
+ * A response that arrives after such a change, to a request sent before
+ * the change, is not kept.
+ * <p>
+ * The cache keeps its own copy of each response, and each hit gets a new
+ * copy, so a caller that changes its response doesn't change what other
+ * callers get. A hit has no request reference, as it was not the
+ * response to a request of its own.
+ */
+class FindPersonCache {
+
+    /** One cached response. */
+    private static class Entry {
+
+        private final PersonResponse response;
+        private final long expires;
+        /** GUIDs and identifiers of the people searched for and found. */
+        private final Set<String> tags;
+        /** True if the response can be changed by any person change. */
+        private final boolean broad;
+
+        private Entry(PersonResponse response, long expires, Set<String> tags, boolean broad) {
+            this.response = response;
+            this.expires = expires;
+            this.tags = tags;
+            this.broad = broad;
+        }
+    }
+    /** Cached responses, in order of least to most recently used. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private volatile int maxEntries;
+    private volatile long ttlMillis;
+    /** Counts changes, so responses to requests sent before a change are not kept. */
+    private long generation = 0;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidatedCount = new AtomicLong();
+
+    FindPersonCache() {
+        reloadProperties();
+    }
+
+    /**
+     * (Re)loads the cache size and time to live from the properties.
+     * If the cache is made smaller, or turned off, responses are forgotten
+     * as needed.
+     */
+    void reloadProperties() {
+        String max = Mediator.getProperty("FindPersonCache.MaxEntries");
+        String ttl = Mediator.getProperty("FindPersonCache.TtlSeconds");
+        maxEntries = (max != null ? Integer.parseInt(max.trim()) : 0);
+        ttlMillis = (ttl != null ? Long.parseLong(ttl.trim()) : 60) * 1000;
+        synchronized (this) {
+            trim();
+        }
+    }
+
+    /**
+     * Is the cache turned on?
+     *
+     * @return true if responses may be cached.
+     */
+    boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Gets the change generation, to be passed to {@link #put} when
+     * the response to a request arrives.
+     *
+     * @return the current generation.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Gets a cached response.
+     *
+     * @param key canonical key of the search criteria.
+     * @return a copy of the cached response (without a request reference),
+     * or null if there is none.
+     */
+    synchronized PersonResponse get(String key) {
+        Entry e = entries.get(key);
+        if (e != null && e.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        PersonResponse copy = copy(e.response);
+        copy.setRequestReference(null);
+        return copy;
+    }
+
+    /**
+     * Caches a copy of a response, unless a person has changed since the
+     * request was sent.
+     *
+     * @param key canonical key of the search criteria.
+     * @param request the request.
+     * @param response the response.
+     * @param requestGeneration the generation when the request was sent.
+     */
+    synchronized void put(String key, PersonRequest request, PersonResponse response, long requestGeneration) {
+        if (maxEntries <= 0 || requestGeneration != generation) {
+            return;
+        }
+        Set<String> tags = new HashSet<String>();
+        boolean broad = true;
+        if (request.getPerson() != null) {
+            broad = !addTags(tags, request.getPerson());
+        }
+        if (response.getPersonList() == null || response.getPersonList().isEmpty()) {
+            broad = true;
+        } else {
+            for (Person p : response.getPersonList()) {
+                addTags(tags, p);
+            }
+        }
+        entries.put(key, new Entry(copy(response), System.currentTimeMillis() + ttlMillis, tags, broad));
+        trim();
+    }
+
+    /**
+     * Forgets the responses that could be affected by a change to a person.
+     *
+     * @param person the person who changed, or null if not known.
+     */
+    synchronized void invalidate(Person person) {
+        generation++;
+        Set<String> tags = new HashSet<String>();
+        if (person == null || (!addTags(tags, person) && person.getPersonGuid() == null)) {
+            invalidatedCount.addAndGet(entries.size());
+            entries.clear();
+            return;
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            Entry e = it.next();
+            boolean affected = e.broad;
+            if (!affected) {
+                for (String tag : tags) {
+                    if (e.tags.contains(tag)) {
+                        affected = true;
+                        break;
+                    }
+                }
+            }
+            if (affected) {
+                it.remove();
+                invalidatedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Adds the GUID and identifiers of a person to a set of tags.
+     *
+     * @param tags set of tags.
+     * @param p the person.
+     * @return true if the person has any identifiers.
+     */
+    private static boolean addTags(Set<String> tags, Person p) {
+        if (p.getPersonGuid() != null) {
+            tags.add("G" + p.getPersonGuid());
+        }
+        boolean found = false;
+        if (p.getPersonIdentifierList() != null) {
+            for (PersonIdentifier pi : p.getPersonIdentifierList()) {
+                if (pi.getIdentifier() != null && !pi.getIdentifier().trim().isEmpty()) {
+                    tags.add("I" + pi.getIdentifierType() + "=" + pi.getIdentifier().trim());
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copies a person response, including the people in it, so that
+     * nothing in the copy is shared with the original.
+     *
+     * @param response the response to copy.
+     * @return the copy.
+     */
+    static PersonResponse copy(PersonResponse response) {
+        PersonResponse copy = new PersonResponse();
+        copy.setRequestReference(response.getRequestReference());
+        copy.setSuccessful(response.isSuccessful());
+        if (response.getPersonList() != null) {
+            List<Person> personList = new ArrayList<Person>(response.getPersonList().size());
+            for (Person p : response.getPersonList()) {
+                personList.add(copy(p));
+            }
+            copy.setPersonList(personList);
+        }
+        return copy;
+    }
+
+    private static Person copy(Person person) {
+        if (person == null) {
+            return null;
+        }
+        Person copy = person.clone();
+        copy.setBirthdate(copy(person.getBirthdate()));
+        copy.setDeathdate(copy(person.getDeathdate()));
+        copy.setLastMoveDate(copy(person.getLastMoveDate()));
+        copy.setExpectedDeliveryDate(copy(person.getExpectedDeliveryDate()));
+        copy.setPregnancyEndDate(copy(person.getPregnancyEndDate()));
+        copy.setLastRegularVisit(copy(person.getLastRegularVisit()));
+        copy.setLastOneOffVisit(copy(person.getLastOneOffVisit()));
+        if (person.getPersonIdentifierList() != null) {
+            List<PersonIdentifier> list = new ArrayList<PersonIdentifier>(person.getPersonIdentifierList().size());
+            for (PersonIdentifier pi : person.getPersonIdentifierList()) {
+                list.add(pi == null ? null : new PersonIdentifier(pi.getIdentifierType(), pi.getIdentifier()));
+            }
+            copy.setPersonIdentifierList(list);
+        }
+        if (person.getFingerprintList() != null) {
+            List<Fingerprint> list = new ArrayList<Fingerprint>(person.getFingerprintList().size());
+            for (Fingerprint f : person.getFingerprintList()) {
+                list.add(copy(f));
+            }
+            copy.setFingerprintList(list);
+        }
+        if (person.getHouseholdMembers() != null) {
+            List<RelatedPerson> list = new ArrayList<RelatedPerson>(person.getHouseholdMembers().size());
+            for (RelatedPerson rp : person.getHouseholdMembers()) {
+                RelatedPerson rpCopy = null;
+                if (rp != null) {
+                    rpCopy = new RelatedPerson();
+                    rpCopy.setRelation(rp.getRelation());
+                    rpCopy.setPerson(copy(rp.getPerson()));
+                }
+                list.add(rpCopy);
+            }
+            copy.setHouseholdMembers(list);
+        }
+        return copy;
+    }
+
+    private static Fingerprint copy(Fingerprint fingerprint) {
+        if (fingerprint == null) {
+            return null;
+        }
+        Fingerprint copy = new Fingerprint();
+        copy.setFingerprintType(fingerprint.getFingerprintType());
+        copy.setTechnologyType(fingerprint.getTechnologyType());
+        copy.setTemplate(fingerprint.getTemplate() == null ? null : fingerprint.getTemplate().clone());
+        copy.setDateEntered(copy(fingerprint.getDateEntered()));
+        copy.setDateChanged(copy(fingerprint.getDateChanged()));
+        return copy;
+    }
+
+    private static Visit copy(Visit visit) {
+        if (visit == null) {
+            return null;
+        }
+        Visit copy = new Visit();
+        copy.setAddress(visit.getAddress());
+        copy.setFacilityName(visit.getFacilityName());
+        copy.setVisitDate(copy(visit.getVisitDate()));
+        return copy;
+    }
+
+    private static Date copy(Date date) {
+        return (date == null ? null : (Date) date.clone());
+    }
+
+    /**
+     * Removes the least recently used responses until the cache is
+     * no bigger than its limit. The caller must hold the lock.
+     */
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > Math.max(maxEntries, 0) && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    long getInvalidatedCount() {
+        return invalidatedCount.get();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,160 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ke.go.moh.oec.Fingerprint;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonIdentifier;
+import ke.go.moh.oec.PersonRequest;
+
+/**
+ * Builds a canonical key for the search criteria of a find person request.
+ * Two requests with the same key would be sent as the same query, so
+ * they may share one response.
+ * <p>
+ * The key covers the request type, the destination, the match algorithm and
+ * the person fields that are sent in a findPerson message. Names are
+ * compared without regard to case or surrounding spaces. Identifiers and
+ * fingerprints are sorted, so the order in which the caller listed them
+ * does not matter. The result is a SHA-1 digest in hex, so fingerprint
+ * templates do not make long keys.
+ */
+class FindPersonKey {
+
+    /** Separates fields in the canonical string, and can't be in a name. */
+    private static final char SEPARATOR = '\u0001';
+
+    private FindPersonKey() {
+    }
+
+    /**
+     * Gets the canonical key for a find person request.
+     *
+     * @param requestTypeId the request type ID from getData()
+     * @param destinationAddress the address to which the request will be sent
+     * @param pr the person request
+     * @return the key, or null if the request can't be keyed (for example
+     * if the caller supplies their own XML or request reference.)
+     */
+    static String of(int requestTypeId, String destinationAddress, PersonRequest pr) {
+        if (pr == null || pr.getXml() != null || pr.getRequestReference() != null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        append(sb, Integer.toString(requestTypeId));
+        append(sb, destinationAddress);
+        append(sb, pr.getMatchAlgorithm());
+        Person p = pr.getPerson();
+        if (p != null) {
+            appendName(sb, p.getFirstName());
+            appendName(sb, p.getMiddleName());
+            appendName(sb, p.getLastName());
+            appendName(sb, p.getOtherName());
+            appendName(sb, p.getMothersMiddleName());
+            appendName(sb, p.getVillageName());
+            append(sb, p.getSex() == null ? null : p.getSex().name());
+            append(sb, p.getAliveStatus() == null ? null : p.getAliveStatus().name());
+            append(sb, formatDate(p.getBirthdate()));
+            List<String> items = new ArrayList<String>();
+            if (p.getPersonIdentifierList() != null) {
+                for (PersonIdentifier pi : p.getPersonIdentifierList()) {
+                    items.add("I" + pi.getIdentifierType() + "=" + trim(pi.getIdentifier()));
+                }
+            }
+            if (p.getFingerprintList() != null) {
+                for (Fingerprint f : p.getFingerprintList()) {
+                    items.add("F" + f.getFingerprintType() + "/" + f.getTechnologyType()
+                            + "=" + toHex(f.getTemplate()));
+                }
+            }
+            Collections.sort(items);
+            for (String item : items) {
+                append(sb, item);
+            }
+        }
+        return digest(sb.toString());
+    }
+
+    private static void append(StringBuilder sb, String value) {
+        if (value != null) {
+            sb.append(value);
+        }
+        sb.append(SEPARATOR);
+    }
+
+    private static void appendName(StringBuilder sb, String name) {
+        String s = trim(name);
+        append(sb, s == null ? null : s.toUpperCase());
+    }
+
+    private static String trim(String s) {
+        if (s == null) {
+            return null;
+        }
+        s = s.trim();
+        return s.isEmpty() ? null : s;
+    }
+
+    private static String formatDate(Date date) {
+        if (date == null) {
+            return null;
+        }
+        return new SimpleDateFormat("yyyyMMdd").format(date);
+    }
+
+    private static String toHex(byte[] bytes) {
+        if (bytes == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String digest(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return toHex(md.digest(s.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(FindPersonKey.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (UnsupportedEncodingException ex) {
+            Logger.getLogger(FindPersonKey.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return s; // Fall back to the canonical string itself.
+    }
+}
@@ -0,0 +1,75 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.Map;
+
+/**
+ * JMX view of HTTP traffic: sends to next hops and how long they took,
+ * segments resent because they arrived garbled, and next hops that
+ * can't be reached.
+ * <p>
+ * Registered by {@link Mediator} as
+ * <code>ke.go.moh.oec:type=HttpService,name=</code><i>Instance.Address</i>.
+ * Times are in milliseconds.
+ */
+public interface HttpMetricsMXBean {
+
+    /** @return number of messages we tried to send to a next hop. */
+    long getSendCount();
+
+    /** @return number of messages we could not send to a next hop. */
+    long getSendFailureCount();
+
+    /** @return number of segments resent because the receiver found them garbled. */
+    long getSegmentRetryCount();
+
+    /** @return number of HTTP requests received. */
+    long getReceivedCount();
+
+    /** @return number of segments received whose MD5 did not match. */
+    long getReceivedMd5MismatchCount();
+
+    /** @return average time to send a message to a next hop. */
+    double getSendMeanMillis();
+
+    /** @return median time to send a message to a next hop. */
+    double getSendP50Millis();
+
+    /** @return 90th percentile time to send a message to a next hop. */
+    double getSendP90Millis();
+
+    /** @return 99th percentile time to send a message to a next hop. */
+    double getSendP99Millis();
+
+    /** @return longest time to send a message to a next hop. */
+    double getSendMaxMillis();
+
+    /** @return next hops (IP address:port) we can't reach, with when the trouble started. */
+    Map<String, String> getUnreachableHops();
+
+    /** @return circuit breaker state (CLOSED, OPEN or HALF_OPEN) of each next hop. */
+    Map<String, String> getCircuitBreakerStates();
+}
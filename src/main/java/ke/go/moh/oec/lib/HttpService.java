@@ -34,6 +34,8 @@ import java.util.logging.Logger;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.net.HttpURLConnection;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
@@ -42,6 +44,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.security.MessageDigest;
@@ -52,16 +55,31 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles HTTP requests and responses between OpenEMRConnect nodes.
+ * <p>
+ * HTTPHandler.MaxMessageBytes (default 10485760) limits the size of a
+ * message we receive: a post, the message put together from its segments,
+ * and the XML a compressed message decompresses to. A post or segmented
+ * message over the limit is answered with 413 (Request Entity Too Large)
+ * and dropped. A compressed message whose XML is over the limit is dropped.
+ * A message refused with 413 would never be taken, so the sender doesn't
+ * send it again (even from its queue) and reports it as not sent.
  *
  * @author John Gitau
  * @author Jim Grace
  */
 class HttpService {
 
+    /** Logger for the busy code paths. */
+    private static final CachedLogger logger = CachedLogger.get(HttpService.class);
+    /** Default for HTTPHandler.MaxMessageBytes. */
+    private static final int DEFAULT_MAX_MESSAGE_BYTES = 10 * 1024 * 1024;
     /**
      * {@link Mediator} class instance to which we pass any received HTTP
      * requests.
@@ -70,13 +88,31 @@ class HttpService {
     private int id = 0;
     private int port = 0;
     HttpServer server;
+    /** Runs the handlers for received requests. */
+    private ExecutorService serverExecutor;
     MessageDigest messageDigest;
-    Map<String, Date> unreachableIpPorts = new HashMap<String, Date>();
+    Map<String, Date> unreachableIpPorts = new ConcurrentHashMap<String, Date>();
+    /** Time taken to send messages to a next hop (all segments, with retries.) */
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    /** Number of messages we tried to send to a next hop. */
+    private final AtomicLong sendCount = new AtomicLong();
+    /** Number of messages we could not send to a next hop. */
+    private final AtomicLong sendFailureCount = new AtomicLong();
+    /** Number of segments resent because the receiver found them garbled (length or MD5.) */
+    private final AtomicLong segmentRetryCount = new AtomicLong();
+    /** Number of segments received whose MD5 did not match. */
+    private final AtomicLong receivedMd5MismatchCount = new AtomicLong();
+    /** Number of HTTP requests received. */
+    private final AtomicLong receivedCount = new AtomicLong();
     private static final SimpleDateFormat SIMPLE_DATE_TIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
     private static final String HTTP_CONTENT_XML = "application/xml";
     private static final String HTTP_CONTENT_ZIP = "application/zip";
     private static final int HTTP_RESPONSE_OK = 200;
+    private static final int HTTP_RESPONSE_METHOD_NOT_ALLOWED = 405;
+    private static final int HTTP_RESPONSE_SERVER_ERROR = 500;
     private static final int HTTP_RESPONSE_LENGTH_REQUIRED = 411;
+    private static final int HTTP_RESPONSE_TOO_LARGE = 413; // Over HTTPHandler.MaxMessageBytes
+    private static final int HTTP_RESPONSE_SERVICE_UNAVAILABLE = 503; // Too busy (see CallbackExecutor): send again later
     private static final int HTTP_RESPONSE_MD5_MISMATCH = 449; // No obvious choice here, this code is Microsoft "Retry With"
     private static final int HTTP_RESPONSE_MD5_REQUIRED = 455; // OEC-defined code
 
@@ -114,8 +150,18 @@ class HttpService {
         }
     }
 
+    /* Results of sending to one next hop. */
+    private static final int SEND_OK = 0;
+    private static final int SEND_UNREACHABLE = 1; // The message did not get to the next hop.
+    private static final int SEND_FAILED = 2; // The message may or may not have got to the next hop.
+    private static final int SEND_REFUSED = 3; // The next hop will never take the message: don't send it again.
+
     /**
      * Sends a HTTP message.
+     * <p>
+     * If the next hop can't be reached (or its circuit breaker is open) and its
+     * route has other next hops that can be, we fail over to them one at a time
+     * until the message is sent.
      *
      * @param m Message to send
      * @return true if message was sent and HTTP response received, otherwise false
@@ -124,26 +170,115 @@ class HttpService {
         if (port == 0) {
             port = Integer.parseInt(Mediator.getProperty("HTTPHandler.ListenPort"));
         }
-        boolean returnStatus = false;
-        String destinationAddress = m.getDestinationAddress();
         NextHop nextHop = m.getNextHop();
         if (nextHop == null) {
             // If we are called from the QueueManager, we may not have the next hop information because they are not stored in the queue database.
             // If this is the case, then get the IP address and port now, from the destination address.
-            nextHop = NextHop.getNextHopByAddress(destinationAddress);
+            nextHop = NextHop.getNextHopByAddress(m.getDestinationAddress());
             m.setNextHop(nextHop);
         }
+        int result = sendToHop(m, nextHop);
+        if (result == SEND_UNREACHABLE && nextHop.getRoute() != null) {
+            List<NextHop> tried = new ArrayList<NextHop>();
+            tried.add(nextHop);
+            NextHop alternate;
+            while (result == SEND_UNREACHABLE
+                    && (alternate = nextHop.getRoute().selectAlternate(tried)) != null) {
+                Logger.getLogger(HttpService.class.getName()).log(Level.INFO,
+                        "Failing over message to {0} from {1} to {2}",
+                        new Object[]{m.getDestinationAddress(), nextHop.getIpAddressPort(), alternate.getIpAddressPort()});
+                nextHop = alternate;
+                tried.add(nextHop);
+                m.setNextHop(nextHop);
+                result = sendToHop(m, nextHop);
+            }
+        }
+        return result == SEND_OK;
+    }
+
+    /**
+     * Sends a HTTP message to one next hop, unless the hop already has its
+     * maximum number of messages being sent (and no slot frees up within its
+     * queue timeout) or the hop's circuit breaker says to fail at once.
+     * The result is recorded in the circuit breaker.
+     *
+     * @param m Message to send
+     * @param nextHop next hop to send it to
+     * @return SEND_OK if message was sent and HTTP response received,
+     * SEND_UNREACHABLE if it could not be sent to the next hop at all
+     * (or the next hop was too busy to take it), SEND_REFUSED if the next
+     * hop refused it as too large, otherwise SEND_FAILED.
+     */
+    private int sendToHop(Message m, NextHop nextHop) throws MalformedURLException, IOException {
+        if (!nextHop.acquireSendSlot()) {
+            logger.log(Level.FINE,
+                    "{0} messages already being sent to {1}, not sending message to {2}",
+                    nextHop.getMaxInFlight(), nextHop.getIpAddressPort(), m.getDestinationAddress());
+            return SEND_UNREACHABLE;
+        }
+        long startNanos = System.nanoTime();
+        int result = SEND_FAILED;
+        try {
+            result = sendToHopInSlot(m, nextHop);
+            return result;
+        } finally {
+            nextHop.releaseSendSlot();
+            sendLatency.recordSince(startNanos);
+            sendCount.incrementAndGet();
+            if (result != SEND_OK) {
+                sendFailureCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Sends a HTTP message to one next hop, once we have a slot to send to it.
+     * The connect and read timeouts of the next hop are applied.
+     *
+     * @param m Message to send
+     * @param nextHop next hop to send it to
+     * @return SEND_OK, SEND_UNREACHABLE, SEND_REFUSED or SEND_FAILED (see sendToHop.)
+     */
+    private int sendToHopInSlot(Message m, NextHop nextHop) throws MalformedURLException, IOException {
+        CircuitBreaker circuitBreaker = nextHop.getCircuitBreaker();
+        if (!circuitBreaker.allowRequest()) {
+            logger.log(Level.FINE,
+                    "Circuit breaker open for {0}, not sending message to {1}",
+                    nextHop.getIpAddressPort(), m.getDestinationAddress());
+            return SEND_UNREACHABLE;
+        }
+        int returnStatus = SEND_FAILED;
+        String destinationAddress = m.getDestinationAddress();
         String ipAddressPort = nextHop.getIpAddressPort();
         int maxSize = nextHop.getMaxSize();
         String url = "http://" + ipAddressPort + "/oecmessage?destination=" + destinationAddress
                 + "&tobequeued=" + m.isToBeQueued() + "&hopcount=" + m.getHopCount() + "&port=" + port;
+        if (m.getPriority() != QueueManager.DEFAULT_PRIORITY) {
+            url += "&priority=" + m.getPriority();
+        }
+        if (m.getTimeToLive() > 0) {
+            url += "&ttl=" + m.getTimeToLive();
+        }
+        if (m.getCoalesceKey() != null) {
+            url += "&coalesce=" + m.getCoalesceKey();
+        }
+        if (m.getTrace() != null) {
+            m.addTraceEvent("send");
+            url += "&trace=" + URLEncoder.encode(m.getTrace(), "UTF-8");
+        }
+        boolean connected = false;
+        boolean busy = false;
+        boolean tooLarge = false;
+        nextHop.sendStarted();
         try {
             /*Code thats performing a task should be placed in the try catch statement especially in the try part*/
             byte[] messageBytes;
             int messageLength;
             String contentType;
+            CompressedXmlSource source = null; // (Set if a large queued message is read a part at a time.)
             if (nextHop.isZip()) {
-                messageBytes = m.getCompressedXml();
+                source = m.getCompressedXmlSource();
+                messageBytes = (source == null ? m.getCompressedXml() : null);
                 messageLength = m.getCompressedXmlLength();
                 contentType = HTTP_CONTENT_ZIP;
             } else {
@@ -171,15 +306,38 @@ class HttpService {
                     }
                 }
                 HttpURLConnection connection = (HttpURLConnection) new URL(thisUrl).openConnection();
-                String md5 = computeMd5(messageBytes, sent, toSend);
+                connection.setConnectTimeout(nextHop.getConnectTimeout());
+                connection.setReadTimeout(nextHop.getReadTimeout());
+                String md5 = (source != null ? computeMd5(source, sent, toSend) : computeMd5(messageBytes, sent, toSend));
                 connection.setRequestProperty("Content-MD5", md5);
                 connection.setRequestProperty("Content-Type", contentType);
                 connection.setDoOutput(true);
+                if (source != null) {
+                    connection.setFixedLengthStreamingMode(toSend); // (Or the connection would buffer all of it.)
+                }
                 OutputStream output = connection.getOutputStream();
+                connected = true;
 
-                output.write(messageBytes, sent, toSend);
+                if (source != null) {
+                    for (int part = 0; part < toSend; part += CompressedXmlSource.PART_BYTES) {
+                        output.write(readPart(source, sent + part, Math.min(CompressedXmlSource.PART_BYTES, toSend - part)));
+                    }
+                } else {
+                    output.write(messageBytes, sent, toSend);
+                }
                 output.close();
                 int responseCode = connection.getResponseCode();
+                if (responseCode == HTTP_RESPONSE_SERVICE_UNAVAILABLE) {
+                    busy = true; // The receiver is too busy to take the message.
+                    break;
+                }
+                if (responseCode == HTTP_RESPONSE_TOO_LARGE) { // It will never be taken: don't send it again.
+                    logger.log(Level.SEVERE,
+                            "{0} refused message to {1} as too large ({2} bytes), dropping it",
+                            ipAddressPort, destinationAddress, Integer.toString(messageLength));
+                    tooLarge = true;
+                    break;
+                }
                 //
                 // Check the response code. It may be one of the response codes that
                 // we know we generate from the other side if the message was garbled.
@@ -196,9 +354,9 @@ class HttpService {
                         && responseCode != HTTP_RESPONSE_MD5_MISMATCH
                         && responseCode != HTTP_RESPONSE_MD5_REQUIRED) {
                     if (responseCode != HTTP_RESPONSE_OK) {
-                        Logger.getLogger(HttpService.class.getName()).log(Level.FINE,
+                        logger.log(Level.FINE,
                                 "HTTP response code {0}, sending message to {1} at {2}",
-                                new Object[]{responseCode, m.getDestinationAddress(), url});
+                                responseCode, m.getDestinationAddress(), url);
                     }
                     sent = sent + toSend;
                     InputStreamReader inputStreamReader = new InputStreamReader(connection.getInputStream());
@@ -209,17 +367,37 @@ class HttpService {
                     br.close();
                     inputStreamReader.close();
                 } else {
-                    Logger.getLogger(HttpService.class.getName()).log(Level.FINE,
+                    segmentRetryCount.incrementAndGet();
+                    logger.log(Level.FINE,
                             "HTTP response code {0}. Retrying sending message to {1} at {2}",
-                            new Object[]{responseCode, m.getDestinationAddress(), url});
+                            responseCode, m.getDestinationAddress(), url);
                 }
             }
-            returnStatus = true;
-            canReach(ipAddressPort);
+            if (busy) {
+                returnStatus = SEND_UNREACHABLE; // (So a queued message stays queued.)
+                cannotReach(ipAddressPort, "{0} is too busy to take message to {1}", destinationAddress);
+            } else if (tooLarge) {
+                returnStatus = SEND_REFUSED;
+                m.setRefused(true); // (So a queued message is removed from the queue.)
+            } else {
+                returnStatus = SEND_OK;
+                canReach(ipAddressPort);
+            }
         } catch (ConnectException ex) {
-            cannotReach(ipAddressPort, "Can't connect to " + ipAddressPort + " for message to " + destinationAddress);
+            returnStatus = SEND_UNREACHABLE;
+            cannotReach(ipAddressPort, "Can''t connect to {0} for message to {1}", destinationAddress);
         } catch (UnknownHostException ex) {
-            cannotReach(ipAddressPort, "Unknown Host " + ipAddressPort + " for message to " + destinationAddress);
+            returnStatus = SEND_UNREACHABLE;
+            cannotReach(ipAddressPort, "Unknown Host {0} for message to {1}", destinationAddress);
+        } catch (SocketTimeoutException ex) {
+            if (!connected) {
+                returnStatus = SEND_UNREACHABLE;
+                cannotReach(ipAddressPort, "Timed out connecting to {0} for message to {1}", destinationAddress);
+            } else {
+                logger.log(Level.WARNING,
+                        "Timed out waiting for {0} to respond to message to {1}",
+                        ipAddressPort, destinationAddress);
+            }
         } catch (MalformedURLException ex) {
             Logger.getLogger(HttpService.class.getName()).log(Level.SEVERE,
                     "While sending to " + m.getDestinationAddress() + " at " + url, ex);
@@ -227,12 +405,21 @@ class HttpService {
             String message = ex.getMessage();
             if (message.equals("Premature EOF")
                     || message.equals("Unexpected end of file from server")) {
-                returnStatus = true; // We expect End of File at some point
+                returnStatus = SEND_OK; // We expect End of File at some point
             } else {
                 Logger.getLogger(HttpService.class.getName()).log(Level.SEVERE,
                         "While sending to " + m.getDestinationAddress() + " at " + url, ex);
 //            There was some transmission error we return false.
             }
+        } finally {
+            nextHop.sendFinished();
+            if (returnStatus == SEND_UNREACHABLE) {
+                circuitBreaker.recordFailure();
+            } else if (returnStatus == SEND_OK || connected) { // (If we connected, the hop is reachable.)
+                circuitBreaker.recordSuccess();
+            } else {
+                circuitBreaker.recordInconclusive();
+            }
         }
         return returnStatus;
     }
@@ -253,11 +440,13 @@ class HttpService {
      * at a later time when we can send to this IP address / port again.
      * 
      * @param ipAddressPort IP Address and Port we cannot reach
-     * @param errorMessage Error why we cannot reach this IP address / port.
+     * @param errorFormat Error why we cannot reach this IP address / port,
+     * with {0} for the IP address / port and {1} for the message destination.
+     * @param destinationAddress destination of the message we were sending
      */
-    private synchronized void cannotReach(String ipAddressPort, String errorMessage) {
+    private synchronized void cannotReach(String ipAddressPort, String errorFormat, String destinationAddress) {
         if (!unreachableIpPorts.containsKey(ipAddressPort)) {
-            Logger.getLogger(HttpService.class.getName()).log(Level.SEVERE, errorMessage);
+            logger.log(Level.SEVERE, errorFormat, ipAddressPort, destinationAddress);
             unreachableIpPorts.put(ipAddressPort, new Date());
         }
     }
@@ -274,19 +463,59 @@ class HttpService {
      * @param ipAddressPort IP Address and port we can reach
      */
     private void canReach(String ipAddressPort) {
-        if (unreachableIpPorts.containsKey(ipAddressPort)) {
-            Date sinceDate = unreachableIpPorts.get(ipAddressPort);
+        Date sinceDate = unreachableIpPorts.remove(ipAddressPort);
+        if (sinceDate != null) {
+            String since;
+            synchronized (SIMPLE_DATE_TIME_FORMAT) {
+                since = SIMPLE_DATE_TIME_FORMAT.format(sinceDate);
+            }
             Logger.getLogger(HttpService.class.getName()).log(Level.INFO,
                     "Can reach {0} for the first time since {1}",
-                    new Object[]{ipAddressPort, SIMPLE_DATE_TIME_FORMAT.format(sinceDate)});
-            unreachableIpPorts.remove(ipAddressPort);
+                    new Object[]{ipAddressPort, since});
         }
     }
 
+    /**
+     * Gets the IP addresses / ports we are having trouble reaching,
+     * with the time the trouble started.
+     *
+     * @return unreachable IP addresses / ports and when they became unreachable.
+     */
+    Map<String, Date> getUnreachableIpPorts() {
+        return new HashMap<String, Date>(unreachableIpPorts);
+    }
+
+    LatencyHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    long getSendCount() {
+        return sendCount.get();
+    }
+
+    long getSendFailureCount() {
+        return sendFailureCount.get();
+    }
+
+    long getSegmentRetryCount() {
+        return segmentRetryCount.get();
+    }
+
+    long getReceivedMd5MismatchCount() {
+        return receivedMd5MismatchCount.get();
+    }
+
+    long getReceivedCount() {
+        return receivedCount.get();
+    }
+
     /**
      * Starts listening for HTTP messages.
      * <p>
      * For each message received, call mediator.processReceivedMessage()
+     * <p>
+     * Also answers GET requests to /oecstats with a JSON snapshot of our
+     * metrics (see {@link OecStats}), unless HTTPHandler.Stats=false.
      * @throws IOException
      */
     void start() throws IOException {
@@ -297,7 +526,12 @@ class HttpService {
         InetSocketAddress addr = new InetSocketAddress(port);
         server = HttpServer.create(addr, 0);
         server.createContext("/oecmessage", (HttpHandler) new Handler(mediator));
-        server.setExecutor(Executors.newCachedThreadPool());
+        String stats = Mediator.getProperty("HTTPHandler.Stats");
+        if (stats == null || Boolean.parseBoolean(stats.trim())) {
+            server.createContext("/oecstats", new StatsHandler());
+        }
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
         server.start();
         Mediator.getLogger(HttpService.class.getName()).log(Level.INFO,
                 Mediator.getProperty("Instance.Name") + " "
@@ -311,6 +545,17 @@ class HttpService {
     void stop() {
         final int delaySeconds = 0;
         server.stop(delaySeconds);
+        serverExecutor.shutdown(); // So idle handler threads don't keep the JVM running.
+    }
+
+    /**
+     * Gets the most bytes a received message may have (see HTTPHandler.MaxMessageBytes.)
+     *
+     * @return the maximum message size in bytes.
+     */
+    static int getMaxMessageBytes() {
+        String max = Mediator.getProperty("HTTPHandler.MaxMessageBytes");
+        return (max != null ? Integer.parseInt(max.trim()) : DEFAULT_MAX_MESSAGE_BYTES);
     }
 
     /**
@@ -331,12 +576,13 @@ class HttpService {
          * @throws IOException
          */
         public void handle(HttpExchange exchange) throws IOException {
+            receivedCount.incrementAndGet();
             Message m = new Message();
             /*
              * Unpack the URL.
              */
             URI uri = exchange.getRequestURI();
-            String query = uri.getQuery();
+            String query = uri.getRawQuery(); // (Undecoded, so an encoded '&' or '=' in a value doesn't split it.)
             int id = 0;
             int segment = 0;
             boolean end = false;
@@ -352,6 +598,14 @@ class HttpService {
                     m.setHopCount(Integer.parseInt(pair[1]));
                 } else if (pair[0].equals("tobequeued")) {
                     m.setToBeQueued(Boolean.parseBoolean(pair[1]));
+                } else if (pair[0].equals("priority")) {
+                    m.setPriority(Integer.parseInt(pair[1]));
+                } else if (pair[0].equals("ttl")) {
+                    m.setTimeToLive(Integer.parseInt(pair[1]));
+                } else if (pair[0].equals("coalesce")) {
+                    m.setCoalesceKey(pair[1]);
+                } else if (pair[0].equals("trace")) {
+                    m.setTrace(pair.length > 1 ? URLDecoder.decode(pair[1], "UTF-8") : "");
                 } else if (pair[0].equals("port")) {
                     m.setSendingPort(Integer.parseInt(pair[1]));
                 } else if (pair[0].equals("id")) {
@@ -383,23 +637,45 @@ class HttpService {
                 boolean outOfSequence = false;
                 int bufferSize = 50000; // Default buffer size if no Content-Length header is present.
                 String contentLength = headers.getFirst("Content-Length");
+                int maxMessageBytes = getMaxMessageBytes();
                 if (contentLength != null) {
-                    bufferSize = Integer.parseInt(contentLength);
+                    long length = Long.parseLong(contentLength);
+                    if (length > maxMessageBytes) {
+                        logger.log(Level.SEVERE,
+                                "Dropped {0}-byte post from {1}: more than HTTPHandler.MaxMessageBytes ({2})",
+                                contentLength, sendingIpAddressAndPort, Integer.toString(maxMessageBytes));
+                        exchange.sendResponseHeaders(HTTP_RESPONSE_TOO_LARGE, -1);
+                        exchange.close();
+                        return;
+                    }
+                    bufferSize = (int) length;
                 } else if (hop != null && hop.isLengthRequired()) {
                     responseCode = HTTP_RESPONSE_LENGTH_REQUIRED;
                 }
                 InputStream input = exchange.getRequestBody();
                 byte[] messageBytes = new byte[bufferSize];
-                int messageLength = input.read(messageBytes);
+                /*
+                 * A large message may not all be available at once,
+                 * so read until the buffer is full or there is no more.
+                 */
+                int messageLength = 0;
+                int bytesRead;
+                while (messageLength < bufferSize
+                        && (bytesRead = input.read(messageBytes, messageLength, bufferSize - messageLength)) > 0) {
+                    messageLength += bytesRead;
+                }
                 input.close();
                 String md5Reported = headers.getFirst("Content-MD5");
                 if (md5Reported != null) {
                     String md5Computed = computeMd5(messageBytes, 0, messageLength);
                     if (md5Reported.compareTo(md5Computed) != 0) {
                         responseCode = HTTP_RESPONSE_MD5_MISMATCH;
-                        Logger.getLogger(HttpService.class.getName()).log(Level.FINE,
-                                "MD5 reported as {0}, computed as {1}, length expected {2}, found {3}",
-                                new Object[]{md5Reported, md5Computed, bufferSize, messageLength});
+                        receivedMd5MismatchCount.incrementAndGet();
+                        if (logger.isLoggable(Level.FINE)) {
+                            logger.getLogger().log(Level.FINE,
+                                    "MD5 reported as {0}, computed as {1}, length expected {2}, found {3}",
+                                    new Object[]{md5Reported, md5Computed, bufferSize, messageLength});
+                        }
                     }
                 } else if (hop != null && hop.isMd5Required()) {
                     responseCode = HTTP_RESPONSE_MD5_REQUIRED;
@@ -427,7 +703,13 @@ class HttpService {
                                     byte[] a = Arrays.copyOf(messageBytes, messageLength);
                                     pm.messageSegments.add(a);
                                     pm.length += messageLength;
-                                    if (end) {
+                                    if (pm.length > maxMessageBytes) {
+                                        logger.log(Level.SEVERE,
+                                                "Dropped segmented message {0} from {1}: more than HTTPHandler.MaxMessageBytes ({2})",
+                                                id, sendingIpAddressAndPort, Integer.toString(maxMessageBytes));
+                                        partialMessages.remove(sendingIpAddressAndPort);
+                                        responseCode = HTTP_RESPONSE_TOO_LARGE;
+                                    } else if (end) {
                                         messageLength = pm.length;
                                         messageBytes = new byte[messageLength];
                                         int offset = 0;
@@ -446,21 +728,25 @@ class HttpService {
                                     }
                                 } else {
                                     if (pm.id != id) {
-                                        Logger.getLogger(HttpService.class.getName()).log(Level.FINE,
-                                                "Message id mismatch from {0}. Expected id {1}, found {2}, expected sequence {3}, found {4}",
-                                                new Object[]{sendingIpAddressAndPort, pm.id, id, pm.segment, segment});
+                                        if (logger.isLoggable(Level.FINE)) {
+                                            logger.getLogger().log(Level.FINE,
+                                                    "Message id mismatch from {0}. Expected id {1}, found {2}, expected sequence {3}, found {4}",
+                                                    new Object[]{sendingIpAddressAndPort, pm.id, id, pm.segment, segment});
+                                        }
                                     } else {
-                                        Logger.getLogger(HttpService.class.getName()).log(Level.FINE,
-                                                "Message segment out of sequence from {0}, message id {1}, expected sequence {2}, found {3}",
-                                                new Object[]{sendingIpAddressAndPort, id, pm.segment, segment});
+                                        if (logger.isLoggable(Level.FINE)) {
+                                            logger.getLogger().log(Level.FINE,
+                                                    "Message segment out of sequence from {0}, message id {1}, expected sequence {2}, found {3}",
+                                                    new Object[]{sendingIpAddressAndPort, id, pm.segment, segment});
+                                        }
                                     }
                                     outOfSequence = true;
                                     partialMessages.remove(sendingIpAddressAndPort);
                                 }
                             } else {
-                                Logger.getLogger(HttpService.class.getName()).log(Level.FINE,
+                                logger.log(Level.FINE,
                                         "Received segment from {0}, id {1}, segment {2} but no partial message previously stored.",
-                                        new Object[]{sendingIpAddressAndPort, id, segment});
+                                        sendingIpAddressAndPort, id, segment);
                             }
                         }
                     }
@@ -476,7 +762,10 @@ class HttpService {
                         /*
                          * Process the message.
                          */
-                        mediator.processReceivedMessage(m);
+                        m.addTraceEvent("recv");
+                        if (!mediator.processReceivedMessage(m)) {
+                            responseCode = HTTP_RESPONSE_SERVICE_UNAVAILABLE;
+                        }
                     }
                 }
                 if (!outOfSequence) {
@@ -506,7 +795,49 @@ class HttpService {
     String computeMd5(byte[] bytes, int offset, int length) {
         messageDigest.reset();
         messageDigest.update(bytes, offset, length);
-        byte[] digest = messageDigest.digest();
+        return toHex(messageDigest.digest());
+    }
+
+    /**
+     * Computes the MD5 hash of part of a message that is read a part at a time.
+     *
+     * @param source where to read the message.
+     * @param offset offset of the first byte to hash.
+     * @param length number of bytes to hash.
+     * @return the hash, as 32 hex digits.
+     * @throws IOException if the message can't be read.
+     */
+    private static String computeMd5(CompressedXmlSource source, int offset, int length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("Can't get an instance of the MD5 algorithm", ex);
+        }
+        for (int part = 0; part < length; part += CompressedXmlSource.PART_BYTES) {
+            digest.update(readPart(source, offset + part, Math.min(CompressedXmlSource.PART_BYTES, length - part)));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Reads part of a message that is read a part at a time.
+     *
+     * @param source where to read the message.
+     * @param offset offset of the first byte to read.
+     * @param length number of bytes to read.
+     * @return the bytes.
+     * @throws IOException if the message can't be read.
+     */
+    private static byte[] readPart(CompressedXmlSource source, int offset, int length) throws IOException {
+        byte[] bytes = source.read(offset, length);
+        if (bytes == null) {
+            throw new IOException("Can't read queued message bytes " + offset + " to " + (offset + length));
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] digest) {
         BigInteger bigInt = new BigInteger(1, digest);
         String hashtext = bigInt.toString(16);
         // Now we need to zero pad it to get the full 32 chars.
@@ -515,4 +846,39 @@ class HttpService {
         }
         return hashtext;
     }
+
+    /**
+     * Answers requests for a snapshot of our metrics. Only GET (and HEAD)
+     * are allowed; nothing can be changed through this context.
+     */
+    private class StatsHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                if (!method.equals("GET") && !method.equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                    exchange.sendResponseHeaders(HTTP_RESPONSE_METHOD_NOT_ALLOWED, -1);
+                    return;
+                }
+                byte[] json = OecStats.toJson(mediator).getBytes("UTF-8");
+                Headers responseHeaders = exchange.getResponseHeaders();
+                responseHeaders.set("Content-Type", "application/json; charset=UTF-8");
+                responseHeaders.set("Cache-Control", "no-cache");
+                if (method.equals("HEAD")) {
+                    exchange.sendResponseHeaders(HTTP_RESPONSE_OK, -1);
+                } else {
+                    exchange.sendResponseHeaders(HTTP_RESPONSE_OK, json.length);
+                    OutputStream responseBody = exchange.getResponseBody();
+                    responseBody.write(json);
+                    responseBody.close();
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(HttpService.class.getName()).log(Level.SEVERE, "Can''t report metrics", ex);
+                exchange.sendResponseHeaders(HTTP_RESPONSE_SERVER_ERROR, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
 }
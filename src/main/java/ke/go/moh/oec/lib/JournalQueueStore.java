@@ -0,0 +1,1062 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the store-and-forward queue in an append-only journal of
+ * memory-mapped segment files. This is lighter than the embedded database
+ * for small facility machines: there is no database engine to start, and
+ * adding a message is a copy into mapped memory and a single force to disk.
+ * <p>
+ * The journal is a sequence of segment files in the QUEUEMANAGER_JOURNAL
+ * directory under the runtime directory. Each segment is preallocated to
+ * QueueManager.Journal.SegmentBytes (default 4 MB) and mapped into memory.
+ * Records are appended to the newest segment. Each record has a length,
+ * a CRC-32 of the record body, and the body, which is either:
+ * <p>
+ * ADD - a queued message: message ID, hop count, priority, expiration time,
+ * destination, coalescing key and compressed XML <br>
+ * REMOVE - the message IDs of messages that have been sent
+ * <p>
+ * On open, the segments are read in order to rebuild an in-memory index of
+ * the messages still queued. (Message contents are not kept in memory; they
+ * are read from the mapped segment when needed.) Reading stops at the first
+ * record whose length or CRC is bad, which is what a write interrupted by a
+ * crash looks like.
+ * <p>
+ * A checkpoint file records, for each destination, a read cursor: the message
+ * ID up to which all messages for that destination have been sent. When the
+ * journal is read on open, ADD records at or below the cursor are skipped
+ * without having to find their REMOVE records. The checkpoint is rewritten
+ * whenever segments are deleted, and on close.
+ * <p>
+ * Segments are compacted from the oldest: when none of the oldest segment's
+ * messages are still queued, it is deleted. When at least half of it is no
+ * longer needed, its remaining messages are copied (with the same message IDs)
+ * to the newest segment, and then it is deleted.
+ * <p>
+ * The first time the journal is opened in a runtime directory that has a
+ * QueueManager database, any messages queued in the database are moved to
+ * the journal.
+ */
+class JournalQueueStore implements QueueStore {
+
+    /** Logger for the busy code paths. */
+    private static final CachedLogger logger = CachedLogger.get(JournalQueueStore.class);
+    /** Directory (under the runtime directory) containing the journal. */
+    private static final String JOURNAL_DIRECTORY_NAME = "QUEUEMANAGER_JOURNAL";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+    /** Marker file written once messages have been moved from the QueueManager database. */
+    private static final String MIGRATED_FILE_NAME = "migrated-from-derby";
+    private static final int CHECKPOINT_VERSION = 1;
+    /** ADD record written before messages had a priority and expiration time. (Still read.) */
+    private static final byte RECORD_ADD_WITHOUT_PRIORITY = 1;
+    private static final byte RECORD_REMOVE = 2;
+    /** ADD record written before messages had a coalescing key. (Still read.) */
+    private static final byte RECORD_ADD_WITHOUT_COALESCE_KEY = 3;
+    private static final byte RECORD_ADD = 4;
+    /** Record header: int length of the record body, int CRC-32 of the record body. */
+    private static final int RECORD_HEADER_LENGTH = 8;
+    /** Number of messages to move at a time from the QueueManager database. */
+    private static final int MIGRATION_PAGE_SIZE = 100;
+    /** Default segment size in bytes. */
+    private static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    /** Directory containing the journal. */
+    private final File directory;
+    /** Size of a new segment. (A segment may be larger to hold one large message.) */
+    private final int segmentBytes;
+    /** All the segments, oldest first. The last one is where we append. */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    /** Number to use for the next segment file. */
+    private long nextSegmentNumber = 1;
+    /** Queued messages by message ID. */
+    private final Map<Long, Entry> entriesById = new HashMap<Long, Entry>();
+    /** Queued messages for each destination, in message ID order. */
+    private final Map<String, TreeMap<Long, Entry>> entriesByDestination = new HashMap<String, TreeMap<Long, Entry>>();
+    /** Queued messages for each priority (highest first) and destination, in message ID order. */
+    private final TreeMap<Integer, Map<String, TreeMap<Long, Entry>>> entriesByLane =
+            new TreeMap<Integer, Map<String, TreeMap<Long, Entry>>>(Collections.reverseOrder());
+    /** Number and size of the queued messages for each destination. */
+    private final Map<String, QueueDepth> depths = new HashMap<String, QueueDepth>();
+    /** Total size of the queued messages. */
+    private long byteSize = 0;
+    /** ID of the latest queued message for each destination and coalescing key. */
+    private final Map<String, Long> latestByCoalesceKey = new HashMap<String, Long>();
+    /** Read cursor for each destination: all messages at or below this ID have been sent. */
+    private final Map<String, Long> cursors = new HashMap<String, Long>();
+    /** Highest message ID assigned so far. */
+    private long lastMessageId = 0;
+    /** Segment files we have tried but failed to delete (they may still be mapped.) */
+    private final List<File> undeletedFiles = new ArrayList<File>();
+
+    /**
+     * A journal segment file, mapped into memory.
+     */
+    private static class Segment {
+
+        private long number;
+        private File file;
+        private RandomAccessFile randomAccessFile;
+        private MappedByteBuffer buffer;
+        /** Size of the segment file. */
+        private int capacity;
+        /** Offset at which the next record will be written. */
+        private int writePosition;
+        /** Number of queued messages whose ADD records are in this segment. */
+        private int liveCount;
+        /** Total length of the ADD records (including headers) for those messages. */
+        private int liveBytes;
+    }
+
+    /**
+     * Location and header information for a queued message.
+     */
+    private static class Entry {
+
+        private long messageId;
+        private String destination;
+        private int hopCount;
+        private int priority;
+        private long expires;
+        private String coalesceKey;
+        private Segment segment;
+        /** Length of the whole ADD record, including the record header. */
+        private int recordLength;
+        /** Offset of the compressed XML within the segment. */
+        private int payloadPosition;
+        private int payloadLength;
+    }
+
+    /**
+     * Constructs a journal store in the runtime directory.
+     */
+    JournalQueueStore() {
+        directory = new File(Mediator.getRuntimeDirectory() + JOURNAL_DIRECTORY_NAME);
+        String segmentBytesProperty = Mediator.getProperty("QueueManager.Journal.SegmentBytes");
+        if (segmentBytesProperty != null) {
+            segmentBytes = Integer.parseInt(segmentBytesProperty);
+        } else {
+            segmentBytes = DEFAULT_SEGMENT_BYTES;
+        }
+    }
+
+    /**
+     * Opens the journal: reads the checkpoint, reads all the segments to
+     * find the messages that are still queued, deletes any segments no
+     * longer needed, and moves in any messages from the QueueManager database.
+     *
+     * @return true if the journal is ready for use, otherwise false.
+     */
+    public synchronized boolean open() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logger.getLogger(JournalQueueStore.class.getName()).log(Level.SEVERE,
+                    "Can''t create queue journal directory {0}", directory);
+            return false;
+        }
+        try {
+            readCheckpoint();
+            File[] files = directory.listFiles();
+            Arrays.sort(files);
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    Segment s = mapSegment(f, number, (int) f.length());
+                    segments.add(s);
+                    scanSegment(s);
+                    nextSegmentNumber = number + 1;
+                }
+            }
+            if (segments.isEmpty()) {
+                segments.add(createSegment(segmentBytes));
+            }
+            compact();
+        } catch (IOException ex) {
+            Logger.getLogger(JournalQueueStore.class.getName()).log(Level.SEVERE, "Can't open queue journal " + directory, ex);
+            return false;
+        }
+        logger.log(Level.FINE,
+                "Opened queue journal with {0} segments and {1} queued messages",
+                segments.size(), entriesById.size());
+        migrateFromDerby();
+        return true;
+    }
+
+    /**
+     * Closes the journal, writing a final checkpoint.
+     */
+    public synchronized void close() {
+        try {
+            writeCheckpoint();
+        } catch (IOException ex) {
+            Logger.getLogger(JournalQueueStore.class.getName()).log(Level.SEVERE, "Can't write queue journal checkpoint", ex);
+        }
+        for (Segment s : segments) {
+            s.buffer.force();
+            closeSegment(s);
+        }
+        segments.clear();
+        entriesById.clear();
+        entriesByDestination.clear();
+        entriesByLane.clear();
+        latestByCoalesceKey.clear();
+        depths.clear();
+        byteSize = 0;
+    }
+
+    /**
+     * Appends ADD records for a group of messages, and forces them to disk.
+     * Space for all the records is found (creating new segments if needed)
+     * before any record is written, so a failure leaves nothing behind.
+     * <p>
+     * If any messages are superseded by the new messages (they have the same
+     * destination and coalescing key), a REMOVE record for them is appended
+     * after the ADD records, and forced to disk with them.
+     *
+     * @param messages messages to add.
+     * @return true if the messages were added, otherwise false.
+     */
+    public synchronized boolean add(List<QueuedMessage> messages) {
+        List<Entry> entries = new ArrayList<Entry>(messages.size());
+        List<byte[]> records = new ArrayList<byte[]>(messages.size());
+        long messageId = lastMessageId;
+        for (QueuedMessage q : messages) {
+            Entry e = new Entry();
+            e.messageId = ++messageId;
+            e.destination = q.getDestination();
+            e.hopCount = q.getHopCount();
+            e.priority = q.getPriority();
+            e.expires = q.getExpires();
+            e.coalesceKey = q.getCoalesceKey();
+            e.payloadLength = q.getCompressedXmlLength();
+            entries.add(e);
+            records.add(encodeAdd(e, q.getCompressedXml()));
+        }
+        List<Long> superseded = new ArrayList<Long>();
+        Map<String, Long> latestInGroup = new HashMap<String, Long>();
+        for (Entry e : entries) {
+            if (e.coalesceKey != null) {
+                String key = e.destination + " " + e.coalesceKey;
+                Long previous = latestInGroup.containsKey(key) ? latestInGroup.get(key) : latestByCoalesceKey.get(key);
+                if (previous != null) {
+                    superseded.add(previous);
+                }
+                latestInGroup.put(key, e.messageId);
+            }
+        }
+        if (!superseded.isEmpty()) {
+            records.add(encodeRemove(superseded));
+        }
+        if (!append(records, entries)) {
+            return false;
+        }
+        lastMessageId = messageId;
+        for (int i = 0; i < entries.size(); i++) {
+            messages.get(i).setMessageId(entries.get(i).messageId);
+            index(entries.get(i));
+        }
+        for (long id : superseded) {
+            unindex(id, true);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the priorities of the queued messages.
+     *
+     * @return list of priorities, highest first.
+     */
+    public synchronized List<Integer> getPriorities() {
+        return new ArrayList<Integer>(entriesByLane.keySet());
+    }
+
+    /**
+     * Gets the destinations that have queued messages of a given priority.
+     *
+     * @param priority priority of the messages.
+     * @return list of destination addresses.
+     */
+    public synchronized List<String> getDestinations(int priority) {
+        List<String> destinations = new ArrayList<String>();
+        Map<String, TreeMap<Long, Entry>> lane = entriesByLane.get(priority);
+        if (lane != null) {
+            destinations.addAll(lane.keySet());
+        }
+        return destinations;
+    }
+
+    /**
+     * Reads queued messages for a destination and priority, in message ID order.
+     * The message contents are not read.
+     *
+     * @param destination destination address of the messages to read.
+     * @param priority priority of the messages to read.
+     * @param afterMessageId read messages with IDs greater than this.
+     * @param maxCount maximum number of messages to read.
+     * @return list of up to <code>maxCount</code> messages.
+     */
+    public synchronized List<QueuedMessage> read(String destination, int priority, long afterMessageId, int maxCount) {
+        List<QueuedMessage> page = new ArrayList<QueuedMessage>();
+        Map<String, TreeMap<Long, Entry>> lane = entriesByLane.get(priority);
+        TreeMap<Long, Entry> entries = (lane != null ? lane.get(destination) : null);
+        if (entries != null) {
+            for (Entry e : entries.tailMap(afterMessageId, false).values()) {
+                if (page.size() >= maxCount) {
+                    break;
+                }
+                QueuedMessage q = new QueuedMessage();
+                q.setMessageId(e.messageId);
+                q.setDestination(e.destination);
+                q.setHopCount(e.hopCount);
+                q.setPriority(e.priority);
+                q.setExpires(e.expires);
+                q.setCoalesceKey(e.coalesceKey);
+                q.setCompressedXmlLength(e.payloadLength);
+                page.add(q);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Reads the contents of a queued message from its mapped segment.
+     *
+     * @param message message whose contents to read.
+     * @return the compressed XML, or null if the message is no longer queued.
+     */
+    public synchronized byte[] readCompressedXml(QueuedMessage message) {
+        Entry e = entriesById.get(message.getMessageId());
+        if (e == null) {
+            return null;
+        }
+        byte[] bytes = new byte[e.payloadLength];
+        ByteBuffer b = e.segment.buffer.duplicate();
+        b.position(e.payloadPosition);
+        b.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads part of the contents of a queued message from its mapped segment.
+     *
+     * @param message message whose contents to read.
+     * @param offset offset of the first byte to read.
+     * @param length number of bytes to read.
+     * @return the bytes, or null if the message is no longer queued.
+     */
+    public synchronized byte[] readCompressedXml(QueuedMessage message, int offset, int length) {
+        Entry e = entriesById.get(message.getMessageId());
+        if (e == null || offset < 0 || length < 0 || offset + length > e.payloadLength) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer b = e.segment.buffer.duplicate();
+        b.position(e.payloadPosition + offset);
+        b.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Appends a REMOVE record for messages that have been sent, forces it
+     * to disk, and then compacts the journal if there is anything to reclaim.
+     *
+     * @param messages messages to remove.
+     */
+    public synchronized void remove(List<QueuedMessage> messages) {
+        List<Long> ids = new ArrayList<Long>(messages.size());
+        for (QueuedMessage q : messages) {
+            if (entriesById.containsKey(q.getMessageId())) {
+                ids.add(q.getMessageId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        if (!append(Collections.singletonList(encodeRemove(ids)), null)) {
+            return;
+        }
+        for (long id : ids) {
+            unindex(id, true);
+        }
+        compact();
+    }
+
+    /**
+     * Gets the number of queued messages.
+     *
+     * @return the number of messages.
+     */
+    public synchronized int size() {
+        return entriesById.size();
+    }
+
+    /**
+     * Gets the total size of the queued messages.
+     *
+     * @return total size in bytes of the compressed XML of the messages.
+     */
+    public synchronized long byteSize() {
+        return byteSize;
+    }
+
+    /**
+     * Gets the number and size of the queued messages for each destination.
+     *
+     * @return map from destination address to a copy of its depth.
+     */
+    public synchronized Map<String, QueueDepth> getDepths() {
+        Map<String, QueueDepth> copy = new HashMap<String, QueueDepth>();
+        for (Map.Entry<String, QueueDepth> e : depths.entrySet()) {
+            copy.put(e.getKey(), new QueueDepth(e.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Writes records at the end of the journal and forces them to disk.
+     * If entries are given (one for each of the first records), their
+     * locations are filled in.
+     *
+     * @param records encoded records to write.
+     * @param entries entries for ADD records, or null.
+     * @return true if the records were written, otherwise false.
+     */
+    private boolean append(List<byte[]> records, List<Entry> entries) {
+        // First find where every record will go, creating segments as needed.
+        Segment[] targets = new Segment[records.size()];
+        int[] positions = new int[records.size()];
+        List<Segment> created = new ArrayList<Segment>();
+        Segment target = segments.get(segments.size() - 1);
+        int position = target.writePosition;
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                int length = records.get(i).length;
+                if (position + length > target.capacity) {
+                    target = createSegment(Math.max(segmentBytes, length));
+                    created.add(target);
+                    position = 0;
+                }
+                targets[i] = target;
+                positions[i] = position;
+                position += length;
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(JournalQueueStore.class.getName()).log(Level.SEVERE, "Can't extend queue journal", ex);
+            for (Segment s : created) {
+                closeSegment(s);
+                deleteFile(s.file);
+            }
+            return false;
+        }
+        // Then write the records and force them to disk.
+        segments.addAll(created);
+        Segment forced = null;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] record = records.get(i);
+            ByteBuffer b = targets[i].buffer.duplicate();
+            b.position(positions[i]);
+            b.put(record);
+            targets[i].writePosition = positions[i] + record.length;
+            if (entries != null && i < entries.size()) {
+                Entry e = entries.get(i);
+                e.segment = targets[i];
+                e.recordLength = record.length;
+                e.payloadPosition = positions[i] + record.length - e.payloadLength;
+            }
+            if (forced != null && forced != targets[i]) {
+                forced.buffer.force();
+            }
+            forced = targets[i];
+        }
+        if (forced != null) {
+            forced.buffer.force();
+        }
+        return true;
+    }
+
+    /**
+     * Encodes an ADD record.
+     *
+     * @param e entry with the message header fields and payload length.
+     * @param compressedXml message contents.
+     * @return the encoded record, including header.
+     */
+    private byte[] encodeAdd(Entry e, byte[] compressedXml) {
+        byte[] destination = encodeString(e.destination);
+        byte[] coalesceKey = encodeString(e.coalesceKey);
+        int bodyLength = 1 + 8 + 4 + 4 + 8 + 2 + destination.length + 2 + coalesceKey.length + 4 + e.payloadLength;
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER_LENGTH + bodyLength);
+        b.putInt(bodyLength);
+        b.putInt(0); // CRC, filled in below.
+        b.put(RECORD_ADD);
+        b.putLong(e.messageId);
+        b.putInt(e.hopCount);
+        b.putInt(e.priority);
+        b.putLong(e.expires);
+        b.putShort(e.destination == null ? -1 : (short) destination.length);
+        b.put(destination);
+        b.putShort(e.coalesceKey == null ? -1 : (short) coalesceKey.length);
+        b.put(coalesceKey);
+        b.putInt(e.payloadLength);
+        b.put(compressedXml, 0, e.payloadLength);
+        return sealRecord(b.array());
+    }
+
+    /**
+     * Encodes a REMOVE record.
+     *
+     * @param ids IDs of the messages to remove.
+     * @return the encoded record, including header.
+     */
+    private byte[] encodeRemove(List<Long> ids) {
+        int bodyLength = 1 + 4 + 8 * ids.size();
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER_LENGTH + bodyLength);
+        b.putInt(bodyLength);
+        b.putInt(0); // CRC, filled in below.
+        b.put(RECORD_REMOVE);
+        b.putInt(ids.size());
+        for (long id : ids) {
+            b.putLong(id);
+        }
+        return sealRecord(b.array());
+    }
+
+    /**
+     * Fills in the CRC of an encoded record.
+     *
+     * @param record the record, with a zero CRC.
+     * @return the same record, with the CRC filled in.
+     */
+    private byte[] sealRecord(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_LENGTH, record.length - RECORD_HEADER_LENGTH);
+        ByteBuffer.wrap(record).putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Reads all the records in a segment, adding queued messages to the
+     * index and removing sent messages from it. Stops at the first record
+     * that has a bad length or CRC, and clears the rest of the segment so
+     * that new records can be appended in its place.
+     *
+     * @param s segment to scan.
+     */
+    private void scanSegment(Segment s) {
+        ByteBuffer b = s.buffer.duplicate();
+        int position = 0;
+        while (position + RECORD_HEADER_LENGTH <= s.capacity) {
+            int bodyLength = b.getInt(position);
+            if (bodyLength == 0) {
+                break; // End of the records written to this segment.
+            }
+            int bodyPosition = position + RECORD_HEADER_LENGTH;
+            if (bodyLength < 0 || bodyPosition + bodyLength > s.capacity
+                    || !crcMatches(b, bodyPosition, bodyLength, b.getInt(position + 4))) {
+                Logger.getLogger(JournalQueueStore.class.getName()).log(Level.WARNING,
+                        "Queue journal segment {0} has a damaged record at offset {1}. Ignoring the rest of the segment.",
+                        new Object[]{s.file.getName(), position});
+                for (int i = position; i < s.capacity; i++) {
+                    b.put(i, (byte) 0);
+                }
+                s.buffer.force();
+                break;
+            }
+            b.position(bodyPosition);
+            byte type = b.get();
+            if (type == RECORD_ADD || type == RECORD_ADD_WITHOUT_COALESCE_KEY || type == RECORD_ADD_WITHOUT_PRIORITY) {
+                Entry e = new Entry();
+                e.messageId = b.getLong();
+                e.hopCount = b.getInt();
+                if (type != RECORD_ADD_WITHOUT_PRIORITY) {
+                    e.priority = b.getInt();
+                    e.expires = b.getLong();
+                } else {
+                    e.priority = QueueManager.DEFAULT_PRIORITY;
+                }
+                short destinationLength = b.getShort();
+                if (destinationLength >= 0) {
+                    byte[] destination = new byte[destinationLength];
+                    b.get(destination);
+                    e.destination = decodeString(destination);
+                }
+                if (type == RECORD_ADD) {
+                    short coalesceKeyLength = b.getShort();
+                    if (coalesceKeyLength >= 0) {
+                        byte[] coalesceKey = new byte[coalesceKeyLength];
+                        b.get(coalesceKey);
+                        e.coalesceKey = decodeString(coalesceKey);
+                    }
+                }
+                e.payloadLength = b.getInt();
+                e.payloadPosition = b.position();
+                e.segment = s;
+                e.recordLength = RECORD_HEADER_LENGTH + bodyLength;
+                lastMessageId = Math.max(lastMessageId, e.messageId);
+                Long cursor = cursors.get(e.destination);
+                if (cursor == null || e.messageId > cursor) {
+                    Entry original = entriesById.get(e.messageId);
+                    if (original != null) {
+                        relocate(original, e); // A copy made by compaction replaces the original.
+                    } else {
+                        index(e);
+                    }
+                }
+            } else if (type == RECORD_REMOVE) {
+                int count = b.getInt();
+                for (int i = 0; i < count; i++) {
+                    long id = b.getLong();
+                    if (entriesById.containsKey(id)) {
+                        unindex(id, false);
+                    }
+                }
+            }
+            position = bodyPosition + bodyLength;
+        }
+        s.writePosition = position;
+    }
+
+    /**
+     * Tests the CRC of a record body.
+     */
+    private boolean crcMatches(ByteBuffer b, int position, int length, int expectedCrc) {
+        byte[] body = new byte[length];
+        ByteBuffer d = b.duplicate();
+        d.position(position);
+        d.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == expectedCrc;
+    }
+
+    /**
+     * Adds an entry to the index of queued messages.
+     */
+    private void index(Entry e) {
+        entriesById.put(e.messageId, e);
+        TreeMap<Long, Entry> entries = entriesByDestination.get(e.destination);
+        if (entries == null) {
+            entries = new TreeMap<Long, Entry>();
+            entriesByDestination.put(e.destination, entries);
+        }
+        entries.put(e.messageId, e);
+        Map<String, TreeMap<Long, Entry>> lane = entriesByLane.get(e.priority);
+        if (lane == null) {
+            lane = new HashMap<String, TreeMap<Long, Entry>>();
+            entriesByLane.put(e.priority, lane);
+        }
+        TreeMap<Long, Entry> laneEntries = lane.get(e.destination);
+        if (laneEntries == null) {
+            laneEntries = new TreeMap<Long, Entry>();
+            lane.put(e.destination, laneEntries);
+        }
+        laneEntries.put(e.messageId, e);
+        if (e.coalesceKey != null) {
+            latestByCoalesceKey.put(e.destination + " " + e.coalesceKey, e.messageId);
+        }
+        QueueDepth depth = depths.get(e.destination);
+        if (depth == null) {
+            depth = new QueueDepth();
+            depths.put(e.destination, depth);
+        }
+        depth.add(1, e.payloadLength);
+        byteSize += e.payloadLength;
+        e.segment.liveCount++;
+        e.segment.liveBytes += e.recordLength;
+    }
+
+    /**
+     * Removes an entry from the index of queued messages, and (unless we are
+     * reading the journal on open) advances the read cursor for its destination.
+     * <p>
+     * While the journal is being read, the index does not yet hold messages
+     * from later segments (such as copies made by compaction), so the lowest
+     * queued message ID is not known and the cursor must be left alone.
+     *
+     * @param messageId ID of the message to remove.
+     * @param advanceCursor true to advance the read cursor.
+     */
+    private void unindex(long messageId, boolean advanceCursor) {
+        Entry e = entriesById.remove(messageId);
+        TreeMap<Long, Entry> entries = entriesByDestination.get(e.destination);
+        entries.remove(messageId);
+        long cursor;
+        if (entries.isEmpty()) {
+            entriesByDestination.remove(e.destination);
+            depths.remove(e.destination);
+            cursor = messageId;
+        } else {
+            depths.get(e.destination).add(-1, -e.payloadLength);
+            cursor = entries.firstKey() - 1;
+        }
+        byteSize -= e.payloadLength;
+        Long oldCursor = cursors.get(e.destination);
+        if (advanceCursor && (oldCursor == null || cursor > oldCursor)) {
+            cursors.put(e.destination, cursor);
+        }
+        if (e.coalesceKey != null) {
+            String key = e.destination + " " + e.coalesceKey;
+            Long latest = latestByCoalesceKey.get(key);
+            if (latest != null && latest == messageId) {
+                latestByCoalesceKey.remove(key);
+            }
+        }
+        Map<String, TreeMap<Long, Entry>> lane = entriesByLane.get(e.priority);
+        TreeMap<Long, Entry> laneEntries = lane.get(e.destination);
+        laneEntries.remove(messageId);
+        if (laneEntries.isEmpty()) {
+            lane.remove(e.destination);
+            if (lane.isEmpty()) {
+                entriesByLane.remove(e.priority);
+            }
+        }
+        e.segment.liveCount--;
+        e.segment.liveBytes -= e.recordLength;
+    }
+
+    /**
+     * Moves a queued message to the location of its copy (made by compaction),
+     * leaving everything else in the index as it is.
+     *
+     * @param e index entry of the queued message.
+     * @param copy entry giving the location of the copy.
+     */
+    private void relocate(Entry e, Entry copy) {
+        e.segment.liveCount--;
+        e.segment.liveBytes -= e.recordLength;
+        e.segment = copy.segment;
+        e.recordLength = copy.recordLength;
+        e.payloadPosition = copy.payloadPosition;
+        e.segment.liveCount++;
+        e.segment.liveBytes += e.recordLength;
+    }
+
+    /**
+     * Deletes or compacts segments from the oldest, as long as there is
+     * space to be reclaimed. The newest segment is never deleted.
+     */
+    private void compact() {
+        boolean deleted = false;
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (oldest.liveCount > 0) {
+                if (oldest.liveBytes * 2 > oldest.writePosition) {
+                    break; // Most of the oldest segment is still needed.
+                }
+                if (!copyForward(oldest)) {
+                    break;
+                }
+            }
+            segments.remove(0);
+            closeSegment(oldest);
+            deleteFile(oldest.file);
+            deleted = true;
+        }
+        if (deleted) {
+            try {
+                writeCheckpoint();
+            } catch (IOException ex) {
+                Logger.getLogger(JournalQueueStore.class.getName()).log(Level.WARNING, "Can't write queue journal checkpoint", ex);
+            }
+        }
+        for (Iterator<File> it = undeletedFiles.iterator(); it.hasNext();) {
+            if (it.next().delete()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Copies the queued messages in a segment to the end of the journal,
+     * keeping their message IDs.
+     *
+     * @param s the segment to copy from.
+     * @return true if the messages were copied, otherwise false.
+     */
+    private boolean copyForward(Segment s) {
+        List<Entry> oldEntries = new ArrayList<Entry>();
+        for (Entry e : entriesById.values()) {
+            if (e.segment == s) {
+                oldEntries.add(e);
+            }
+        }
+        Collections.sort(oldEntries, new java.util.Comparator<Entry>() {
+
+            public int compare(Entry a, Entry b) {
+                return a.messageId < b.messageId ? -1 : (a.messageId == b.messageId ? 0 : 1);
+            }
+        });
+        List<Entry> newEntries = new ArrayList<Entry>(oldEntries.size());
+        List<byte[]> records = new ArrayList<byte[]>(oldEntries.size());
+        for (Entry old : oldEntries) {
+            Entry e = new Entry();
+            e.messageId = old.messageId;
+            e.destination = old.destination;
+            e.hopCount = old.hopCount;
+            e.priority = old.priority;
+            e.expires = old.expires;
+            e.coalesceKey = old.coalesceKey;
+            e.payloadLength = old.payloadLength;
+            byte[] bytes = new byte[old.payloadLength];
+            ByteBuffer b = s.buffer.duplicate();
+            b.position(old.payloadPosition);
+            b.get(bytes);
+            newEntries.add(e);
+            records.add(encodeAdd(e, bytes));
+        }
+        if (!append(records, newEntries)) {
+            return false;
+        }
+        for (Entry e : newEntries) {
+            relocate(entriesById.get(e.messageId), e);
+        }
+        logger.log(Level.FINER,
+                "Compacted queue journal segment {0}, copying {1} queued messages",
+                s.file.getName(), newEntries.size());
+        return true;
+    }
+
+    /**
+     * Creates and maps a new segment file.
+     *
+     * @param capacity size of the segment.
+     * @return the new segment.
+     * @throws IOException if the file can't be created.
+     */
+    private Segment createSegment(int capacity) throws IOException {
+        long number = nextSegmentNumber++;
+        File f = new File(directory, SEGMENT_PREFIX + String.format("%016d", number) + SEGMENT_SUFFIX);
+        return mapSegment(f, number, capacity);
+    }
+
+    /**
+     * Maps a segment file into memory, creating or extending it if needed.
+     */
+    private Segment mapSegment(File f, long number, int capacity) throws IOException {
+        Segment s = new Segment();
+        s.number = number;
+        s.file = f;
+        s.capacity = capacity;
+        s.randomAccessFile = new RandomAccessFile(f, "rw");
+        try {
+            if (s.randomAccessFile.length() < capacity) {
+                s.randomAccessFile.setLength(capacity);
+            }
+            s.buffer = s.randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException ex) {
+            s.randomAccessFile.close();
+            throw ex;
+        }
+        return s;
+    }
+
+    /**
+     * Closes a segment file. (The mapping itself is released when the
+     * buffer is garbage collected.)
+     */
+    private void closeSegment(Segment s) {
+        try {
+            s.randomAccessFile.close();
+        } catch (IOException ex) {
+            Logger.getLogger(JournalQueueStore.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Deletes a file. If it can't be deleted now (some systems won't delete
+     * a file that is still mapped), we try again later.
+     */
+    private void deleteFile(File f) {
+        if (!f.delete() && f.exists()) {
+            undeletedFiles.add(f);
+        }
+    }
+
+    /**
+     * Reads the checkpoint file (if any): the highest message ID assigned,
+     * and the read cursor for each destination.
+     */
+    private void readCheckpoint() throws IOException {
+        File f = new File(directory, CHECKPOINT_FILE_NAME);
+        if (!f.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            int version = in.readInt();
+            if (version != CHECKPOINT_VERSION) {
+                Logger.getLogger(JournalQueueStore.class.getName()).log(Level.WARNING,
+                        "Ignoring queue journal checkpoint version {0}", version);
+                return;
+            }
+            lastMessageId = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String destination = in.readBoolean() ? in.readUTF() : null;
+                cursors.put(destination, in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the checkpoint file. The checkpoint is written to a temporary
+     * file, forced to disk, and then moved into place.
+     */
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(directory, CHECKPOINT_FILE_NAME + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(fos);
+        try {
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(lastMessageId);
+            out.writeInt(cursors.size());
+            for (Map.Entry<String, Long> c : cursors.entrySet()) {
+                out.writeBoolean(c.getKey() != null);
+                if (c.getKey() != null) {
+                    out.writeUTF(c.getKey());
+                }
+                out.writeLong(c.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        File f = new File(directory, CHECKPOINT_FILE_NAME);
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Moves any messages from the QueueManager database into the journal,
+     * the first time the journal is used in a runtime directory that has one.
+     * Messages are removed from the database after they are safely in the
+     * journal.
+     */
+    private void migrateFromDerby() {
+        File marker = new File(directory, MIGRATED_FILE_NAME);
+        if (marker.exists() || !DerbyQueueStore.exists()) {
+            return;
+        }
+        DerbyQueueStore derby = new DerbyQueueStore();
+        if (!derby.open()) {
+            return;
+        }
+        int migrated = 0;
+        boolean complete = true;
+        for (int priority : derby.getPriorities()) {
+            for (String destination : derby.getDestinations(priority)) {
+                long lastId = 0;
+                List<QueuedMessage> page;
+                while (complete && !(page = derby.read(destination, priority, lastId, MIGRATION_PAGE_SIZE)).isEmpty()) {
+                    List<QueuedMessage> moved = new ArrayList<QueuedMessage>(page.size());
+                    for (QueuedMessage q : page) {
+                        QueuedMessage m = new QueuedMessage(); // (add() sets its new message ID.)
+                        m.setDestination(q.getDestination());
+                        m.setCompressedXml(derby.readCompressedXml(q));
+                        m.setCompressedXmlLength(q.getCompressedXmlLength());
+                        m.setHopCount(q.getHopCount());
+                        m.setPriority(q.getPriority());
+                        m.setExpires(q.getExpires());
+                        m.setCoalesceKey(q.getCoalesceKey());
+                        if (m.getCompressedXml() == null) {
+                            complete = false;
+                        }
+                        moved.add(m);
+                    }
+                    if (complete && add(moved)) {
+                        derby.remove(page);
+                        migrated += page.size();
+                        lastId = page.get(page.size() - 1).getMessageId();
+                    } else {
+                        complete = false;
+                    }
+                }
+            }
+        }
+        derby.close();
+        if (complete) {
+            try {
+                marker.createNewFile();
+            } catch (IOException ex) {
+                Logger.getLogger(JournalQueueStore.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        Logger.getLogger(JournalQueueStore.class.getName()).log(Level.INFO,
+                "Moved {0} queued messages from the QueueManager database to the queue journal", migrated);
+    }
+
+    private static byte[] encodeString(String s) {
+        if (s == null) {
+            return new byte[0];
+        }
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex); // (UTF-8 is always supported.)
+        }
+    }
+
+    private static String decodeString(byte[] b) {
+        try {
+            return new String(b, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex); // (UTF-8 is always supported.)
+        }
+    }
+}
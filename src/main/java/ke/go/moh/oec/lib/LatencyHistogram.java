@@ -0,0 +1,128 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took, in buckets of doubling size, so that
+ * latency percentiles can be estimated without keeping every sample.
+ * <p>
+ * Bucket 0 counts times under 1 microsecond; bucket <i>n</i> counts times
+ * from 2<sup><i>n</i>-1</sup> up to 2<sup><i>n</i></sup> microseconds.
+ * The last bucket also counts anything longer. Recording a time is a few
+ * atomic increments, without locking, so it can be done on busy paths.
+ * Percentiles are reported as the upper bound of the bucket they fall in,
+ * so they may be up to twice the actual time.
+ */
+final class LatencyHistogram {
+
+    /** Number of buckets: the last one starts at about 18 minutes. */
+    private static final int BUCKET_COUNT = 32;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records one time.
+     *
+     * @param nanos time taken, in nanoseconds (as from System.nanoTime().)
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = 64 - Long.numberOfLeadingZeros(micros); // 0 for 0, 1 for 1, 2 for 2-3, ...
+        buckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Records the time since a start time.
+     *
+     * @param startNanos start time, from System.nanoTime().
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the average time.
+     *
+     * @return average time in milliseconds, or 0 if nothing was recorded.
+     */
+    double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    /**
+     * Gets the longest time.
+     *
+     * @return longest time in milliseconds.
+     */
+    double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * Estimates a percentile of the times recorded.
+     *
+     * @param percentile percentile wanted, from 0 to 100.
+     * @return upper bound of the bucket holding the percentile, in milliseconds
+     * (but no more than the longest time), or 0 if nothing was recorded.
+     */
+    double getPercentileMillis(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        int i = 0;
+        for (; i < BUCKET_COUNT - 1; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                break;
+            }
+        }
+        long upperMicros = (i == 0 ? 1 : 1L << i);
+        return Math.min(upperMicros, maxMicros.get()) / 1000.0;
+    }
+}
@@ -24,7 +24,14 @@
  * ***** END LICENSE BLOCK ***** */
 package ke.go.moh.oec.lib;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -37,72 +44,258 @@ import ke.go.moh.oec.RequestTypeId;
  * java.util.logging.Handler to provide a custom handler within OpenEMRConnect.
  * Any messages logged by an OEC application of levels INFO, WARNING and ERROR
  * will be sent to the OEC Logging Server.
+ * <p>
+ * Log records are not sent from the thread that logs them. Instead they
+ * are put in a bounded buffer, and a background thread sends them to the
+ * Logging Server in batches, one LOG_ENTRY_BATCH message per interval.
+ * This way logging never waits for the network. If the buffer is full,
+ * the record is dropped and counted rather than blocking the caller.
+ * The next batch then includes a warning that gives the number of
+ * records dropped and a sample of one of them.
+ * <p>
+ * The following properties may be set:
+ * <p>
+ * LoggingService.BufferSize - maximum number of records waiting to be
+ * sent (default 1000).
+ * <p>
+ * LoggingService.IntervalMillis - how long to collect records before
+ * sending them (default 1000).
+ * <p>
+ * LoggingService.MaxBatch - maximum number of records in one message
+ * (default 500).
  * 
  * @author Jim Grace
  */
 public class LoggingServiceHandler extends Handler {
 
+    /** Default maximum number of records waiting to be sent. */
+    private static final int DEFAULT_BUFFER_SIZE = 1000;
+    /** Default time to collect records before sending, in milliseconds. */
+    private static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    /** Default maximum number of records in one message. */
+    private static final int DEFAULT_MAX_BATCH = 500;
+    /**
+     * True while this thread is sending records to the Logging Server,
+     * or otherwise must not log through us.
+     */
+    private static final ThreadLocal<Boolean> busy = new ThreadLocal<Boolean>();
     Mediator mediator;
+    /** Records waiting to be sent. */
+    private final BlockingQueue<LogEntry> buffer;
+    /** Time to collect records before sending, in milliseconds. */
+    private final long intervalMillis;
+    /** Maximum number of records in one message. */
+    private final int maxBatch;
+    /** Number of records dropped since the last batch was sent. */
+    private final AtomicLong droppedSinceLastBatch = new AtomicLong();
+    /** Total number of records dropped because the buffer was full. */
+    private final AtomicLong droppedCount = new AtomicLong();
+    /** Total number of records sent to the Logging Server. */
+    private final AtomicLong shippedCount = new AtomicLong();
+    /** The first record dropped since the last batch was sent. */
+    private final AtomicReference<LogEntry> droppedSample = new AtomicReference<LogEntry>();
+    /** Thread that sends the records. */
+    private final Thread worker;
+    /** Set when the handler is closed. */
+    private volatile boolean closed = false;
 
     LoggingServiceHandler(Mediator mediator) {
         this.mediator = mediator;
+        buffer = new ArrayBlockingQueue<LogEntry>(intProperty("LoggingService.BufferSize", DEFAULT_BUFFER_SIZE));
+        intervalMillis = intProperty("LoggingService.IntervalMillis", (int) DEFAULT_INTERVAL_MILLIS);
+        maxBatch = intProperty("LoggingService.MaxBatch", DEFAULT_MAX_BATCH);
+        worker = new Thread(new Runnable() {
+
+            public void run() {
+                busy.set(Boolean.TRUE); // Nothing logged while sending goes back to the Logging Server.
+                ship();
+            }
+        }, "LoggingService");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Gets an integer property, using a default if the property is
+     * missing or not valid.
+     *
+     * @param name property name
+     * @param defaultValue value to use if the property is missing or not valid
+     * @return the property value
+     */
+    private static int intProperty(String name, int defaultValue) {
+        String value = Mediator.getProperty(name);
+        if (value != null) {
+            try {
+                int i = Integer.parseInt(value.trim());
+                if (i > 0) {
+                    return i;
+                }
+            } catch (NumberFormatException ex) {
+                // Fall through to use the default.
+            }
+        }
+        return defaultValue;
     }
 
     /**
      * Publishes a LogRecord.
      * <p>
      * The logging request was made initially to a Logger object, which initialized the LogRecord and forwarded it here.
-     * We send the record off to the Logging Server (if it is important enough.)
+     * We put the record in the buffer to be sent to the Logging Server (if it is important enough.)
      * <p>
      * Programming note: we want to avoid recursion if anything is logged while we are sending
-     * the log record to the Logging Server. In that case, we don't want to try
-     * sending this message to the Logging Server also (stack overflow!)
-     * To prevent recursion, we look at the stack to see if we are on it.
-     * More precisely, we start from the third element of the stack -- because
-     * the first element is always from the Thread.getStackTrace() method, and
-     * the second elements is always from us, as the caller of Thread.getStackTrace().
-     * But if we appear again at a higher level of the stack trace, that means
-     * that we have called ourselves recursively. If this happens we will not
-     * try to send the message to the Logging Server.
+     * log records to the Logging Server. In that case, we don't want to try
+     * sending this message to the Logging Server also (the failure would be
+     * logged again, and so on forever.) The thread that sends the records
+     * marks itself busy, and we ignore any records it logs.
      * 
      * @param record description of the log event
      */
     @Override
     public void publish(LogRecord record) {
-        if (isLoggable(record) && record.getLevel().intValue() >= Level.INFO.intValue()) {
-            StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-            for (int i = 2; i < stackTrace.length; i++) {
-                StackTraceElement e = stackTrace[i];
-                if (e.getClassName().equals(LoggingServiceHandler.class.getName())) {
-                    return; // Return doing nothing -- don't recurse sending a message that our own message sending failed!
+        if (isLoggable(record) && record.getLevel().intValue() >= Level.INFO.intValue()
+                && busy.get() == null && !closed) {
+            busy.set(Boolean.TRUE);
+            try {
+                Formatter formatter = getFormatter();
+                String message = formatter.format(record);
+                LogEntry le = new LogEntry();
+                le.setDateTime(new Date());
+                le.setSeverity(record.getLevel().getName());
+                le.setClassName(record.getSourceClassName());
+                le.setMessage(message);
+                if (!buffer.offer(le)) {
+                    droppedCount.incrementAndGet();
+                    if (droppedSinceLastBatch.getAndIncrement() == 0) {
+                        droppedSample.set(le);
+                    }
                 }
+            } finally {
+                busy.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends buffered records to the Logging Server until the handler is closed.
+     * Waits for a record, then collects records for the batch interval
+     * and sends them.
+     */
+    private void ship() {
+        while (!closed) {
+            LogEntry first = null;
+            try {
+                first = buffer.poll(intervalMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    Thread.sleep(intervalMillis);
+                }
+            } catch (InterruptedException ex) {
+                // Closing. Send what we have, then fall out of the loop.
+            }
+            if (first != null) {
+                List<LogEntry> batch = new ArrayList<LogEntry>();
+                batch.add(first);
+                sendBatch(batch);
+            }
+        }
+    }
+
+    /**
+     * Adds waiting records to a batch and sends it, repeating until
+     * the buffer is empty.
+     *
+     * @param batch records already taken from the buffer to send first
+     */
+    private synchronized void sendBatch(List<LogEntry> batch) {
+        do {
+            buffer.drainTo(batch, maxBatch - batch.size());
+            long dropped = droppedSinceLastBatch.getAndSet(0);
+            if (dropped > 0) {
+                batch.add(droppedWarning(dropped, droppedSample.getAndSet(null)));
+            }
+            if (batch.isEmpty()) {
+                return;
             }
-            Formatter formatter = getFormatter();
-            String message = formatter.format(record);
-            LogEntry le = new LogEntry();
-            le.setDateTime(new Date());
-            le.setSeverity(record.getLevel().getName());
-            le.setClassName(record.getSourceClassName());
-            le.setMessage(message);
-            mediator.getData(RequestTypeId.LOG_ENTRY, le);
+            mediator.getData(RequestTypeId.LOG_ENTRY_BATCH, batch);
+            shippedCount.addAndGet(batch.size());
+            batch = new ArrayList<LogEntry>();
+        } while (!buffer.isEmpty());
+    }
+
+    /**
+     * Makes a log entry warning that records were dropped.
+     *
+     * @param dropped how many records were dropped
+     * @param sample one of the dropped records, or null if we don't have one
+     * @return the warning log entry
+     */
+    private LogEntry droppedWarning(long dropped, LogEntry sample) {
+        LogEntry le = new LogEntry();
+        le.setDateTime(new Date());
+        le.setSeverity(Level.WARNING.getName());
+        le.setClassName(LoggingServiceHandler.class.getName());
+        String message = dropped + " log records dropped because the logging buffer was full.";
+        if (sample != null) {
+            message += " Sample: " + sample.getSeverity() + " " + sample.getClassName() + " " + sample.getMessage();
         }
+        le.setMessage(message);
+        return le;
+    }
+
+    /**
+     * Gets the number of log records dropped because the buffer was full.
+     *
+     * @return number of log records dropped
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Gets the number of log records sent to the Logging Server.
+     *
+     * @return number of log records sent
+     */
+    public long getShippedCount() {
+        return shippedCount.get();
     }
 
     /**
      * Flushes any buffered output.
+     * Sends any records waiting in the buffer to the Logging Server.
      */
     @Override
     public void flush() {
-        // Nothing needs to be done here.
+        if (busy.get() != null) {
+            return; // Don't send records from a thread that is already sending them.
+        }
+        busy.set(Boolean.TRUE);
+        try {
+            sendBatch(new ArrayList<LogEntry>());
+        } finally {
+            busy.remove();
+        }
     }
 
     /**
      * Closes the Handler and free all associated resources.
+     * Stops the background thread and sends any records still in the buffer.
      * 
      * @throws SecurityException 
      */
     @Override
     public void close() throws SecurityException {
-        // Nothing needs to be done here.
+        if (closed) {
+            return;
+        }
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join(intervalMillis + 1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
     }
 }
@@ -26,23 +26,33 @@ package ke.go.moh.oec.lib;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.Handler;
 import java.util.logging.LogManager;
 import ke.go.moh.oec.IService;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Date;
 import java.util.Properties;
 import java.util.logging.FileHandler;
 import java.util.logging.Formatter;
 import java.util.logging.SimpleFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import ke.go.moh.oec.IngestListener;
+import ke.go.moh.oec.IngestResult;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonBatchRequest;
+import ke.go.moh.oec.PersonBatchResponse;
 import ke.go.moh.oec.PersonRequest;
 import ke.go.moh.oec.PersonResponse;
+import ke.go.moh.oec.QueueStatus;
 
 /**
  * Mediator between OEC clients and services to forward requests
@@ -76,11 +86,8 @@ public class Mediator implements IService {
      * an error reported.
      */
     private static final int MAX_HOP_COUNT = 4;
-    /**
-     * The number of protocol message IDs generated since this library
-     * was initialized. The sequence number forms part of the message ID.
-     */
-    private static int messageSequenceNumber = 0;
+    /** Generates protocol message IDs. */
+    private static final MessageIdGenerator messageIdGenerator = new MessageIdGenerator();
     /**
      * The queue of messages we have sent, for which we expect a response.
      */
@@ -105,6 +112,26 @@ public class Mediator implements IService {
     private QueueManager queueManager;
     /** Instance to pack and unpack XML */
     private XmlPacker xmlPacker;
+    /** Runs the user's callback routine for unsolicited messages. */
+    private CallbackExecutor callbackExecutor;
+    /** Shares one response among identical find person requests in progress. */
+    private final SingleFlight<Object> findPersonFlights = new SingleFlight<Object>();
+    /** Recent responses to find person requests. */
+    private FindPersonCache findPersonCache;
+    /** Number of messages we sent as requests or responses. */
+    private final AtomicLong sentMessageCount = new AtomicLong();
+    /** Number of requests whose response did not come (or could not be sent.) */
+    private final AtomicLong noResponseCount = new AtomicLong();
+    /** Number of messages received by HTTP (for us or to relay.) */
+    private final AtomicLong receivedMessageCount = new AtomicLong();
+    /** Number of received messages relayed to another hop. */
+    private final AtomicLong relayedMessageCount = new AtomicLong();
+    /** Time from sending a request to receiving its response. */
+    private final LatencyHistogram responseLatency = new LatencyHistogram();
+    /** Completed traces of messages sent to us. */
+    private TraceBuffer traceBuffer;
+    /** Our JMX MBeans, or null if not registered. */
+    private MetricsMBeans metricsMBeans = null;
     /**
      * Reference to our caller's callbackObject that implements
      * {@link IService#getData(int, java.lang.Object)}.
@@ -112,12 +139,25 @@ public class Mediator implements IService {
     static private IService myCallbackObject = null;
     /**
      * A copy of the properties from standard file location
+     * (replaced as a whole when the properties file is reloaded.)
      */
-    static Properties properties = null;
+    static volatile Properties properties = null;
+    /** Name of the properties file. */
+    private static final String PROPERTIES_FILE_NAME = "openemrconnect.properties";
+    /** Properties file we loaded, or null if the properties came from a resource. */
+    static volatile File propertiesFile = null;
+    /** Watches for changes to the properties file, or null if not watching. */
+    private PropertiesWatcher propertiesWatcher = null;
+    /** Handler that sends log records to the Logging Server, if we use it. */
+    private LoggingServiceHandler loggingServiceHandler = null;
     /** Lock the properties file we are using, so multiple instances will use multiple properties files. */
     static FileLock pathLock = null;
+    /** Logger for the busy message paths. */
+    private static final CachedLogger logger = CachedLogger.get(Mediator.class);
     /** The logger level to use, configured from the properties file. */
-    static Level loggerLevel = null;
+    static volatile Level loggerLevel = null;
+    /** Integer value of the logging level, for quick level tests. */
+    private static volatile int loggerLevelValue = Level.INFO.intValue();
     /** Should we use the logging service? */
     static boolean useLoggingService = true;
     /** Directory where we find our properties and QueueManager embedded database. */
@@ -148,7 +188,7 @@ public class Mediator implements IService {
         LogManager man = LogManager.getLogManager();
         Logger rootLogger = man.getLogger("");
         if (useLoggingService) {
-            Handler loggingServiceHandler = new LoggingServiceHandler(this);
+            loggingServiceHandler = new LoggingServiceHandler(this);
             Formatter formatter = new SimpleFormatter();
             loggingServiceHandler.setFormatter(formatter);
             rootLogger.addHandler(loggingServiceHandler);
@@ -171,12 +211,21 @@ public class Mediator implements IService {
         httpService = new HttpService(this);
         queueManager = new QueueManager(httpService);
         xmlPacker = new XmlPacker();
+        callbackExecutor = new CallbackExecutor();
+        findPersonCache = new FindPersonCache();
+        traceBuffer = new TraceBuffer();
         try {
             httpService.start();
         } catch (IOException ex) {
             Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE, null, ex);
         }
         queueManager.start();
+        metricsMBeans = MetricsMBeans.register(this);
+        String hotReload = getProperty("Properties.HotReload");
+        if (propertiesFile != null && (hotReload == null || Boolean.parseBoolean(hotReload.trim()))) {
+            propertiesWatcher = new PropertiesWatcher(this, propertiesFile);
+            propertiesWatcher.start();
+        }
         Logger.getLogger(Mediator.class.getName()).log(Level.FINE,
                 "{0} started.", getProperty("Instance.Name"));
     }
@@ -242,8 +291,32 @@ public class Mediator implements IService {
      */
     public void stop() {
         Logger.getLogger(Mediator.class.getName()).log(Level.INFO, "OpenEMRConnect library services stopped.");
+        if (propertiesWatcher != null) {
+            propertiesWatcher.stop();
+        }
+        if (metricsMBeans != null) {
+            metricsMBeans.unregister();
+        }
+        if (loggingServiceHandler != null) {
+            LogManager.getLogManager().getLogger("").removeHandler(loggingServiceHandler);
+            loggingServiceHandler.close();
+        }
         queueManager.stop();
         httpService.stop();
+        callbackExecutor.shutdown();
+    }
+
+    /**
+     * Gets the current state of the store-and-forward queue.
+     * <p>
+     * Clients that send a lot of messages (such as bulk loads) can check
+     * the queue status and slow down when the queue is getting full,
+     * before messages are rejected or dropped by the queue overflow policy.
+     *
+     * @return the queue status.
+     */
+    public QueueStatus getQueueStatus() {
+        return queueManager.getStatus();
     }
 
     /**
@@ -279,6 +352,7 @@ public class Mediator implements IService {
                     rootHandler.setLevel(loggerLevel);
                 }
             }
+            loggerLevelValue = loggerLevel.intValue();
         }
     }
 
@@ -295,28 +369,32 @@ public class Mediator implements IService {
      * @return true if this Level would be logged, otherwise false.
      */
     public static boolean testLoggerLevel(Level testLevel) {
-        boolean returnValue;
-        if (loggerLevel == null) {
-            returnValue = Level.INFO.intValue() <= testLevel.intValue();
-        } else {
-            returnValue = loggerLevel.intValue() <= testLevel.intValue();
-        }
-        return returnValue;
+        return loggerLevelValue <= testLevel.intValue();
+    }
+
+    /**
+     * Gets the logging level set from the properties file.
+     *
+     * @return the logging level.
+     */
+    static Level getLoggerLevel() {
+        setLoggerLevel();
+        return loggerLevel;
     }
 
     /**
      * Gets a standard java.util.logging.Logger, set to the logging level property, if any.
      * If the logging level property is not the default Level.INFO, the logging level
      * is also changed in the root logging handler currently defined.
+     * <p>
+     * The logger is remembered, and its level is only set again if the
+     * logging level property changes.
      * 
      * @param loggerName Name of the logger to create.
      * @return The Logger requested.
      */
     public static Logger getLogger(String loggerName) {
-        setLoggerLevel();
-        Logger logger = Logger.getLogger(loggerName);
-        logger.setLevel(loggerLevel);
-        return logger;
+        return CachedLogger.get(loggerName).getLogger();
     }
 
     /**
@@ -324,53 +402,153 @@ public class Mediator implements IService {
      * @return properties.
      * <p>
      * The default property file is named openemrconnect.properties.
+     * <p>
+     * The properties object returned is never changed. If the properties file
+     * is reloaded (see {@link #reloadConfiguration()}), a new properties object
+     * takes its place, so callers that get the properties more than once may
+     * see different objects.
      */
     public static Properties getProperties() {
-        if (properties == null) {
-            properties = new Properties();
-            
-            // If a system property defining the configuration directory is
-            // available, use it.
-            String configDirectory = System.getProperty("configDirectory");
-            if (configDirectory == null) {
-                configDirectory = runtimeDirectory;
+        Properties p = properties;
+        if (p == null) {
+            synchronized (Mediator.class) {
+                p = properties;
+                if (p == null) {
+                    p = loadProperties();
+                    if (p == null) {
+                        Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
+                                "getProperty() Can''t open ''{0}'' -- Please create the properties file if it doesn''t exist and then restart the app",
+                                PROPERTIES_FILE_NAME);
+                        System.exit(1);
+                    }
+                    properties = p;
+                }
             }
-            
-            // First attempt to load from the filesystem, which will only work
-            // in a dev environment (i.e. from within the IDE), and for many, 
-            // only for runtime2 or better.
+        }
+        return p;
+    }
 
-            // On deployments, the properties file should live in the jar, and 
-            // thus require loading as a resource (unless the system property
-            // for "configDirectory" is supplied).
+    /**
+     * Loads the properties from the properties file.
+     *
+     * @return the properties, or null if they could not be loaded.
+     */
+    private static Properties loadProperties() {
+        Properties p = new Properties();
+
+        // If a system property defining the configuration directory is
+        // available, use it.
+        String configDirectory = System.getProperty("configDirectory");
+        if (configDirectory == null) {
+            configDirectory = runtimeDirectory;
+        }
 
-            String propFileName = "openemrconnect.properties";
+        // First attempt to load from the filesystem, which will only work
+        // in a dev environment (i.e. from within the IDE), and for many, 
+        // only for runtime2 or better.
+
+        // On deployments, the properties file should live in the jar, and 
+        // thus require loading as a resource (unless the system property
+        // for "configDirectory" is supplied).
+
+        try {
+            String propPathName = configDirectory + PROPERTIES_FILE_NAME;
+            Logger.getLogger(Mediator.class.getName()).log(Level.INFO,
+                    "Attempt property load from file ''{0}''",
+                    propPathName);
             try {
-                String propPathName = configDirectory + propFileName;
+                File file = new File(propPathName);
+                p = readPropertiesFile(file);
+                propertiesFile = file;
+            } catch (IOException ex) {
                 Logger.getLogger(Mediator.class.getName()).log(Level.INFO,
-                        "Attempt property load from file ''{0}''",
-                        propPathName);
-                try {
-                    FileInputStream fis = new FileInputStream(propPathName);
-//                    FileInputStream fis = new FileInputStream("/home/gitahi/Consultancy/I-TECH/OEC/kenya-patient-registry/reception/openemrconnect.properties");
-                    properties.load(fis);
-                    fis.close();
-                } catch (IOException ex) {
-                    Logger.getLogger(Mediator.class.getName()).log(Level.INFO,
-                            "Attempt property load as resource ''{0}''",
-                            propFileName);
-                    InputStream in = (Mediator.class.getResourceAsStream(propFileName));
-                    properties.load(in);
-                    in.close();
-                }
-            } catch (Exception ex) {
-                Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
-                        "getProperty() Can''t open ''{0}'' -- Please create the properties file if it doesn''t exist and then restart the app",
-                        propFileName);
-                System.exit(1);
+                        "Attempt property load as resource ''{0}''",
+                        PROPERTIES_FILE_NAME);
+                InputStream in = (Mediator.class.getResourceAsStream(PROPERTIES_FILE_NAME));
+                p.load(in);
+                in.close();
+                propertiesFile = null;
+            }
+        } catch (Exception ex) {
+            return null;
+        }
+        return p;
+    }
+
+    /**
+     * Reads properties from a file.
+     *
+     * @param file the properties file
+     * @return the properties read from the file
+     * @throws IOException if the file can't be read
+     */
+    private static Properties readPropertiesFile(File file) throws IOException {
+        Properties p = new Properties();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            p.load(fis);
+        } finally {
+            fis.close();
+        }
+        return p;
+    }
+
+    /**
+     * Reloads the properties file, and applies the new properties to
+     * everything that can change while we are running: the logger level,
+     * the routing table (next hops, load balancing, circuit breakers and
+     * timeouts), the queue manager settings (polling interval, limits,
+     * priorities, times to live and coalescing) and the callback thread
+     * pool size and limits.
+     * <p>
+     * The new properties replace the old ones all at once, so no caller
+     * sees a mixture of old and new properties. Only the file the
+     * properties were first loaded from is read again. If they were loaded
+     * from the jar, or the file can't be read, the old properties stay
+     * in effect.
+     * <p>
+     * A few properties are only used at startup, so changing them still
+     * needs a restart: Instance.Name, HTTPHandler.ListenPort,
+     * QueueManager.Store, QueueManager.Disable and the logging service
+     * and file settings.
+     * <p>
+     * This is called automatically when the properties file changes
+     * (see {@link PropertiesWatcher}.)
+     *
+     * @return true if the properties were reloaded, otherwise false.
+     */
+    public boolean reloadConfiguration() {
+        File file = propertiesFile;
+        if (file == null) {
+            Logger.getLogger(Mediator.class.getName()).log(Level.WARNING,
+                    "Can''t reload ''{0}'' -- it was loaded from the jar", PROPERTIES_FILE_NAME);
+            return false;
+        }
+        Properties p;
+        try {
+            p = readPropertiesFile(file);
+        } catch (IOException ex) {
+            Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
+                    "Can''t reload ''" + file + "'' -- keeping the properties already loaded", ex);
+            return false;
+        }
+        properties = p;
+        loggerLevel = null;
+        setLoggerLevel();
+        if (loggerLevel == Level.INFO) { // (setLoggerLevel only changes the root handler level if not INFO.)
+            Handler[] rootHandlers = LogManager.getLogManager().getLogger("").getHandlers();
+            if (rootHandlers.length > 0) {
+                rootHandlers[0].setLevel(Level.INFO);
             }
         }
-        return properties;
+        NextHop.reloadRoutingTable();
+        queueManager.reloadProperties();
+        callbackExecutor.reloadProperties();
+        findPersonCache.reloadProperties();
+        traceBuffer.reloadProperties();
+        Logger.getLogger(Mediator.class.getName()).log(Level.INFO,
+                "Reloaded configuration from ''{0}''", PROPERTIES_FILE_NAME);
+        return true;
     }
 
     /**
@@ -381,10 +559,7 @@ public class Mediator implements IService {
      * or null if the property is not found.
      */
     public static String getProperty(String propertyName) {
-        if (properties == null) {
-            getProperties();
-        }
-        return properties.getProperty(propertyName);
+        return getProperties().getProperty(propertyName);
     }
 
     /**
@@ -475,6 +650,14 @@ public class Mediator implements IService {
                     m.setToBeQueued(true);
                 }
             }
+        } else if (requestData instanceof PersonBatchRequest) {
+            PersonBatchRequest pbr = (PersonBatchRequest) requestData;
+            if (pbr.getDestinationAddress() != null) {
+                m.setDestinationAddress(pbr.getDestinationAddress());
+            }
+            if (pbr.getDestinationName() != null) {
+                m.setDestinationName(pbr.getDestinationName());
+            }
         }
         Object returnData = null;
         if (m.getDestinationAddress() == null) {
@@ -485,21 +668,314 @@ public class Mediator implements IService {
             /*
              * Send the request to the server.
              */
+            if (requestData instanceof PersonBatchRequest) {
+                returnData = sendBatch(m);
+            } else {
+                returnData = sendOrShare(requestTypeId, m);
+            }
+            MessageType.TemplateType templateType = messageType.getTemplateType();
+            if ((templateType == MessageType.TemplateType.createPerson
+                    || templateType == MessageType.TemplateType.modifyPerson)
+                    && requestData instanceof PersonRequest) {
+                findPersonCache.invalidate(((PersonRequest) requestData).getPerson());
+            }
+        }
+        return returnData;
+    }
+
+    /**
+     * Sends a request to the server, unless it is a find person request
+     * that can be answered from the find person cache
+     * (see {@link FindPersonCache}), or that is the same as one already
+     * waiting for a response. In that case, waits for the response to the
+     * earlier request and returns a copy of its <code>PersonResponse</code>.
+     * <p>
+     * Sharing responses is turned on by setting the property
+     * Mediator.CoalesceFindPerson=true. Requests with their own XML
+     * or request reference are always sent on their own, and not cached.
+     *
+     * @param requestTypeId the request type ID from getData()
+     * @param m message to send
+     * @return the response data, if any
+     */
+    private Object sendOrShare(int requestTypeId, final Message m) {
+        if (m.getMessageType().getTemplateType() != MessageType.TemplateType.findPerson
+                || !m.isResponseExpected()
+                || !(m.getMessageData() instanceof PersonRequest)) {
+            return sendData(m);
+        }
+        boolean coalesce = Boolean.parseBoolean(getProperty("Mediator.CoalesceFindPerson"));
+        boolean cache = findPersonCache.isEnabled();
+        PersonRequest pr = (PersonRequest) m.getMessageData();
+        String key = null;
+        if (coalesce || cache) {
+            key = FindPersonKey.of(requestTypeId, m.getDestinationAddress(), pr);
+        }
+        if (key == null) {
+            return sendData(m);
+        }
+        long generation = 0;
+        if (cache) {
+            PersonResponse cached = findPersonCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            generation = findPersonCache.getGeneration();
+        }
+        Object returnData;
+        if (coalesce) {
+            returnData = findPersonFlights.execute(key, new SingleFlight.Call<Object>() {
+
+                public Object call() {
+                    return sendData(m);
+                }
+            });
+            if (returnData instanceof PersonResponse) { // Each caller gets its own copy of the shared response.
+                returnData = FindPersonCache.copy((PersonResponse) returnData);
+            }
+        } else {
             returnData = sendData(m);
         }
+        if (cache && returnData instanceof PersonResponse
+                && ((PersonResponse) returnData).isSuccessful()) {
+            findPersonCache.put(key, pr, (PersonResponse) returnData, generation);
+        }
         return returnData;
     }
 
+    /**
+     * Sends a batch of requests to the server, in messages of
+     * up to PersonBatch.ChunkSize requests each (default 100.)
+     * The messages are sent one after the other, each waiting for its response.
+     * <p>
+     * If a message gets no response, the responses to its requests are
+     * marked as not successful, and the remaining messages are still sent.
+     *
+     * @param m message containing the whole batch
+     * @return the responses to the whole batch, in the same order as the requests
+     */
+    private PersonBatchResponse sendBatch(Message m) {
+        if (!(m.getMessageData() instanceof PersonBatchRequest)) {
+            Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
+                    "sendBatch() - Expected data class PersonBatchRequest, got {0}",
+                    m.getMessageData() == null ? null : m.getMessageData().getClass().getName());
+            return null;
+        }
+        List<PersonRequest> requestList = ((PersonBatchRequest) m.getMessageData()).getRequestList();
+        if (requestList == null) {
+            requestList = new ArrayList<PersonRequest>();
+        }
+        String chunkSizeProperty = getProperty("PersonBatch.ChunkSize");
+        int chunkSize = (chunkSizeProperty != null ? Integer.parseInt(chunkSizeProperty.trim()) : 100);
+        if (chunkSize < 1) {
+            chunkSize = 1;
+        }
+        List<PersonResponse> responseList = new ArrayList<PersonResponse>(requestList.size());
+        boolean successful = true;
+        for (int start = 0; start < requestList.size(); start += chunkSize) {
+            List<PersonRequest> chunkRequests = requestList.subList(start, Math.min(start + chunkSize, requestList.size()));
+            String messageId = (start == 0 ? m.getMessageId() : generateMessageId());
+            for (PersonResponse response : sendBatchChunk(m, chunkRequests, messageId)) {
+                if (!response.isSuccessful()) {
+                    successful = false;
+                }
+                responseList.add(response);
+            }
+        }
+        PersonBatchResponse batchResponse = new PersonBatchResponse();
+        batchResponse.setResponseList(responseList);
+        batchResponse.setSuccessful(successful);
+        return batchResponse;
+    }
+
+    /**
+     * Sends one message of a batch, and waits for its response.
+     *
+     * @param m message with the type, source and destination of the batch
+     * @param chunkRequests requests to send in this message
+     * @param messageId message ID for this message
+     * @return a response for each request, in the same order. A request
+     * with no answer gets a response that is not successful.
+     */
+    List<PersonResponse> sendBatchChunk(Message m, List<PersonRequest> chunkRequests, String messageId) {
+        PersonBatchRequest chunkBatch = new PersonBatchRequest();
+        chunkBatch.setRequestList(chunkRequests);
+        Message chunk = new Message();
+        chunk.setMessageType(m.getMessageType());
+        chunk.setMessageData(chunkBatch);
+        chunk.setSourceAddress(m.getSourceAddress());
+        chunk.setSourceName(m.getSourceName());
+        chunk.setDestinationAddress(m.getDestinationAddress());
+        chunk.setDestinationName(m.getDestinationName());
+        chunk.setMessageId(messageId);
+        chunk.setResponseExpected(true);
+        chunk.setToBeQueued(false);
+        Object chunkData = sendData(chunk);
+        List<PersonResponse> chunkResponses = null;
+        if (chunkData instanceof PersonBatchResponse) {
+            chunkResponses = ((PersonBatchResponse) chunkData).getResponseList();
+        }
+        if (chunkResponses == null || chunkResponses.size() != chunkRequests.size()) {
+            if (chunkData instanceof PersonBatchResponse && ((PersonBatchResponse) chunkData).isSuccessful()) {
+                Logger.getLogger(Mediator.class.getName()).log(Level.WARNING,
+                        "sendBatchChunk() - Sent {0} requests but received {1} responses",
+                        new Object[]{chunkRequests.size(), chunkResponses == null ? 0 : chunkResponses.size()});
+            }
+            chunkResponses = null;
+        }
+        List<PersonResponse> responseList = new ArrayList<PersonResponse>(chunkRequests.size());
+        for (int i = 0; i < chunkRequests.size(); i++) {
+            PersonResponse response = (chunkResponses != null ? chunkResponses.get(i) : null);
+            if (response == null) {
+                response = new PersonResponse();
+                response.setSuccessful(false);
+            }
+            responseList.add(response);
+        }
+        MessageType.TemplateType templateType = m.getMessageType().getTemplateType();
+        if (templateType == MessageType.TemplateType.createPersonBatch
+                || templateType == MessageType.TemplateType.modifyPersonBatch) {
+            for (PersonRequest request : chunkRequests) {
+                findPersonCache.invalidate(request.getPerson());
+            }
+        }
+        return responseList;
+    }
+
+    /**
+     * Loads a stream of people into a person index, for example when
+     * first loading a population into the LPI or MPI. The people are sent
+     * in batches of Ingest.BatchSize people (default 100), with up to
+     * Ingest.MaxInFlight batches waiting for their responses at once
+     * (default 4), so that the time to load is limited by the network
+     * and the server rather than by the time for each round trip.
+     * <p>
+     * The outcome of each person is reported to the listener (if not null)
+     * as each batch finishes. Batches may finish in any order, but the
+     * listener is called for one person at a time.
+     *
+     * @param requestTypeId CREATE_PERSON_BATCH_MPI, CREATE_PERSON_BATCH_LPI,
+     * MODIFY_PERSON_BATCH_MPI or MODIFY_PERSON_BATCH_LPI
+     * @param people the people to load
+     * @param listener receives the outcome for each person, or null
+     * @return counts of people loaded and not loaded, or null if the
+     * request type is not a create or modify person batch, or there is
+     * no destination address
+     */
+    public IngestResult ingest(int requestTypeId, Iterator<Person> people, IngestListener listener) {
+        MessageType messageType = MessageTypeRegistry.find(requestTypeId);
+        if (messageType == null
+                || (messageType.getTemplateType() != MessageType.TemplateType.createPersonBatch
+                && messageType.getTemplateType() != MessageType.TemplateType.modifyPersonBatch)) {
+            Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
+                    "ingest() - Request type ID ''{0}'' is not a create or modify person batch", requestTypeId);
+            return null;
+        }
+        Message m = new Message();
+        m.setMessageType(messageType);
+        m.setSourceAddress(getProperty("Instance.Address"));
+        m.setSourceName(getProperty("Instance.Name"));
+        m.setDestinationAddress(getProperty(messageType.getDefaultDestinationAddressProperty()));
+        m.setDestinationName(messageType.getDefaultDestinationName());
+        if (m.getDestinationAddress() == null) {
+            Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
+                    "ingest() - Can''t find {0} in properties file.",
+                    messageType.getDefaultDestinationAddressProperty());
+            return null;
+        }
+        return new BulkIngest(this, m, listener).run(people);
+    }
+
+    /**
+     * Gets the number of find person requests that shared the response
+     * to an identical request instead of being sent themselves.
+     *
+     * @return the count of shared find person responses
+     */
+    public long getCoalescedFindPersonCount() {
+        return findPersonFlights.getSharedCount();
+    }
+
+    /**
+     * Gets the number of find person requests answered from the cache.
+     *
+     * @return the count of find person cache hits
+     */
+    public long getFindPersonCacheHitCount() {
+        return findPersonCache.getHitCount();
+    }
+
+    /**
+     * Gets the number of find person requests not found in the cache
+     * (while the cache is turned on.)
+     *
+     * @return the count of find person cache misses
+     */
+    public long getFindPersonCacheMissCount() {
+        return findPersonCache.getMissCount();
+    }
+
+    /**
+     * Gets the number of cached find person responses forgotten because
+     * a person changed.
+     *
+     * @return the count of invalidated find person responses
+     */
+    public long getFindPersonCacheInvalidatedCount() {
+        return findPersonCache.getInvalidatedCount();
+    }
+
+    HttpService getHttpService() {
+        return httpService;
+    }
+
+    QueueManager getQueueManager() {
+        return queueManager;
+    }
+
+    CallbackExecutor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    static MessagePendingQueue getPendingQueue() {
+        return pendingQueue;
+    }
+
+    TraceBuffer getTraceBuffer() {
+        return traceBuffer;
+    }
+
+    LatencyHistogram getResponseLatency() {
+        return responseLatency;
+    }
+
+    long getSentMessageCount() {
+        return sentMessageCount.get();
+    }
+
+    long getNoResponseCount() {
+        return noResponseCount.get();
+    }
+
+    long getReceivedMessageCount() {
+        return receivedMessageCount.get();
+    }
+
+    long getRelayedMessageCount() {
+        return relayedMessageCount.get();
+    }
+
     /**
      * Constructs a new message ID to use for a message. The ID must be
      * unique for requests coming from this instance address (this
      * client or service running on this machine.)
      * <p>
-     * We construct the message ID by putting two components together. The first
-     * is the current time in milliseconds (since January 1, 1970.) The
-     * second is a sequence number that starts at 0 when this process
-     * started running. So even if we generate two message IDs without the
-     * system time changing, they will be unique.
+     * The message ID is made from the current time in milliseconds, a sequence
+     * number within the millisecond, and a random discriminator for this process
+     * (see {@link MessageIdGenerator}.) So even if we generate two message IDs
+     * without the system time changing, they will be unique. The IDs are all
+     * the same length, and sort in the order they were generated.
+     * This method does not lock, so it may be called from many threads at once.
      * <p>
      * Note that if a message is a response to another message, it typically
      * uses the request message ID as its own, so the request and response
@@ -508,9 +984,8 @@ public class Mediator implements IService {
      *
      * @return the new request ID.
      */
-    public static synchronized String generateMessageId() {
-        long milliseconds = new Date().getTime();
-        return Long.toString(milliseconds) + Long.toString(messageSequenceNumber++);
+    public static String generateMessageId() {
+        return messageIdGenerator.next();
     }
 
     /**
@@ -537,16 +1012,18 @@ public class Mediator implements IService {
              * This is an error in our routing mechanism. We have a desination
              * address, but we were unable to translate it into next hop information.
              */
-            Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
+            logger.logSummary(Level.SEVERE,
                     "getData() - Next hop information not found for ''{0}'': {1}",
-                    new Object[]{m.getDestinationAddress(), m.summarize()});
+                    m.getDestinationAddress(), m);
             return null;
         }
         /*
          * Pack the data into the XML message.
          */
+        traceBuffer.maybeStart(m);
         String xml = xmlPacker.pack(m);
         m.setXml(xml);
+        m.addTraceEvent("pack");
         /*
          * If we may get a response to this message, add it to the list of responses we are expecting.
          */
@@ -558,10 +1035,10 @@ public class Mediator implements IService {
          * Send the message.
          */
         m.setHopCount(1); // This will be the first hop.
-        if (Mediator.testLoggerLevel(Level.FINE)) {
-            Mediator.getLogger(Mediator.class.getName()).log(Level.FINE, "Sending message {0}", m.summarize());
-        }
+        logger.logSummary(Level.FINE, "Sending message {0}", m);
+        long startNanos = System.nanoTime();
         boolean messageSent = sendMessage(m);
+        sentMessageCount.incrementAndGet();
         /*
          * If we expect a response to this message, wait for the response.
          * When we get the response, return it to our caller. If there is no
@@ -574,6 +1051,11 @@ public class Mediator implements IService {
             } else {
                 pendingQueue.dequeue(queueEntry);
             }
+            if (responseMessage != null) {
+                responseLatency.recordSince(startNanos);
+            } else {
+                noResponseCount.incrementAndGet();
+            }
             MessageType.TemplateType templateType = m.getMessageType().getTemplateType();
             switch (templateType) {
                 case findPerson:
@@ -594,6 +1076,18 @@ public class Mediator implements IService {
                     }
                     break;
 
+                case findPersonBatch:
+                case createPersonBatch:
+                case modifyPersonBatch:
+                    if (responseMessage != null) {
+                        returnData = responseMessage.getMessageData();
+                    } else {
+                        PersonBatchResponse personBatchResponse = new PersonBatchResponse();
+                        personBatchResponse.setSuccessful(false);
+                        returnData = personBatchResponse;
+                    }
+                    break;
+
                 default:
                     Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
                             "sendData() Message with requestId {0} and templateType {1} is expecting a response but not handled.",
@@ -615,8 +1109,12 @@ public class Mediator implements IService {
      * on its way. Otherwise we will unpack and process it locally.
      *
      * @param m Message received
+     * @return true if the message was taken, false if it was rejected because
+     * too many callbacks are waiting (the sender should send it again later.)
      */
-    void processReceivedMessage(Message m) {
+    boolean processReceivedMessage(Message m) {
+        boolean accepted = true;
+        receivedMessageCount.incrementAndGet();
         String destinationAddress = m.getDestinationAddress();
         if (destinationAddress == null) {
             Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
@@ -624,10 +1122,16 @@ public class Mediator implements IService {
         } else {
             String ourInstanceAddress = getProperty("Instance.Address");
             if (destinationAddress.equalsIgnoreCase(ourInstanceAddress)) { // If the message is addressed to us:
+                if (m.getXml() == null) {
+                    return true; // Could not be decompressed, or too big (already logged.)
+                }
                 xmlPacker.unpack(m);
+                if (m.getTrace() != null) {
+                    logger.log(Level.FINE, "Trace {0}", traceBuffer.complete(m));
+                }
                 if (m.getMessageData() == null) {
-                    Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
-                            "Received message did not unpack into messageData: {0}", m.summarize());
+                    logger.logSummary(Level.SEVERE,
+                            "Received message did not unpack into messageData: {0}", m);
                 } else {
                     if (m.getMessageData().getClass() == PersonRequest.class) {
                         PersonRequest req = (PersonRequest) m.getMessageData();
@@ -639,19 +1143,22 @@ public class Mediator implements IService {
                         PersonResponse rsp = (PersonResponse) m.getMessageData();
                         rsp.setSuccessful(true);
                         rsp.setRequestReference(m.getMessageId());
+                    } else if (m.getMessageData().getClass() == PersonBatchRequest.class) {
+                        PersonBatchRequest batch = (PersonBatchRequest) m.getMessageData();
+                        for (PersonRequest req : batch.getRequestList()) {
+                            req.setSourceAddress(m.getSourceAddress());
+                            req.setSourceName(m.getSourceName());
+                            req.setRequestReference(m.getMessageId());
+                        }
                     }
                     boolean responseDelivered = pendingQueue.findRequest(m);
                     if (responseDelivered) { // Was the message a response to a request that we just delivered?
-                        if (Mediator.testLoggerLevel(Level.FINE)) {
-                            Mediator.getLogger(Mediator.class.getName()).log(Level.FINE,
-                                    "Received message delivered as response to API: {0}", m.summarize());
-                        }
+                        logger.logSummary(Level.FINE,
+                                "Received message delivered as response to API: {0}", m);
                     } else {
-                        if (Mediator.testLoggerLevel(Level.FINE)) {
-                            Mediator.getLogger(Mediator.class.getName()).log(Level.FINE,
-                                    "Received message delivered unsolicited to API: {0}", m.summarize());
-                        }
-                        processUnsolicitedMessage(m);
+                        logger.logSummary(Level.FINE,
+                                "Received message delivered unsolicited to API: {0}", m);
+                        accepted = processUnsolicitedMessage(m);
                     }
                 }
             } else {    // If the message is not addressed to us:
@@ -662,8 +1169,8 @@ public class Mediator implements IService {
                      * and the router is not giving us next hop information.
                      * This is a configuration error.
                      */
-                    Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
-                            "Next hop not found for received message {0}", m.summarize());
+                    logger.logSummary(Level.SEVERE,
+                            "Next hop not found for received message {0}", m);
                 } else {
                     /*
                      * The message destination does not match our own,
@@ -675,14 +1182,13 @@ public class Mediator implements IService {
                     int hopCount = m.getHopCount();
                     hopCount++;
                     m.setHopCount(hopCount);
-                    if (Mediator.testLoggerLevel(Level.FINE)) {
-                        Mediator.getLogger(Mediator.class.getName()).log(Level.FINE,
-                                "Relaying message {0}", m.summarize());
-                    }
+                    logger.logSummary(Level.FINE, "Relaying message {0}", m);
+                    relayedMessageCount.incrementAndGet();
                     sendMessage(m);
                 }
             }
         }
+        return accepted;
     }
 
     /**
@@ -690,23 +1196,28 @@ public class Mediator implements IService {
      * was not the response to a request that we were waiting for.
      *
      * @param m the unpacked message information.
+     * @return false if the callback was rejected because too many are waiting,
+     * otherwise true.
      */
-    private void processUnsolicitedMessage(Message m) {
+    private boolean processUnsolicitedMessage(Message m) {
         MessageType messageType = m.getMessageType(); // For convenience below (code readability).
+        if (messageType.getTemplateType() == MessageType.TemplateType.notifyPersonChanged
+                && m.getMessageData() instanceof PersonRequest) {
+            findPersonCache.invalidate(((PersonRequest) m.getMessageData()).getPerson());
+        }
         if (messageType.getRequestTypeId() != 0) { // Does this message have a request ID?
             if (myCallbackObject != null) { // Yes. Did the user register a callback routine?
                 CallbackThread c = new CallbackThread(this, myCallbackObject, m);
-                Thread t = new Thread(c);
-                t.start();
+                return callbackExecutor.execute(messageType.getTemplateType(), c);
             } else {
                 /*
                  * The user has not defined a callback routine. Meanwhile, someone sent us
                  * an unsolicited message -- at least a message that was not a reply we were
                  * waiting for.
                  */
-                Logger.getLogger(Mediator.class.getName()).log(Level.WARNING,
+                logger.logSummary(Level.WARNING,
                         "Unsolicited message with request type {0} received. No user callback is registered: {1}",
-                        new Object[]{messageType.getRequestTypeId(), m.summarize()});
+                        messageType.getRequestTypeId(), m);
             }
         } else {
             /*
@@ -719,10 +1230,11 @@ public class Mediator implements IService {
              *
              * Or this could be an error of some sort.
              */
-            Logger.getLogger(Mediator.class.getName()).log(Level.WARNING,
+            logger.logSummary(Level.WARNING,
                     "Unsolicited message with XML root ''{0}'' received, but it isn''t registered as a request: {1}",
-                    new Object[]{messageType.getRootXmlTag(), m.summarize()});
+                    messageType.getRootXmlTag(), m);
         }
+        return true;
     }
 
     /**
@@ -738,7 +1250,8 @@ public class Mediator implements IService {
      * We check the hop count to make sure the message is not caught in a
      * routing loop. Then we see whether the message should be sent
      * with our without the queuing mechanism for storing and forwarding.
-     * Then we send it.
+     * A message that is not to be queued fails at once if the circuit
+     * breakers of all its next hops are open. Otherwise we send it.
      *
      * @param m Message to send
      * @return true if the message was queued or sent successfully (to the next hop), otherwise false
@@ -750,20 +1263,47 @@ public class Mediator implements IService {
              * A message has been forwarded too many times, exceeding the maximum hop count.
              * This may indicate a routing loop between two or more systems.
              */
-            Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE,
-                    "sendMessage() - Hop count {0} exceeds maximum hop count {1} for destination ''{2}'', routed to ''{3}'': {4}",
-                    new Object[]{m.getHopCount(), MAX_HOP_COUNT, m.getDestinationAddress(), m.getNextHop().getIpAddressPort(), m.summarize()});
+            logger.logSummary(Level.SEVERE,
+                    "sendMessage() - Hop count {0} exceeds maximum hop count " + MAX_HOP_COUNT
+                    + " for destination ''{1}'', routed to ''{2}'': {3}",
+                    m.getHopCount(), m.getDestinationAddress(), m.getNextHop().getIpAddressPort(), m);
         } else if (m.isToBeQueued()) {
             messageSent = queueManager.enqueue(m);
+        } else if (m.getNextHop() != null && m.getNextHop().getRoute() != null
+                && !m.getNextHop().getRoute().isAvailable()) {
+            /*
+             * Every next hop for this destination has an open circuit breaker.
+             * Fail now instead of making the caller wait for a connection
+             * that will probably time out. (Messages to be queued are queued
+             * anyway; the queue manager retries them when the hop is back.)
+             */
+            logger.log(Level.FINE,
+                    "sendMessage() - No next hop available for ''{0}'', failing fast", m.getDestinationAddress());
         } else {
             try {
                 messageSent = httpService.send(m); // (toBeQueued = false)
             } catch (MalformedURLException ex) {
-                Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE, "Error sending: " + m.summarize(), ex);
+                logger.log(Level.SEVERE, errorSending(m), ex);
             } catch (IOException ex) {
-                Logger.getLogger(Mediator.class.getName()).log(Level.SEVERE, "Error sending: " + m.summarize(), ex);
+                logger.log(Level.SEVERE, errorSending(m), ex);
             }
         }
         return messageSent;
     }
+
+    /**
+     * Gets a log message for an error sending a message.
+     * The message is only built if it will be logged.
+     *
+     * @param m message that could not be sent
+     * @return supplier of the log message
+     */
+    private static CachedLogger.MessageSupplier errorSending(final Message m) {
+        return new CachedLogger.MessageSupplier() {
+
+            public String get() {
+                return "Error sending: " + m.summarize();
+            }
+        };
+    }
 }
@@ -0,0 +1,102 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.List;
+
+/**
+ * JMX view of the mediator: messages sent and received, requests waiting
+ * for responses, response times, find person sharing and caching,
+ * the callback thread pool, and message traces (see {@link TraceBuffer}.)
+ * <p>
+ * Registered by {@link Mediator} as
+ * <code>ke.go.moh.oec:type=Mediator,name=</code><i>Instance.Address</i>.
+ * Times are in milliseconds.
+ */
+public interface MediatorMetricsMXBean {
+
+    /** @return number of messages sent as requests or responses. */
+    long getSentMessageCount();
+
+    /** @return number of messages received by HTTP (for us or to relay.) */
+    long getReceivedMessageCount();
+
+    /** @return number of received messages relayed to another hop. */
+    long getRelayedMessageCount();
+
+    /** @return number of requests that got no response. */
+    long getNoResponseCount();
+
+    /** @return number of requests waiting for a response now. */
+    int getPendingRequestCount();
+
+    /** @return average time from sending a request to receiving its response. */
+    double getResponseMeanMillis();
+
+    /** @return median time from sending a request to receiving its response. */
+    double getResponseP50Millis();
+
+    /** @return 90th percentile time from sending a request to receiving its response. */
+    double getResponseP90Millis();
+
+    /** @return 99th percentile time from sending a request to receiving its response. */
+    double getResponseP99Millis();
+
+    /** @return longest time from sending a request to receiving its response. */
+    double getResponseMaxMillis();
+
+    /** @return number of find person requests that shared another's response. */
+    long getCoalescedFindPersonCount();
+
+    /** @return number of find person requests answered from the cache. */
+    long getFindPersonCacheHitCount();
+
+    /** @return number of find person requests not found in the cache. */
+    long getFindPersonCacheMissCount();
+
+    /** @return number of cached find person responses forgotten because a person changed. */
+    long getFindPersonCacheInvalidatedCount();
+
+    /** @return number of callbacks waiting to run. */
+    int getCallbackQueueDepth();
+
+    /** @return largest number of callbacks that have been waiting to run. */
+    int getCallbackPeakQueueDepth();
+
+    /** @return number of callbacks running now. */
+    int getCallbackActiveCount();
+
+    /** @return number of callbacks run on the receiving thread because too many were waiting. */
+    long getCallbackCallerRunsCount();
+
+    /** @return number of messages rejected because too many callbacks were waiting. */
+    long getCallbackRejectedCount();
+
+    /** @return number of traced messages that reached us as their destination. */
+    long getCompletedTraceCount();
+
+    /** @return the most recent completed message traces, oldest first. */
+    List<String> getRecentTraces();
+}
@@ -82,6 +82,26 @@ class Message {
      * Is this message to be queued for storing and forwarding?
      */
     private boolean toBeQueued;
+    /**
+     * Priority of this message in store-and-forward queues.
+     * Higher priority messages are sent first.
+     */
+    private int priority = QueueManager.DEFAULT_PRIORITY;
+    /**
+     * Seconds this message may wait in store-and-forward queues
+     * before it is dropped, or 0 if there is no limit.
+     */
+    private int timeToLive;
+    /**
+     * Key identifying queued messages that this message supersedes,
+     * or null if it doesn't supersede any.
+     */
+    private String coalesceKey;
+    /**
+     * Trace of the times the message reached each stage on each hop
+     * (see {@link TraceBuffer}), or null if the message is not traced.
+     */
+    private String trace;
     /**
      * The message in XML form.
      */
@@ -94,6 +114,11 @@ class Message {
      * Length of the compressed XML string.
      */
     private int compressedXmlLength;
+    /**
+     * Where to read the compressed XML a part at a time, for a large
+     * queued message (or null.)
+     */
+    private CompressedXmlSource compressedXmlSource;
     /**
      * Is a response expected to this message?
      */
@@ -106,6 +131,11 @@ class Message {
      * Longest received message segment length (for tracing.)
      */
     private int longestSegmentLength;
+    /**
+     * Was this message refused by the next hop as too large? If so,
+     * it will never be taken and must not be sent again.
+     */
+    private boolean refused;
 
     public void setCompressedXml(byte[] compressedXml) {
         this.compressedXml = compressedXml;
@@ -115,6 +145,14 @@ class Message {
         this.compressedXmlLength = compressedXmlLength;
     }
 
+    CompressedXmlSource getCompressedXmlSource() {
+        return compressedXmlSource;
+    }
+
+    void setCompressedXmlSource(CompressedXmlSource compressedXmlSource) {
+        this.compressedXmlSource = compressedXmlSource;
+    }
+
     public String getDestinationAddress() {
         return destinationAddress;
     }
@@ -235,19 +273,75 @@ class Message {
         this.toBeQueued = toBeQueued;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public void setCoalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+    }
+
+    boolean isRefused() {
+        return refused;
+    }
+
+    void setRefused(boolean refused) {
+        this.refused = refused;
+    }
+
+    public String getTrace() {
+        return trace;
+    }
+
+    public void setTrace(String trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Adds the current time to the trace, if the message is traced.
+     * The event is recorded as stage:instanceAddress:milliseconds.
+     *
+     * @param stage stage the message has reached on this hop.
+     */
+    void addTraceEvent(String stage) {
+        if (trace != null) {
+            String event = stage + ":" + Mediator.getProperty("Instance.Address") + ":" + System.currentTimeMillis();
+            trace = (trace.length() == 0 ? event : trace + "," + event);
+        }
+    }
+
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
     public void setXml(String xml) {
         this.xml = xml;
     }
 
     /**
      * Gets the message contents as compressed XML.
-     * Compresses the message if necessary to do this.
+     * Compresses the message if necessary to do this, or reads all of it
+     * from its compressed XML source.
      * 
      * @return compressed XML message
      */
     public byte[] getCompressedXml() {
         if (compressedXml == null && xml != null) {
             Compresser.compress(this);
+        } else if (compressedXml == null && compressedXmlSource != null) {
+            compressedXml = compressedXmlSource.read(0, compressedXmlLength);
         }
         return compressedXml;
     }
@@ -272,7 +366,7 @@ class Message {
      * @return (uncompressed) XML message
      */
     public String getXml() {
-        if (xml == null && compressedXml != null) {
+        if (xml == null && getCompressedXml() != null) {
             Compresser.decompress(this);
         }
         return xml;
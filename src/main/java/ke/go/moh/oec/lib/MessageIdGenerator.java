@@ -0,0 +1,88 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates message IDs without locking.
+ * <p>
+ * Each ID is 16 characters of lower case letters and digits. The first 12
+ * characters are a base 36 number made from the current time in
+ * milliseconds and a sequence number within the millisecond. The last 4
+ * characters are chosen at random when the generator is created, to
+ * tell apart IDs from two processes using the same instance address.
+ * <p>
+ * The time and sequence number are kept together in one atomic value,
+ * which only goes up. If more IDs are needed in a millisecond than the
+ * sequence number can hold, or the system clock goes back, the IDs
+ * carry on from the last one. So the IDs from one generator are unique,
+ * all the same length, and sort (as strings) in the order they were made.
+ */
+class MessageIdGenerator {
+
+    /** Number of bits for the sequence number within a millisecond. */
+    private static final int SEQUENCE_BITS = 16;
+    /** Number of base 36 digits for the time and sequence number. */
+    private static final int TIME_DIGITS = 12;
+    /** Number of base 36 digits for the instance discriminator. */
+    private static final int INSTANCE_DIGITS = 4;
+    private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+    /** Time (shifted left by SEQUENCE_BITS) plus sequence number of the last ID. */
+    private final AtomicLong last = new AtomicLong();
+    /** Instance discriminator, the same for every ID. */
+    private final char[] instance = new char[INSTANCE_DIGITS];
+
+    MessageIdGenerator() {
+        long value = new Random().nextInt(36 * 36 * 36 * 36);
+        for (int i = INSTANCE_DIGITS - 1; i >= 0; i--) {
+            instance[i] = DIGITS[(int) (value % 36)];
+            value /= 36;
+        }
+    }
+
+    /**
+     * Generates the next message ID.
+     *
+     * @return the new message ID.
+     */
+    String next() {
+        long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        long previous;
+        long value;
+        do {
+            previous = last.get();
+            value = Math.max(previous + 1, now);
+        } while (!last.compareAndSet(previous, value));
+        char[] id = new char[TIME_DIGITS + INSTANCE_DIGITS];
+        for (int i = TIME_DIGITS - 1; i >= 0; i--) {
+            id[i] = DIGITS[(int) (value % 36)];
+            value /= 36;
+        }
+        System.arraycopy(instance, 0, id, TIME_DIGITS, INSTANCE_DIGITS);
+        return new String(id);
+    }
+}
@@ -24,8 +24,9 @@
  * ***** END LICENSE BLOCK ***** */
 package ke.go.moh.oec.lib;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 
 /**
  * Mechanism to wait for a response to a message.
@@ -37,6 +38,10 @@ import java.util.List;
  * the request thread will be woken, and the response will be returned to
  * the caller. If no matching response comes, a timer will time out and
  * wake the request thread. It will then return with no matching response.
+ * <p>
+ * Entries are kept in the order they were queued (which is also the order
+ * in which they time out), and are indexed by message ID so that a response
+ * can be matched to its request without searching the queue.
  *
  * @author Jim Grace
  */
@@ -49,8 +54,12 @@ final class MessagePendingQueue implements Runnable {
         private long timeout;
         private Message request;
         private Message response;
+        /** Next entry queued with the same message ID (rare), if any. */
+        private Entry nextSameId;
     }
-    private List<Entry> queue = new ArrayList<Entry>();
+    private LinkedHashSet<Entry> queue = new LinkedHashSet<Entry>();
+    /** The oldest entry for each message ID. */
+    private Map<String, Entry> index = new HashMap<String, Entry>();
     private Thread timeoutThread = null;
     private long nextTimeout = 0;
 
@@ -119,20 +128,22 @@ final class MessagePendingQueue implements Runnable {
             timeoutThread = null;
             return 0;
         } else {
-            return queue.get(0).timeout;
+            return queue.iterator().next().timeout;
         }
     }
 
     /**
-     * Loops through all the entries in the pending queue, and time out
-     * any that have now expired.
+     * Loops through the entries in the pending queue, and time out
+     * any that have now expired. Entries time out in the order they
+     * were queued, so we can stop at the first one that has not expired.
      */
     private synchronized void timeOutEntries() {
         long now = System.currentTimeMillis();
         for (Entry e : queue) {
-            if (e.timeout <= now) {
-                notify(e);
+            if (e.timeout > now) {
+                break;
             }
+            notify(e);
         }
     }
 
@@ -158,16 +169,51 @@ final class MessagePendingQueue implements Runnable {
         e.response = null;
         e.timeout = System.currentTimeMillis() + getReplyTimeoutSeconds() * 1000;
         queue.add(e);
+        Entry first = index.get(request.getMessageId());
+        if (first == null) {
+            index.put(request.getMessageId(), e);
+        } else {
+            while (first.nextSameId != null) {
+                first = first.nextSameId;
+            }
+            first.nextSameId = e;
+        }
         return e;
     }
 
+    /**
+     * Gets the number of requests waiting for a response.
+     *
+     * @return number of requests waiting.
+     */
+    synchronized int size() {
+        return queue.size();
+    }
+
     /**
      * Removes an entry from the pending queue.
      *
      * @param e the entry to remove.
      */
     synchronized void dequeue(Entry e) {
-        queue.remove(e);
+        if (queue.remove(e)) {
+            String messageId = e.request.getMessageId();
+            Entry first = index.get(messageId);
+            if (first == e) {
+                if (e.nextSameId != null) {
+                    index.put(messageId, e.nextSameId);
+                } else {
+                    index.remove(messageId);
+                }
+            } else {
+                while (first != null && first.nextSameId != e) {
+                    first = first.nextSameId;
+                }
+                if (first != null) {
+                    first.nextSameId = e.nextSameId;
+                }
+            }
+        }
     }
 
     /**
@@ -218,31 +264,29 @@ final class MessagePendingQueue implements Runnable {
      * @return true if the message was a response to something in the queue, otherwise false
      */
     synchronized boolean findRequest(Message response) {
-
-        for (Entry e : queue) {
-            if (e.request.getMessageId().equals(response.getMessageId())) {
-                // To prevent a race condition, it is important that the following
-                // two statements are done in the right order. First set the
-                // response on the message. If the sending thread sees the
-                // response posted, they will not wait. The worst that can
-                // happen is that the notify() method does nothing.
-                //
-                // But if the notify method were first, then the sending thread
-                // might come in and look for the response after we've notified.
-                // Then it might sleep before we set the response. Then it would
-                // sleep needlessly, delaying the response to the user.
-                //
-                // Alternatively, we could have put a "synchronized (e) {" block
-                // around the next two statements, but Java might warn us that
-                // we have nested synchronizations (which is a dangerous thing
-                // in some situations even if it isn't here.) So to avoid the
-                // warning, we just do the next two statements in the right
-                // order and there is no problem.
-                //
-                e.response = response;
-                notify(e);
-                return true;
-            }
+        Entry e = index.get(response.getMessageId());
+        if (e != null) {
+            // To prevent a race condition, it is important that the following
+            // two statements are done in the right order. First set the
+            // response on the message. If the sending thread sees the
+            // response posted, they will not wait. The worst that can
+            // happen is that the notify() method does nothing.
+            //
+            // But if the notify method were first, then the sending thread
+            // might come in and look for the response after we've notified.
+            // Then it might sleep before we set the response. Then it would
+            // sleep needlessly, delaying the response to the user.
+            //
+            // Alternatively, we could have put a "synchronized (e) {" block
+            // around the next two statements, but Java might warn us that
+            // we have nested synchronizations (which is a dangerous thing
+            // in some situations even if it isn't here.) So to avoid the
+            // warning, we just do the next two statements in the right
+            // order and there is no problem.
+            //
+            e.response = response;
+            notify(e);
+            return true;
         }
         return false;
     }
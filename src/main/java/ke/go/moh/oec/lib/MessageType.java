@@ -47,7 +47,14 @@ class MessageType {
         logEntry,
         getWork,
         workDone, //TODO: See if these are the same?
-        reassignWork
+        reassignWork,
+        findPersonBatch,
+        findPersonBatchResponse,
+        createPersonBatch,
+        createPersonBatchAccepted,
+        modifyPersonBatch,
+        modifyPersonBatchAccepted,
+        logEntryBatch
     }
     /** RequestTypeId of the request message, or 0 if this message is only used as a response. */
     private int requestTypeId;
@@ -54,12 +54,26 @@ class MessageTypeRegistry {
     static final String MODIFY_PERSON_ACCEPTED_ROOT_TAG = "PRPA_IN201315UV02";
     /** LOG ENTRY uses LogEntry for a root tag */
     static final String LOG_ENTRY_ROOT_TAG = "LogEntry";
+    /** LOG ENTRY BATCH uses LogEntryBatch for a root tag */
+    static final String LOG_ENTRY_BATCH_ROOT_TAG = "LogEntryBatch";
     /** GET WORK uses GetWork for a root tag */
     static final String GET_WORK_ROOT_TAG = "GetWork";
     /** WORK DONE uses WorkDone for a root tag */
     static final String WORK_DONE_ROOT_TAG = "WorkDone";
     /** REASSIGN WORK uses Reassign for a root tag */
     static final String REASSIGN_ROOT_TAG = "Reassign";
+    /** FIND PERSON BATCH uses FindPersonBatch for a root tag */
+    static final String FIND_PERSON_BATCH_ROOT_TAG = "FindPersonBatch";
+    /** FIND PERSON BATCH RESPONSE uses FindPersonBatchResponse for a root tag */
+    static final String FIND_PERSON_BATCH_RESPONSE_ROOT_TAG = "FindPersonBatchResponse";
+    /** CREATE PERSON BATCH uses CreatePersonBatch for a root tag */
+    static final String CREATE_PERSON_BATCH_ROOT_TAG = "CreatePersonBatch";
+    /** CREATE PERSON BATCH ACCEPTED uses CreatePersonBatchAccepted for a root tag */
+    static final String CREATE_PERSON_BATCH_ACCEPTED_ROOT_TAG = "CreatePersonBatchAccepted";
+    /** MODIFY PERSON BATCH uses ModifyPersonBatch for a root tag */
+    static final String MODIFY_PERSON_BATCH_ROOT_TAG = "ModifyPersonBatch";
+    /** MODIFY PERSON BATCH ACCEPTED uses ModifyPersonBatchAccepted for a root tag */
+    static final String MODIFY_PERSON_BATCH_ACCEPTED_ROOT_TAG = "ModifyPersonBatchAccepted";
     /**
      * Find Person response
      */
@@ -181,6 +195,105 @@ class MessageTypeRegistry {
             "HDSS.Address", // The HDSS companion address property
             "HDSS Companion", // The HDSS companion
             false); // Store and forward if it doesn't send immediately
+    /**
+     * Find Person Batch response
+     */
+    static final MessageType findPersonBatchResponse = new MessageType(
+            0, // No request type (this message is only a response).
+            null, // No response type (this mssage does not have a response to answer it).
+            MessageType.TemplateType.findPersonBatchResponse,
+            FIND_PERSON_BATCH_RESPONSE_ROOT_TAG, // Envelope of Find Candidates Query Responses
+            null, // No default destination address property
+            null, // No default destination name
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Find Person Batch (MPI) request
+     */
+    static final MessageType findPersonBatchMpi = new MessageType(
+            RequestTypeId.FIND_PERSON_BATCH_MPI,
+            findPersonBatchResponse,
+            MessageType.TemplateType.findPersonBatch,
+            FIND_PERSON_BATCH_ROOT_TAG, // Envelope of Find Candidates Queries
+            "MPI.Address", // The Master Person List address property
+            "Master Person Index", // The Master Person List
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Find Person Batch (LPI) request
+     */
+    static final MessageType findPersonBatchLpi = new MessageType(
+            RequestTypeId.FIND_PERSON_BATCH_LPI,
+            findPersonBatchResponse,
+            MessageType.TemplateType.findPersonBatch,
+            FIND_PERSON_BATCH_ROOT_TAG, // Envelope of Find Candidates Queries
+            "LPI.Address", // The Local Person List address property
+            "Local Person Index", // The Local Person List
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Create Person Batch Accepted response
+     */
+    static final MessageType createPersonBatchAccepted = new MessageType(
+            0, // No request type (this message is only a response).
+            null, // No response type (this mssage does not have a response to answer it).
+            MessageType.TemplateType.createPersonBatchAccepted,
+            CREATE_PERSON_BATCH_ACCEPTED_ROOT_TAG, // Envelope of Add Request Accepted messages
+            null, // No default destination address property
+            null, // No default destination name
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Create Person Batch (MPI) request
+     */
+    static final MessageType createPersonBatchMpi = new MessageType(
+            RequestTypeId.CREATE_PERSON_BATCH_MPI,
+            createPersonBatchAccepted,
+            MessageType.TemplateType.createPersonBatch,
+            CREATE_PERSON_BATCH_ROOT_TAG, // Envelope of Add Requests
+            "MPI.Address", // The Master Person List address property
+            "Master Person Index", // The Master Person List
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Create Person Batch (LPI) request
+     */
+    static final MessageType createPersonBatchLpi = new MessageType(
+            RequestTypeId.CREATE_PERSON_BATCH_LPI,
+            createPersonBatchAccepted,
+            MessageType.TemplateType.createPersonBatch,
+            CREATE_PERSON_BATCH_ROOT_TAG, // Envelope of Add Requests
+            "LPI.Address", // The Local Person List address property
+            "Local Person Index", // The Local Person List
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Modify Person Batch Accepted response
+     */
+    static final MessageType modifyPersonBatchAccepted = new MessageType(
+            0, // No request type (this message is only a response).
+            null, // No response type (this mssage does not have a response to answer it).
+            MessageType.TemplateType.modifyPersonBatchAccepted,
+            MODIFY_PERSON_BATCH_ACCEPTED_ROOT_TAG, // Envelope of Revise Request Accepted messages
+            null, // No default destination address property
+            null, // No default destination name
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Modify Person Batch (MPI) request
+     */
+    static final MessageType modifyPersonBatchMpi = new MessageType(
+            RequestTypeId.MODIFY_PERSON_BATCH_MPI,
+            modifyPersonBatchAccepted,
+            MessageType.TemplateType.modifyPersonBatch,
+            MODIFY_PERSON_BATCH_ROOT_TAG, // Envelope of Revise Requests
+            "MPI.Address", // The Master Person List address property
+            "Master Person Index", // The Master Person List
+            false); // Don't store and forward if it doesn't go immediately
+    /**
+     * Modify Person Batch (LPI) request
+     */
+    static final MessageType modifyPersonBatchLpi = new MessageType(
+            RequestTypeId.MODIFY_PERSON_BATCH_LPI,
+            modifyPersonBatchAccepted,
+            MessageType.TemplateType.modifyPersonBatch,
+            MODIFY_PERSON_BATCH_ROOT_TAG, // Envelope of Revise Requests
+            "LPI.Address", // The Local Person List address property
+            "Local Person Index", // The Local Person List
+            false); // Don't store and forward if it doesn't go immediately
     /**
      * Send Log Entry
      */
@@ -192,6 +305,17 @@ class MessageTypeRegistry {
             "LoggingServer.Address", // The Logging Server address property
             "Logging Server", // The Logging Server
             true); // Store and forward if it doesn't send immediately
+    /**
+     * Send Log Entry Batch
+     */
+    static final MessageType logEntryBatch = new MessageType(
+            RequestTypeId.LOG_ENTRY_BATCH,
+            null, // No response to this message.
+            MessageType.TemplateType.logEntryBatch,
+            LOG_ENTRY_BATCH_ROOT_TAG, // Envelope of LogEntry messages
+            "LoggingServer.Address", // The Logging Server address property
+            "Logging Server", // The Logging Server
+            true); // Store and forward if it doesn't send immediately
     /**
      * Send get work
      */
@@ -241,7 +365,17 @@ class MessageTypeRegistry {
             modifyPersonAccepted,
             notifyPersonChanged,
             findPersonHdss,
+            findPersonBatchResponse,
+            findPersonBatchMpi,
+            findPersonBatchLpi,
+            createPersonBatchAccepted,
+            createPersonBatchMpi,
+            createPersonBatchLpi,
+            modifyPersonBatchAccepted,
+            modifyPersonBatchMpi,
+            modifyPersonBatchLpi,
             logEntry,
+            logEntryBatch,
             getWork,
             WorkDone,
             ReassignWork);
@@ -261,6 +395,37 @@ class MessageTypeRegistry {
         return null;
     }
 
+    /**
+     * Finds the message type of each item in a batch message. For a batch
+     * request, this is the request type that the server receives each item
+     * as. (Like a single message found by its root XML tag, this is
+     * the MPI request type even if the batch was sent to an LPI.)
+     *
+     * @param batchType message type of the batch
+     * @return <code>MessageType</code> of the items, or <code>null</code>
+     * if this is not a batch message type.
+     */
+    static MessageType findBatchItem(MessageType batchType) {
+        switch (batchType.getTemplateType()) {
+            case findPersonBatch:
+                return findPersonMpi;
+            case findPersonBatchResponse:
+                return findPersonResponse;
+            case createPersonBatch:
+                return createPersonMpi;
+            case createPersonBatchAccepted:
+                return createPersonAccepted;
+            case modifyPersonBatch:
+                return modifyPersonMpi;
+            case modifyPersonBatchAccepted:
+                return modifyPersonAccepted;
+            case logEntryBatch:
+                return logEntry;
+            default:
+                return null;
+        }
+    }
+
     /**
      * Finds a message type based on the root XML tag in the message.
      * <p>
@@ -0,0 +1,352 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import ke.go.moh.oec.QueueStatus;
+
+/**
+ * Registers the library's metrics as JMX MBeans, so they can be watched
+ * with jconsole, VisualVM or any JMX monitoring tool.
+ * <p>
+ * Three MBeans are registered in the platform MBean server, named by our
+ * instance address: {@link MediatorMetricsMXBean},
+ * {@link QueueMetricsMXBean} and {@link HttpMetricsMXBean}. The metrics
+ * themselves are counters and latency histograms kept by the classes that
+ * do the work; the MBeans only read them when asked.
+ * <p>
+ * Set Metrics.Jmx=false in the properties file to not register the MBeans.
+ */
+class MetricsMBeans {
+
+    /** JMX domain of our MBeans. */
+    static final String DOMAIN = "ke.go.moh.oec";
+    private final MBeanServer server;
+    private final List<ObjectName> names = new ArrayList<ObjectName>();
+
+    private MetricsMBeans(MBeanServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers the MBeans for a mediator (unless turned off by properties.)
+     * If MBeans with the same names are already registered (for example
+     * by an earlier mediator in the same JVM), they are replaced.
+     *
+     * @param mediator mediator whose metrics are to be registered.
+     * @return the registered MBeans, or null if none were registered.
+     */
+    static MetricsMBeans register(Mediator mediator) {
+        String jmx = Mediator.getProperty("Metrics.Jmx");
+        if (jmx != null && !Boolean.parseBoolean(jmx.trim())) {
+            return null;
+        }
+        String instance = Mediator.getProperty("Instance.Address");
+        if (instance == null) {
+            instance = "default";
+        }
+        MetricsMBeans mbeans = new MetricsMBeans(ManagementFactory.getPlatformMBeanServer());
+        try {
+            mbeans.add("Mediator", instance, new MediatorMetrics(mediator));
+            mbeans.add("QueueManager", instance, new QueueMetrics(mediator.getQueueManager()));
+            mbeans.add("HttpService", instance, new HttpMetrics(mediator.getHttpService()));
+        } catch (JMException ex) {
+            Logger.getLogger(MetricsMBeans.class.getName()).log(Level.WARNING, "Can''t register JMX MBeans", ex);
+        }
+        return mbeans;
+    }
+
+    /**
+     * Registers one MBean, replacing any already registered with the same name.
+     *
+     * @param type type key of the MBean's name.
+     * @param instance our instance address, for the name key of the MBean's name.
+     * @param mbean the MBean.
+     * @throws JMException if the MBean can't be registered.
+     */
+    private void add(String type, String instance, Object mbean) throws JMException {
+        ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(instance));
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(mbean, name);
+        names.add(name);
+    }
+
+    /**
+     * Unregisters our MBeans.
+     */
+    void unregister() {
+        for (ObjectName name : names) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException ex) {
+                Logger.getLogger(MetricsMBeans.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+        names.clear();
+    }
+
+    /**
+     * Mediator metrics.
+     */
+    static class MediatorMetrics implements MediatorMetricsMXBean {
+
+        private final Mediator mediator;
+
+        MediatorMetrics(Mediator mediator) {
+            this.mediator = mediator;
+        }
+
+        public long getSentMessageCount() {
+            return mediator.getSentMessageCount();
+        }
+
+        public long getReceivedMessageCount() {
+            return mediator.getReceivedMessageCount();
+        }
+
+        public long getRelayedMessageCount() {
+            return mediator.getRelayedMessageCount();
+        }
+
+        public long getNoResponseCount() {
+            return mediator.getNoResponseCount();
+        }
+
+        public int getPendingRequestCount() {
+            return Mediator.getPendingQueue().size();
+        }
+
+        public double getResponseMeanMillis() {
+            return mediator.getResponseLatency().getMeanMillis();
+        }
+
+        public double getResponseP50Millis() {
+            return mediator.getResponseLatency().getPercentileMillis(50);
+        }
+
+        public double getResponseP90Millis() {
+            return mediator.getResponseLatency().getPercentileMillis(90);
+        }
+
+        public double getResponseP99Millis() {
+            return mediator.getResponseLatency().getPercentileMillis(99);
+        }
+
+        public double getResponseMaxMillis() {
+            return mediator.getResponseLatency().getMaxMillis();
+        }
+
+        public long getCoalescedFindPersonCount() {
+            return mediator.getCoalescedFindPersonCount();
+        }
+
+        public long getFindPersonCacheHitCount() {
+            return mediator.getFindPersonCacheHitCount();
+        }
+
+        public long getFindPersonCacheMissCount() {
+            return mediator.getFindPersonCacheMissCount();
+        }
+
+        public long getFindPersonCacheInvalidatedCount() {
+            return mediator.getFindPersonCacheInvalidatedCount();
+        }
+
+        public int getCallbackQueueDepth() {
+            return mediator.getCallbackExecutor().getQueueDepth();
+        }
+
+        public int getCallbackPeakQueueDepth() {
+            return mediator.getCallbackExecutor().getPeakQueueDepth();
+        }
+
+        public int getCallbackActiveCount() {
+            return mediator.getCallbackExecutor().getActiveCount();
+        }
+
+        public long getCallbackCallerRunsCount() {
+            return mediator.getCallbackExecutor().getCallerRunsCount();
+        }
+
+        public long getCallbackRejectedCount() {
+            return mediator.getCallbackExecutor().getRejectedCount();
+        }
+
+        public long getCompletedTraceCount() {
+            return mediator.getTraceBuffer().getCompletedCount();
+        }
+
+        public List<String> getRecentTraces() {
+            return mediator.getTraceBuffer().getRecentTraces();
+        }
+    }
+
+    /**
+     * Store-and-forward queue metrics.
+     */
+    static class QueueMetrics implements QueueMetricsMXBean {
+
+        private final QueueManager queueManager;
+
+        QueueMetrics(QueueManager queueManager) {
+            this.queueManager = queueManager;
+        }
+
+        public int getMessageCount() {
+            return queueManager.getStatus().getMessageCount();
+        }
+
+        public long getByteCount() {
+            return queueManager.getStatus().getByteCount();
+        }
+
+        public int getMaxMessages() {
+            return queueManager.getStatus().getMaxMessages();
+        }
+
+        public long getMaxBytes() {
+            return queueManager.getStatus().getMaxBytes();
+        }
+
+        public boolean isFull() {
+            return queueManager.getStatus().isFull();
+        }
+
+        public long getRejectedCount() {
+            return queueManager.getStatus().getRejectedCount();
+        }
+
+        public long getDroppedCount() {
+            return queueManager.getStatus().getDroppedCount();
+        }
+
+        public long getArchivedCount() {
+            return queueManager.getStatus().getArchivedCount();
+        }
+
+        public Map<String, Integer> getDestinationMessageCounts() {
+            Map<String, Integer> counts = new TreeMap<String, Integer>();
+            for (Map.Entry<String, QueueStatus> e : queueManager.getStatus().getDestinationStatus().entrySet()) {
+                counts.put(e.getKey(), e.getValue().getMessageCount());
+            }
+            return counts;
+        }
+
+        public Map<String, Long> getDestinationByteCounts() {
+            Map<String, Long> counts = new TreeMap<String, Long>();
+            for (Map.Entry<String, QueueStatus> e : queueManager.getStatus().getDestinationStatus().entrySet()) {
+                counts.put(e.getKey(), e.getValue().getByteCount());
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * HTTP metrics.
+     */
+    static class HttpMetrics implements HttpMetricsMXBean {
+
+        private final HttpService httpService;
+
+        HttpMetrics(HttpService httpService) {
+            this.httpService = httpService;
+        }
+
+        public long getSendCount() {
+            return httpService.getSendCount();
+        }
+
+        public long getSendFailureCount() {
+            return httpService.getSendFailureCount();
+        }
+
+        public long getSegmentRetryCount() {
+            return httpService.getSegmentRetryCount();
+        }
+
+        public long getReceivedCount() {
+            return httpService.getReceivedCount();
+        }
+
+        public long getReceivedMd5MismatchCount() {
+            return httpService.getReceivedMd5MismatchCount();
+        }
+
+        public double getSendMeanMillis() {
+            return httpService.getSendLatency().getMeanMillis();
+        }
+
+        public double getSendP50Millis() {
+            return httpService.getSendLatency().getPercentileMillis(50);
+        }
+
+        public double getSendP90Millis() {
+            return httpService.getSendLatency().getPercentileMillis(90);
+        }
+
+        public double getSendP99Millis() {
+            return httpService.getSendLatency().getPercentileMillis(99);
+        }
+
+        public double getSendMaxMillis() {
+            return httpService.getSendLatency().getMaxMillis();
+        }
+
+        public Map<String, String> getUnreachableHops() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            Map<String, String> hops = new TreeMap<String, String>();
+            for (Map.Entry<String, Date> e : httpService.getUnreachableIpPorts().entrySet()) {
+                hops.put(e.getKey(), format.format(e.getValue()));
+            }
+            return hops;
+        }
+
+        public Map<String, String> getCircuitBreakerStates() {
+            Map<String, String> states = new TreeMap<String, String>();
+            for (NextHop hop : NextHop.getRoutingTable().getHops()) {
+                CircuitBreaker breaker = hop.getCircuitBreaker();
+                if (breaker != null) {
+                    states.put(hop.getIpAddressPort(), breaker.getState().name());
+                }
+            }
+            return states;
+        }
+    }
+}
@@ -24,12 +24,12 @@
  * ***** END LICENSE BLOCK ***** */
 package ke.go.moh.oec.lib;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,12 +44,29 @@ import java.util.logging.Logger;
 public class NextHop {
 
     private String ipAddressPort;
+    /** Hop string this hop was parsed from (null if it wasn't parsed from one.) */
+    private String hopString = null;
     private int maxSize = Integer.MAX_VALUE; // Default maxSize setting;
     private boolean zip = false;
     private boolean md5Required = false;
     private boolean lengthRequired = false;
-    static private Map<String, NextHop> nextHopByAddress = new HashMap<String, NextHop>();
-    static private Map<String, NextHop> nextHopByIpPort = new HashMap<String, NextHop>();
+    private int weight = 1;
+    private int connectTimeout = 0; // Milliseconds, 0 for no timeout.
+    private int readTimeout = 0; // Milliseconds, 0 for no timeout.
+    private int maxInFlight = 0; // Maximum concurrent sends, 0 for no limit.
+    private int queueTimeout = 0; // Milliseconds to wait for a send slot, 0 to fail at once.
+    /** Send slots if there is a maximum number of concurrent sends, otherwise null. */
+    private Semaphore inFlight = null;
+    /** Route this hop belongs to (null if none.) */
+    private Route route = null;
+    /** Number of sends to this hop in progress. */
+    private AtomicInteger outstanding = new AtomicInteger();
+    /** Circuit breaker for sends to this hop. */
+    private CircuitBreaker circuitBreaker = new CircuitBreaker(5, 30000);
+    /** Routes compiled from the properties (null until first used.) */
+    static private volatile RoutingTable routingTable = null;
+    /** Runs the background work for the routing table (null until started.) */
+    static private ScheduledExecutorService maintenanceExecutor = null;
 
     public String getIpAddressPort() {
         return ipAddressPort;
@@ -91,8 +108,154 @@ public class NextHop {
         this.zip = zip;
     }
 
-    private static NextHop parseHopString(String hopString) {
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        inFlight = (maxInFlight > 0 ? new Semaphore(maxInFlight, true) : null);
+    }
+
+    public int getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public void setQueueTimeout(int queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * Gets a slot to send to this hop, if the number of concurrent sends is limited.
+     * If all the slots are in use, waits up to the queue timeout for one.
+     *
+     * @return true if we may send, false if the hop is too busy.
+     */
+    boolean acquireSendSlot() {
+        Semaphore s = inFlight;
+        if (s == null) {
+            return true;
+        }
+        try {
+            return queueTimeout > 0 ? s.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS) : s.tryAcquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Gives back a slot from {@link #acquireSendSlot()}.
+     */
+    void releaseSendSlot() {
+        Semaphore s = inFlight;
+        if (s != null) {
+            s.release();
+        }
+    }
+
+    Route getRoute() {
+        return route;
+    }
+
+    void setRoute(Route route) {
+        this.route = route;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Notes that a send to this hop has started.
+     */
+    void sendStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Notes that a send to this hop has finished.
+     */
+    void sendFinished() {
+        outstanding.decrementAndGet();
+    }
+
+    String getHopString() {
+        return hopString;
+    }
+
+    /**
+     * Takes over the send slots and the count of sends in progress (and, if
+     * asked, the circuit breaker) of the same hop in an older routing table.
+     * Sends to the old hop that are still in progress then give back their
+     * slots to this hop, and a reload doesn't close an open circuit breaker.
+     *
+     * @param old the same hop in the older routing table.
+     * @param keepCircuitBreaker true to take over the circuit breaker as well.
+     */
+    void keepStateOf(NextHop old, boolean keepCircuitBreaker) {
+        inFlight = old.inFlight;
+        outstanding = old.outstanding;
+        if (keepCircuitBreaker) {
+            circuitBreaker = old.circuitBreaker;
+        }
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Parses a hop string: an IP address (or host name) and port, followed by
+     * any of these options, each after a '/':
+     * <p>
+     * zip - send the message compressed <br>
+     * length - require a Content-Length header on messages from this hop <br>
+     * md5 - require a Content-MD5 header on messages from this hop <br>
+     * maxSize=n - send messages larger than n bytes in segments <br>
+     * weight=n - relative share of messages, if the route has several hops <br>
+     * connectTimeout=n - milliseconds to wait to connect (default no limit) <br>
+     * readTimeout=n - milliseconds to wait for the response (default no limit) <br>
+     * maxInFlight=n - maximum number of messages being sent to this hop at once <br>
+     * queueTimeout=n - milliseconds to wait for a send when maxInFlight
+     * messages are already being sent (default 0: the send fails at once)
+     * <p>
+     * For example: 10.0.0.1:9721/zip/connectTimeout=5000/readTimeout=30000/maxInFlight=20
+     *
+     * @param hopString the hop string.
+     * @return the next hop.
+     */
+    static NextHop parseHopString(String hopString) {
         NextHop hop = new NextHop();
+        hop.hopString = hopString;
         int slash = hopString.indexOf("/");
         if (slash > 0) {
             String options = hopString.substring(slash + 1);
@@ -108,6 +271,16 @@ public class NextHop {
                 String[] pair = opt.split("=");
                 if (pair[0].equalsIgnoreCase("maxSize")) {
                     hop.maxSize = Integer.parseInt(pair[1]);
+                } else if (pair[0].equalsIgnoreCase("weight")) {
+                    hop.weight = Math.max(1, Integer.parseInt(pair[1]));
+                } else if (pair[0].equalsIgnoreCase("connectTimeout")) {
+                    hop.connectTimeout = Integer.parseInt(pair[1]);
+                } else if (pair[0].equalsIgnoreCase("readTimeout")) {
+                    hop.readTimeout = Integer.parseInt(pair[1]);
+                } else if (pair[0].equalsIgnoreCase("maxInFlight")) {
+                    hop.setMaxInFlight(Integer.parseInt(pair[1]));
+                } else if (pair[0].equalsIgnoreCase("queueTimeout")) {
+                    hop.queueTimeout = Integer.parseInt(pair[1]);
                 }
             }
         }
@@ -115,6 +288,93 @@ public class NextHop {
         return hop;
     }
 
+    /**
+     * Gets the routing table, compiling it from the properties the first time.
+     *
+     * @return the routing table.
+     */
+    static RoutingTable getRoutingTable() {
+        RoutingTable table = routingTable;
+        if (table == null) {
+            synchronized (NextHop.class) {
+                table = routingTable;
+                if (table == null) {
+                    table = RoutingTable.compile(Mediator.getProperties());
+                    routingTable = table;
+                    startMaintenance();
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Compiles a new routing table from the current properties and puts it
+     * in place of the old one. Lookups in progress finish with the old table.
+     * Hops that are unchanged keep their send slots, sends in progress and
+     * circuit breakers (see {@link RoutingTable#compile(java.util.Properties, RoutingTable)}.)
+     * Host names resolved for the old table are used until they are resolved
+     * again, which starts at once in the background. The background work is
+     * restarted, in case its properties have changed.
+     */
+    static void reloadRoutingTable() {
+        synchronized (NextHop.class) {
+            routingTable = RoutingTable.compile(Mediator.getProperties(), routingTable);
+            startMaintenance();
+        }
+    }
+
+    /**
+     * Starts the background work for the routing table: resolving the next hop
+     * host names now and every NextHop.DnsRefreshSeconds (default 300), and,
+     * if NextHop.ProbeSeconds is set, probing the next hops at that interval
+     * (with a connect timeout of NextHop.ProbeTimeoutMillis, default 2000.)
+     * The background work always uses the current routing table.
+     * If the background work was already running, it is restarted.
+     */
+    private static void startMaintenance() {
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+        }
+        String refreshSeconds = Mediator.getProperty("NextHop.DnsRefreshSeconds");
+        long period = (refreshSeconds != null ? Long.parseLong(refreshSeconds.trim()) : 300);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "NextHop maintenance");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                try {
+                    routingTable.refreshReverseIndex();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(NextHop.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, 0, period, TimeUnit.SECONDS);
+        String probeSeconds = Mediator.getProperty("NextHop.ProbeSeconds");
+        if (probeSeconds != null && Long.parseLong(probeSeconds.trim()) > 0) {
+            String probeTimeout = Mediator.getProperty("NextHop.ProbeTimeoutMillis");
+            final int timeoutMillis = (probeTimeout != null ? Integer.parseInt(probeTimeout.trim()) : 2000);
+            long probePeriod = Long.parseLong(probeSeconds.trim());
+            executor.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    try {
+                        routingTable.probeHops(timeoutMillis);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(NextHop.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }, probePeriod, probePeriod, TimeUnit.SECONDS);
+        }
+        maintenanceExecutor = executor;
+    }
+
     /**
      * Gets next hop information for a destination address
      * <p>
@@ -132,135 +392,33 @@ public class NextHop {
      * IpAddressPort.aa.bb      <br>
      * IpAddressPort.aa         <br>
      * IpAddressPort.*          <br>
+     * <p>
+     * If the property lists more than one next hop, separated by commas,
+     * one of them is chosen for each message (see {@link Route}.)
+     * <p>
+     * The properties are compiled once into a {@link RoutingTable}, so this
+     * lookup does not lock, and takes time proportional to the number of
+     * segments in the address.
      *
      * @param destination where the message is to be sent
      * @return IP address:port to which to forward the message.
      * Returns <code>null</code> if the destination is ourselves,
      * or the destination address cannot be translated to IP + port.
      */
-    public static synchronized NextHop getNextHopByAddress(String destination) {
-        //
-        // If the destination is us, return null. This means that
-        // we don't have to go to the network to find the address;
-        // the address is our own.
-        //
-        if (destination.equalsIgnoreCase(Mediator.getProperty("Instance.Address"))) {
-            return null;
-        }
-        //
-        // If we have the next hop already in our cache, return it.
-        //
-        NextHop hop = nextHopByAddress.get(destination);
-        //
-        // If it wasn't in our cache, parse it from the properties.
-        // (Note that it may have been in our cache with a value of null. Check for that.)
-        //
-        if (hop == null && !nextHopByAddress.containsKey(destination)) {
-            final String propertyPrefix = "IPAddressPort.";
-            //
-            // Check for an explicit entry for this destination address.
-            //
-            String hopString = Mediator.getProperty(propertyPrefix + destination);
-            //
-            // If there was no entry for the whole address, try successively
-            // shorter strings by chopping off the end from the last '.' character.
-            //
-            String d = destination;
-            while (hopString == null) {
-                int i = d.lastIndexOf('.');
-                //
-                // If there are no more segments to chop, try for
-                // the catch-all wildcard entry.
-                //
-                if (i < 0) {
-                    hopString = Mediator.getProperty(propertyPrefix + "*");
-                    break;
-                }
-                //
-                // Chop the string and look for the next higher level.
-                //
-                d = d.substring(0, i);
-                hopString = Mediator.getProperty(propertyPrefix + d);
-            }
-            if (hopString != null) {
-                hop = parseHopString(hopString);
-            }
-            // Put it in our cache (whether result was null or not) for the next time.
-            nextHopByAddress.put(destination, hop);
-        }
-        return hop;
-    }
-
-    /**
-     * Resolves an IP address by translating any symbolic host name
-     * to numerical form, if necessary.
-     * 
-     * @param address IP address (and port) to translate
-     * @return IP address translated to numerical form (and port, if present).
-     */
-    private static String numericIpAddress(String address) {
-        String returnValue = address;
-        String ip = address;
-        int i = address.indexOf(":");
-        if (i >= 0) {
-            ip = address.substring(0, i);
-        }
-        InetAddress ia = null;
-        try {
-            ia = InetAddress.getByName(ip);
-        } catch (UnknownHostException ex) {
-            Logger.getLogger(NextHop.class.getName()).log(Level.SEVERE, "Can't translate IP address '" + address + "'", ex);
-        }
-        if (ia != null) {
-            returnValue = ia.getHostAddress();
-            if (i >= 0) {
-                returnValue += address.substring(i);
-            }
-        }
-        return returnValue;
+    public static NextHop getNextHopByAddress(String destination) {
+        return getRoutingTable().lookup(destination);
     }
 
     /**
      * Gets next hop information for a numeric IP address and (if we have it) port number.
+     * <p>
+     * This looks in a reverse index from IP address (and port) to next hop
+     * that is kept up to date in the background, so it never waits for DNS.
      * 
      * @param address numeric IP address and (if we have it) port number.
-     * @return next hop information.
+     * @return next hop information, or null if no next hop has this address.
      */
-    public static synchronized NextHop getNextHopByIpPort(String address) {
-        //
-        // If we have the next hop already in our cache, return it.
-        //
-        NextHop hop = nextHopByIpPort.get(address);
-        //
-        // If it wasn't in our cache, parse it from the properties.
-        // (Note that it may have been in our cache with a value of null. Check for that.)
-        //
-        if (hop == null && !nextHopByIpPort.containsKey(address)) {
-            int portSeparator = address.indexOf(":");
-            Properties props = Mediator.getProperties();
-            for (Enumeration e = props.propertyNames(); e.hasMoreElements();) {
-                String propName = (String) e.nextElement();
-                if (propName.startsWith("IPAddressPort")) {
-                    String hopString = props.getProperty(propName);
-                    hop = parseHopString(hopString);
-                    String numericIp = numericIpAddress(hop.ipAddressPort);
-                    //
-                    // If we only came here with an IP address (no port),
-                    // then strip the port number off the properties entry for comparision.
-                    if (portSeparator < 0) {
-                        int i = numericIp.indexOf(":");
-                        if (i >= 0) {
-                            numericIp = numericIp.substring(0, i);
-                        }
-                    }
-                    if (address.equals(numericIp)) {
-                        break; // NextHop is found
-                    }
-                }
-            }
-            // Put it in our cache (whether result was null or not) for the next time.
-            nextHopByIpPort.put(address, hop);
-        }
-        return hop;
+    public static NextHop getNextHopByIpPort(String address) {
+        return getRoutingTable().lookupByIpPort(address);
     }
 }
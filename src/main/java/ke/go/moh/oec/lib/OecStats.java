@@ -0,0 +1,284 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes a JSON snapshot of the library's metrics, for the /oecstats
+ * HTTP context (see {@link HttpService}.)
+ * <p>
+ * The snapshot has the same numbers as the JMX MBeans (see
+ * {@link MetricsMBeans}), plus the routing table and the state of each
+ * next hop, so a monitoring scraper can poll a node without JMX access.
+ * Times are in milliseconds.
+ */
+final class OecStats {
+
+    private OecStats() {
+    }
+
+    /**
+     * Makes a JSON snapshot of the metrics.
+     *
+     * @param mediator mediator whose metrics to report.
+     * @return the metrics as a JSON object.
+     */
+    static String toJson(Mediator mediator) {
+        MetricsMBeans.MediatorMetrics mm = new MetricsMBeans.MediatorMetrics(mediator);
+        MetricsMBeans.QueueMetrics qm = new MetricsMBeans.QueueMetrics(mediator.getQueueManager());
+        MetricsMBeans.HttpMetrics hm = new MetricsMBeans.HttpMetrics(mediator.getHttpService());
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        Json j = new Json();
+        j.begin();
+        j.field("instanceName", Mediator.getProperty("Instance.Name"));
+        j.field("instanceAddress", Mediator.getProperty("Instance.Address"));
+        j.field("time", dateFormat.format(new Date()));
+
+        j.begin("messages");
+        j.field("sent", mm.getSentMessageCount());
+        j.field("received", mm.getReceivedMessageCount());
+        j.field("relayed", mm.getRelayedMessageCount());
+        j.field("noResponse", mm.getNoResponseCount());
+        j.field("pendingRequests", mm.getPendingRequestCount());
+        j.end();
+        latency(j, "responseLatency", mediator.getResponseLatency());
+
+        j.begin("http");
+        j.field("sent", hm.getSendCount());
+        j.field("sendFailures", hm.getSendFailureCount());
+        j.field("segmentRetries", hm.getSegmentRetryCount());
+        j.field("received", hm.getReceivedCount());
+        j.field("receivedMd5Mismatches", hm.getReceivedMd5MismatchCount());
+        j.end();
+        latency(j, "sendLatency", mediator.getHttpService().getSendLatency());
+
+        j.begin("findPerson");
+        j.field("coalesced", mm.getCoalescedFindPersonCount());
+        j.field("cacheHits", mm.getFindPersonCacheHitCount());
+        j.field("cacheMisses", mm.getFindPersonCacheMissCount());
+        j.field("cacheInvalidated", mm.getFindPersonCacheInvalidatedCount());
+        j.end();
+
+        j.begin("callbacks");
+        j.field("queueDepth", mm.getCallbackQueueDepth());
+        j.field("peakQueueDepth", mm.getCallbackPeakQueueDepth());
+        j.field("active", mm.getCallbackActiveCount());
+        j.field("callerRuns", mm.getCallbackCallerRunsCount());
+        j.field("rejected", mm.getCallbackRejectedCount());
+        j.end();
+
+        j.begin("queue");
+        j.field("messages", qm.getMessageCount());
+        j.field("bytes", qm.getByteCount());
+        j.field("maxMessages", qm.getMaxMessages());
+        j.field("maxBytes", qm.getMaxBytes());
+        j.field("full", qm.isFull());
+        j.field("rejected", qm.getRejectedCount());
+        j.field("dropped", qm.getDroppedCount());
+        j.field("archived", qm.getArchivedCount());
+        j.begin("destinations");
+        Map<String, Long> destinationBytes = qm.getDestinationByteCounts();
+        for (Map.Entry<String, Integer> e : qm.getDestinationMessageCounts().entrySet()) {
+            j.begin(e.getKey());
+            j.field("messages", e.getValue());
+            j.field("bytes", destinationBytes.get(e.getKey()));
+            j.end();
+        }
+        j.end();
+        j.end();
+
+        TraceBuffer traceBuffer = mediator.getTraceBuffer();
+        j.begin("traces");
+        j.field("completed", traceBuffer.getCompletedCount());
+        j.end();
+        latency(j, "traceLatency", traceBuffer.getTotalLatency());
+        j.beginArray("recentTraces");
+        for (String trace : traceBuffer.getRecentTraces()) {
+            j.value(trace);
+        }
+        j.endArray();
+
+        RoutingTable routingTable = NextHop.getRoutingTable();
+        j.begin("routes");
+        for (Map.Entry<String, Route> e : routingTable.getRoutes().entrySet()) {
+            j.beginArray(e.getKey());
+            for (NextHop hop : e.getValue().getHops()) {
+                j.value(hop.getIpAddressPort());
+            }
+            j.endArray();
+        }
+        j.end();
+
+        Map<String, Date> unreachable = mediator.getHttpService().getUnreachableIpPorts();
+        j.begin("nextHops");
+        List<NextHop> hops = routingTable.getHops();
+        for (NextHop hop : hops) {
+            j.begin(hop.getIpAddressPort());
+            CircuitBreaker breaker = hop.getCircuitBreaker();
+            if (breaker != null) {
+                j.field("circuitBreaker", breaker.getState().name());
+                j.field("consecutiveFailures", breaker.getConsecutiveFailures());
+            }
+            j.field("inFlight", hop.getOutstanding());
+            j.field("maxInFlight", hop.getMaxInFlight());
+            Date since = unreachable.get(hop.getIpAddressPort());
+            j.field("unreachableSince", since == null ? null : dateFormat.format(since));
+            j.end();
+        }
+        j.end();
+        j.end();
+        return j.toString();
+    }
+
+    /**
+     * Adds a latency histogram summary to the JSON.
+     *
+     * @param j JSON being built.
+     * @param name field name for the summary.
+     * @param h histogram to summarize.
+     */
+    private static void latency(Json j, String name, LatencyHistogram h) {
+        j.begin(name);
+        j.field("count", h.getCount());
+        j.field("meanMillis", h.getMeanMillis());
+        j.field("p50Millis", h.getPercentileMillis(50));
+        j.field("p90Millis", h.getPercentileMillis(90));
+        j.field("p99Millis", h.getPercentileMillis(99));
+        j.field("maxMillis", h.getMaxMillis());
+        j.end();
+    }
+
+    /**
+     * Builds JSON text, keeping track of where commas are needed.
+     */
+    private static class Json {
+
+        private final StringBuilder sb = new StringBuilder(4096);
+        /** True if the next value in the current object or array needs a comma before it. */
+        private boolean comma = false;
+
+        void begin() {
+            separate();
+            sb.append('{');
+            comma = false;
+        }
+
+        void begin(String name) {
+            name(name);
+            sb.append('{');
+            comma = false;
+        }
+
+        void end() {
+            sb.append('}');
+            comma = true;
+        }
+
+        void beginArray(String name) {
+            name(name);
+            sb.append('[');
+            comma = false;
+        }
+
+        void endArray() {
+            sb.append(']');
+            comma = true;
+        }
+
+        void field(String name, Object value) {
+            name(name);
+            literal(value);
+            comma = true;
+        }
+
+        void value(Object value) {
+            separate();
+            literal(value);
+            comma = true;
+        }
+
+        private void name(String name) {
+            separate();
+            string(name);
+            sb.append(':');
+        }
+
+        private void separate() {
+            if (comma) {
+                sb.append(',');
+            }
+        }
+
+        private void literal(Object value) {
+            if (value == null) {
+                sb.append("null");
+            } else if (value instanceof Number || value instanceof Boolean) {
+                sb.append(value);
+            } else {
+                string(value.toString());
+            }
+        }
+
+        private void string(String s) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
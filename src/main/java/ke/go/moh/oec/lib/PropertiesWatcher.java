@@ -0,0 +1,140 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the properties file, and reloads the configuration when it changes.
+ * <p>
+ * Editors often save a file in several steps (or by writing a new file and
+ * renaming it), so after a change we wait a moment for things to settle
+ * and then reload once. Watching is on unless the property
+ * Properties.HotReload is set to false. It is only possible when the
+ * properties were loaded from a file (not from a resource in the jar.)
+ */
+class PropertiesWatcher implements Runnable {
+
+    /** How long to wait after a change before reloading. */
+    private static final long SETTLE_MILLIS = 500;
+    private final Mediator mediator;
+    private final File file;
+    private WatchService watchService;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a watcher.
+     *
+     * @param mediator mediator whose configuration to reload.
+     * @param file properties file to watch.
+     */
+    PropertiesWatcher(Mediator mediator, File file) {
+        this.mediator = mediator;
+        this.file = file.getAbsoluteFile();
+    }
+
+    /**
+     * Starts watching in a background thread.
+     */
+    void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            file.getParentFile().toPath().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            Logger.getLogger(PropertiesWatcher.class.getName()).log(Level.WARNING,
+                    "Can''t watch " + file + " for changes", ex);
+            return;
+        }
+        Thread t = new Thread(this, "Properties watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    void stop() {
+        stopped = true;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                Logger.getLogger(PropertiesWatcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Waits for changes to the properties file, and reloads after each change.
+     */
+    public void run() {
+        long lastModified = file.lastModified();
+        try {
+            while (!stopped) {
+                WatchKey key = watchService.take();
+                boolean changed = isOurFile(key);
+                while (changed && (key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    isOurFile(key); // Let the changes settle.
+                }
+                if (changed && file.lastModified() != lastModified && file.isFile()) {
+                    lastModified = file.lastModified();
+                    mediator.reloadConfiguration();
+                }
+            }
+        } catch (InterruptedException ex) {
+        } catch (ClosedWatchServiceException ex) {
+        }
+    }
+
+    /**
+     * Checks the events of a watch key for our file, and resets the key.
+     *
+     * @param key the watch key.
+     * @return true if one of the events was for our file, otherwise false.
+     */
+    private boolean isOurFile(WatchKey key) {
+        boolean ours = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && ((Path) context).getFileName().toString().equals(file.getName())) {
+                ours = true;
+            }
+        }
+        key.reset();
+        return ours;
+    }
+}
@@ -0,0 +1,103 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps queued messages that were taken out of the queue to make room
+ * for new messages (with the QueueManager.OverflowPolicy of archive), so
+ * they can be recovered and sent later by hand.
+ * <p>
+ * Archived messages are written to one file per day in the
+ * QUEUEMANAGER_ARCHIVE directory, named archive-yyyyMMdd.gz. Each group
+ * of messages archived together is appended to the file as another GZIP
+ * member (standard GZIP readers read the members one after the other.)
+ * The uncompressed contents are a sequence of records, one per message:
+ * <p>
+ * destination (modified UTF-8, as written by <code>DataOutputStream.writeUTF</code>) <br>
+ * coalescing key (modified UTF-8, or empty if none) <br>
+ * priority (int) <br>
+ * hop count (int) <br>
+ * expiration time in milliseconds (long, 0 if never) <br>
+ * length of the compressed message XML (int) <br>
+ * compressed message XML (bytes)
+ */
+class QueueArchive {
+
+    private static final String ARCHIVE_DIRECTORY_NAME = "QUEUEMANAGER_ARCHIVE";
+
+    /**
+     * Appends messages to today's archive file.
+     *
+     * @param messages messages to archive, with their compressed XML filled in.
+     * @return true if all the messages were written, otherwise false.
+     */
+    synchronized boolean write(List<QueuedMessage> messages) {
+        File directory = new File(Mediator.getRuntimeDirectory() + ARCHIVE_DIRECTORY_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Logger.getLogger(QueueArchive.class.getName()).log(Level.SEVERE,
+                    "Can''t create queue archive directory {0}", directory);
+            return false;
+        }
+        String fileName = "archive-" + new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".gz";
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(new File(directory, fileName), true)));
+            for (QueuedMessage q : messages) {
+                out.writeUTF(q.getDestination());
+                out.writeUTF(q.getCoalesceKey() != null ? q.getCoalesceKey() : "");
+                out.writeInt(q.getPriority());
+                out.writeInt(q.getHopCount());
+                out.writeLong(q.getExpires());
+                out.writeInt(q.getCompressedXmlLength());
+                out.write(q.getCompressedXml(), 0, q.getCompressedXmlLength());
+            }
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(QueueArchive.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(QueueArchive.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+}
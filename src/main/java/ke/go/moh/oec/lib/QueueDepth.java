@@ -0,0 +1,64 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+/**
+ * Number of messages, and their total size, in a queue store
+ * (or in the part of a queue store for one destination.)
+ */
+class QueueDepth {
+
+    /** Number of messages. */
+    private int count;
+    /** Total size in bytes of the compressed XML of the messages. */
+    private long bytes;
+
+    QueueDepth() {
+    }
+
+    QueueDepth(QueueDepth other) {
+        this.count = other.count;
+        this.bytes = other.bytes;
+    }
+
+    /**
+     * Adds messages to (or, if negative, subtracts messages from) the depth.
+     *
+     * @param count number of messages to add.
+     * @param bytes total size of the messages to add.
+     */
+    void add(int count, long bytes) {
+        this.count += count;
+        this.bytes += bytes;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
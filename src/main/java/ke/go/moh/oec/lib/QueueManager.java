@@ -26,29 +26,123 @@
 package ke.go.moh.oec.lib;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonIdentifier;
+import ke.go.moh.oec.PersonRequest;
+import ke.go.moh.oec.QueueStatus;
 
 /**
  * Offers a store-and-forward queueing facility to send messages to a
  * network destination. If the message cannot be sent immediately, it is
  * queued for later sending. The Queue Manager periodically tries to
  * send queued messages to their respective destinations.
+ * <p>
+ * Queued messages are kept in a {@link QueueStore}, selected by the
+ * property QueueManager.Store:
+ * <p>
+ * derby - an embedded JavaDB database (the default) <br>
+ * journal - a memory-mapped append-only journal (lighter for small machines)
+ * <p>
+ * Each queued message has a priority, from its message type. Messages are
+ * sent in priority lanes: all queued messages of the highest priority (for
+ * every destination) are sent before any message of the next priority, and
+ * so on. If a message of higher priority is queued while we are sending a
+ * lower priority lane, we go back and send the higher priority first.
+ * Priorities can be set for each message template type with properties like:
+ * <p>
+ * QueueManager.Priority.logEntry=2
+ * <p>
+ * Higher numbers are sent first. The default priorities are 8 for
+ * createPerson, modifyPerson and notifyPersonChanged, 2 for logEntry
+ * and 5 for anything else. Within a lane, each destination's messages are
+ * sent in the order they were queued, so messages that change a person
+ * should share a priority: otherwise a change to a person could reach
+ * the MPI or LPI before the message creating that person. (A warning is
+ * logged if createPerson has a lower priority than the others.)
+ * <p>
+ * Batch messages are queued with the priority and time to live of the
+ * items they carry: for example, a logEntryBatch is queued like a logEntry.
+ * <p>
+ * A message type may also have a time to live, after which its queued
+ * messages are dropped instead of sent. For example:
+ * <p>
+ * QueueManager.TimeToLiveSeconds.logEntry=86400
+ * <p>
+ * There is no time to live unless one is set.
+ * <p>
+ * notifyPersonChanged and modifyPerson messages may optionally be coalesced,
+ * with properties like:
+ * <p>
+ * QueueManager.Coalesce.modifyPerson=true
+ * <p>
+ * When such a message is queued, any older queued message of the same type
+ * to the same destination for the same person (identified by person GUID,
+ * or else by all the person identifiers) is removed, so only the latest
+ * state of the person is sent. This saves time and bandwidth when a record
+ * is edited many times while the destination can't be reached.
+ * <p>
+ * When a queued message is relayed, its priority, remaining time to live
+ * and coalescing key go with it so that relays (which don't unpack the
+ * message) queue it the same way.
+ * <p>
+ * The size of the queue may be limited, in total and for each destination,
+ * by number of messages and by total (compressed) bytes:
+ * <p>
+ * QueueManager.MaxMessages=100000 <br>
+ * QueueManager.MaxBytes=1000000000 <br>
+ * QueueManager.MaxMessagesPerDestination=50000 <br>
+ * QueueManager.MaxBytesPerDestination=500000000
+ * <p>
+ * There is no limit unless one is set. When a message would go over
+ * a limit, QueueManager.OverflowPolicy decides what happens:
+ * <p>
+ * reject - the new message is not queued (the default) <br>
+ * dropOldest - the oldest queued messages of the lowest priority are
+ * dropped to make room <br>
+ * archive - like dropOldest, but the messages are first written to a
+ * compressed archive file (see {@link QueueArchive})
+ * <p>
+ * Messages of higher priority than the new message are never dropped or
+ * archived for it; if there is no room otherwise, the new message is
+ * rejected. The limits are checked as each message is queued, so with
+ * many threads queueing at once, the queue can briefly go over a limit
+ * by the size of one group commit. Clients can call
+ * {@link #getStatus()} (through <code>Mediator.getQueueStatus()</code>)
+ * to slow down before the queue fills up.
+ * <p>
+ * Concurrent enqueues are added to the store together as one group (group
+ * commit), and queued messages are read a page at a time for each destination.
+ * The contents of queued messages are read one at a time, just before each
+ * is sent, so the memory used to drain the queue does not depend on how
+ * many messages are queued.
  *
  * @author Scott Davis
  * @author Jim Grace
  */
 class QueueManager implements Runnable {
 
+    /** Logger for the busy code paths. */
+    private static final CachedLogger logger = CachedLogger.get(QueueManager.class);
     /* HTTP Handler object we can call to send HTTP messages. */
     private HttpService httpService;
 
@@ -56,49 +150,132 @@ class QueueManager implements Runnable {
     private boolean pollingThreadStarted = false;
 
     /* Indication if it is time to shut down -- stop() has been called. */
-    private boolean timeToShutDown = false;
+    private volatile boolean timeToShutDown = false;
     /* Disable Queue Manager functions (just pass through -- used for debugging) */
     private boolean queueManagerDisabled = false;
 
     /* Interval at which to retry sending queued messages. */
-    private int pollingInterval;
-    //----------------------------------------------------------
-    //       DATABASE CONNECTION VARIABLES
-    //  Includes Log-on information to connect to the database. 
-    //----------------------------------------------------------
-    /* The Connection to the database used to perform database operations. */
-    private Connection dataBaseConnection;
+    private volatile int pollingInterval;
+    /* Maximum number of queued messages to read from the store at a time. */
+    private volatile int pageSize;
+    /* Where the queued messages are kept. */
+    private QueueStore store;
+    /* Priority of messages of types with no other priority. */
+    static final int DEFAULT_PRIORITY = 5;
     /*
-     * The connection protocol String to establish a database connection.
-     *
-     * In embedded mode(local connection), the protocol derby default is 
-     * "jdbc:derby:" plus the name of the data base.
-     * 
-     * In client/server mode, the derby default is: 
-     * "jdbc:derby://localhost:" + PORT_NUMBER + "/".
+     * Queue priority for each message template type, time to live in seconds
+     * for each message template type that has one, and message template types
+     * whose queued messages are coalesced. (Each is replaced as a whole when
+     * the properties are reloaded.)
      */
-    private String PROTOCOL = "jdbc:derby:";
+    private volatile Map<MessageType.TemplateType, Integer> priorities;
+    private volatile Map<MessageType.TemplateType, Integer> timesToLive;
+    private volatile Set<MessageType.TemplateType> coalescedTypes;
+    /* Priority lane being sent by the polling thread (or MIN_VALUE if none.) */
+    private volatile int drainingPriority = Integer.MIN_VALUE;
+    /* Has a message been queued with a higher priority than the lane being sent? */
+    private volatile boolean higherPriorityQueued = false;
     /*
-     * The name of the java database that will be created.  It can be found 
-     * in a folder with the database name in the "derby.system.home" directory.
+     * Messages waiting to be added by the next group commit, and
+     * whether some thread is currently adding and committing a group.
+     */
+    private final List<PendingInsert> pendingInserts = new ArrayList<PendingInsert>();
+    /** Maximum number of traces of queued messages to remember. */
+    private static final int MAX_QUEUED_TRACES = 1000;
+    /**
+     * Traces of traced messages that are in the queue (see {@link TraceBuffer}),
+     * by the message ID the store gave them. Kept in memory only.
      */
-    private String DATABASE_NAME = "QUEUEMANAGER_DATABASE";
-    /* The name of the JavaDB table. */
-    private final String TABLE_NAME = "MESSAGE_SENDING_QUEUE";
+    private final Map<Long, String> queuedTraces = new LinkedHashMap<Long, String>() {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > MAX_QUEUED_TRACES;
+        }
+    };
+    private boolean groupCommitInProgress = false;
+    /* Overflow policies. */
+    static final String OVERFLOW_REJECT = "reject";
+    static final String OVERFLOW_DROP_OLDEST = "dropOldest";
+    static final String OVERFLOW_ARCHIVE = "archive";
+    /* Queue limits (0 if no limit.) */
+    private volatile int maxMessages;
+    private volatile long maxBytes;
+    private volatile int maxMessagesPerDestination;
+    private volatile long maxBytesPerDestination;
+    /* What to do when a message would go over a queue limit. */
+    private volatile String overflowPolicy = OVERFLOW_REJECT;
+    /* Where messages are archived with the archive overflow policy. */
+    private final QueueArchive archive = new QueueArchive();
+    /* Lock held while checking the queue limits and making room for a message. */
+    private final Object capacityLock = new Object();
+    /* Was the queue full the last time a message was rejected? (Use while holding the capacity lock.) */
+    private boolean rejecting = false;
+    /* Number of messages rejected, dropped and archived because the queue was full. */
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong archivedCount = new AtomicLong();
+
+    /**
+     * A message waiting to be added to the queue by a group commit.
+     */
+    private static class PendingInsert {
+
+        private QueuedMessage message;
+        /** Trace of the message, or null if it is not traced. */
+        private String trace;
+        /** Has the group containing this message been committed (or failed)? */
+        private boolean done = false;
+        /** Was the message successfully added to the queue? */
+        private boolean added = false;
+    }
 
     /**
      * Constructor to set <code>HttpService</code> object for sending messages.</p>
      * 
-     * <p> It sets the link to the HttpSetvice object. Then it establishes a 
-     * Connection to a JavaDB Data Base. The Connection can be embedded or client.
-     * If the Connection is created successfully, it creates a table and initializes
-     * the connectionDownList.</p>
+     * <p> It sets the link to the HttpSetvice object. Then it opens the
+     * queue store selected by the QueueManager.Store property.</p>
      *
      * @param httpService <code>HttpService</code> object for sending messages
      */
     QueueManager(HttpService httpService) {
         this.httpService = httpService;
+        loadProperties();
+
+        String disable = Mediator.getProperty("QueueManager.Disable");
+        if (disable != null && disable.trim().compareToIgnoreCase("true") == 0) {
+            queueManagerDisabled = true;
+        } else {
+            String storeType = Mediator.getProperty("QueueManager.Store");
+            if (storeType != null && storeType.trim().equalsIgnoreCase("journal")) {
+                store = new JournalQueueStore();
+            } else {
+                store = new DerbyQueueStore();
+            }
+            if (!store.open()) {
+                Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE,
+                        "Can''t open queue store {0}", store.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Reloads the queue manager settings after the properties have been
+     * reloaded. The queue store and whether the queue manager is disabled
+     * can't be changed without a restart. The polling thread (if waiting)
+     * is woken up so that it will wait with the new polling interval.
+     */
+    void reloadProperties() {
+        loadProperties();
+        synchronized (this) {
+            this.notify();
+        }
+    }
 
+    /**
+     * Loads the queue manager settings from the properties.
+     */
+    private void loadProperties() {
         // set polling interval
         String queueManagerPollingIntervalSeconds = Mediator.getProperty("QueueManager.PollingIntervalSeconds");
         if (queueManagerPollingIntervalSeconds != null) {
@@ -107,17 +284,156 @@ class QueueManager implements Runnable {
             pollingInterval = 10 * 60 * 1000; // Default polling interval of 10 minutes.
         }
 
-        String disable = Mediator.getProperty("QueueManager.Disable");
-        if (disable != null && disable.trim().compareToIgnoreCase("true") == 0) {
-            queueManagerDisabled = true;
+        String queueManagerPageSize = Mediator.getProperty("QueueManager.PageSize");
+        if (queueManagerPageSize != null) {
+            pageSize = Integer.parseInt(queueManagerPageSize);
         } else {
-            //link the Connection to the database
-            dataBaseConnection = establishDataBaseConnection();
+            pageSize = 50; // Default number of queued messages to read at a time.
+        }
 
-            if (dataBaseConnection != null) {   //create the MESSAGE_SENDING_QUEUE table
-                createTable();
+        Map<MessageType.TemplateType, Integer> newPriorities =
+                new EnumMap<MessageType.TemplateType, Integer>(MessageType.TemplateType.class);
+        Map<MessageType.TemplateType, Integer> newTimesToLive =
+                new EnumMap<MessageType.TemplateType, Integer>(MessageType.TemplateType.class);
+        Set<MessageType.TemplateType> newCoalescedTypes = EnumSet.noneOf(MessageType.TemplateType.class);
+        for (MessageType.TemplateType t : MessageType.TemplateType.values()) {
+            String priority = Mediator.getProperty("QueueManager.Priority." + t.name());
+            newPriorities.put(t, priority != null ? Integer.parseInt(priority) : defaultPriority(t));
+            String timeToLive = Mediator.getProperty("QueueManager.TimeToLiveSeconds." + t.name());
+            if (timeToLive != null) {
+                newTimesToLive.put(t, Integer.parseInt(timeToLive));
+            }
+            String coalesce = Mediator.getProperty("QueueManager.Coalesce." + t.name());
+            if ((t == MessageType.TemplateType.notifyPersonChanged || t == MessageType.TemplateType.modifyPerson)
+                    && coalesce != null && coalesce.trim().equalsIgnoreCase("true")) {
+                newCoalescedTypes.add(t);
+            }
+        }
+        int createPriority = newPriorities.get(MessageType.TemplateType.createPerson);
+        if (createPriority < newPriorities.get(MessageType.TemplateType.modifyPerson)
+                || createPriority < newPriorities.get(MessageType.TemplateType.notifyPersonChanged)) {
+            Logger.getLogger(QueueManager.class.getName()).log(Level.WARNING,
+                    "QueueManager.Priority.createPerson is lower than for modifyPerson or notifyPersonChanged."
+                    + " After an outage, a person may be changed before being created.");
+        }
+        priorities = newPriorities;
+        timesToLive = newTimesToLive;
+        coalescedTypes = newCoalescedTypes;
+
+        maxMessages = getIntProperty("QueueManager.MaxMessages");
+        maxBytes = getLongProperty("QueueManager.MaxBytes");
+        maxMessagesPerDestination = getIntProperty("QueueManager.MaxMessagesPerDestination");
+        maxBytesPerDestination = getLongProperty("QueueManager.MaxBytesPerDestination");
+        String policy = Mediator.getProperty("QueueManager.OverflowPolicy");
+        String newOverflowPolicy = OVERFLOW_REJECT;
+        if (policy != null) {
+            policy = policy.trim();
+            if (policy.equalsIgnoreCase(OVERFLOW_DROP_OLDEST)) {
+                newOverflowPolicy = OVERFLOW_DROP_OLDEST;
+            } else if (policy.equalsIgnoreCase(OVERFLOW_ARCHIVE)) {
+                newOverflowPolicy = OVERFLOW_ARCHIVE;
+            } else if (!policy.equalsIgnoreCase(OVERFLOW_REJECT)) {
+                Logger.getLogger(QueueManager.class.getName()).log(Level.WARNING,
+                        "Unknown QueueManager.OverflowPolicy {0}, using {1}", new Object[]{policy, OVERFLOW_REJECT});
             }
         }
+        overflowPolicy = newOverflowPolicy;
+    }
+
+    /**
+     * Gets a queue limit property.
+     *
+     * @param propertyName name of the property.
+     * @return the limit, or 0 if there is none.
+     */
+    private static int getIntProperty(String propertyName) {
+        String value = Mediator.getProperty(propertyName);
+        return (value != null ? Integer.parseInt(value.trim()) : 0);
+    }
+
+    /**
+     * Gets a queue limit property that may be larger than an int.
+     *
+     * @param propertyName name of the property.
+     * @return the limit, or 0 if there is none.
+     */
+    private static long getLongProperty(String propertyName) {
+        String value = Mediator.getProperty(propertyName);
+        return (value != null ? Long.parseLong(value.trim()) : 0);
+    }
+
+    /**
+     * Gets the built-in queue priority for a message template type.
+     *
+     * @param t message template type.
+     * @return the priority.
+     */
+    private static int defaultPriority(MessageType.TemplateType t) {
+        switch (t) {
+            case notifyPersonChanged:
+            case modifyPerson:
+            case modifyPersonAccepted:
+            case createPerson:
+            case createPersonAccepted:
+                return 8;
+            case logEntry:
+                return 2;
+            default:
+                return DEFAULT_PRIORITY;
+        }
+    }
+
+    /**
+     * Gets the coalescing key for a message we are about to queue.
+     * Queued messages with the same destination and coalescing key
+     * are replaced by the latest one.
+     * <p>
+     * For a message that originated here, the key is a SHA-1 hash of
+     * the message template type and the person's identity: the person GUID
+     * if there is one, otherwise all the person identifiers (in sorted order).
+     * For a message we are relaying, we use the key (if any) that came with it.
+     *
+     * @param m message to queue.
+     * @return the coalescing key, or null if the message is not to be coalesced.
+     */
+    private String getCoalesceKey(Message m) {
+        MessageType messageType = m.getMessageType();
+        if (messageType == null) { // Message is being relayed:
+            return m.getCoalesceKey();
+        }
+        if (!coalescedTypes.contains(messageType.getTemplateType())
+                || !(m.getMessageData() instanceof PersonRequest)) {
+            return null;
+        }
+        Person p = ((PersonRequest) m.getMessageData()).getPerson();
+        if (p == null) {
+            return null;
+        }
+        StringBuilder identity = new StringBuilder(messageType.getTemplateType().name());
+        if (p.getPersonGuid() != null) {
+            identity.append("|guid=").append(p.getPersonGuid());
+        } else if (p.getPersonIdentifierList() != null && !p.getPersonIdentifierList().isEmpty()) {
+            List<String> identifiers = new ArrayList<String>();
+            for (PersonIdentifier pi : p.getPersonIdentifierList()) {
+                identifiers.add(pi.getIdentifierType() + "=" + pi.getIdentifier());
+            }
+            Collections.sort(identifiers);
+            for (String identifier : identifiers) {
+                identity.append('|').append(identifier);
+            }
+        } else {
+            return null; // We can't tell who this person is.
+        }
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] hash = sha1.digest(identity.toString().getBytes("UTF-8"));
+            return String.format("%040x", new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException ex) {
+            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (UnsupportedEncodingException ex) {
+            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return null;
     }
 
     /**
@@ -158,8 +474,15 @@ class QueueManager implements Runnable {
      * If there is network connectivity to the IP address, it will then be
      * sent immediately. If it fails to send, it will be periodically retried
      * until it succeeds.
+     * <p>
+     * If several threads are queueing messages at the same time, the first
+     * one to arrive adds and commits all the messages that are waiting,
+     * while the others wait for the commit. This way concurrent callers
+     * share the cost of a single commit (which is where the store spends most
+     * of its time, waiting for the data to be written to disk.)
      *
      * @param m Message to queue for sending
+     * @return true if the message was queued (or sent), otherwise false
      */
     public boolean enqueue(Message m) {
         boolean messageAdded = false;
@@ -173,108 +496,324 @@ class QueueManager implements Runnable {
                 Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
             }
         } else {
-
-            //prepare SQL Statement to perform the insertion
-            String querySQL = "INSERT INTO " + TABLE_NAME
-                    + "( DESTINATION, XML_CODE, HOP_COUNT ) VALUES ( "
-                    + quote(m.getDestinationAddress()) + ", "
-                    + "?, "
-                    + m.getHopCount() + ")";
-            Logger.getLogger(QueueManager.class.getName()).log(Level.FINER, querySQL);
-            try {
-                PreparedStatement stmt = dataBaseConnection.prepareStatement(querySQL);
-                int compressedXmlLenghth = m.getCompressedXmlLength();
-                byte[] blob = new byte[compressedXmlLenghth];
-                System.arraycopy(m.getCompressedXml(), 0, blob, 0, compressedXmlLenghth);
-                stmt.setObject(1, blob);
-                stmt.executeUpdate();
-                stmt.close();
-                messageAdded = true;
+            PendingInsert p = new PendingInsert();
+            p.message = new QueuedMessage();
+            p.message.setDestination(m.getDestinationAddress());
+            p.message.setCompressedXml(m.getCompressedXml());
+            p.message.setCompressedXmlLength(m.getCompressedXmlLength());
+            p.message.setHopCount(m.getHopCount());
+            int timeToLive;
+            MessageType messageType = m.getMessageType();
+            if (messageType != null) { // Message originated here:
+                MessageType itemType = MessageTypeRegistry.findBatchItem(messageType);
+                MessageType.TemplateType templateType = (itemType != null ? itemType : messageType).getTemplateType();
+                p.message.setPriority(priorities.get(templateType));
+                Integer ttl = timesToLive.get(templateType);
+                timeToLive = (ttl != null ? ttl : 0);
+            } else { // Message is being relayed:
+                p.message.setPriority(m.getPriority());
+                timeToLive = m.getTimeToLive();
+            }
+            if (timeToLive > 0) {
+                p.message.setExpires(System.currentTimeMillis() + 1000L * timeToLive);
+            }
+            p.message.setCoalesceKey(getCoalesceKey(m));
+            if (!makeRoom(p.message)) {
+                return false;
+            }
+            if (m.getTrace() != null) {
+                m.addTraceEvent("queue");
+                p.trace = m.getTrace();
+            }
+            List<PendingInsert> group = null;
+            synchronized (pendingInserts) {
+                pendingInserts.add(p);
+                while (!p.done && groupCommitInProgress) {
+                    try {
+                        pendingInserts.wait();
+                    } catch (InterruptedException ex) {
+                    }
+                }
+                if (!p.done) { // Our message is not yet committed, and nobody is committing: our turn.
+                    groupCommitInProgress = true;
+                    group = new ArrayList<PendingInsert>(pendingInserts);
+                    pendingInserts.clear();
+                }
+            }
+            if (group != null) {
+                boolean groupAdded = false;
+                try {
+                    List<QueuedMessage> messages = new ArrayList<QueuedMessage>(group.size());
+                    for (PendingInsert g : group) {
+                        messages.add(g.message);
+                    }
+                    groupAdded = store.add(messages);
+                    if (groupAdded) {
+                        rememberTraces(group);
+                    }
+                } finally {
+                    synchronized (pendingInserts) {
+                        for (PendingInsert g : group) {
+                            g.added = groupAdded;
+                            g.done = true;
+                        }
+                        groupCommitInProgress = false;
+                        pendingInserts.notifyAll();
+                    }
+                }
+            }
+            messageAdded = p.added;
+            if (messageAdded) {
                 // Log every incoming message (level FINE -- only one incoming log entry for each message.)
-                Mediator.getLogger(QueueManager.class.getName()).log(Level.FINE,
-                        "Queued message to {0}", m.getDestinationAddress());
+                logger.log(Level.FINE,
+                        "Queued message to {0} with priority {1}",
+                        m.getDestinationAddress(), p.message.getPriority());
+                if (p.message.getPriority() > drainingPriority) {
+                    higherPriorityQueued = true;
+                }
                 start(); // Start sending messages (like the one we just queued.)
-            } catch (SQLException ex) {
-                Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
         return messageAdded;
     }
 
     /**
-     * Tries to send all the Messages in the MESSAGE_SENDING_QUEUE.
-     * If a send call is successful, then it removes the message from the
-     * table.  Otherwise, it puts the destination in a connectionDownList
-     * so that it will not try to send Messages to a link that is down.
-     * Message destinations on the connectionDownList are removed after
-     * a waiting period so they can be retried.
+     * Makes sure there is room in the queue for a new message, following
+     * the overflow policy if the message would go over a queue limit.
+     *
+     * @param q message about to be queued.
+     * @return true if there is room for the message, false if it is rejected.
      */
-    public void run() {
-        String selectAllQuerySQL = "SELECT * FROM " + TABLE_NAME
-                + " ORDER BY MESSAGE_ID";
-        try {
-            Statement stmt = dataBaseConnection.createStatement();
-            ResultSet resultSet = stmt.executeQuery(selectAllQuerySQL);
-            /* A HashSet that holds the destinations of the Messages that are not sent
-             * successfully.  Any Message with a destination on this list will
-             * not try to be sent because it is assumed that the connection is down.
-             * The list is cleared after a specified period of time. */
-            HashSet connectionDownList = new HashSet<String>();
-
-            //try to send each entry in that table
-            while (resultSet.next()) {
-                //Check to see if it is on the connectionDownList
-                String destination = resultSet.getString("DESTINATION");
-                int messageId = resultSet.getInt("MESSAGE_ID");
-                if (connectionDownList.contains(destination)) {
-                    // It is on the connection down list, so do not try to send it.
-                    // Log this (level FINEST -- possibly many such logs for each message.)
-                    Mediator.getLogger(QueueManager.class.getName()).log(Level.FINEST,
-                            "Skipping queued message ID {0} to {1}",
-                            new Object[]{messageId, destination});
-                } else {
-                    Message m = new Message();
-                    m.setDestinationAddress(destination);
-                    byte[] bytes = resultSet.getBytes("XML_CODE");
-                    m.setCompressedXml(bytes);
-                    m.setCompressedXmlLength(bytes.length);
-                    m.setHopCount(resultSet.getInt("HOP_COUNT"));
-                    m.setToBeQueued(true); // We queued it, so next hop should also queue it.
-                    //initialize a boolean to hold the result of the send
-                    boolean sent = false;
-                    try {
-                        sent = httpService.send(m);
-                    } catch (MalformedURLException ex) {
-                        Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
-                    } catch (IOException ex) {
-                        Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
-                    }
-                    if (sent) {
-                        // Log every outgoing message (level FINE -- only one outgoing log entry for each message.)
-                        Mediator.getLogger(QueueManager.class.getName()).log(Level.FINE,
-                                "Sent queued message ID {0} to {1} via {2}",
-                                new Object[]{messageId, destination, m.getNextHop().getIpAddressPort()});
-                        //it was sent correctly, remove it from the list
-                        delete(messageId);
-                    } else {
-                        // Log failed attempt (level FINEST -- possibly many such logs for each message.)
-                        Mediator.getLogger(QueueManager.class.getName()).log(Level.FINEST,
-                                "Failed to send queued message ID {0} to {1} via {2}",
-                                new Object[]{messageId, destination, m.getNextHop().getIpAddressPort()});
-                        /* Put this destination on the connectionDownList so
-                         * resources are not wasted trying to send on a
-                         * connection that is down */
-                        connectionDownList.add(resultSet.getString("DESTINATION"));
+    private boolean makeRoom(QueuedMessage q) {
+        if (maxMessages <= 0 && maxBytes <= 0 && maxMessagesPerDestination <= 0 && maxBytesPerDestination <= 0) {
+            return true;
+        }
+        synchronized (capacityLock) {
+            if (maxMessagesPerDestination > 0 || maxBytesPerDestination > 0) {
+                QueueDepth depth = store.getDepths().get(q.getDestination());
+                int count = (depth != null ? depth.getCount() : 0);
+                long bytes = (depth != null ? depth.getBytes() : 0);
+                if (!makeRoom(q, q.getDestination(), count, bytes, maxMessagesPerDestination, maxBytesPerDestination)) {
+                    return false;
+                }
+            }
+            if (maxMessages > 0 || maxBytes > 0) {
+                if (!makeRoom(q, null, store.size(), store.byteSize(), maxMessages, maxBytes)) {
+                    return false;
+                }
+            }
+            if (rejecting) {
+                rejecting = false;
+                Logger.getLogger(QueueManager.class.getName()).log(Level.INFO,
+                        "Queue has room again after rejecting {0} messages in all", rejectedCount.get());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes room for a new message under one pair of queue limits.
+     * (Call while holding the capacity lock.)
+     *
+     * @param q message about to be queued.
+     * @param destination destination whose messages count against the limits,
+     * or null if all messages count.
+     * @param count number of messages now queued that count against the limits.
+     * @param bytes size of the messages now queued that count against the limits.
+     * @param limitCount maximum number of messages (0 if no limit.)
+     * @param limitBytes maximum size of the messages (0 if no limit.)
+     * @return true if there is room for the message, false if it is rejected.
+     */
+    private boolean makeRoom(QueuedMessage q, String destination, int count, long bytes, int limitCount, long limitBytes) {
+        int excessCount = (limitCount > 0 ? count + 1 - limitCount : 0);
+        long excessBytes = (limitBytes > 0 ? bytes + q.getCompressedXmlLength() - limitBytes : 0);
+        if (excessCount <= 0 && excessBytes <= 0) {
+            return true;
+        }
+        if (overflowPolicy != OVERFLOW_REJECT
+                && (limitBytes <= 0 || q.getCompressedXmlLength() <= limitBytes)) {
+            List<QueuedMessage> victims = chooseVictims(destination, q.getPriority(), excessCount, excessBytes);
+            if (victims != null && evict(victims)) {
+                return true;
+            }
+        }
+        rejectedCount.incrementAndGet();
+        if (!rejecting) {
+            rejecting = true;
+            Logger.getLogger(QueueManager.class.getName()).log(Level.WARNING,
+                    "Queue is full{0}, rejecting message to {1} with priority {2}",
+                    new Object[]{destination != null ? " for " + destination : "", q.getDestination(), q.getPriority()});
+        }
+        return false;
+    }
+
+    /**
+     * Chooses the queued messages to drop or archive to make room for a new
+     * message. These are the oldest messages from the lowest priority lanes,
+     * but never from a lane of higher priority than the new message.
+     * (Call while holding the capacity lock.)
+     *
+     * @param destination destination whose messages may be chosen, or null for any.
+     * @param priority priority of the new message.
+     * @param excessCount number of messages that must be removed.
+     * @param excessBytes number of bytes that must be removed.
+     * @return the messages to remove, or null if not enough could be found.
+     */
+    private List<QueuedMessage> chooseVictims(String destination, int priority, int excessCount, long excessBytes) {
+        List<QueuedMessage> victims = new ArrayList<QueuedMessage>();
+        int readSize = pageSize; // (In case the page size is reloaded while we are reading.)
+        List<Integer> lanes = new ArrayList<Integer>(store.getPriorities());
+        Collections.reverse(lanes); // Lowest priority first.
+        for (int lane : lanes) {
+            if (lane > priority) {
+                break;
+            }
+            List<String> destinations = store.getDestinations(lane);
+            if (destination != null) {
+                destinations = destinations.contains(destination)
+                        ? Collections.singletonList(destination) : Collections.<String>emptyList();
+            }
+            /*
+             * Read the oldest messages for each destination in the lane, just
+             * enough to make room from that destination alone. The oldest
+             * messages in the lane as a whole are among these.
+             */
+            List<QueuedMessage> candidates = new ArrayList<QueuedMessage>();
+            for (String d : destinations) {
+                int candidateCount = 0;
+                long candidateBytes = 0;
+                long afterMessageId = 0;
+                List<QueuedMessage> page;
+                do {
+                    page = store.read(d, lane, afterMessageId, readSize);
+                    for (QueuedMessage c : page) {
+                        candidates.add(c);
+                        candidateCount++;
+                        candidateBytes += c.getCompressedXmlLength();
+                        afterMessageId = c.getMessageId();
                     }
+                } while (page.size() == readSize && (candidateCount < excessCount || candidateBytes < excessBytes));
+            }
+            Collections.sort(candidates, new Comparator<QueuedMessage>() {
+
+                public int compare(QueuedMessage a, QueuedMessage b) {
+                    return a.getMessageId() < b.getMessageId() ? -1 : (a.getMessageId() > b.getMessageId() ? 1 : 0);
+                }
+            });
+            for (QueuedMessage c : candidates) {
+                if (excessCount <= 0 && excessBytes <= 0) {
+                    return victims;
                 }
+                victims.add(c);
+                excessCount--;
+                excessBytes -= c.getCompressedXmlLength();
             }
+        }
+        return (excessCount <= 0 && excessBytes <= 0) ? victims : null;
+    }
 
-            //close the SQL ResultSet and Statement
-            resultSet.close();
-            stmt.close();
-        } catch (SQLException ex) {
-            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+    /**
+     * Drops (or archives, then drops) queued messages to make room for new ones.
+     * (Call while holding the capacity lock.)
+     *
+     * @param victims messages to remove from the queue.
+     * @return true if the messages were removed, otherwise false.
+     */
+    private boolean evict(List<QueuedMessage> victims) {
+        if (overflowPolicy == OVERFLOW_ARCHIVE) {
+            List<QueuedMessage> archived = new ArrayList<QueuedMessage>(victims.size());
+            for (QueuedMessage v : victims) {
+                byte[] compressedXml = store.readCompressedXml(v);
+                if (compressedXml != null) { // (Null if it has just been sent.)
+                    v.setCompressedXml(compressedXml);
+                    archived.add(v);
+                }
+            }
+            if (!archive.write(archived)) {
+                return false;
+            }
+            store.remove(victims);
+            archivedCount.addAndGet(archived.size());
+        } else {
+            store.remove(victims);
+            droppedCount.addAndGet(victims.size());
+        }
+        Logger.getLogger(QueueManager.class.getName()).log(Level.WARNING,
+                "Queue is full, {0} {1} queued messages to make room",
+                new Object[]{overflowPolicy == OVERFLOW_ARCHIVE ? "archived" : "dropped", victims.size()});
+        return true;
+    }
+
+    /**
+     * Remembers the traces of traced messages that were just added to the
+     * queue, by the message IDs the store gave them. (The store doesn't keep
+     * traces.) A message replaced by a later one in the same group has no
+     * message ID, and its trace is not kept.
+     *
+     * @param group messages just added to the queue.
+     */
+    private void rememberTraces(List<PendingInsert> group) {
+        for (PendingInsert g : group) {
+            if (g.trace != null && g.message.getMessageId() > 0) {
+                synchronized (queuedTraces) {
+                    queuedTraces.put(g.message.getMessageId(), g.trace);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the current state of the queue, so clients can slow down
+     * before the queue overflows.
+     *
+     * @return the queue status.
+     */
+    QueueStatus getStatus() {
+        QueueStatus status = new QueueStatus();
+        status.setMaxMessages(maxMessages);
+        status.setMaxBytes(maxBytes);
+        status.setOverflowPolicy(overflowPolicy);
+        status.setRejectedCount(rejectedCount.get());
+        status.setDroppedCount(droppedCount.get());
+        status.setArchivedCount(archivedCount.get());
+        Map<String, QueueStatus> destinationStatus = new HashMap<String, QueueStatus>();
+        if (store != null) {
+            status.setMessageCount(store.size());
+            status.setByteCount(store.byteSize());
+            for (Map.Entry<String, QueueDepth> e : store.getDepths().entrySet()) {
+                QueueStatus ds = new QueueStatus();
+                ds.setMessageCount(e.getValue().getCount());
+                ds.setByteCount(e.getValue().getBytes());
+                ds.setMaxMessages(maxMessagesPerDestination);
+                ds.setMaxBytes(maxBytesPerDestination);
+                ds.setOverflowPolicy(overflowPolicy);
+                ds.setFull(isFull(ds));
+                destinationStatus.put(e.getKey(), ds);
+            }
         }
+        status.setDestinationStatus(destinationStatus);
+        status.setFull(isFull(status));
+        return status;
+    }
+
+    /**
+     * Tells whether a queue status is at (or over) one of its limits.
+     *
+     * @param status the queue status.
+     * @return true if full, otherwise false.
+     */
+    private static boolean isFull(QueueStatus status) {
+        return (status.getMaxMessages() > 0 && status.getMessageCount() >= status.getMaxMessages())
+                || (status.getMaxBytes() > 0 && status.getByteCount() >= status.getMaxBytes());
+    }
+
+    /**
+     * Tries to send all the queued messages, then waits for the polling
+     * interval and starts another polling thread if there are still
+     * messages in the queue.
+     */
+    public void run() {
+        drain();
         synchronized (this) {
             try {
                 this.wait(pollingInterval);
@@ -288,116 +827,199 @@ class QueueManager implements Runnable {
     }
 
     /**
-     * Connects to the Java DataBase specified by the data base connection 
-     * variables.  This connection is needed to work with the database table 
-     * MESSAGE_SENDING_QUEUE.  The connection can be either embedded or client.
-     * Be sure that the database connection variables are correct for the
-     * program you are working with.
+     * Tries to send all the queued Messages.
+     * <p>
+     * The priority lanes are sent from highest priority to lowest. Within
+     * each lane, the messages for each destination are read in message ID
+     * order, one page at a time. If a send call is successful, then the
+     * message is removed from the queue (all the messages sent from a page
+     * are removed together.) Otherwise we stop sending to that destination,
+     * because it is assumed that the connection is down. The remaining
+     * messages for the destination (in this and lower priority lanes) are
+     * not even read. They will be retried on the next polling pass.
+     * <p>
+     * If a message is queued with a higher priority than the lane we are
+     * sending, we start again from the highest priority lane.
      */
-    private Connection establishDataBaseConnection() {
-        Connection con = null;
-
-        //load the driver
-        try {
-            //this driver is for embedded mode and loads "derby.jar"
-            Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
-        } catch (ClassNotFoundException ex) {
-            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (InstantiationException ie) {
-            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ie);
-        } catch (IllegalAccessException iae) {
-            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, iae);
+    void drain() {
+        Set<String> unreachableDestinations = new HashSet<String>();
+        boolean restart = true;
+        while (restart && !timeToShutDown) {
+            restart = false;
+            higherPriorityQueued = false;
+            lanes:
+            for (int priority : store.getPriorities()) {
+                drainingPriority = priority;
+                for (String destination : store.getDestinations(priority)) {
+                    if (timeToShutDown) {
+                        break lanes;
+                    }
+                    if (!unreachableDestinations.contains(destination)
+                            && !drainLane(destination, priority)) {
+                        unreachableDestinations.add(destination);
+                    }
+                    if (higherPriorityQueued) {
+                        restart = true;
+                        break lanes;
+                    }
+                }
+            }
         }
+        drainingPriority = Integer.MIN_VALUE;
+    }
 
-        try {
-            //creates a new embedded Connection
-            String strURL = PROTOCOL + Mediator.getRuntimeDirectory() + DATABASE_NAME
-                    + ";create=true;"; // Creates the database if it doesn't already exist.
-
-            //swap these lines if you do not want to use a user name and password
-            con = DriverManager.getConnection(strURL);
-//            con = DriverManager.getConnection(strURL, USER_NAME, PASSWORD); 
-        } catch (SQLException ex) {
-            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+    /**
+     * Tries to send all the queued Messages for one destination
+     * and priority, in order. Messages whose time to live has expired
+     * are removed without being sent.
+     *
+     * @param destination destination address of the messages to send.
+     * @param priority priority of the messages to send.
+     * @return false if the destination could not be reached, otherwise true.
+     */
+    private boolean drainLane(String destination, int priority) {
+        long lastMessageId = 0;
+        boolean connectionDown = false;
+        int readSize = pageSize; // (In case the page size is reloaded while we are reading.)
+        while (!connectionDown && !timeToShutDown && !higherPriorityQueued) {
+            List<QueuedMessage> page = store.read(destination, priority, lastMessageId, readSize);
+            List<QueuedMessage> sentMessages = new ArrayList<QueuedMessage>(page.size());
+            long now = System.currentTimeMillis();
+            for (QueuedMessage q : page) {
+                if (q.getExpires() != 0 && q.getExpires() <= now) {
+                    logger.log(Level.FINE,
+                            "Dropped queued message ID {0} to {1}: time to live expired",
+                            q.getMessageId(), destination);
+                    sentMessages.add(q); // (Remove it as if it had been sent.)
+                    lastMessageId = q.getMessageId();
+                    forgetTrace(q);
+                    continue;
+                }
+                // A large message is read a part at a time as it is sent: here we only check that it can be read.
+                boolean large = q.getCompressedXmlLength() > CompressedXmlSource.PART_BYTES;
+                byte[] compressedXml = (large ? store.readCompressedXml(q, 0, 0) : store.readCompressedXml(q));
+                if (compressedXml == null) {
+                    if (!isQueued(q)) {
+                        lastMessageId = q.getMessageId(); // Removed since the page was read (coalesced or evicted.)
+                        continue;
+                    }
+                    connectionDown = true; // Can't read the queue: try again on the next poll.
+                    break;
+                }
+                Message m = new Message();
+                m.setDestinationAddress(q.getDestination());
+                if (large) {
+                    m.setCompressedXmlSource(partsOf(q));
+                } else {
+                    m.setCompressedXml(compressedXml);
+                }
+                m.setCompressedXmlLength(q.getCompressedXmlLength());
+                m.setHopCount(q.getHopCount());
+                m.setPriority(q.getPriority());
+                m.setCoalesceKey(q.getCoalesceKey());
+                if (!queuedTraces.isEmpty()) {
+                    String trace;
+                    synchronized (queuedTraces) {
+                        trace = queuedTraces.get(q.getMessageId()); // (Kept until sent, in case the send fails.)
+                    }
+                    if (trace != null) {
+                        m.setTrace(trace);
+                        m.addTraceEvent("dequeue");
+                    }
+                }
+                if (q.getExpires() != 0) { // Remaining time to live, rounded up to the next second:
+                    m.setTimeToLive((int) ((q.getExpires() - now + 999) / 1000));
+                }
+                m.setToBeQueued(true); // We queued it, so next hop should also queue it.
+                //initialize a boolean to hold the result of the send
+                boolean sent = false;
+                try {
+                    sent = httpService.send(m);
+                } catch (MalformedURLException ex) {
+                    Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (IOException ex) {
+                    Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                if (sent) {
+                    // Log every outgoing message (level FINE -- only one outgoing log entry for each message.)
+                    logger.log(Level.FINE,
+                            "Sent queued message ID {0} to {1} via {2}",
+                            q.getMessageId(), destination, m.getNextHop().getIpAddressPort());
+                    //it was sent correctly, remove it from the queue
+                    sentMessages.add(q);
+                    lastMessageId = q.getMessageId();
+                    forgetTrace(q);
+                } else if (m.isRefused()) {
+                    // The next hop will never take it (logged by HttpService): remove it from the queue.
+                    sentMessages.add(q);
+                    lastMessageId = q.getMessageId();
+                    forgetTrace(q);
+                } else {
+                    // Log failed attempt (level FINEST -- possibly many such logs for each message.)
+                    logger.log(Level.FINEST,
+                            "Failed to send queued message ID {0} to {1}, skipping destination until next poll",
+                            q.getMessageId(), destination);
+                    /* Stop sending to this destination so resources are
+                     * not wasted trying to send on a connection that is down */
+                    connectionDown = true;
+                    break;
+                }
+            }
+            store.remove(sentMessages);
+            if (page.size() < readSize) {
+                break; // That was the last page for this destination.
+            }
         }
-        return con;
+        return !connectionDown;
     }
 
     /**
-     * Creates the MESSAGE_SENDING_QUEUE JavaDataBase table using SQL.
-     * This table keeps track of which Messages still need to be sent out.
-     * The table only stores a few of the fields of the Message's: 
-     * DESTINATION, XML_CODE, and HOP_COUNT.
+     * Gets a source for reading a queued message a part at a time.
+     *
+     * @param q the message.
+     * @return the source.
      */
-    private boolean createTable() {
-        boolean tableOKforUse = false;
-        //create an SQL Statement
-        Statement stmt = null;
-        String createTableQuery = "CREATE TABLE \"" + TABLE_NAME + "\""
-                + "("
-                + "MESSAGE_ID INTEGER NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
-                + "DESTINATION VARCHAR(100), "
-                + "XML_CODE BLOB(30000), "
-                + "HOP_COUNT INTEGER"
-                + ")";
-        try {
-            stmt = dataBaseConnection.createStatement();
-            stmt.execute(createTableQuery);
-            stmt.close();
-            tableOKforUse = true;
-        } catch (SQLException ex) {
-            /* If the Exception is just saying that the table already exists,
-             * that is ok and the table is still safe to use.  Otherwise,
-             * we want to report any other errors. */
-            if ("X0Y32".equals(ex.getSQLState())) {  //this is the "table already exists" error
-                tableOKforUse = true;
-            } else {
-                Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+    private CompressedXmlSource partsOf(final QueuedMessage q) {
+        return new CompressedXmlSource() {
+
+            public byte[] read(int offset, int length) {
+                return store.readCompressedXml(q, offset, length);
             }
-        }
-        return tableOKforUse;
+        };
     }
 
     /**
-     * Deletes a Message from the MESSAGE_SENDING_QUEUE
-     * 
-     * @param msgID message_id (table primary key) for message to delete
+     * Forgets the trace of a message that is leaving the queue, if it has one.
+     *
+     * @param q the message.
      */
-    private void delete(int msgID) {
-        //prepare SQL statement to delete the Message
-        Statement stmt = null;
-        String deleteQuerySQL = "DELETE FROM " + TABLE_NAME
-                + " WHERE MESSAGE_ID = " + msgID;
-        Logger.getLogger(QueueManager.class.getName()).log(Level.FINER, deleteQuerySQL);
-        //try to make the deletion
-        try {
-            stmt = dataBaseConnection.createStatement();
-            stmt.execute(deleteQuerySQL);
-            stmt.close();
-        } catch (SQLException ex) {
-            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
+    private void forgetTrace(QueuedMessage q) {
+        if (!queuedTraces.isEmpty()) {
+            synchronized (queuedTraces) {
+                queuedTraces.remove(q.getMessageId());
+            }
         }
     }
 
+    /**
+     * Tests whether a message read from the store is still queued.
+     * (It may have been removed since, by coalescing or to make room.)
+     *
+     * @param q the message.
+     * @return true if the message is still in the store, otherwise false.
+     */
+    private boolean isQueued(QueuedMessage q) {
+        List<QueuedMessage> page = store.read(q.getDestination(), q.getPriority(), q.getMessageId() - 1, 1);
+        return !page.isEmpty() && page.get(0).getMessageId() == q.getMessageId();
+    }
+
     /**
      * Tests to see if the queue is empty.
      * 
      * @return true if the queue is empty, false if it is not empty.
      */
     private boolean isEmpty() {
-        boolean returnValue = true;
-        //prepare SQL statement to print
-        try {
-            String selectAllQuerySQL = "SELECT 1 FROM " + TABLE_NAME; // Dummy select to see if there are any records.
-            Statement stmt = dataBaseConnection.createStatement();
-            ResultSet resultSet = stmt.executeQuery(selectAllQuerySQL);
-            returnValue = !resultSet.next(); // If next() is true, then isEmpty() is false, and visa versa
-            resultSet.close();
-            stmt.close();
-        } catch (SQLException ex) {
-            Logger.getLogger(QueueManager.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        return returnValue;
+        return store.size() == 0;
     }
 
     /**
@@ -0,0 +1,67 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.Map;
+
+/**
+ * JMX view of the store-and-forward queue: how many messages are queued,
+ * in total and for each destination, and how many overflowed.
+ * <p>
+ * Registered by {@link Mediator} as
+ * <code>ke.go.moh.oec:type=QueueManager,name=</code><i>Instance.Address</i>.
+ */
+public interface QueueMetricsMXBean {
+
+    /** @return number of messages queued. */
+    int getMessageCount();
+
+    /** @return total size of the queued messages (compressed), in bytes. */
+    long getByteCount();
+
+    /** @return maximum number of messages that may be queued (0 if no limit.) */
+    int getMaxMessages();
+
+    /** @return maximum total size of queued messages in bytes (0 if no limit.) */
+    long getMaxBytes();
+
+    /** @return true if the queue is full. */
+    boolean isFull();
+
+    /** @return number of messages refused because the queue was full. */
+    long getRejectedCount();
+
+    /** @return number of queued messages dropped to make room, or because they expired. */
+    long getDroppedCount();
+
+    /** @return number of queued messages archived to make room. */
+    long getArchivedCount();
+
+    /** @return number of messages queued for each destination. */
+    Map<String, Integer> getDestinationMessageCounts();
+
+    /** @return total size in bytes of the messages queued for each destination. */
+    Map<String, Long> getDestinationByteCounts();
+}
@@ -0,0 +1,150 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent storage behind the store-and-forward queue.
+ * <p>
+ * The {@link QueueManager} decides when messages are added, sent and
+ * removed. A queue store only has to keep them safely on disk until they
+ * are removed. Two stores are available, selected by the
+ * QueueManager.Store property:
+ * <p>
+ * derby - {@link DerbyQueueStore}, an embedded JavaDB table (the default) <br>
+ * journal - {@link JournalQueueStore}, an append-only memory-mapped log
+ * <p>
+ * Calls may come from several threads. Each store does its own locking.
+ */
+interface QueueStore {
+
+    /**
+     * Opens the store, creating it if it does not already exist.
+     *
+     * @return true if the store is ready for use, otherwise false.
+     */
+    boolean open();
+
+    /**
+     * Closes the store (call after last use).
+     */
+    void close();
+
+    /**
+     * Adds messages to the store. When this method returns true, the
+     * messages are safely on disk. Either all the messages are added,
+     * or none are.
+     * <p>
+     * If a message has a coalescing key, any message already in the store
+     * (or earlier in the list) with the same destination and coalescing key
+     * is removed, in the same operation.
+     *
+     * @param messages messages to add. Message IDs are assigned by the store,
+     * and set in the messages that are added (a message replaced by a later
+     * one in the same list may be left without one.)
+     * @return true if the messages were added, otherwise false.
+     */
+    boolean add(List<QueuedMessage> messages);
+
+    /**
+     * Gets the priorities of the messages in the store.
+     *
+     * @return list of priorities, highest first.
+     */
+    List<Integer> getPriorities();
+
+    /**
+     * Gets the destinations that have messages of a given priority in the store.
+     *
+     * @param priority priority of the messages.
+     * @return list of destination addresses.
+     */
+    List<String> getDestinations(int priority);
+
+    /**
+     * Reads messages for a destination and priority in the order they were added.
+     * Only the message ID, destination, hop count and compressed XML length
+     * are read. The contents are read one message at a time, by
+     * {@link #readCompressedXml}, so that reading a page of large messages
+     * doesn't use a lot of memory.
+     *
+     * @param destination destination address of the messages to read.
+     * @param priority priority of the messages to read.
+     * @param afterMessageId read only messages with IDs greater than this.
+     * @param maxCount maximum number of messages to read.
+     * @return list of up to <code>maxCount</code> messages, in message ID order.
+     */
+    List<QueuedMessage> read(String destination, int priority, long afterMessageId, int maxCount);
+
+    /**
+     * Reads the contents of a message.
+     *
+     * @param message message returned from {@link #read}.
+     * @return the compressed XML, or null if it could not be read
+     * (or the message is no longer queued.)
+     */
+    byte[] readCompressedXml(QueuedMessage message);
+
+    /**
+     * Reads part of the contents of a message.
+     *
+     * @param message message returned from {@link #read}.
+     * @param offset offset of the first byte to read.
+     * @param length number of bytes to read.
+     * @return the bytes, or null if they could not be read
+     * (or the message is no longer queued.)
+     */
+    byte[] readCompressedXml(QueuedMessage message, int offset, int length);
+
+    /**
+     * Removes messages from the store (after they have been sent.)
+     *
+     * @param messages messages to remove, as returned from {@link #read}.
+     */
+    void remove(List<QueuedMessage> messages);
+
+    /**
+     * Gets the number of messages in the store.
+     *
+     * @return the number of messages.
+     */
+    int size();
+
+    /**
+     * Gets the total size of the messages in the store.
+     *
+     * @return total size in bytes of the compressed XML of the messages.
+     */
+    long byteSize();
+
+    /**
+     * Gets the number and size of the messages in the store for each destination.
+     *
+     * @return map from destination address to a copy of its depth.
+     */
+    Map<String, QueueDepth> getDepths();
+}
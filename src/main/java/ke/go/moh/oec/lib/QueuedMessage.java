@@ -0,0 +1,115 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+/**
+ * A message as it is kept in the store-and-forward queue.
+ * Only the fields needed to send the message on are stored:
+ * the destination, the compressed XML and the hop count, together with
+ * the queue priority and expiration time.
+ */
+class QueuedMessage {
+
+    /** ID assigned by the queue store. IDs increase in the order messages were added. */
+    private long messageId;
+    /** Address of the message destination application. */
+    private String destination;
+    /** Compressed XML message. (Not filled in when messages are read from a store.) */
+    private byte[] compressedXml;
+    /** Length of the compressed XML message. */
+    private int compressedXmlLength;
+    /** Count of how many systems have sent this message so far. */
+    private int hopCount;
+    /** Queue priority. Higher priority messages are sent first. */
+    private int priority = QueueManager.DEFAULT_PRIORITY;
+    /** Time (in milliseconds) after which the message is dropped instead of sent, or 0 if never. */
+    private long expires;
+    /** Key identifying older queued messages (to the same destination) that this one supersedes, or null. */
+    private String coalesceKey;
+
+    public byte[] getCompressedXml() {
+        return compressedXml;
+    }
+
+    public void setCompressedXml(byte[] compressedXml) {
+        this.compressedXml = compressedXml;
+    }
+
+    public int getCompressedXmlLength() {
+        return compressedXmlLength;
+    }
+
+    public void setCompressedXmlLength(int compressedXmlLength) {
+        this.compressedXmlLength = compressedXmlLength;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public void setDestination(String destination) {
+        this.destination = destination;
+    }
+
+    public int getHopCount() {
+        return hopCount;
+    }
+
+    public void setHopCount(int hopCount) {
+        this.hopCount = hopCount;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(long messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public void setCoalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public void setExpires(long expires) {
+        this.expires = expires;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+}
@@ -0,0 +1,220 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One or more next hops to which messages for a destination may be sent.
+ * <p>
+ * A route is configured as a comma-separated list of hop strings, for example:
+ * <p>
+ * IPAddressPort.ke.go.moh.facility.mpi=10.0.0.1:9721/zip/weight=2, 10.0.0.2:9721/zip
+ * <p>
+ * Each message is sent to one of the hops. How the hop is chosen is set
+ * by the property NextHop.Balance:
+ * <p>
+ * roundRobin - the hops take turns in proportion to their weights (the default) <br>
+ * leastOutstanding - the hop with the fewest sends in progress for its weight
+ * <p>
+ * Hops whose {@link CircuitBreaker} is open are skipped, so messages fail over
+ * to the other hops. (An unreachable hop is tried again when its breaker
+ * allows a trial.) If no hop is available, one is chosen anyway, and the
+ * send will fail at once unless its breaker lets it through.
+ * <p>
+ * A route is never changed after it is created, and can be used by any number
+ * of threads at once without locking.
+ */
+final class Route {
+
+    static final String BALANCE_ROUND_ROBIN = "roundRobin";
+    static final String BALANCE_LEAST_OUTSTANDING = "leastOutstanding";
+    /** The hops in this route, in the order configured. */
+    private final NextHop[] hops;
+    /** Order in which the hops take turns, each appearing as often as its weight. */
+    private final NextHop[] schedule;
+    /** Position in the schedule of the next turn. */
+    private final AtomicInteger nextTurn = new AtomicInteger();
+    /** Choose by fewest outstanding sends (otherwise round-robin.) */
+    private final boolean leastOutstanding;
+
+    /**
+     * Creates a route.
+     *
+     * @param hops next hops in the route (at least one.)
+     * @param balance how to choose among the hops (BALANCE_ROUND_ROBIN or BALANCE_LEAST_OUTSTANDING.)
+     */
+    Route(List<NextHop> hops, String balance) {
+        this.hops = hops.toArray(new NextHop[hops.size()]);
+        this.leastOutstanding = BALANCE_LEAST_OUTSTANDING.equalsIgnoreCase(balance);
+        this.schedule = makeSchedule(this.hops);
+        for (NextHop hop : this.hops) {
+            hop.setRoute(this);
+        }
+    }
+
+    /**
+     * Parses a route from a property value.
+     *
+     * @param routeString comma-separated hop strings.
+     * @param balance how to choose among the hops.
+     * @return the route.
+     */
+    static Route parseRouteString(String routeString, String balance) {
+        List<NextHop> hops = new ArrayList<NextHop>();
+        for (String hopString : routeString.split(",")) {
+            hopString = hopString.trim();
+            if (hopString.length() > 0) {
+                hops.add(NextHop.parseHopString(hopString));
+            }
+        }
+        if (hops.isEmpty()) {
+            hops.add(NextHop.parseHopString(routeString.trim()));
+        }
+        return new Route(hops, balance);
+    }
+
+    /**
+     * Makes a weighted round-robin schedule in which each hop appears as many
+     * times as its weight, spread out as evenly as possible ("smooth" weighted
+     * round-robin: a hop of weight 2 and one of weight 1 go A B A, not A A B.)
+     *
+     * @param hops next hops in the route.
+     * @return the schedule.
+     */
+    private static NextHop[] makeSchedule(NextHop[] hops) {
+        int total = 0;
+        for (NextHop hop : hops) {
+            total += hop.getWeight();
+        }
+        NextHop[] schedule = new NextHop[total];
+        int[] current = new int[hops.length];
+        for (int turn = 0; turn < total; turn++) {
+            int best = 0;
+            for (int i = 0; i < hops.length; i++) {
+                current[i] += hops[i].getWeight();
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            schedule[turn] = hops[best];
+        }
+        return schedule;
+    }
+
+    /**
+     * Gets the hops in this route.
+     *
+     * @return the hops, in the order configured.
+     */
+    NextHop[] getHops() {
+        return hops.clone();
+    }
+
+    /**
+     * Tells whether any hop in this route may be sent to now.
+     *
+     * @return true if some hop's circuit breaker is closed or due for a trial.
+     */
+    boolean isAvailable() {
+        long now = System.currentTimeMillis();
+        for (NextHop hop : hops) {
+            if (hop.getCircuitBreaker().isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Chooses the hop to which to send the next message.
+     *
+     * @return the chosen hop.
+     */
+    NextHop select() {
+        if (hops.length == 1) {
+            return hops[0];
+        }
+        NextHop hop = choose(null);
+        return (hop != null ? hop : schedule[turn()]);
+    }
+
+    /**
+     * Chooses a hop to try after sending to some hops has failed.
+     *
+     * @param tried hops already tried.
+     * @return the chosen hop, or null if there is no other reachable hop.
+     */
+    NextHop selectAlternate(Collection<NextHop> tried) {
+        if (hops.length == 1) {
+            return null;
+        }
+        return choose(tried);
+    }
+
+    /**
+     * Chooses a reachable hop, skipping any already tried.
+     *
+     * @param tried hops not to choose, or null if none.
+     * @return the chosen hop, or null if none is available.
+     */
+    private NextHop choose(Collection<NextHop> tried) {
+        long now = System.currentTimeMillis();
+        if (leastOutstanding) {
+            NextHop best = null;
+            int start = turn() % hops.length; // Break ties in turn.
+            for (int i = 0; i < hops.length; i++) {
+                NextHop hop = hops[(start + i) % hops.length];
+                if (hop.getCircuitBreaker().isAvailable(now) && (tried == null || !tried.contains(hop))
+                        && (best == null
+                        || (long) hop.getOutstanding() * best.getWeight() < (long) best.getOutstanding() * hop.getWeight())) {
+                    best = hop;
+                }
+            }
+            return best;
+        }
+        int start = turn();
+        for (int i = 0; i < schedule.length; i++) {
+            NextHop hop = schedule[(start + i) % schedule.length];
+            if (hop.getCircuitBreaker().isAvailable(now) && (tried == null || !tried.contains(hop))) {
+                return hop;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the next turn in the schedule.
+     *
+     * @return the schedule position for this turn.
+     */
+    private int turn() {
+        return (nextTurn.getAndIncrement() & Integer.MAX_VALUE) % schedule.length;
+    }
+}
@@ -0,0 +1,412 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routing table compiled from the "IPAddressPort." properties.
+ * <p>
+ * The destination addresses in the properties are stored in a trie with one
+ * level for each dot-separated segment of the address. To route a destination
+ * we walk down the trie one segment at a time, remembering the last route
+ * we passed. This finds the longest matching address in the properties, the
+ * same as looking up the whole address, then chopping off segments from the
+ * end one at a time. If nothing matches, we use the catch-all entry
+ * "IPAddressPort.*" (kept at the root of the trie.)
+ * <p>
+ * To classify incoming messages by the IP address (and port) they came from,
+ * the table also has a reverse index from numeric IP address:port, and from
+ * numeric IP address alone, to next hop. Host names in the next hops are
+ * never resolved on the thread doing the lookup (a slow or failing DNS server
+ * would hold up every incoming message.) Instead {@link #refreshReverseIndex()}
+ * is called in the background, when the table is first used and then every
+ * NextHop.DnsRefreshSeconds (default 300.) It resolves all the host names
+ * and publishes a new reverse index. Next hops given as numeric IP
+ * addresses are in the reverse index from the start. If a host name can't
+ * be resolved, its last known addresses are kept.
+ * <p>
+ * Connect and read timeouts for next hops that don't set their own in the
+ * hop string can be set with NextHop.ConnectTimeoutMillis and
+ * NextHop.ReadTimeoutMillis (default no timeout.)
+ * <p>
+ * A routing table is never changed after it is compiled (except for
+ * replacing its reverse index), so it can be used by any number of
+ * threads at once without locking. To change the routes, compile a new table.
+ */
+final class RoutingTable {
+
+    static final String PROPERTY_PREFIX = "IPAddressPort.";
+    /** Our own address, or null if none is configured. */
+    private final String instanceAddress;
+    /** Settings of the circuit breakers of the hops. */
+    private int failureThreshold;
+    private long openMillis;
+    /** Root of the routing trie. Its route is the catch-all route. */
+    private final Node root = new Node();
+    /** Every next hop in the table, in no particular order. */
+    private final List<NextHop> hops = new ArrayList<NextHop>();
+    /** Next hops by numeric IP address:port and by numeric IP address (never changed once published.) */
+    private volatile Map<String, NextHop> reverseIndex = Collections.emptyMap();
+    /** Numeric IP addresses last found for each host name (shared by all routing tables.) */
+    private static final Map<String, String[]> resolvedHosts = new ConcurrentHashMap<String, String[]>();
+
+    /**
+     * One node of the routing trie, for one segment of an address.
+     */
+    private static class Node {
+
+        /** Route for the address ending at this node, or null if none. */
+        private Route route;
+        /** Nodes for each possible next segment of the address. */
+        private Map<String, Node> children = Collections.emptyMap();
+    }
+
+    private RoutingTable(String instanceAddress) {
+        this.instanceAddress = instanceAddress;
+    }
+
+    /**
+     * Compiles a routing table from properties.
+     *
+     * @param properties properties containing "IPAddressPort." entries.
+     * @return the routing table.
+     */
+    static RoutingTable compile(Properties properties) {
+        return compile(properties, null);
+    }
+
+    /**
+     * Compiles a routing table from properties, to replace an older one.
+     * A hop with the same hop string in the route for the same address
+     * takes over the old hop's send slots and count of sends in progress,
+     * and its circuit breaker if the breaker settings haven't changed.
+     *
+     * @param properties properties containing "IPAddressPort." entries.
+     * @param previous the routing table this one replaces, or null if none.
+     * @return the routing table.
+     */
+    static RoutingTable compile(Properties properties, RoutingTable previous) {
+        RoutingTable table = new RoutingTable(properties.getProperty("Instance.Address"));
+        String balance = properties.getProperty("NextHop.Balance", Route.BALANCE_ROUND_ROBIN).trim();
+        table.failureThreshold = Integer.parseInt(properties.getProperty("NextHop.FailureThreshold", "5").trim());
+        table.openMillis = 1000L * Long.parseLong(properties.getProperty("NextHop.OpenSeconds", "30").trim());
+        int connectTimeout = Integer.parseInt(properties.getProperty("NextHop.ConnectTimeoutMillis", "0").trim());
+        int readTimeout = Integer.parseInt(properties.getProperty("NextHop.ReadTimeoutMillis", "0").trim());
+        Map<String, Route> previousRoutes = (previous != null ? previous.getRoutes() : Collections.<String, Route>emptyMap());
+        boolean keepCircuitBreakers = (previous != null && previous.failureThreshold == table.failureThreshold
+                && previous.openMillis == table.openMillis);
+        for (String propertyName : properties.stringPropertyNames()) {
+            if (propertyName.startsWith(PROPERTY_PREFIX)) {
+                String address = propertyName.substring(PROPERTY_PREFIX.length());
+                Route route = Route.parseRouteString(properties.getProperty(propertyName), balance);
+                Route previousRoute = previousRoutes.get(address);
+                for (NextHop hop : route.getHops()) {
+                    hop.setCircuitBreaker(new CircuitBreaker(table.failureThreshold, table.openMillis));
+                    NextHop old = (previousRoute != null ? findHop(previousRoute, hop.getHopString()) : null);
+                    if (old != null) {
+                        hop.keepStateOf(old, keepCircuitBreakers);
+                    }
+                    if (hop.getConnectTimeout() == 0) {
+                        hop.setConnectTimeout(connectTimeout);
+                    }
+                    if (hop.getReadTimeout() == 0) {
+                        hop.setReadTimeout(readTimeout);
+                    }
+                    table.hops.add(hop);
+                }
+                if (address.equals("*")) {
+                    table.root.route = route;
+                } else {
+                    table.put(address, route);
+                }
+            }
+        }
+        table.buildReverseIndex(false);
+        return table;
+    }
+
+    /**
+     * Finds the hop with a given hop string in a route.
+     *
+     * @param route the route.
+     * @param hopString the hop string.
+     * @return the hop, or null if the route has no hop with this hop string.
+     */
+    private static NextHop findHop(Route route, String hopString) {
+        for (NextHop hop : route.getHops()) {
+            if (hop.getHopString() != null && hop.getHopString().equals(hopString)) {
+                return hop;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a route to the trie (while the table is being compiled.)
+     *
+     * @param address destination address.
+     * @param route route for the address.
+     */
+    private void put(String address, Route route) {
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int dot = address.indexOf('.', start);
+            String segment = (dot < 0 ? address.substring(start) : address.substring(start, dot));
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                if (node.children.isEmpty()) {
+                    node.children = new HashMap<String, Node>();
+                }
+                node.children.put(segment, child);
+            }
+            node = child;
+            if (dot < 0) {
+                break;
+            }
+            start = dot + 1;
+        }
+        node.route = route;
+    }
+
+    /**
+     * Finds the next hop for a destination address. If the route to the
+     * destination has more than one hop, one of them is chosen.
+     *
+     * @param destination where the message is to be sent.
+     * @return next hop, or null if the destination is ourselves
+     * or there is no route to it.
+     */
+    NextHop lookup(String destination) {
+        if (destination.equalsIgnoreCase(instanceAddress)) {
+            return null;
+        }
+        Route route = root.route;
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int dot = destination.indexOf('.', start);
+            String segment = (dot < 0 ? destination.substring(start) : destination.substring(start, dot));
+            node = node.children.get(segment);
+            if (node == null) {
+                break;
+            }
+            if (node.route != null) {
+                route = node.route;
+            }
+            if (dot < 0) {
+                break;
+            }
+            start = dot + 1;
+        }
+        return (route != null ? route.select() : null);
+    }
+
+    /**
+     * Finds the next hop with a given numeric IP address and (if we have it) port number.
+     * This never waits for a host name to be resolved.
+     *
+     * @param address numeric IP address and (if we have it) port number.
+     * @return next hop, or null if none matches.
+     */
+    NextHop lookupByIpPort(String address) {
+        return reverseIndex.get(address);
+    }
+
+    /**
+     * Gets every next hop in the table.
+     *
+     * @return the next hops, in no particular order.
+     */
+    List<NextHop> getHops() {
+        return Collections.unmodifiableList(hops);
+    }
+
+    /**
+     * Gets every route in the table, by destination address.
+     * The catch-all route (if any) is under "*".
+     *
+     * @return the routes, sorted by destination address.
+     */
+    Map<String, Route> getRoutes() {
+        Map<String, Route> routes = new TreeMap<String, Route>();
+        addRoutes(routes, root, null);
+        return routes;
+    }
+
+    /**
+     * Adds the routes at and below a trie node to a map of routes.
+     *
+     * @param routes map of routes to add to.
+     * @param node trie node.
+     * @param address address of the node (null for the root.)
+     */
+    private static void addRoutes(Map<String, Route> routes, Node node, String address) {
+        if (node.route != null) {
+            routes.put(address == null ? "*" : address, node.route);
+        }
+        for (Map.Entry<String, Node> e : node.children.entrySet()) {
+            addRoutes(routes, e.getValue(), address == null ? e.getKey() : address + "." + e.getKey());
+        }
+    }
+
+    /**
+     * Resolves the host names of all the next hops, and publishes a new
+     * reverse index. This may wait for DNS, so it is called in the background.
+     */
+    void refreshReverseIndex() {
+        buildReverseIndex(true);
+    }
+
+    /**
+     * Builds and publishes the reverse index from numeric IP address (and port) to next hop.
+     * If there is more than one next hop with the same address, the first one
+     * found is used.
+     *
+     * @param resolve true to resolve host names, false to use only
+     * numeric addresses and the addresses found by the last resolution.
+     */
+    private void buildReverseIndex(boolean resolve) {
+        Map<String, NextHop> index = new HashMap<String, NextHop>();
+        for (NextHop hop : hops) {
+            String ipAddressPort = hop.getIpAddressPort();
+            int colon = ipAddressPort.lastIndexOf(':');
+            String host = (colon >= 0 ? ipAddressPort.substring(0, colon) : ipAddressPort);
+            String port = (colon >= 0 ? ipAddressPort.substring(colon) : "");
+            String[] addresses = resolvedHosts.get(host);
+            if (resolve) {
+                String[] resolved = resolve(host);
+                if (resolved != null) {
+                    addresses = resolved;
+                    resolvedHosts.put(host, addresses);
+                }
+            } else if (addresses == null && isNumeric(host)) {
+                addresses = new String[]{host};
+            }
+            if (addresses != null) {
+                for (String a : addresses) {
+                    if (!index.containsKey(a + port)) {
+                        index.put(a + port, hop);
+                    }
+                    if (!index.containsKey(a)) {
+                        index.put(a, hop);
+                    }
+                }
+            }
+        }
+        reverseIndex = index;
+    }
+
+    /**
+     * Probes every next hop by opening (and closing) a TCP connection to it,
+     * and records the result in the hop's circuit breaker. This way a hop that
+     * goes down is found before a message waits on it, and a hop that comes
+     * back is used again without waiting for a trial message.
+     *
+     * @param timeoutMillis how long to wait for each connection.
+     */
+    void probeHops(int timeoutMillis) {
+        for (NextHop hop : hops) {
+            String ipAddressPort = hop.getIpAddressPort();
+            int colon = ipAddressPort.lastIndexOf(':');
+            String host = (colon >= 0 ? ipAddressPort.substring(0, colon) : ipAddressPort);
+            int port = (colon >= 0 ? Integer.parseInt(ipAddressPort.substring(colon + 1)) : 80);
+            CircuitBreaker.State before = hop.getCircuitBreaker().getState();
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+                hop.getCircuitBreaker().recordSuccess();
+            } catch (IOException ex) {
+                hop.getCircuitBreaker().recordFailure();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                }
+            }
+            CircuitBreaker.State after = hop.getCircuitBreaker().getState();
+            if (after != before) {
+                Logger.getLogger(RoutingTable.class.getName()).log(after == CircuitBreaker.State.OPEN ? Level.WARNING : Level.INFO,
+                        "Health probe of next hop {0}: circuit breaker {1}", new Object[]{ipAddressPort, after});
+            }
+        }
+    }
+
+    /**
+     * Resolves a host name to all its numeric IP addresses.
+     *
+     * @param host host name (or numeric IP address.)
+     * @return the numeric IP addresses, or null if the name can't be resolved.
+     */
+    private static String[] resolve(String host) {
+        try {
+            InetAddress[] inetAddresses = InetAddress.getAllByName(host);
+            String[] addresses = new String[inetAddresses.length];
+            for (int i = 0; i < inetAddresses.length; i++) {
+                addresses[i] = inetAddresses[i].getHostAddress();
+            }
+            return addresses;
+        } catch (UnknownHostException ex) {
+            Logger.getLogger(RoutingTable.class.getName()).log(Level.WARNING,
+                    "Can''t resolve next hop host ''{0}''", host);
+            return null;
+        }
+    }
+
+    /**
+     * Tells whether a host is a numeric IPv4 address (which needs no resolving.)
+     *
+     * @param host host name or address.
+     * @return true if numeric, otherwise false.
+     */
+    private static boolean isNumeric(String host) {
+        if (host.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,117 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent callers asking for the same thing share one answer.
+ * The first caller with a given key (the leader) does the work. Callers
+ * that arrive with the same key while the leader is still working wait
+ * for the leader and get the same result. Once the leader finishes, the
+ * key is forgotten, so a later caller does the work again.
+ *
+ * @param <V> the type of result
+ */
+class SingleFlight<V> {
+
+    /**
+     * The work to be done by the leader.
+     *
+     * @param <V> the type of result
+     */
+    interface Call<V> {
+
+        V call();
+    }
+
+    /** One piece of work in progress. */
+    private static class Flight<V> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private V result;
+    }
+    private final ConcurrentMap<String, Flight<V>> flights = new ConcurrentHashMap<String, Flight<V>>();
+    /** Count of callers that shared a leader's result. */
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * Does the work for a key, or waits for the same work already
+     * in progress.
+     *
+     * @param key identifies the work
+     * @param call does the work if there is no work in progress for this key
+     * @return the result of the work
+     */
+    V execute(String key, Call<V> call) {
+        Flight<V> flight = new Flight<V>();
+        Flight<V> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            sharedCount.incrementAndGet();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    leader.done.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return leader.result;
+        }
+        try {
+            flight.result = call.call();
+            return flight.result;
+        } finally {
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Gets the number of callers that shared another caller's result
+     * instead of doing the work themselves.
+     *
+     * @return the count of shared results
+     */
+    long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /**
+     * Gets the number of pieces of work in progress.
+     *
+     * @return the number of keys with work in progress
+     */
+    int getInFlightCount() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,195 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most recent completed message traces, to find out which relay
+ * or which stage is slow.
+ * <p>
+ * A traced message carries a trace in the "trace" URL parameter (next to
+ * "hopcount") from hop to hop. Each hop adds events to it, each event being
+ * stage:instanceAddress:milliseconds. The stages are:
+ * <p>
+ * start - the message was created (at the original sender)
+ * <br>pack - the message was packed into XML (at the original sender)
+ * <br>queue - the message was put in the store-and-forward queue
+ * <br>dequeue - the message was taken from the queue to send
+ * <br>send - sending to the next hop started
+ * <br>recv - the message was received from the previous hop
+ * <br>done - the message was unpacked at its destination
+ * <p>
+ * When a traced message reaches its destination, the trace is complete.
+ * The destination keeps it here, logs it (at level FINE), and records
+ * its total time. The times come from each hop's own clock, so times
+ * between hops are only as good as the hops' clock synchronization.
+ * <p>
+ * A percentage of the messages sent from here are traced, set by
+ * Trace.SamplePercent (default 0, no tracing.) Trace.BufferSize sets the
+ * number of completed traces kept (default 100.) Relays and destinations
+ * add to a trace whenever a message arrives with one, whatever their own
+ * settings.
+ * <p>
+ * Traces of messages in the store-and-forward queue are kept in memory
+ * (not in the queue store), so if a relay restarts while a traced message
+ * is queued there, the message goes on without its trace.
+ */
+class TraceBuffer {
+
+    private static final int DEFAULT_BUFFER_SIZE = 100;
+    /** Completed traces, most recent last. */
+    private final LinkedList<String> traces = new LinkedList<String>();
+    private volatile int bufferSize;
+    private volatile int samplePercent;
+    private final AtomicLong completedCount = new AtomicLong();
+    /** Total time of completed traces, from start to done. */
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    TraceBuffer() {
+        reloadProperties();
+    }
+
+    /**
+     * Reads (or re-reads) the trace properties.
+     */
+    final void reloadProperties() {
+        bufferSize = intProperty("Trace.BufferSize", DEFAULT_BUFFER_SIZE);
+        samplePercent = Math.min(100, intProperty("Trace.SamplePercent", 0));
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = Mediator.getProperty(name);
+        if (value != null) {
+            try {
+                return Math.max(0, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException ex) {
+                // Use the default.
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Starts a trace on a message we are sending, if it is chosen to be sampled.
+     *
+     * @param m message we are sending.
+     */
+    void maybeStart(Message m) {
+        int percent = samplePercent;
+        if (percent > 0 && (percent >= 100 || ThreadLocalRandom.current().nextInt(100) < percent)) {
+            m.setTrace("");
+            m.addTraceEvent("start");
+        }
+    }
+
+    /**
+     * Records the completed trace of a message that reached us, its destination.
+     *
+     * @param m the message.
+     * @return the formatted trace.
+     */
+    String complete(Message m) {
+        m.addTraceEvent("done");
+        String trace = m.getTrace();
+        long[] span = new long[2];
+        String formatted = format(m.getMessageId(), trace, span);
+        completedCount.incrementAndGet();
+        totalLatency.record((span[1] - span[0]) * 1000000L);
+        synchronized (traces) {
+            traces.addLast(formatted);
+            while (traces.size() > bufferSize) {
+                traces.removeFirst();
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * Formats a trace to read, with the time of each event after the first.
+     * For example:
+     * <p>
+     * <code>id 123 total 45 ms: start@a +0, pack@a +2, send@a +3, recv@b +20, send@b +21, recv@c +44, done@c +45</code>
+     *
+     * @param messageId ID of the traced message (or null if it has none.)
+     * @param trace the trace.
+     * @param span returns the first and last event times.
+     * @return the formatted trace.
+     */
+    static String format(String messageId, String trace, long[] span) {
+        StringBuilder sb = new StringBuilder();
+        long first = 0;
+        long last = 0;
+        boolean started = false;
+        for (String event : trace.split(",")) {
+            int c1 = event.indexOf(':');
+            int c2 = event.lastIndexOf(':');
+            if (c1 < 0 || c2 <= c1) {
+                continue; // Not an event we understand.
+            }
+            long t;
+            try {
+                t = Long.parseLong(event.substring(c2 + 1));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            if (!started) {
+                first = t;
+                started = true;
+            } else {
+                sb.append(", ");
+            }
+            last = t;
+            sb.append(event.substring(0, c1)).append('@').append(event.substring(c1 + 1, c2));
+            sb.append(" +").append(t - first);
+        }
+        span[0] = first;
+        span[1] = last;
+        return (messageId != null ? "id " + messageId + " " : "") + "total " + (last - first) + " ms: " + sb;
+    }
+
+    /**
+     * Gets the most recent completed traces.
+     *
+     * @return the traces, oldest first.
+     */
+    List<String> getRecentTraces() {
+        synchronized (traces) {
+            return new ArrayList<String>(traces);
+        }
+    }
+
+    long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    LatencyHistogram getTotalLatency() {
+        return totalLatency;
+    }
+}
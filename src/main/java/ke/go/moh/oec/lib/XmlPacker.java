@@ -55,6 +55,8 @@ import javax.xml.transform.stream.StreamResult;
 
 import ke.go.moh.oec.Fingerprint;
 import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonBatchRequest;
+import ke.go.moh.oec.PersonBatchResponse;
 import ke.go.moh.oec.PersonIdentifier;
 import ke.go.moh.oec.PersonRequest;
 import ke.go.moh.oec.PersonResponse;
@@ -173,6 +175,18 @@ class XmlPacker {
 				doc = packFindPersonResponseMessage(m);
 				break;
 
+			case findPersonBatch: // Uses packBatchRequestMessage(), below.
+			case createPersonBatch: // Uses packBatchRequestMessage(), below.
+			case modifyPersonBatch:
+				doc = packBatchRequestMessage(m);
+				break;
+
+			case findPersonBatchResponse: // Uses packBatchResponseMessage(), below.
+			case createPersonBatchAccepted: // Uses packBatchResponseMessage(), below.
+			case modifyPersonBatchAccepted:
+				doc = packBatchResponseMessage(m);
+				break;
+
 			case createPerson: // Uses packGenericPersonRequestMessage(), below.
 			case modifyPerson: // Uses packGenericPersonRequestMessage(), below.
 			case notifyPersonChanged:
@@ -188,6 +202,10 @@ class XmlPacker {
 				doc = packLogEntryMessage(m);
 				break;
 
+			case logEntryBatch:
+				doc = packLogEntryBatchMessage(m);
+				break;
+
 			case getWork:   // Uses packWorkMessage(), below.
 			case workDone:  // Uses packWorkMessage(), below.
 			case reassignWork:
@@ -405,6 +423,133 @@ class XmlPacker {
 		return doc;
 	}
 
+	/**
+	 * Packs a batch request message into a <code>Document</code>.
+	 * Used for these messages:
+	 * <p>
+	 * FIND PERSON BATCH <br>
+	 * CREATE PERSON BATCH <br>
+	 * MODIFY PERSON BATCH
+	 * <p>
+	 * The batch is an envelope with a few header elements, followed by
+	 * one HL7 message for each request in the batch (for example a
+	 * Patient Registry Find Candidates Query, PRPA_IN201305UV02, for each
+	 * request in a find person batch), packed in the same way as if it
+	 * were sent alone.
+	 *
+	 * @param m batch message contents to pack
+	 * @return packed batch message
+	 */
+	private Document packBatchRequestMessage(Message m) {
+		if (!(m.getMessageData() instanceof PersonBatchRequest)) {
+			Logger.getLogger(XmlPacker.class.getName()).log(Level.SEVERE,
+					"packBatchRequestMessage() - Expected data class PersonBatchRequest, got {0}",
+					m.getMessageData().getClass().getName());
+		}
+		PersonBatchRequest batch = (PersonBatchRequest) m.getMessageData();
+		MessageType itemType = MessageTypeRegistry.findBatchItem(m.getMessageType());
+		Document doc = packBatchEnvelope(m);
+		Element root = doc.getDocumentElement();
+		if (batch.getRequestList() != null) {
+			for (PersonRequest personRequest : batch.getRequestList()) {
+				Message item = packBatchItem(m, itemType, personRequest);
+				item.setXml(personRequest.getXml());
+				Document itemDoc = packMessage(item);
+				root.appendChild(doc.importNode(itemDoc.getDocumentElement(), true));
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Packs a batch response message into a <code>Document</code>.
+	 * Used for these messages:
+	 * <p>
+	 * FIND PERSON BATCH RESPONSE <br>
+	 * CREATE PERSON BATCH ACCEPTED <br>
+	 * MODIFY PERSON BATCH ACCEPTED
+	 * <p>
+	 * The batch response is an envelope with a few header elements, followed by
+	 * one HL7 message for each response in the batch (for example a
+	 * Patient Registry Find Candidates Query Response, PRPA_IN201306UV02,
+	 * for each response in a find person batch response.)
+	 * A response that is null, or not successful, is packed as an empty
+	 * <code>&lt;noResponse/&gt;</code> element.
+	 *
+	 * @param m batch response contents to pack
+	 * @return packed batch response message
+	 */
+	private Document packBatchResponseMessage(Message m) {
+		if (!(m.getMessageData() instanceof PersonBatchResponse)) {
+			Logger.getLogger(XmlPacker.class.getName()).log(Level.SEVERE,
+					"packBatchResponseMessage() - Expected data class PersonBatchResponse, got {0}",
+					m.getMessageData().getClass().getName());
+		}
+		PersonBatchResponse batch = (PersonBatchResponse) m.getMessageData();
+		MessageType itemType = MessageTypeRegistry.findBatchItem(m.getMessageType());
+		Document doc = packBatchEnvelope(m);
+		Element root = doc.getDocumentElement();
+		if (batch.getResponseList() != null) {
+			for (PersonResponse personResponse : batch.getResponseList()) {
+				if (personResponse == null || !personResponse.isSuccessful()) {
+					root.appendChild(doc.createElement("noResponse"));
+				} else {
+					Message item = packBatchItem(m, itemType, personResponse);
+					Document itemDoc = packMessage(item);
+					root.appendChild(doc.importNode(itemDoc.getDocumentElement(), true));
+				}
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Packs the envelope for a batch message: a new <code>Document</code>
+	 * with the message type's root tag, and the message header.
+	 *
+	 * @param m batch message
+	 * @return the envelope, ready for the items in the batch to be added
+	 */
+	private Document packBatchEnvelope(Message m) {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		DocumentBuilder db = null;
+		try {
+			db = dbf.newDocumentBuilder();
+		} catch (ParserConfigurationException ex) {
+			Logger.getLogger(XmlPacker.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		Document doc = db.newDocument();
+		Element root = doc.createElement(m.getMessageType().getRootXmlTag());
+		doc.appendChild(root);
+		packNewElement(doc, root, "messageId", m.getMessageId());
+		packNewElement(doc, root, "sourceAddress", m.getSourceAddress());
+		packNewElement(doc, root, "sourceName", m.getSourceName());
+		packNewElement(doc, root, "destinationAddress", m.getDestinationAddress());
+		packNewElement(doc, root, "destinationName", m.getDestinationName());
+		return doc;
+	}
+
+	/**
+	 * Makes a message for one item in a batch, with the same header
+	 * as the batch message.
+	 *
+	 * @param m batch message
+	 * @param messageType message type of the item
+	 * @param data data for the item
+	 * @return message for the item
+	 */
+	private Message packBatchItem(Message m, MessageType messageType, Object data) {
+		Message item = new Message();
+		item.setMessageType(messageType);
+		item.setMessageData(data);
+		item.setMessageId(m.getMessageId());
+		item.setSourceAddress(m.getSourceAddress());
+		item.setSourceName(m.getSourceName());
+		item.setDestinationAddress(m.getDestinationAddress());
+		item.setDestinationName(m.getDestinationName());
+		return item;
+	}
+
 	/**
 	 * Packs one of the candidates to return in a FindPerson response message.
 	 *
@@ -1112,6 +1257,30 @@ class XmlPacker {
 		return doc;
 	}
 
+	/**
+	 * Packs a Send Log Entry Batch message into a document.
+	 * The batch is an envelope with a few header elements, followed by
+	 * one LogEntry message for each log entry in the batch.
+	 *
+	 * @param m message to be packed
+	 * @return DOM Document structure
+	 */
+	private Document packLogEntryBatchMessage(Message m) {
+		if (!(m.getMessageData() instanceof List)) {
+			Logger.getLogger(XmlPacker.class.getName()).log(Level.SEVERE,
+					"packLogEntryBatchMessage() - Expected data class List, got {0}",
+					m.getMessageData().getClass().getName());
+		}
+		Document doc = packBatchEnvelope(m);
+		Element root = doc.getDocumentElement();
+		for (Object logEntry : (List<?>) m.getMessageData()) {
+			Message item = packBatchItem(m, MessageTypeRegistry.logEntry, logEntry);
+			Document itemDoc = packLogEntryMessage(item);
+			root.appendChild(doc.importNode(itemDoc.getDocumentElement(), true));
+		}
+		return doc;
+	}
+
 	/**
 	 * Packs a value into a new <code>Element</code>, and links it to a parent <code>Element</code>.
 	 * If the value is null , the new element is not added
@@ -1272,7 +1441,16 @@ class XmlPacker {
 	 * @param doc the DOM Document structure to decode
 	 */
 	void unpackDocument(Message m, Document doc) {
-		Element root = doc.getDocumentElement();
+		unpackElement(m, doc.getDocumentElement());
+	}
+
+	/**
+	 * Unpacks a message, starting from its root element, into message data.
+	 *
+	 * @param m    the message to unpack
+	 * @param root the root element of the message
+	 */
+	private void unpackElement(Message m, Element root) {
 		String rootName = root.getTagName();
 		MessageType messageType = MessageTypeRegistry.find(rootName);
 		m.setMessageType(messageType);
@@ -1286,6 +1464,18 @@ class XmlPacker {
 				unpackFindPersonResponseMessage(m, root);
 				break;
 
+			case findPersonBatch: // Uses unpackBatchRequestMessage(), below.
+			case createPersonBatch: // Uses unpackBatchRequestMessage(), below.
+			case modifyPersonBatch:
+				unpackBatchRequestMessage(m, root);
+				break;
+
+			case findPersonBatchResponse: // Uses unpackBatchResponseMessage(), below.
+			case createPersonBatchAccepted: // Uses unpackBatchResponseMessage(), below.
+			case modifyPersonBatchAccepted:
+				unpackBatchResponseMessage(m, root);
+				break;
+
 			case createPerson: // Uses unpackGenericPersonMessage(), below.
 			case modifyPerson: // Uses unpackGenericPersonMessage(), below.
 			case notifyPersonChanged:
@@ -1301,6 +1491,10 @@ class XmlPacker {
 				unpackLogEntryMessage(m, root);
 				break;
 
+			case logEntryBatch:
+				unpackLogEntryBatchMessage(m, root);
+				break;
+
 			case getWork:   // Uses unpackWorkMessage(), below.
 			case workDone:  // Uses unpackWorkMessage(), below.
 			case reassignWork:
@@ -1431,6 +1625,89 @@ class XmlPacker {
 		}
 	}
 
+	/**
+	 * Unpacks a batch request <code>Document</code> into message data.
+	 * Each request in the batch is unpacked as if it were a message by itself.
+	 *
+	 * @param m the message contents to fill in
+	 * @param e root of the batch message <code>Document</code> parsed from XML
+	 */
+	private void unpackBatchRequestMessage(Message m, Element e) {
+		PersonBatchRequest batch = new PersonBatchRequest();
+		m.setMessageData(batch);
+		unpackBatchEnvelope(m, e);
+		List<PersonRequest> requestList = new ArrayList<PersonRequest>();
+		batch.setRequestList(requestList);
+		for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE
+					&& MessageTypeRegistry.find(((Element) n).getTagName()) != null) {
+				Message item = new Message();
+				unpackElement(item, (Element) n);
+				requestList.add((PersonRequest) item.getMessageData());
+			}
+		}
+	}
+
+	/**
+	 * Unpacks a batch response <code>Document</code> into message data.
+	 * Each response in the batch is unpacked as if it were a message by itself.
+	 * A <code>&lt;noResponse/&gt;</code> element is unpacked
+	 * as a response that is not successful.
+	 *
+	 * @param m the message contents to fill in
+	 * @param e root of the batch response <code>Document</code> parsed from XML
+	 */
+	private void unpackBatchResponseMessage(Message m, Element e) {
+		PersonBatchResponse batch = new PersonBatchResponse();
+		m.setMessageData(batch);
+		unpackBatchEnvelope(m, e);
+		List<PersonResponse> responseList = new ArrayList<PersonResponse>();
+		batch.setResponseList(responseList);
+		batch.setSuccessful(true);
+		for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				String tagName = ((Element) n).getTagName();
+				if (MessageTypeRegistry.find(tagName) != null) {
+					Message item = new Message();
+					unpackElement(item, (Element) n);
+					PersonResponse personResponse = (PersonResponse) item.getMessageData();
+					personResponse.setSuccessful(true);
+					personResponse.setRequestReference(m.getMessageId());
+					responseList.add(personResponse);
+				} else if (tagName.equals("noResponse")) {
+					responseList.add(new PersonResponse());
+					batch.setSuccessful(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Unpacks the header of a batch message envelope.
+	 *
+	 * @param m the message contents to fill in
+	 * @param e root of the batch message <code>Document</code> parsed from XML
+	 */
+	private void unpackBatchEnvelope(Message m, Element e) {
+		for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				String tagName = ((Element) n).getTagName();
+				String value = n.getTextContent();
+				if (tagName.equals("messageId")) {
+					m.setMessageId(value);
+				} else if (tagName.equals("sourceAddress")) {
+					m.setSourceAddress(value);
+				} else if (tagName.equals("sourceName")) {
+					m.setSourceName(value);
+				} else if (tagName.equals("destinationAddress")) {
+					m.setDestinationAddress(value);
+				} else if (tagName.equals("destinationName")) {
+					m.setDestinationName(value);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Unpack a candidate in a findPerson response.
 	 *
@@ -1890,6 +2167,27 @@ class XmlPacker {
 		logEntry.setInstance(e.getElementsByTagName("sourceAddress").item(0).getTextContent());
 	}
 
+	/**
+	 * Unpacks a Log Entry Batch message <code>Document</code> into message data,
+	 * a list of log entries.
+	 *
+	 * @param m the message contents to fill in
+	 * @param e root of the batch message <code>Document</code> parsed from XML
+	 */
+	private void unpackLogEntryBatchMessage(Message m, Element e) {
+		List<LogEntry> logEntryList = new ArrayList<LogEntry>();
+		m.setMessageData(logEntryList);
+		unpackBatchEnvelope(m, e);
+		for (Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE
+					&& ((Element) n).getTagName().equals(MessageTypeRegistry.LOG_ENTRY_ROOT_TAG)) {
+				Message item = new Message();
+				unpackLogEntryMessage(item, (Element) n);
+				logEntryList.add((LogEntry) item.getMessageData());
+			}
+		}
+	}
+
 	/**
 	 * Unpacks a Work message <code>Document</code> into message data.
 	 * Uses Work message type.
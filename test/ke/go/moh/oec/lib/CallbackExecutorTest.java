@@ -0,0 +1,216 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests what the callback executor does when its queue is full.
+ * <p>
+ * Each test uses one callback thread and room for one waiting callback,
+ * and holds the thread busy until the test is done.
+ */
+public class CallbackExecutorTest {
+
+    private static final MessageType.TemplateType TYPE = MessageType.TemplateType.findPerson;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private CallbackExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRuntime.init();
+        TestRuntime.setProperty("Callback.MaxThreads", "1");
+        TestRuntime.setProperty("Callback.QueueSize", "1");
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        TestRuntime.resetProperties();
+    }
+
+    @Test
+    public void fullQueueRejectsByDefault() throws Exception {
+        executor = new CallbackExecutor();
+        fill();
+        assertFalse(executor.execute(TYPE, new Recorder()));
+        assertEquals(1, executor.getRejectedCount());
+        assertEquals(0, executor.getCallerRunsCount());
+    }
+
+    @Test
+    public void fullQueueRejectsWithVirtualThreads() throws Exception {
+        TestRuntime.setProperty("Callback.VirtualThreads", "true"); // (A thread pool before Java 21.)
+        executor = new CallbackExecutor();
+        fill();
+        assertEquals(1, executor.getQueueDepth());
+        assertFalse(executor.execute(TYPE, new Recorder()));
+        assertEquals(1, executor.getRejectedCount());
+    }
+
+    @Test
+    public void fullQueueCanRunOnReceivingThread() throws Exception {
+        TestRuntime.setProperty("Callback.Overflow", "callerRuns");
+        executor = new CallbackExecutor();
+        fill();
+        Recorder r = new Recorder();
+        assertTrue(executor.execute(TYPE, r));
+        assertSame(Thread.currentThread(), r.thread.get());
+        assertEquals(1, executor.getCallerRunsCount());
+        assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void overflowCanChangeOnReload() throws Exception {
+        TestRuntime.setProperty("Callback.Overflow", "callerRuns");
+        executor = new CallbackExecutor();
+        fill();
+        TestRuntime.setProperty("Callback.Overflow", "reject");
+        executor.reloadProperties();
+        assertFalse(executor.execute(TYPE, new Recorder()));
+    }
+
+    @Test
+    public void fullTypeLimitRejects() throws Exception {
+        TestRuntime.setProperty("Callback.MaxThreads", "2");
+        TestRuntime.setProperty("Callback.MaxConcurrent." + TYPE.name(), "1");
+        executor = new CallbackExecutor();
+        fill(); // One running and one waiting on the type limit.
+        assertFalse(executor.execute(TYPE, new Recorder()));
+        Recorder other = new Recorder(); // Other types still run.
+        assertTrue(executor.execute(MessageType.TemplateType.createPerson, other));
+        assertTrue(other.ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectedTypeLimitSlotIsReleased() throws Exception {
+        TestRuntime.setProperty("Callback.MaxConcurrent." + TYPE.name(), "5");
+        executor = new CallbackExecutor();
+        fill();
+        assertFalse(executor.execute(TYPE, new Recorder())); // Rejected by the full pool.
+        release.countDown();
+        Recorder r = new Recorder();
+        for (int i = 0; i < 100 && !executor.execute(TYPE, r); i++) {
+            Thread.sleep(10); // Until the queued callback has been taken.
+        }
+        assertTrue(r.ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void typeLimitWaitersRunAfterRejectedSlot() throws Exception {
+        TestRuntime.setProperty("Callback.MaxConcurrent." + TYPE.name(), "1");
+        executor = new CallbackExecutor();
+        for (int round = 0; round < 200; round++) {
+            // Fill the pool with another type, so the callback holding the findPerson
+            // slot is rejected while others may be waiting on the slot.
+            final CountDownLatch busy = new CountDownLatch(1);
+            final CountDownLatch go = new CountDownLatch(1);
+            Runnable block = new Runnable() {
+
+                public void run() {
+                    await(busy);
+                }
+            };
+            for (int i = 0; i < 100 && !executor.execute(MessageType.TemplateType.createPerson, block); i++) {
+                Thread.sleep(1);
+            }
+            while (executor.execute(MessageType.TemplateType.createPerson, block)) {
+            }
+            Thread[] senders = new Thread[4];
+            for (int i = 0; i < senders.length; i++) {
+                senders[i] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        await(go);
+                        executor.execute(TYPE, new Recorder());
+                    }
+                };
+                senders[i].start();
+            }
+            go.countDown();
+            for (Thread t : senders) {
+                t.join();
+            }
+            busy.countDown();
+            for (int i = 0; i < 500 && executor.getQueueDepth() > 0; i++) {
+                Thread.sleep(1);
+            }
+            assertEquals("Callbacks left waiting on the type limit", 0, executor.getQueueDepth());
+        }
+    }
+
+    /**
+     * Fills the thread and the queue with callbacks that wait for the test to finish.
+     */
+    private void fill() throws InterruptedException {
+        assertTrue(executor.execute(TYPE, new Runnable() {
+
+            public void run() {
+                started.countDown();
+                await(release);
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.execute(TYPE, new Runnable() {
+
+            public void run() {
+                await(release);
+            }
+        }));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Callback that records the thread it ran on.
+     */
+    private static class Recorder implements Runnable {
+
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final CountDownLatch ran = new CountDownLatch(1);
+
+        public void run() {
+            thread.set(Thread.currentThread());
+            ran.countDown();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the circuit breaker state transitions.
+ */
+public class CircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 50;
+
+    @Test
+    public void opensAfterThresholdFailuresInARow() {
+        CircuitBreaker b = new CircuitBreaker(3, OPEN_MILLIS);
+        b.recordFailure();
+        b.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+        assertTrue(b.allowRequest());
+        b.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, b.getState());
+        assertFalse(b.allowRequest());
+        assertFalse(b.isAvailable(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        CircuitBreaker b = new CircuitBreaker(3, OPEN_MILLIS);
+        b.recordFailure();
+        b.recordFailure();
+        b.recordSuccess();
+        assertEquals(0, b.getConsecutiveFailures());
+        b.recordFailure();
+        b.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+    }
+
+    @Test
+    public void allowsOneTrialAfterOpenPeriod() throws Exception {
+        CircuitBreaker b = open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(b.isAvailable(System.currentTimeMillis()));
+        assertTrue(b.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, b.getState());
+        assertFalse(b.allowRequest()); // Only one trial at a time.
+    }
+
+    @Test
+    public void successfulTrialCloses() throws Exception {
+        CircuitBreaker b = open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(b.allowRequest());
+        b.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+        assertTrue(b.allowRequest());
+    }
+
+    @Test
+    public void failedTrialOpensForAnotherPeriod() throws Exception {
+        CircuitBreaker b = open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(b.allowRequest());
+        b.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, b.getState());
+        assertFalse(b.allowRequest());
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(b.allowRequest());
+    }
+
+    @Test
+    public void inconclusiveTrialLetsTheNextMessageTry() throws Exception {
+        CircuitBreaker b = open();
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(b.allowRequest());
+        b.recordInconclusive();
+        assertEquals(CircuitBreaker.State.OPEN, b.getState());
+        assertTrue(b.allowRequest());
+    }
+
+    @Test
+    public void inconclusiveSendLeavesClosedBreakerClosed() {
+        CircuitBreaker b = new CircuitBreaker(1, OPEN_MILLIS);
+        b.recordInconclusive();
+        assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+    }
+
+    @Test
+    public void failureWhileOpenRestartsTheOpenPeriod() throws Exception {
+        CircuitBreaker b = open();
+        Thread.sleep(OPEN_MILLIS / 2 + 10);
+        b.recordFailure(); // For example, a failed health probe.
+        Thread.sleep(OPEN_MILLIS / 2 + 10);
+        assertFalse(b.allowRequest());
+    }
+
+    private static CircuitBreaker open() {
+        CircuitBreaker b = new CircuitBreaker(1, OPEN_MILLIS);
+        b.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, b.getState());
+        return b;
+    }
+}
@@ -0,0 +1,134 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests compression round trips, and the HTTPHandler.MaxMessageBytes limit
+ * on decompressed and posted messages.
+ */
+public class CompresserTest {
+
+    @Before
+    public void setUp() throws Exception {
+        TestRuntime.init();
+    }
+
+    @After
+    public void tearDown() {
+        TestRuntime.resetProperties();
+    }
+
+    @Test
+    public void roundTrip() {
+        String xml = xml(100000);
+        Message m = compressed(xml);
+        assertTrue(m.getCompressedXmlLength() < xml.length() / 4);
+        Compresser.decompress(m);
+        assertEquals(xml, m.getXml());
+    }
+
+    @Test
+    public void messageJustUnderTheLimitIsKept() {
+        TestRuntime.setProperty("HTTPHandler.MaxMessageBytes", "100000");
+        String xml = xml(100000);
+        Message m = compressed(xml);
+        Compresser.decompress(m);
+        assertEquals(xml, m.getXml());
+    }
+
+    @Test
+    public void messageOverTheLimitIsDropped() {
+        TestRuntime.setProperty("HTTPHandler.MaxMessageBytes", "100000");
+        Message m = compressed(xml(100001));
+        Compresser.decompress(m);
+        assertNull(m.getXml());
+    }
+
+    @Test
+    public void highlyCompressedMessageCantInflatePastTheLimit() {
+        TestRuntime.setProperty("HTTPHandler.MaxMessageBytes", "1000000");
+        char[] zeros = new char[50000000];
+        Arrays.fill(zeros, '0');
+        Message m = compressed(new String(zeros)); // (Compresses about a thousand to one.)
+        Compresser.decompress(m);
+        assertNull(m.getXml());
+    }
+
+    @Test
+    public void oversizePostIsRefused() throws Exception {
+        TestRuntime.setProperty("HTTPHandler.MaxMessageBytes", "1000");
+        HttpService httpService = new HttpService(null);
+        httpService.start();
+        try {
+            int port = httpService.server.getAddress().getPort();
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port
+                    + "/oecmessage?destination=ke.go.moh.test&hopcount=1").openConnection();
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(1001);
+            OutputStream output = connection.getOutputStream();
+            try {
+                output.write(new byte[1001]);
+                output.close();
+            } catch (IOException ex) {
+                // (The server may answer before reading the whole post.)
+            }
+            assertEquals(413, connection.getResponseCode());
+        } finally {
+            httpService.stop();
+        }
+    }
+
+    private static Message compressed(String xml) {
+        Message m = new Message();
+        m.setXml(xml);
+        Compresser.compress(m);
+        Message received = new Message();
+        received.setCompressedXml(m.getCompressedXml());
+        received.setCompressedXmlLength(m.getCompressedXmlLength());
+        return received;
+    }
+
+    /**
+     * Makes XML of a given length.
+     */
+    private static String xml(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        sb.append("<x>");
+        for (int i = 0; sb.length() < length - 4; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.append("</x>").toString();
+    }
+}
@@ -0,0 +1,159 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the Derby queue store: messages larger than the 30000 bytes an
+ * earlier version allowed, reading a message a part at a time, and
+ * widening the XML_CODE column of a table created by that version.
+ */
+public class DerbyQueueStoreTest {
+
+    private static final String DESTINATION = "ke.go.moh.facility.14080.ccc";
+    private static final int PRIORITY = QueueManager.DEFAULT_PRIORITY;
+    private DerbyQueueStore store;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        TestRuntime.init();
+    }
+
+    @Before
+    public void setUp() {
+        TestRuntime.deleteQueueDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        TestRuntime.deleteQueueDatabase();
+    }
+
+    @Test
+    public void largeMessageIsReadWholeAndInParts() {
+        store = open();
+        byte[] payload = randomBytes(100000);
+        assertTrue(store.add(Collections.singletonList(message(payload))));
+        QueuedMessage q = store.read(DESTINATION, PRIORITY, 0, 1).get(0);
+        assertEquals(payload.length, q.getCompressedXmlLength());
+        assertArrayEquals(payload, store.readCompressedXml(q));
+        assertArrayEquals(Arrays.copyOfRange(payload, 65536, 100000), store.readCompressedXml(q, 65536, 100000 - 65536));
+        assertEquals(0, store.readCompressedXml(q, 0, 0).length);
+        assertNull(store.readCompressedXml(q, 65536, 65536)); // (Past the end.)
+        store.remove(Collections.singletonList(q));
+        assertNull(store.readCompressedXml(q, 0, 0));
+    }
+
+    @Test
+    public void narrowXmlCodeColumnIsWidened() throws Exception {
+        byte[] old = randomBytes(1000);
+        Connection c = DriverManager.getConnection("jdbc:derby:" + Mediator.getRuntimeDirectory()
+                + "QUEUEMANAGER_DATABASE;create=true");
+        try {
+            Statement s = c.createStatement();
+            s.execute("CREATE TABLE \"MESSAGE_SENDING_QUEUE\"("
+                    + "MESSAGE_ID INTEGER NOT NULL PRIMARY KEY GENERATED ALWAYS AS IDENTITY, "
+                    + "DESTINATION VARCHAR(100), XML_CODE BLOB(30000), HOP_COUNT INTEGER)");
+            s.close();
+            PreparedStatement insert = c.prepareStatement(
+                    "INSERT INTO MESSAGE_SENDING_QUEUE (DESTINATION, XML_CODE, HOP_COUNT) VALUES (?, ?, 1)");
+            insert.setString(1, DESTINATION);
+            insert.setBytes(2, old);
+            insert.executeUpdate();
+            insert.close();
+            assertEquals(30000, xmlCodeColumnSize(c));
+        } finally {
+            c.close();
+        }
+
+        store = open();
+        byte[] large = randomBytes(40000);
+        assertTrue(store.add(Collections.singletonList(message(large))));
+        List<QueuedMessage> page = store.read(DESTINATION, PRIORITY, 0, 10);
+        assertEquals(2, page.size());
+        assertArrayEquals(old, store.readCompressedXml(page.get(0)));
+        assertArrayEquals(large, store.readCompressedXml(page.get(1)));
+        store.close();
+        store = null;
+
+        c = DriverManager.getConnection("jdbc:derby:" + Mediator.getRuntimeDirectory() + "QUEUEMANAGER_DATABASE");
+        try {
+            assertEquals(Integer.MAX_VALUE, xmlCodeColumnSize(c));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static DerbyQueueStore open() {
+        DerbyQueueStore s = new DerbyQueueStore();
+        assertTrue(s.open());
+        return s;
+    }
+
+    private static int xmlCodeColumnSize(Connection c) throws Exception {
+        DatabaseMetaData metaData = c.getMetaData();
+        ResultSet columns = metaData.getColumns(null, null, "MESSAGE_SENDING_QUEUE", "XML_CODE");
+        try {
+            assertTrue(columns.next());
+            return columns.getInt("COLUMN_SIZE");
+        } finally {
+            columns.close();
+        }
+    }
+
+    private static QueuedMessage message(byte[] payload) {
+        QueuedMessage q = new QueuedMessage();
+        q.setDestination(DESTINATION);
+        q.setHopCount(1);
+        q.setPriority(PRIORITY);
+        q.setCompressedXml(payload);
+        q.setCompressedXmlLength(payload.length);
+        return q;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,215 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonIdentifier;
+import ke.go.moh.oec.PersonRequest;
+import ke.go.moh.oec.PersonResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the find person cache: copies, expiry, size limit and which
+ * responses are forgotten when a person changes.
+ */
+public class FindPersonCacheTest {
+
+    private FindPersonCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRuntime.init();
+        TestRuntime.setProperty("FindPersonCache.MaxEntries", "10");
+        cache = new FindPersonCache();
+    }
+
+    @After
+    public void tearDown() {
+        TestRuntime.resetProperties();
+    }
+
+    @Test
+    public void hitIsACopyWithoutRequestReference() {
+        PersonResponse response = response("ref-1", person("G1", "C1"));
+        put("k", request(null, "C1"), response);
+        PersonResponse hit = cache.get("k");
+        assertNotSame(response, hit);
+        assertNotSame(response.getPersonList().get(0), hit.getPersonList().get(0));
+        assertNull(hit.getRequestReference());
+        assertTrue(hit.isSuccessful());
+        assertEquals("G1", hit.getPersonList().get(0).getPersonGuid());
+        assertNotSame(hit, cache.get("k"));
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void changingAResponseDoesNotChangeTheCache() {
+        Person p = person("G1", "C1");
+        p.setBirthdate(new Date(0));
+        PersonResponse response = response("ref-1", p);
+        put("k", request(null, "C1"), response);
+        p.setFirstName("Changed");
+        p.getBirthdate().setTime(1000);
+        p.getPersonIdentifierList().get(0).setIdentifier("Changed");
+        response.getPersonList().clear();
+        PersonResponse hit = cache.get("k");
+        hit.getPersonList().get(0).setLastName("Changed");
+        hit.getPersonList().add(person("G2", "C2"));
+
+        Person cached = cache.get("k").getPersonList().get(0);
+        assertEquals(1, cache.get("k").getPersonList().size());
+        assertEquals("First", cached.getFirstName());
+        assertEquals("Last", cached.getLastName());
+        assertEquals(0, cached.getBirthdate().getTime());
+        assertEquals("C1", cached.getPersonIdentifierList().get(0).getIdentifier());
+    }
+
+    @Test
+    public void missIsCounted() {
+        assertNull(cache.get("k"));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void expiredResponseIsForgotten() {
+        TestRuntime.setProperty("FindPersonCache.TtlSeconds", "0");
+        cache.reloadProperties();
+        put("k", request(null, "C1"), response("ref-1", person("G1", "C1")));
+        assertNull(cache.get("k"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsForgottenFirst() {
+        TestRuntime.setProperty("FindPersonCache.MaxEntries", "2");
+        cache.reloadProperties();
+        put("a", request(null, "A"), response("ref-a", person("GA", "A")));
+        put("b", request(null, "B"), response("ref-b", person("GB", "B")));
+        assertNotNull(cache.get("a"));
+        put("c", request(null, "C"), response("ref-c", person("GC", "C")));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void turnedOffCacheKeepsNothing() {
+        TestRuntime.setProperty("FindPersonCache.MaxEntries", "0");
+        cache.reloadProperties();
+        assertFalse(cache.isEnabled());
+        put("k", request(null, "C1"), response("ref-1", person("G1", "C1")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void changeForgetsResponsesWithThePerson() {
+        put("byId", request(null, "C1"), response("ref-1", person("G1", "C1")));
+        put("other", request(null, "C2"), response("ref-2", person("G2", "C2")));
+        cache.invalidate(person("G1", null));
+        assertNull(cache.get("byId"));
+        assertNotNull(cache.get("other"));
+        assertEquals(1, cache.getInvalidatedCount());
+    }
+
+    @Test
+    public void changeForgetsSearchesByThePersonsIdentifier() {
+        put("byId", request(null, "C1"), response("ref-1", person("G9", "C9")));
+        cache.invalidate(person("G1", "C1"));
+        assertNull(cache.get("byId"));
+    }
+
+    @Test
+    public void changeForgetsSearchesWithoutIdentifiers() {
+        PersonRequest byName = request(null, null);
+        byName.getPerson().setFirstName("First");
+        put("byName", byName, response("ref-1", person("G9", "C9")));
+        cache.invalidate(person("G1", "C1"));
+        assertNull(cache.get("byName"));
+    }
+
+    @Test
+    public void changeForgetsSearchesThatFoundNoOne() {
+        put("none", request(null, "C9"), response("ref-1"));
+        cache.invalidate(person("G1", "C1"));
+        assertNull(cache.get("none"));
+    }
+
+    @Test
+    public void changeToUnknownPersonForgetsEverything() {
+        put("a", request(null, "A"), response("ref-a", person("GA", "A")));
+        put("b", request(null, "B"), response("ref-b", person("GB", "B")));
+        cache.invalidate(null);
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getInvalidatedCount());
+    }
+
+    @Test
+    public void responseToRequestSentBeforeAChangeIsNotKept() {
+        long generation = cache.getGeneration();
+        cache.invalidate(person("G1", "C1"));
+        cache.put("k", request(null, "C2"), response("ref-1", person("G2", "C2")), generation);
+        assertNull(cache.get("k"));
+    }
+
+    private void put(String key, PersonRequest request, PersonResponse response) {
+        cache.put(key, request, response, cache.getGeneration());
+    }
+
+    private static PersonRequest request(String guid, String clinicId) {
+        PersonRequest request = new PersonRequest();
+        request.setPerson(person(guid, clinicId));
+        request.getPerson().setFirstName(null);
+        request.getPerson().setLastName(null);
+        return request;
+    }
+
+    private static PersonResponse response(String requestReference, Person... people) {
+        PersonResponse response = new PersonResponse();
+        response.setRequestReference(requestReference);
+        response.setSuccessful(true);
+        response.setPersonList(new ArrayList<Person>(Arrays.asList(people)));
+        return response;
+    }
+
+    private static Person person(String guid, String clinicId) {
+        Person p = new Person();
+        p.setPersonGuid(guid);
+        p.setFirstName("First");
+        p.setLastName("Last");
+        List<PersonIdentifier> ids = new ArrayList<PersonIdentifier>();
+        if (clinicId != null) {
+            ids.add(new PersonIdentifier(PersonIdentifier.Type.cccLocalId, clinicId));
+        }
+        p.setPersonIdentifierList(ids);
+        return p;
+    }
+}
@@ -0,0 +1,142 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonIdentifier;
+import ke.go.moh.oec.PersonRequest;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that find person requests asking the same thing get the same key,
+ * and requests asking different things get different keys.
+ */
+public class FindPersonKeyTest {
+
+    private static final int FIND = 1;
+    private static final String MPI = "ke.go.moh.mpi";
+
+    @Test
+    public void namesIgnoreCaseAndSurroundingSpaces() {
+        assertEquals(key(person("John", "Otieno")), key(person("  JOHN ", "otieno")));
+    }
+
+    @Test
+    public void emptyNameIsTheSameAsNoName() {
+        Person a = person("John", "Otieno");
+        Person b = person("John", "Otieno");
+        b.setMiddleName("  ");
+        assertEquals(key(a), key(b));
+    }
+
+    @Test
+    public void identifierOrderDoesNotMatter() {
+        Person a = person("John", "Otieno");
+        addIdentifier(a, PersonIdentifier.Type.cccLocalId, "123");
+        addIdentifier(a, PersonIdentifier.Type.kisumuHdssId, " 456 ");
+        Person b = person("John", "Otieno");
+        addIdentifier(b, PersonIdentifier.Type.kisumuHdssId, "456");
+        addIdentifier(b, PersonIdentifier.Type.cccLocalId, "123");
+        assertEquals(key(a), key(b));
+    }
+
+    @Test
+    public void birthdateTimeOfDayDoesNotMatter() {
+        Person a = person("John", "Otieno");
+        a.setBirthdate(date(1980, 5, 17, 0));
+        Person b = person("John", "Otieno");
+        b.setBirthdate(date(1980, 5, 17, 15));
+        assertEquals(key(a), key(b));
+        b.setBirthdate(date(1980, 5, 18, 0));
+        assertFalse(key(a).equals(key(b)));
+    }
+
+    @Test
+    public void fieldsAreNotRunTogether() {
+        assertFalse(key(person("Ann", "Emary")).equals(key(person("Anne", "Mary"))));
+    }
+
+    @Test
+    public void differentSearchesHaveDifferentKeys() {
+        Person p = person("John", "Otieno");
+        String base = key(p);
+        Person other = person("John", "Otieno");
+        other.setSex(Person.Sex.M);
+        assertFalse(base.equals(key(other)));
+        other = person("John", "Otieno");
+        addIdentifier(other, PersonIdentifier.Type.cccLocalId, "123");
+        assertFalse(base.equals(key(other)));
+        assertFalse(base.equals(FindPersonKey.of(FIND, "ke.go.moh.lpi", request(p))));
+        assertFalse(base.equals(FindPersonKey.of(FIND + 1, MPI, request(p))));
+    }
+
+    @Test
+    public void requestsWithTheirOwnXmlOrReferenceHaveNoKey() {
+        PersonRequest pr = request(person("John", "Otieno"));
+        pr.setXml("<x/>");
+        assertNull(FindPersonKey.of(FIND, MPI, pr));
+        pr = request(person("John", "Otieno"));
+        pr.setRequestReference("ref-1");
+        assertNull(FindPersonKey.of(FIND, MPI, pr));
+        assertNull(FindPersonKey.of(FIND, MPI, null));
+    }
+
+    private static String key(Person p) {
+        String key = FindPersonKey.of(FIND, MPI, request(p));
+        assertNotNull(key);
+        return key;
+    }
+
+    private static PersonRequest request(Person p) {
+        PersonRequest pr = new PersonRequest();
+        pr.setPerson(p);
+        return pr;
+    }
+
+    private static Person person(String firstName, String lastName) {
+        Person p = new Person();
+        p.setFirstName(firstName);
+        p.setLastName(lastName);
+        return p;
+    }
+
+    private static void addIdentifier(Person p, PersonIdentifier.Type type, String id) {
+        List<PersonIdentifier> ids = p.getPersonIdentifierList();
+        if (ids == null) {
+            ids = new ArrayList<PersonIdentifier>();
+            p.setPersonIdentifierList(ids);
+        }
+        ids.add(new PersonIdentifier(type, id));
+    }
+
+    private static Date date(int year, int month, int day, int hour) {
+        return new GregorianCalendar(year, month - 1, day, hour, 0).getTime();
+    }
+}
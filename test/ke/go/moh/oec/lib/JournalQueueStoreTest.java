@@ -0,0 +1,288 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the journal queue store: records surviving a restart, damaged
+ * records being dropped, compaction (including compaction interrupted
+ * by a crash) and moving messages in from the QueueManager database.
+ */
+public class JournalQueueStoreTest {
+
+    private static final String DESTINATION = "ke.go.moh.facility.14080.ccc";
+    private static final int PRIORITY = QueueManager.DEFAULT_PRIORITY;
+    private static File journalDirectory;
+    private JournalQueueStore store;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        TestRuntime.init();
+        journalDirectory = new File(Mediator.getRuntimeDirectory() + "QUEUEMANAGER_JOURNAL");
+    }
+
+    @Before
+    public void setUp() {
+        TestRuntime.delete(journalDirectory);
+        TestRuntime.deleteQueueDatabase();
+        TestRuntime.setProperty("QueueManager.Journal.SegmentBytes", "1024");
+        store = open();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void messagesSurviveRestart() {
+        assertTrue(store.add(Arrays.asList(message("one"), message("two"))));
+        assertTrue(store.add(Collections.singletonList(message("three"))));
+        store.remove(store.read(DESTINATION, PRIORITY, 0, 1));
+        store = reopen(store);
+        assertEquals(Arrays.asList("two", "three"), payloads(store));
+        assertEquals(2, store.size());
+        assertEquals("two".length() + "three".length(), store.byteSize());
+    }
+
+    @Test
+    public void messageIdsKeepIncreasingAfterRestart() {
+        store.add(Collections.singletonList(message("one")));
+        long firstId = lastMessageId();
+        store.remove(store.read(DESTINATION, PRIORITY, 0, 10));
+        store = reopen(store);
+        store.add(Collections.singletonList(message("two")));
+        assertTrue(lastMessageId() > firstId);
+    }
+
+    @Test
+    public void damagedRecordIsDropped() throws Exception {
+        store.add(Collections.singletonList(message("good message")));
+        store.add(Collections.singletonList(message("torn message")));
+        store.close();
+        store = null;
+        File segment = segmentFiles().get(0);
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        int tornAt = indexOf(bytes, "torn message".getBytes("UTF-8"));
+        assertTrue(tornAt > 0);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(tornAt);
+            raf.write('X'); // As if the write was interrupted: the CRC no longer matches.
+        } finally {
+            raf.close();
+        }
+        store = open();
+        assertEquals(Collections.singletonList("good message"), payloads(store));
+        assertTrue(store.add(Collections.singletonList(message("after restart"))));
+        store = reopen(store);
+        assertEquals(Arrays.asList("good message", "after restart"), payloads(store));
+    }
+
+    @Test
+    public void compactionDeletesAndCopiesSegments() {
+        List<QueuedMessage> added = new ArrayList<QueuedMessage>();
+        for (int i = 0; i < 40; i++) {
+            added.add(message(payload(i)));
+        }
+        for (QueuedMessage q : added) {
+            store.add(Collections.singletonList(q));
+        }
+        int segmentsBefore = segmentFiles().size();
+        assertTrue(segmentsBefore > 4);
+        // Keep every tenth message, so old segments are mostly (but not all) sent.
+        List<QueuedMessage> sent = new ArrayList<QueuedMessage>();
+        List<String> kept = new ArrayList<String>();
+        for (QueuedMessage q : store.read(DESTINATION, PRIORITY, 0, 100)) {
+            String p = new String(store.readCompressedXml(q));
+            if (p.endsWith("0")) {
+                kept.add(p);
+            } else {
+                sent.add(q);
+            }
+        }
+        store.remove(sent);
+        assertTrue(segmentFiles().size() < segmentsBefore);
+        assertEquals(kept, payloads(store));
+        store = reopen(store);
+        assertEquals(kept, payloads(store));
+    }
+
+    /**
+     * If we stop after compaction has copied a segment's messages forward
+     * but before the segment is deleted, both copies are in the journal.
+     * The messages must still be queued after that restart, and after
+     * the one after it.
+     */
+    @Test
+    public void interruptedCompactionKeepsMessagesAcrossRestarts() throws Exception {
+        store.add(Collections.singletonList(message("kept")));
+        for (int i = 0; i < 10; i++) {
+            store.add(Collections.singletonList(message(payload(i))));
+        }
+        assertTrue(segmentFiles().size() > 1);
+        File oldest = segmentFiles().get(0);
+        byte[] oldestBytes = Files.readAllBytes(oldest.toPath());
+        List<QueuedMessage> queued = store.read(DESTINATION, PRIORITY, 0, 100);
+        store.remove(queued.subList(1, queued.size())); // Copies "kept" forward and deletes the oldest segment.
+        assertFalse(oldest.exists());
+        store.close();
+        store = null;
+        Files.write(oldest.toPath(), oldestBytes); // As if the oldest segment had not been deleted.
+
+        store = open();
+        assertEquals(Collections.singletonList("kept"), payloads(store));
+        store = reopen(store);
+        assertEquals(Collections.singletonList("kept"), payloads(store));
+        store = reopen(store);
+        assertEquals(Collections.singletonList("kept"), payloads(store));
+    }
+
+    @Test
+    public void removedMessagesStayRemovedAfterReplay() {
+        store.add(Collections.singletonList(message("first")));
+        for (int i = 0; i < 10; i++) {
+            store.add(Collections.singletonList(message(payload(i))));
+        }
+        List<QueuedMessage> queued = store.read(DESTINATION, PRIORITY, 0, 100);
+        store.remove(queued.subList(0, 5));
+        store = reopen(store);
+        store = reopen(store);
+        assertEquals(6, store.size());
+        assertEquals(payload(4), payloads(store).get(0));
+    }
+
+    @Test
+    public void partsOfMessageCanBeRead() {
+        assertTrue(store.add(Collections.singletonList(message("0123456789"))));
+        QueuedMessage q = store.read(DESTINATION, PRIORITY, 0, 1).get(0);
+        assertEquals("3456", new String(store.readCompressedXml(q, 3, 4)));
+        assertNull(store.readCompressedXml(q, 8, 4)); // (Past the end.)
+        store.remove(Collections.singletonList(q));
+        assertNull(store.readCompressedXml(q, 0, 0));
+    }
+
+    @Test
+    public void messagesMoveFromDatabase() {
+        store.close();
+        store = null;
+        TestRuntime.delete(journalDirectory);
+        DerbyQueueStore derby = new DerbyQueueStore();
+        assertTrue(derby.open());
+        QueuedMessage high = message("urgent");
+        high.setPriority(PRIORITY + 1);
+        derby.add(Arrays.asList(message("one"), high, message("two")));
+        derby.close();
+
+        store = open();
+        assertEquals(3, store.size());
+        assertEquals(Arrays.asList(PRIORITY + 1, PRIORITY), store.getPriorities());
+        assertEquals(Arrays.asList("one", "two"), payloads(store));
+        assertTrue(new File(journalDirectory, "migrated-from-derby").exists());
+        derby = new DerbyQueueStore();
+        assertTrue(derby.open());
+        assertEquals(0, derby.size());
+        derby.close();
+
+        store = reopen(store); // Only moved once.
+        assertEquals(3, store.size());
+    }
+
+    private static JournalQueueStore open() {
+        JournalQueueStore s = new JournalQueueStore();
+        assertTrue(s.open());
+        return s;
+    }
+
+    private static JournalQueueStore reopen(JournalQueueStore s) {
+        s.close();
+        return open();
+    }
+
+    private static QueuedMessage message(String payload) {
+        QueuedMessage q = new QueuedMessage();
+        q.setDestination(DESTINATION);
+        q.setHopCount(1);
+        q.setPriority(PRIORITY);
+        byte[] bytes = payload.getBytes();
+        q.setCompressedXml(bytes);
+        q.setCompressedXmlLength(bytes.length);
+        return q;
+    }
+
+    /** Makes a payload big enough that a few fill a 1024-byte segment. */
+    private static String payload(int i) {
+        char[] padding = new char[200];
+        Arrays.fill(padding, '.');
+        return new String(padding) + " message " + i;
+    }
+
+    private static List<String> payloads(JournalQueueStore s) {
+        List<String> payloads = new ArrayList<String>();
+        for (QueuedMessage q : s.read(DESTINATION, PRIORITY, 0, 1000)) {
+            payloads.add(new String(s.readCompressedXml(q)));
+        }
+        return payloads;
+    }
+
+    private long lastMessageId() {
+        List<QueuedMessage> page = store.read(DESTINATION, PRIORITY, 0, 1000);
+        return page.get(page.size() - 1).getMessageId();
+    }
+
+    private static List<File> segmentFiles() {
+        List<File> files = new ArrayList<File>();
+        for (File f : journalDirectory.listFiles()) {
+            if (f.getName().startsWith("segment-")) {
+                files.add(f);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= bytes.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
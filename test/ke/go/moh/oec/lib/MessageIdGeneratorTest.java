@@ -0,0 +1,120 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that message IDs are unique and in order, even when many threads
+ * generate them at once.
+ */
+public class MessageIdGeneratorTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 20000;
+
+    @Test
+    public void idsHaveFixedLengthAndInstance() {
+        MessageIdGenerator generator = new MessageIdGenerator();
+        String first = generator.next();
+        assertEquals(16, first.length());
+        assertTrue(first.matches("[0-9a-z]+"));
+        for (int i = 0; i < 1000; i++) {
+            String id = generator.next();
+            assertEquals(16, id.length());
+            assertEquals(first.substring(12), id.substring(12));
+        }
+    }
+
+    @Test
+    public void idsIncreaseWithinAMillisecond() {
+        MessageIdGenerator generator = new MessageIdGenerator();
+        String previous = generator.next();
+        for (int i = 0; i < 100000; i++) { // (Many of these are in the same millisecond.)
+            String id = generator.next();
+            assertTrue(previous + " then " + id, id.compareTo(previous) > 0);
+            previous = id;
+        }
+    }
+
+    @Test
+    public void idsAreUniqueAndInOrderUnderContention() throws Exception {
+        final MessageIdGenerator generator = new MessageIdGenerator();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<List<String>> results = new ArrayList<List<String>>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final List<String> ids = new ArrayList<String>(IDS_PER_THREAD);
+            results.add(ids);
+            Thread thread = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < IDS_PER_THREAD; i++) {
+                            ids.add(generator.next());
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        Set<String> all = new HashSet<String>();
+        for (List<String> ids : results) {
+            for (int i = 0; i < ids.size(); i++) {
+                assertTrue("Duplicate ID " + ids.get(i), all.add(ids.get(i)));
+                if (i > 0) {
+                    assertTrue("Out of order in one thread", ids.get(i).compareTo(ids.get(i - 1)) > 0);
+                }
+            }
+        }
+        assertEquals(THREADS * IDS_PER_THREAD, all.size());
+    }
+
+    @Test
+    public void laterIdIsGreaterAfterTimePasses() throws Exception {
+        MessageIdGenerator generator = new MessageIdGenerator();
+        String before = generator.next();
+        Thread.sleep(5);
+        assertTrue(generator.next().compareTo(before) > 0);
+    }
+}
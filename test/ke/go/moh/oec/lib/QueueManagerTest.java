@@ -0,0 +1,520 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import ke.go.moh.oec.QueueStatus;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the store-and-forward queue: the order in which queued messages
+ * are sent, time to live, coalescing and the overflow policies.
+ * <p>
+ * The queue manager's polling thread is not used: each test queues
+ * messages while the destination is unreachable, then drains the queue
+ * itself.
+ */
+public class QueueManagerTest {
+
+    private static final String MPI = "ke.go.moh.mpi";
+    private static final String LPI = "ke.go.moh.facility.14080.lpi";
+    private StubHttpService httpService;
+    private QueueManager queueManager;
+
+    /**
+     * HTTP service stand-in that records what it sends, or refuses to send.
+     */
+    private static class StubHttpService extends HttpService {
+
+        private final NextHop nextHop = new NextHop();
+        private final List<String> sent = new ArrayList<String>();
+        private final List<String> sentTraces = new ArrayList<String>();
+        private volatile boolean reachable = false;
+        /** Number of messages sent that were read a part at a time. */
+        private int sentInParts = 0;
+        /** Messages the next hop refuses as too large. */
+        private final List<String> tooLarge = new ArrayList<String>();
+        /** Called (once) before the next send, if not null. */
+        private Runnable beforeSend = null;
+
+        StubHttpService() {
+            super(null);
+            nextHop.setIpAddressPort("127.0.0.1:1");
+        }
+
+        @Override
+        boolean send(Message m) {
+            m.setNextHop(nextHop);
+            if (!reachable) {
+                return false;
+            }
+            if (beforeSend != null) {
+                Runnable r = beforeSend;
+                beforeSend = null;
+                r.run();
+            }
+            if (tooLarge.contains(m.getXml())) {
+                m.setRefused(true);
+                return false;
+            }
+            if (m.getCompressedXmlSource() != null) {
+                sentInParts++;
+            }
+            sent.add(m.getXml());
+            sentTraces.add(m.getTrace());
+            return true;
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        TestRuntime.init();
+    }
+
+    @Before
+    public void setUp() {
+        TestRuntime.resetProperties();
+        TestRuntime.delete(new File(Mediator.getRuntimeDirectory() + "QUEUEMANAGER_JOURNAL"));
+        TestRuntime.deleteQueueDatabase();
+        TestRuntime.setProperty("QueueManager.Store", "journal");
+        TestRuntime.setProperty("QueueManager.PageSize", "2");
+        httpService = new StubHttpService();
+        queueManager = newQueueManager();
+    }
+
+    @After
+    public void tearDown() {
+        queueManager.stop();
+    }
+
+    /**
+     * A message superseded (by coalescing) after its page was read is
+     * skipped, and the rest of the destination's messages are still sent.
+     */
+    @Test
+    public void messageRemovedDuringDrainIsSkipped() {
+        TestRuntime.setProperty("QueueManager.Coalesce.modifyPerson", "true");
+        queueManager.reloadProperties();
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "a1");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "b", "b1");
+        httpService.reachable = true;
+        httpService.beforeSend = new Runnable() {
+
+            public void run() {
+                enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "b", "b2");
+            }
+        };
+        queueManager.drain();
+        assertEquals(Arrays.asList("a1", "b2"), httpService.sent);
+        assertEquals(0, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void higherPriorityLaneIsSentFirst() {
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "log");
+        enqueue(MessageTypeRegistry.findPersonMpi, LPI, "a", "find");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "modify");
+        drain();
+        assertEquals(Arrays.asList("modify", "find", "log"), httpService.sent);
+    }
+
+    @Test
+    public void priorityCanBeSetForMessageType() {
+        setProperty("QueueManager.Priority.logEntry", "9");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "modify");
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "log");
+        drain();
+        assertEquals(Arrays.asList("log", "modify"), httpService.sent);
+    }
+
+    /**
+     * After an outage, a person must be created before any changes to
+     * the person are sent.
+     */
+    @Test
+    public void personChangesKeepTheirOrder() {
+        enqueue(MessageTypeRegistry.createPersonMpi, MPI, "a", "create");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "modify");
+        enqueue(MessageTypeRegistry.notifyPersonChanged, MPI, "a", "notify");
+        drain();
+        assertEquals(Arrays.asList("create", "modify", "notify"), httpService.sent);
+    }
+
+    @Test
+    public void logEntryBatchIsQueuedLikeLogEntry() {
+        enqueue(MessageTypeRegistry.logEntryBatch, MPI, "a", "logs");
+        enqueue(MessageTypeRegistry.findPersonMpi, MPI, "a", "find");
+        drain();
+        assertEquals(Arrays.asList("find", "logs"), httpService.sent);
+
+        httpService.sent.clear();
+        httpService.reachable = false;
+        setProperty("QueueManager.TimeToLiveSeconds.logEntry", "1");
+        enqueue(MessageTypeRegistry.logEntryBatch, MPI, "a", "expired logs");
+        sleep(1100);
+        drain();
+        assertTrue(httpService.sent.isEmpty());
+        assertEquals(0, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void expiredMessagesAreDroppedAndOthersSent() {
+        setProperty("QueueManager.TimeToLiveSeconds.logEntry", "1");
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "expired");
+        sleep(1100);
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "fresh");
+        enqueue(MessageTypeRegistry.findPersonMpi, MPI, "a", "no time to live");
+        drain();
+        assertEquals(Arrays.asList("no time to live", "fresh"), httpService.sent);
+        assertEquals(0, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void failedSendLeavesMessagesQueuedInOrder() {
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "one");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "two");
+        queueManager.drain(); // Unreachable.
+        assertEquals(2, queueManager.getStatus().getMessageCount());
+        drain();
+        assertEquals(Arrays.asList("one", "two"), httpService.sent);
+    }
+
+    @Test
+    public void refusedMessageIsRemovedAndOthersSent() {
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "one");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "too large");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "three");
+        httpService.tooLarge.add("too large");
+        drain();
+        assertEquals(Arrays.asList("one", "three"), httpService.sent);
+        assertEquals(0, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void drainReadsEveryPageInOrder() {
+        assertDrainReadsEveryPageInOrder();
+    }
+
+    @Test
+    public void drainReadsEveryPageInOrderFromDatabase() {
+        useDerbyStore();
+        assertDrainReadsEveryPageInOrder();
+    }
+
+    /**
+     * Queues more messages than fit in one page (of 2), and checks that
+     * they are all sent, in order.
+     */
+    private void assertDrainReadsEveryPageInOrder() {
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 7; i++) {
+            enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "p" + i, "m" + i);
+            expected.add("m" + i);
+        }
+        drain();
+        assertEquals(expected, httpService.sent);
+        assertEquals(0, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void concurrentEnqueuesAreEachStoredOnce() throws Exception {
+        assertConcurrentEnqueuesAreEachStoredOnce();
+    }
+
+    @Test
+    public void concurrentEnqueuesAreEachStoredOnceInDatabase() throws Exception {
+        useDerbyStore();
+        assertConcurrentEnqueuesAreEachStoredOnce();
+    }
+
+    /**
+     * Queues messages from several threads at once, so that some are added
+     * and committed together, and checks that each message is stored once
+     * and that each thread's messages are sent in the order it queued them.
+     */
+    private void assertConcurrentEnqueuesAreEachStoredOnce() throws Exception {
+        final int threadCount = 8;
+        final int messagesPerThread = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int i = 0; i < messagesPerThread; i++) {
+                        if (!tryEnqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "p" + thread, thread + "-" + i)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(threadCount * messagesPerThread, queueManager.getStatus().getMessageCount());
+        drain();
+        assertEquals(threadCount * messagesPerThread, httpService.sent.size());
+        assertEquals(threadCount * messagesPerThread, new HashSet<String>(httpService.sent).size());
+        int[] next = new int[threadCount];
+        for (String xml : httpService.sent) {
+            int dash = xml.indexOf('-');
+            int thread = Integer.parseInt(xml.substring(0, dash));
+            assertEquals(next[thread]++, Integer.parseInt(xml.substring(dash + 1)));
+        }
+        assertEquals(0, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void largeMessageIsQueuedAndSent() {
+        assertLargeMessageIsQueuedAndSent();
+    }
+
+    @Test
+    public void largeMessageIsQueuedAndSentFromDatabase() {
+        useDerbyStore();
+        assertLargeMessageIsQueuedAndSent();
+    }
+
+    /**
+     * Queues a message much larger than the 30000 bytes the database once
+     * allowed, and checks that it is sent (read a part at a time) in order.
+     */
+    private void assertLargeMessageIsQueuedAndSent() {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(1);
+        while (sb.length() < 200000) {
+            sb.append(Long.toString(random.nextLong(), 36)); // (Doesn't compress much.)
+        }
+        String large = sb.toString();
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", large);
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "small");
+        drain();
+        assertEquals(Arrays.asList(large, "small"), httpService.sent);
+        assertEquals(1, httpService.sentInParts);
+        assertEquals(0, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void tracesStayWithTheirMessagesUntilSent() {
+        assertTrue(tryEnqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "same", "t1"));
+        assertTrue(tryEnqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "same", "t2"));
+        queueManager.drain(); // Unreachable.
+        drain();
+        assertEquals(2, httpService.sentTraces.size());
+        assertTrue(httpService.sentTraces.get(0).startsWith("t1,queue:"));
+        assertTrue(httpService.sentTraces.get(0).contains(",dequeue:"));
+        assertTrue(httpService.sentTraces.get(1).startsWith("t2,queue:"));
+        assertTrue(httpService.sentTraces.get(1).contains(",dequeue:"));
+    }
+
+    @Test
+    public void supersededMessagesAreCoalesced() {
+        setProperty("QueueManager.Coalesce.modifyPerson", "true");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "a1");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "b", "b1");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, LPI, "a", "a1 to LPI");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "a2");
+        enqueue(MessageTypeRegistry.notifyPersonChanged, MPI, "a", "notify"); // (Not coalesced with modify.)
+        assertEquals(4, queueManager.getStatus().getMessageCount());
+        drain();
+        assertTrue(httpService.sent.containsAll(Arrays.asList("b1", "a2", "a1 to LPI", "notify")));
+        assertEquals(4, httpService.sent.size());
+    }
+
+    @Test
+    public void messagesAreNotCoalescedUnlessConfigured() {
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "a1");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "a2");
+        drain();
+        assertEquals(Arrays.asList("a1", "a2"), httpService.sent);
+    }
+
+    @Test
+    public void fullQueueRejects() {
+        setProperty("QueueManager.MaxMessages", "2");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "one");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "two");
+        assertFalse(tryEnqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "three"));
+        QueueStatus status = queueManager.getStatus();
+        assertTrue(status.isFull());
+        assertEquals(1, status.getRejectedCount());
+        drain();
+        assertEquals(Arrays.asList("one", "two"), httpService.sent);
+    }
+
+    @Test
+    public void fullDestinationRejectsOnlyThatDestination() {
+        setProperty("QueueManager.MaxMessagesPerDestination", "1");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "one");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, LPI, "a", "two");
+        assertFalse(tryEnqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "three"));
+        assertEquals(2, queueManager.getStatus().getMessageCount());
+    }
+
+    @Test
+    public void dropOldestDropsLowestPriorityFirst() {
+        setProperty("QueueManager.MaxMessages", "3");
+        setProperty("QueueManager.OverflowPolicy", "dropOldest");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "modify");
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "old log");
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "new log");
+        enqueue(MessageTypeRegistry.findPersonMpi, MPI, "a", "find");
+        assertEquals(1, queueManager.getStatus().getDroppedCount());
+        drain();
+        assertEquals(Arrays.asList("modify", "find", "new log"), httpService.sent);
+    }
+
+    @Test
+    public void higherPriorityMessagesAreNeverDroppedForLowerOnes() {
+        setProperty("QueueManager.MaxMessages", "2");
+        setProperty("QueueManager.OverflowPolicy", "dropOldest");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "one");
+        enqueue(MessageTypeRegistry.modifyPersonMpi, MPI, "a", "two");
+        assertFalse(tryEnqueue(MessageTypeRegistry.logEntry, MPI, "a", "log"));
+        assertEquals(0, queueManager.getStatus().getDroppedCount());
+        assertEquals(1, queueManager.getStatus().getRejectedCount());
+    }
+
+    @Test
+    public void archivePolicyArchivesBeforeDropping() {
+        setProperty("QueueManager.MaxMessages", "1");
+        setProperty("QueueManager.OverflowPolicy", "archive");
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "archived");
+        enqueue(MessageTypeRegistry.logEntry, MPI, "a", "kept");
+        QueueStatus status = queueManager.getStatus();
+        assertEquals(1, status.getArchivedCount());
+        assertEquals(0, status.getDroppedCount());
+        drain();
+        assertEquals(Arrays.asList("kept"), httpService.sent);
+    }
+
+    private void setProperty(String name, String value) {
+        TestRuntime.setProperty(name, value);
+        queueManager.reloadProperties();
+    }
+
+    /**
+     * Makes the destination reachable and sends all the queued messages.
+     */
+    private void drain() {
+        httpService.reachable = true;
+        queueManager.drain();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces the queue manager with one that uses the Derby database.
+     */
+    private void useDerbyStore() {
+        queueManager.stop();
+        TestRuntime.setProperty("QueueManager.Store", "derby");
+        queueManager = newQueueManager();
+    }
+
+    /**
+     * Makes a queue manager that doesn't start a polling thread.
+     */
+    private QueueManager newQueueManager() {
+        return new QueueManager(httpService) {
+
+            @Override
+            synchronized void start() {
+            }
+        };
+    }
+
+    /**
+     * Queues a message about a person.
+     *
+     * @param messageType type of the message.
+     * @param destination destination of the message.
+     * @param personGuid GUID of the person.
+     * @param xml contents of the message.
+     */
+    private void enqueue(MessageType messageType, String destination, String personGuid, String xml) {
+        assertTrue(tryEnqueue(messageType, destination, personGuid, xml));
+    }
+
+    /**
+     * Tries to queue a message about a person.
+     *
+     * @return true if the message was queued, otherwise false.
+     */
+    private boolean tryEnqueue(MessageType messageType, String destination, String personGuid, String xml) {
+        return tryEnqueue(messageType, destination, personGuid, xml, null);
+    }
+
+    /**
+     * Tries to queue a message about a person, with a trace.
+     *
+     * @return true if the message was queued, otherwise false.
+     */
+    private boolean tryEnqueue(MessageType messageType, String destination, String personGuid, String xml, String trace) {
+        Person p = new Person();
+        p.setPersonGuid(personGuid);
+        PersonRequest r = new PersonRequest();
+        r.setPerson(p);
+        Message m = new Message();
+        m.setMessageType(messageType);
+        m.setMessageData(r);
+        m.setDestinationAddress(destination);
+        m.setHopCount(1);
+        m.setXml(xml);
+        m.setTrace(trace);
+        return queueManager.enqueue(m);
+    }
+}
@@ -0,0 +1,226 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests routing: longest-prefix match of destination addresses, hop
+ * options, weighted load balancing and failover between the hops of a route.
+ */
+public class RoutingTableTest {
+
+    @Test
+    public void longestMatchingAddressWins() {
+        RoutingTable table = compile(
+                "IPAddressPort.ke.go.moh", "10.0.0.1:9721",
+                "IPAddressPort.ke.go.moh.facility", "10.0.0.2:9721",
+                "IPAddressPort.ke.go.moh.facility.14080.lpi", "10.0.0.3:9721",
+                "IPAddressPort.*", "10.0.0.9:9721");
+        assertEquals("10.0.0.3:9721", table.lookup("ke.go.moh.facility.14080.lpi").getIpAddressPort());
+        assertEquals("10.0.0.2:9721", table.lookup("ke.go.moh.facility.14080.ccc").getIpAddressPort());
+        assertEquals("10.0.0.2:9721", table.lookup("ke.go.moh.facility").getIpAddressPort());
+        assertEquals("10.0.0.1:9721", table.lookup("ke.go.moh.mpi").getIpAddressPort());
+        assertEquals("10.0.0.9:9721", table.lookup("ke.go").getIpAddressPort());
+        assertEquals("10.0.0.9:9721", table.lookup("org.example").getIpAddressPort());
+    }
+
+    @Test
+    public void addressesMatchWholeSegments() {
+        RoutingTable table = compile(
+                "IPAddressPort.ke.go.moh", "10.0.0.1:9721",
+                "IPAddressPort.*", "10.0.0.9:9721");
+        assertEquals("10.0.0.9:9721", table.lookup("ke.go.mohx").getIpAddressPort());
+        assertEquals("10.0.0.9:9721", table.lookup("ke.go.mo").getIpAddressPort());
+    }
+
+    @Test
+    public void noRouteWithoutCatchAll() {
+        RoutingTable table = compile("IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721");
+        assertNull(table.lookup("ke.go.moh.lpi"));
+    }
+
+    @Test
+    public void noRouteToOurselves() {
+        RoutingTable table = compile(
+                "Instance.Address", "ke.go.moh.facility.14080.ccc",
+                "IPAddressPort.*", "10.0.0.9:9721");
+        assertNull(table.lookup("ke.go.moh.facility.14080.ccc"));
+        assertNull(table.lookup("KE.GO.MOH.FACILITY.14080.CCC"));
+    }
+
+    @Test
+    public void hopOptionsAndDefaultsAreApplied() {
+        RoutingTable table = compile(
+                "NextHop.ConnectTimeoutMillis", "2000",
+                "NextHop.ReadTimeoutMillis", "30000",
+                "IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721/zip/md5/maxSize=4096/readTimeout=5000");
+        NextHop hop = table.lookup("ke.go.moh.mpi");
+        assertTrue(hop.isZip());
+        assertTrue(hop.isMd5Required());
+        assertEquals(4096, hop.getMaxSize());
+        assertEquals(2000, hop.getConnectTimeout());
+        assertEquals(5000, hop.getReadTimeout());
+    }
+
+    @Test
+    public void numericHopsAreInTheReverseIndex() {
+        RoutingTable table = compile("IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721");
+        assertSame(table.lookup("ke.go.moh.mpi"), table.lookupByIpPort("10.0.0.1:9721"));
+        assertSame(table.lookup("ke.go.moh.mpi"), table.lookupByIpPort("10.0.0.1"));
+        assertNull(table.lookupByIpPort("10.0.0.2"));
+    }
+
+    @Test
+    public void weightedRoundRobinIsSmooth() {
+        RoutingTable table = compile("IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721/weight=2, 10.0.0.2:9721");
+        List<String> chosen = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            chosen.add(table.lookup("ke.go.moh.mpi").getIpAddressPort());
+        }
+        assertEquals(Arrays.asList("10.0.0.1:9721", "10.0.0.2:9721", "10.0.0.1:9721",
+                "10.0.0.1:9721", "10.0.0.2:9721", "10.0.0.1:9721"), chosen);
+    }
+
+    @Test
+    public void openHopsAreSkipped() {
+        RoutingTable table = compile(
+                "NextHop.FailureThreshold", "1",
+                "IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721, 10.0.0.2:9721");
+        Route route = table.getRoutes().get("ke.go.moh.mpi");
+        NextHop[] hops = route.getHops();
+        hops[0].getCircuitBreaker().recordFailure();
+        for (int i = 0; i < 4; i++) {
+            assertSame(hops[1], table.lookup("ke.go.moh.mpi"));
+        }
+        assertTrue(route.isAvailable());
+        hops[1].getCircuitBreaker().recordFailure();
+        assertFalse(route.isAvailable());
+        assertNotNull(table.lookup("ke.go.moh.mpi")); // Chosen anyway; the send will fail at once.
+    }
+
+    @Test
+    public void failoverTriesEachOtherHopOnce() {
+        RoutingTable table = compile("IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721, 10.0.0.2:9721, 10.0.0.3:9721");
+        Route route = table.getRoutes().get("ke.go.moh.mpi");
+        List<NextHop> tried = new ArrayList<NextHop>();
+        tried.add(route.select());
+        NextHop alternate;
+        while ((alternate = route.selectAlternate(tried)) != null) {
+            assertFalse(tried.contains(alternate));
+            tried.add(alternate);
+        }
+        assertEquals(3, tried.size());
+    }
+
+    @Test
+    public void singleHopRouteHasNoAlternate() {
+        RoutingTable table = compile("IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721");
+        NextHop hop = table.lookup("ke.go.moh.mpi");
+        assertNull(hop.getRoute().selectAlternate(Arrays.asList(hop)));
+    }
+
+    @Test
+    public void leastOutstandingPrefersIdleHop() {
+        RoutingTable table = compile(
+                "NextHop.Balance", "leastOutstanding",
+                "IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721, 10.0.0.2:9721");
+        NextHop[] hops = table.getRoutes().get("ke.go.moh.mpi").getHops();
+        hops[0].sendStarted();
+        for (int i = 0; i < 4; i++) {
+            assertSame(hops[1], table.lookup("ke.go.moh.mpi"));
+        }
+        hops[1].sendStarted();
+        hops[1].sendStarted();
+        assertSame(hops[0], table.lookup("ke.go.moh.mpi"));
+    }
+
+    @Test
+    public void failureThresholdDefaultsToFive() {
+        RoutingTable table = compile("IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721");
+        CircuitBreaker b = table.lookup("ke.go.moh.mpi").getCircuitBreaker();
+        for (int i = 0; i < 4; i++) {
+            b.recordFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, b.getState());
+        b.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, b.getState());
+    }
+
+    @Test
+    public void unchangedHopsKeepTheirStateOnReload() {
+        Properties p = properties(
+                "NextHop.FailureThreshold", "1",
+                "IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721/maxInFlight=1, 10.0.0.2:9721");
+        RoutingTable old = RoutingTable.compile(p);
+        NextHop[] oldHops = old.getRoutes().get("ke.go.moh.mpi").getHops();
+        assertTrue(oldHops[0].acquireSendSlot()); // A send in progress over the reload.
+        oldHops[0].sendStarted();
+        oldHops[0].getCircuitBreaker().recordFailure();
+        p.setProperty("IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721/maxInFlight=1, 10.0.0.2:9721/zip");
+        RoutingTable table = RoutingTable.compile(p, old);
+        NextHop[] hops = table.getRoutes().get("ke.go.moh.mpi").getHops();
+        assertFalse(hops[0].acquireSendSlot());
+        assertEquals(1, hops[0].getOutstanding());
+        assertEquals(CircuitBreaker.State.OPEN, hops[0].getCircuitBreaker().getState());
+        oldHops[0].sendFinished();
+        oldHops[0].releaseSendSlot();
+        assertEquals(0, hops[0].getOutstanding());
+        assertTrue(hops[0].acquireSendSlot());
+        assertNotSame(oldHops[1].getCircuitBreaker(), hops[1].getCircuitBreaker()); // (Its hop string changed.)
+    }
+
+    @Test
+    public void changedBreakerSettingsStartNewBreakers() {
+        Properties p = properties(
+                "NextHop.FailureThreshold", "1",
+                "IPAddressPort.ke.go.moh.mpi", "10.0.0.1:9721");
+        RoutingTable old = RoutingTable.compile(p);
+        old.lookup("ke.go.moh.mpi").getCircuitBreaker().recordFailure();
+        p.setProperty("NextHop.FailureThreshold", "2");
+        RoutingTable table = RoutingTable.compile(p, old);
+        assertEquals(CircuitBreaker.State.CLOSED, table.lookup("ke.go.moh.mpi").getCircuitBreaker().getState());
+    }
+
+    /**
+     * Compiles a routing table from property names and values.
+     */
+    private static RoutingTable compile(String... namesAndValues) {
+        return RoutingTable.compile(properties(namesAndValues));
+    }
+
+    private static Properties properties(String... namesAndValues) {
+        Properties p = new Properties();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            p.setProperty(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return p;
+    }
+}
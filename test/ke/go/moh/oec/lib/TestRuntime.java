@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Sets up a private runtime directory and properties file for a test JVM,
+ * before the library's static initialization runs.
+ * <p>
+ * {@link Mediator} locks its runtime directory and loads
+ * openemrconnect.properties the first time the class is touched, so each
+ * test class calls {@link #init()} (usually from a @BeforeClass method)
+ * before using any library class. Surefire runs each test class in its
+ * own JVM.
+ */
+final class TestRuntime {
+
+    /** Address this test instance uses as its own. */
+    static final String INSTANCE_ADDRESS = "ke.go.moh.test";
+    private static File runtimeDirectory = null;
+
+    private TestRuntime() {
+    }
+
+    /**
+     * Creates the runtime directory and properties file for this JVM.
+     * Only the first call in a JVM has any effect.
+     *
+     * @return the runtime directory.
+     * @throws IOException if the directory or properties file can't be written.
+     */
+    static synchronized File init() throws IOException {
+        if (runtimeDirectory == null) {
+            runtimeDirectory = Files.createTempDirectory("oectest").toFile();
+            Properties p = new Properties();
+            p.setProperty("Instance.Name", "OEC Test");
+            p.setProperty("Instance.Address", INSTANCE_ADDRESS);
+            p.setProperty("HTTPHandler.ListenPort", "0");
+            p.setProperty("Logger.Level", "WARNING");
+            OutputStream out = new FileOutputStream(new File(runtimeDirectory, "openemrconnect.properties"));
+            try {
+                p.store(out, "Generated for testing");
+            } finally {
+                out.close();
+            }
+            String path = runtimeDirectory.getAbsolutePath() + File.separator;
+            System.setProperty("runtimeDirectory", path);
+            System.setProperty("configDirectory", path);
+        }
+        return runtimeDirectory;
+    }
+
+    /**
+     * Sets a property for the code under test. As when the properties file
+     * is reloaded, the properties are replaced by a new object.
+     *
+     * @param name name of the property.
+     * @param value value of the property, or null to remove it.
+     */
+    static void setProperty(String name, String value) {
+        Properties p = new Properties();
+        p.putAll(Mediator.getProperties());
+        if (value == null) {
+            p.remove(name);
+        } else {
+            p.setProperty(name, value);
+        }
+        Mediator.properties = p;
+    }
+
+    /**
+     * Puts back the properties from the properties file, undoing any
+     * calls to {@link #setProperty(String, String)}.
+     */
+    static void resetProperties() {
+        Mediator.properties = null;
+    }
+
+    /**
+     * Shuts down the queue manager's Derby database (if it is running in
+     * this JVM), and deletes it.
+     */
+    static void deleteQueueDatabase() {
+        String path = Mediator.getRuntimeDirectory() + "QUEUEMANAGER_DATABASE";
+        if (new File(path).isDirectory()) {
+            try {
+                DriverManager.getConnection("jdbc:derby:" + path + ";shutdown=true");
+            } catch (SQLException ex) {
+                // (Derby reports a successful shutdown as an exception.)
+            }
+        }
+        delete(new File(path));
+    }
+
+    /**
+     * Deletes a file or directory and everything under it.
+     *
+     * @param f the file or directory.
+     */
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,195 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is OpenEMRConnect.
+ *
+ * The Initial Developer of the Original Code is International Training &
+ * Education Center for Health (I-TECH) <http://www.go2itech.org/>
+ *
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ *
+ * ***** END LICENSE BLOCK ***** */
+package ke.go.moh.oec.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import ke.go.moh.oec.LogEntry;
+import ke.go.moh.oec.Person;
+import ke.go.moh.oec.PersonBatchRequest;
+import ke.go.moh.oec.PersonBatchResponse;
+import ke.go.moh.oec.PersonIdentifier;
+import ke.go.moh.oec.PersonRequest;
+import ke.go.moh.oec.PersonResponse;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that batch messages come out of unpacking the same as they went
+ * into packing: the envelope header and each item in the batch, in order.
+ */
+public class XmlPackerTest {
+
+    private XmlPacker xmlPacker;
+
+    @Before
+    public void setUp() throws Exception {
+        TestRuntime.init();
+        xmlPacker = new XmlPacker();
+    }
+
+    @Test
+    public void findPersonBatchRoundTrip() {
+        PersonBatchRequest batch = new PersonBatchRequest();
+        batch.setRequestList(Arrays.asList(request("John", "Otieno", "123"), request("Mary", "Akinyi", null)));
+        Message m = roundTrip(message(MessageTypeRegistry.findPersonBatchMpi, batch));
+
+        assertSame(MessageTypeRegistry.findPersonBatchMpi, m.getMessageType());
+        assertHeader(m);
+        List<PersonRequest> requests = ((PersonBatchRequest) m.getMessageData()).getRequestList();
+        assertEquals(2, requests.size());
+        assertEquals("John", requests.get(0).getPerson().getFirstName());
+        assertEquals("Otieno", requests.get(0).getPerson().getLastName());
+        assertEquals("123", identifier(requests.get(0).getPerson(), PersonIdentifier.Type.patientRegistryId));
+        assertEquals("Mary", requests.get(1).getPerson().getFirstName());
+        assertEquals("Akinyi", requests.get(1).getPerson().getLastName());
+    }
+
+    @Test
+    public void emptyBatchRoundTrip() {
+        PersonBatchRequest batch = new PersonBatchRequest();
+        batch.setRequestList(new ArrayList<PersonRequest>());
+        Message m = roundTrip(message(MessageTypeRegistry.createPersonBatchMpi, batch));
+
+        assertSame(MessageTypeRegistry.createPersonBatchMpi, m.getMessageType());
+        assertHeader(m);
+        assertTrue(((PersonBatchRequest) m.getMessageData()).getRequestList().isEmpty());
+    }
+
+    @Test
+    public void findPersonBatchResponseRoundTrip() {
+        PersonResponse found = new PersonResponse();
+        found.setSuccessful(true);
+        found.setPersonList(Arrays.asList(person("John", "Otieno", "123")));
+        PersonResponse none = new PersonResponse();
+        none.setSuccessful(true);
+        none.setPersonList(new ArrayList<Person>());
+        PersonBatchResponse batch = new PersonBatchResponse();
+        batch.setResponseList(Arrays.asList(found, new PersonResponse(), none));
+        Message m = roundTrip(message(MessageTypeRegistry.findPersonBatchResponse, batch));
+
+        assertSame(MessageTypeRegistry.findPersonBatchResponse, m.getMessageType());
+        assertHeader(m);
+        PersonBatchResponse unpacked = (PersonBatchResponse) m.getMessageData();
+        assertFalse(unpacked.isSuccessful()); // (One item has no response.)
+        List<PersonResponse> responses = unpacked.getResponseList();
+        assertEquals(3, responses.size());
+        assertTrue(responses.get(0).isSuccessful());
+        assertEquals("msg-1", responses.get(0).getRequestReference());
+        assertEquals(1, responses.get(0).getPersonList().size());
+        assertEquals("John", responses.get(0).getPersonList().get(0).getFirstName());
+        assertFalse(responses.get(1).isSuccessful());
+        assertTrue(responses.get(2).isSuccessful());
+        assertTrue(responses.get(2).getPersonList() == null || responses.get(2).getPersonList().isEmpty());
+    }
+
+    @Test
+    public void logEntryBatchRoundTrip() {
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+        for (int i = 0; i < 3; i++) {
+            LogEntry e = new LogEntry();
+            e.setSeverity("INFO");
+            e.setClassName("ke.go.moh.oec.lib.Test");
+            e.setMessage("Entry " + i);
+            e.setDateTime(new Date());
+            e.setInstance("ke.go.moh.test");
+            entries.add(e);
+        }
+        Message m = roundTrip(message(MessageTypeRegistry.logEntryBatch, entries));
+
+        assertSame(MessageTypeRegistry.logEntryBatch, m.getMessageType());
+        assertHeader(m);
+        List<?> unpacked = (List<?>) m.getMessageData();
+        assertEquals(3, unpacked.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Entry " + i, ((LogEntry) unpacked.get(i)).getMessage());
+            assertEquals("INFO", ((LogEntry) unpacked.get(i)).getSeverity());
+        }
+    }
+
+    /**
+     * Packs a message, and unpacks the XML into a new message.
+     */
+    private Message roundTrip(Message m) {
+        String xml = xmlPacker.pack(m);
+        assertNotNull(xml);
+        Message unpacked = new Message();
+        unpacked.setXml(xml);
+        xmlPacker.unpack(unpacked);
+        return unpacked;
+    }
+
+    private static Message message(MessageType messageType, Object data) {
+        Message m = new Message();
+        m.setMessageType(messageType);
+        m.setMessageData(data);
+        m.setMessageId("msg-1");
+        m.setSourceAddress("ke.go.moh.facility.14080.cds");
+        m.setSourceName("Clinical Document Store");
+        m.setDestinationAddress("ke.go.moh.mpi");
+        m.setDestinationName("Master Patient Index");
+        return m;
+    }
+
+    private static void assertHeader(Message m) {
+        assertEquals("msg-1", m.getMessageId());
+        assertEquals("ke.go.moh.facility.14080.cds", m.getSourceAddress());
+        assertEquals("Clinical Document Store", m.getSourceName());
+        assertEquals("ke.go.moh.mpi", m.getDestinationAddress());
+        assertEquals("Master Patient Index", m.getDestinationName());
+    }
+
+    private static PersonRequest request(String firstName, String lastName, String registryId) {
+        PersonRequest request = new PersonRequest();
+        request.setPerson(person(firstName, lastName, registryId));
+        return request;
+    }
+
+    private static Person person(String firstName, String lastName, String registryId) {
+        Person p = new Person();
+        p.setFirstName(firstName);
+        p.setLastName(lastName);
+        if (registryId != null) {
+            List<PersonIdentifier> ids = new ArrayList<PersonIdentifier>();
+            ids.add(new PersonIdentifier(PersonIdentifier.Type.patientRegistryId, registryId));
+            p.setPersonIdentifierList(ids);
+        }
+        return p;
+    }
+
+    private static String identifier(Person p, PersonIdentifier.Type type) {
+        if (p.getPersonIdentifierList() != null) {
+            for (PersonIdentifier pi : p.getPersonIdentifierList()) {
+                if (pi.getIdentifierType() == type) {
+                    return pi.getIdentifier();
+                }
+            }
+        }
+        return null;
+    }
+}